@@ -2,6 +2,7 @@ plugins {
     java
     id("io.quarkus")
     id("com.diffplug.spotless") version "8.4.0"
+    id("me.champeau.jmh") version "0.7.3"
     checkstyle
     pmd
 }
@@ -28,6 +29,10 @@ dependencies {
     implementation("io.quarkus:quarkus-arc")
     implementation("io.quarkus:quarkus-container-image-jib")
     implementation("org.neo4j:neo4j-ogm-quarkus:4.2.5")
+    implementation("io.quarkus:quarkus-micrometer-registry-prometheus")
+    implementation("com.github.ben-manes.caffeine:caffeine")
+    implementation("io.quarkus:quarkus-scheduler")
+    implementation("io.quarkus:quarkus-smallrye-health")
 
     implementation("io.quarkus:quarkus-messaging-kafka")
     implementation("io.confluent:kafka-avro-serializer:7.9.0")
@@ -37,6 +42,7 @@ dependencies {
     implementation("org.apache.avro:avro:$avroVersion")
 
     testImplementation("io.quarkus:quarkus-junit5")
+    testImplementation("io.quarkus:quarkus-junit5-virtual-threads")
     testImplementation("io.rest-assured:rest-assured")
     testImplementation("io.smallrye.reactive:smallrye-reactive-messaging-in-memory")
 }
@@ -63,6 +69,40 @@ tasks.withType<Test> {
         exceptionFormat = org.gradle.api.tasks.testing.logging.TestExceptionFormat.FULL
     }
 }
+
+tasks.named<Test>("test") {
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+}
+
+// Benchmarks are excluded from the regular test run, e.g. ./gradlew benchmarkTest
+tasks.register<Test>("benchmarkTest") {
+    description = "Runs the ingest benchmarks tagged with 'benchmark'."
+    group = "verification"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+    project.findProperty("benchmarkLandscapeSizes")?.let {
+        systemProperty("explorviz.benchmark.landscape-sizes", it)
+    }
+    project.findProperty("benchmarkConcurrentCallers")?.let {
+        systemProperty("explorviz.benchmark.concurrent-callers", it)
+    }
+    shouldRunAfter("test")
+}
+
+// Micro-benchmarks in src/jmh, e.g. ./gradlew jmh -PjmhIncludes=SpanPreprocessingBenchmark
+jmh {
+    jmhVersion.set("1.37")
+    profilers.add("gc")
+    project.findProperty("jmhIncludes")?.let {
+        includes.add(it.toString())
+    }
+}
+
 tasks.withType<JavaCompile> {
     options.encoding = "UTF-8"
     options.compilerArgs.add("-parameters")
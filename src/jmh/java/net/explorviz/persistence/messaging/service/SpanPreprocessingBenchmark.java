@@ -0,0 +1,134 @@
+package net.explorviz.persistence.messaging.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionKey;
+import net.explorviz.persistence.cache.IdentifierDictionary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the preprocessing of a span batch before it is written, i.e. decoding the spans,
+ * interning their identifiers and preparing the trace rows. Each operation is a single span, so
+ * run with the gc profiler (enabled by default, see ./gradlew jmh), gc.alloc.rate.norm reports the
+ * allocated bytes per span. The baseline decodes the spans only, the difference to the other
+ * benchmarks is the cost of the preprocessing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpanPreprocessingBenchmark {
+
+  private static final int BATCH_SIZE = 500;
+
+  private static final int SPANS_PER_TRACE = 10;
+
+  private static final int FUNCTIONS = 50;
+
+  private List<ByteBuffer> encodedSpans;
+
+  private Map<FunctionKey, Long> functionIds;
+
+  private IdentifierDictionary identifierDictionary;
+
+  private String[] filePaths;
+
+  @Setup
+  public void setup() throws IOException {
+    identifierDictionary = new IdentifierDictionary(100_000);
+    encodedSpans = new ArrayList<>(BATCH_SIZE);
+    functionIds = new HashMap<>();
+    filePaths = new String[FUNCTIONS];
+
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      final int function = i % FUNCTIONS;
+      final int indexInTrace = i % SPANS_PER_TRACE;
+      filePaths[function] =
+          "src/main/java/net/explorviz/app/package" + function % 5 + "/File" + function + ".java";
+      final SpanData spanData =
+          SpanData.newBuilder()
+              .setLandscapeTokenId("mytokenvalue")
+              .setTraceId("trace" + i / SPANS_PER_TRACE)
+              .setSpanId("span" + i)
+              .setParentId(indexInTrace == 0 ? "" : "span" + (i - 1))
+              .setStartTime(1_700_000_000_000_000_000L + i)
+              .setEndTime(1_700_000_000_000_001_000L + i)
+              .setApplicationName("sampleApplication")
+              .setFilePath(filePaths[function])
+              .setClassName("net.explorviz.app.package" + function % 5 + ".File" + function)
+              .setFunctionName("function" + function)
+              .setLanguage("java")
+              .build();
+      encodedSpans.add(spanData.toByteBuffer());
+      functionIds.put(FunctionKey.of(spanData), (long) function);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decodeOnly(final Blackhole blackhole) {
+    blackhole.consume(decode());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decodeAndPrepare(final Blackhole blackhole) {
+    blackhole.consume(PreparedBatch.of(decode(), functionIds));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decodeInternAndPrepare(final Blackhole blackhole) {
+    final List<SpanData> batch = decode();
+    batch.forEach(identifierDictionary::internIdentifiers);
+    blackhole.consume(PreparedBatch.of(batch, functionIds));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void splitPathWithString(final Blackhole blackhole) {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      blackhole.consume(filePaths[i % FUNCTIONS].split("/"));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void splitPathWithDictionary(final Blackhole blackhole) {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      blackhole.consume(identifierDictionary.splitPath(filePaths[i % FUNCTIONS]));
+    }
+  }
+
+  private List<SpanData> decode() {
+    final List<SpanData> batch = new ArrayList<>(BATCH_SIZE);
+    try {
+      for (final ByteBuffer encoded : encodedSpans) {
+        batch.add(SpanData.fromByteBuffer(encoded.duplicate()));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return batch;
+  }
+}
@@ -0,0 +1,54 @@
+package net.explorviz.persistence.api;
+
+import io.smallrye.common.annotation.RunOnVirtualThread;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import net.explorviz.persistence.backfill.SpanBackfillImporter;
+import net.explorviz.persistence.backfill.SpanBackfillImporter.ImportResult;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.LimitDatabaseWork;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Contains admin endpoints for importing recorded data, disabled unless explorviz.backfill.enabled
+ * is set. Avro container files of spans can be uploaded as request body, e.g. {@code curl
+ * --data-binary @spans.avro -H "Content-Type: application/octet-stream"
+ * localhost:8085/admin/backfill/spans}.
+ *
+ * <p>An import is span ingest like the Kafka consumer, so it holds a permit of that class and its
+ * batches are persisted one after another with the consumed batches, see {@link
+ * net.explorviz.persistence.messaging.SpanIngestWorkers}.
+ */
+@RunOnVirtualThread
+@LimitDatabaseWork(DatabaseWorkClass.SPAN_INGEST)
+@Path("/admin/backfill")
+public class BackfillResource {
+
+  @ConfigProperty(name = "explorviz.backfill.enabled", defaultValue = "false")
+  boolean enabled;
+
+  @Inject SpanBackfillImporter spanBackfillImporter;
+
+  @POST
+  @Path("/spans")
+  @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+  @Produces(MediaType.APPLICATION_JSON)
+  public ImportResult importSpans(final InputStream avroFile) {
+    if (!enabled) {
+      throw new NotFoundException();
+    }
+    try {
+      return spanBackfillImporter.importSpans(avroFile);
+    } catch (IOException e) {
+      throw new BadRequestException("Failed to read Avro file: " + e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package net.explorviz.persistence.api;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import net.explorviz.persistence.util.DatabaseBusyException;
+import org.jboss.resteasy.reactive.server.ServerExceptionMapper;
+
+/** Answers requests rejected by the database work limiter with 503 Service Unavailable. */
+public class DatabaseBusyExceptionMapper {
+
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  @ServerExceptionMapper
+  public Response mapDatabaseBusy(final DatabaseBusyException e) {
+    return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+        .type(MediaType.TEXT_PLAIN)
+        .entity(e.getMessage())
+        .build();
+  }
+}
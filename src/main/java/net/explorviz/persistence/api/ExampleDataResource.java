@@ -15,6 +15,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import net.explorviz.persistence.cache.DirectoryPathCache;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
 import net.explorviz.persistence.ogm.Application;
 import net.explorviz.persistence.ogm.Branch;
 import net.explorviz.persistence.ogm.Clazz;
@@ -26,6 +28,10 @@ import net.explorviz.persistence.ogm.Landscape;
 import net.explorviz.persistence.ogm.Repository;
 import net.explorviz.persistence.ogm.Span;
 import net.explorviz.persistence.ogm.Trace;
+import net.explorviz.persistence.repository.ClazzRepository;
+import net.explorviz.persistence.repository.DirectoryRepository;
+import net.explorviz.persistence.repository.LandscapeRepository;
+import net.explorviz.persistence.schema.SpanDataRebuilder;
 import org.jboss.resteasy.reactive.RestQuery;
 import org.neo4j.ogm.model.Result;
 import org.neo4j.ogm.session.Session;
@@ -40,8 +46,22 @@ import org.neo4j.ogm.session.SessionFactory;
 @SuppressWarnings({"PMD.NcssCount", "PMD.TooManyMethods"})
 public class ExampleDataResource {
 
+  private static final int KEY_BATCH_SIZE = 10_000;
+
+  @Inject ClazzRepository clazzRepository;
+
+  @Inject DirectoryPathCache directoryPathCache;
+
+  @Inject DirectoryRepository directoryRepository;
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject LandscapeRepository landscapeRepository;
+
   @Inject SessionFactory sessionFactory;
 
+  @Inject SpanDataRebuilder spanDataRebuilder;
+
   @GET
   @Path("/trace")
   public String createTestingDynamicData() {
@@ -49,14 +69,16 @@ public class ExampleDataResource {
     session.query(
         """
         MERGE (l:Landscape {tokenId: "mytokenvalue"})
-        MERGE (l)-[:CONTAINS]->(t1:Trace {traceId: "trace1"})
-        MERGE (l)-[:CONTAINS]->(t2:Trace {traceId: "trace2"})
+        MERGE (l)-[:CONTAINS]->(t1:Trace {landscapeToken: l.tokenId, traceId: "trace1"})
+        MERGE (l)-[:CONTAINS]->(t2:Trace {landscapeToken: l.tokenId, traceId: "trace2"})
         SET t1.startTime = 1000000000, t1.endTime = 1001000000
         SET t2.startTime = 2000000000, t2.endTime = 4002800000
-        MERGE (t1)-[:CONTAINS]->(s1:Span {spanId: "span1"})
-        MERGE (t2)-[:CONTAINS]->(s2:Span {spanId: "span2"})
-        MERGE (t2)-[:CONTAINS]->(s3:Span {spanId: "span3"})-[:HAS_PARENT]->(s2)
-        MERGE (t2)-[:CONTAINS]->(s4:Span {spanId: "span4"})-[:HAS_PARENT]->(s3)
+        MERGE (t1)-[:CONTAINS]->(s1:Span {landscapeToken: l.tokenId, spanId: "span1"})
+        MERGE (t2)-[:CONTAINS]->(s2:Span {landscapeToken: l.tokenId, spanId: "span2"})
+        MERGE (t2)-[:CONTAINS]->(s3:Span {landscapeToken: l.tokenId, spanId: "span3"})
+          -[:HAS_PARENT]->(s2)
+        MERGE (t2)-[:CONTAINS]->(s4:Span {landscapeToken: l.tokenId, spanId: "span4"})
+          -[:HAS_PARENT]->(s3)
 
         SET s1.startTime = 1000000000, s1.endTime = 1001000000
         SET s2.startTime = 2000000000, s2.endTime = 2003000000
@@ -87,6 +109,8 @@ public class ExampleDataResource {
         MERGE (s3)-[:REPRESENTS]->(func3)<-[:REPRESENTS]-(s4);
         """,
         Map.of());
+    rebuildDerivedSpanData(session);
+    setKeys(session);
     return "Successfully created example \"trace\"";
   }
 
@@ -164,6 +188,7 @@ public class ExampleDataResource {
                     session.save(c);
                   });
             });
+    setKeys(session);
 
     return "Successfully created example \"repo\"";
   }
@@ -240,6 +265,7 @@ public class ExampleDataResource {
                     session.save(c);
                   });
             });
+    setKeys(session);
   }
 
   @GET
@@ -332,6 +358,7 @@ public class ExampleDataResource {
 
     final Session session = sessionFactory.openSession();
     session.save(List.of(landscape, application1, application2));
+    setKeys(session);
 
     return "Successfully created example \"monorepo\"";
   }
@@ -368,6 +395,8 @@ public class ExampleDataResource {
   public String purgeDatabase() {
     final Session session = sessionFactory.openSession();
     session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+    directoryPathCache.invalidateAll();
     return "Database purge successful";
   }
 
@@ -425,14 +454,37 @@ public class ExampleDataResource {
       final Session session = sessionFactory.openSession();
       session.purgeDatabase();
       Arrays.stream(cypherStatements).forEach(s -> session.query(s, Map.of()));
+      rebuildDerivedSpanData(session);
+      setKeys(session);
     } catch (final IOException e) {
       throw new InternalServerErrorException(
           "Failed to load example cypher file: " + e.getMessage(), e);
     }
   }
 
+  /**
+   * Example spans bypass the ingest, so the timeline span counts, aggregated function calls and
+   * trace summaries are recomputed afterwards.
+   */
+  private void rebuildDerivedSpanData(final Session session) {
+    for (final String tokenId : landscapeRepository.findAllTokenIds(session)) {
+      spanDataRebuilder.rebuildSpanCounts(tokenId);
+      spanDataRebuilder.rebuildCalls(tokenId);
+      spanDataRebuilder.rebuildSummaries(tokenId);
+    }
+  }
+
+  /**
+   * Example nodes bypass the ingest, so the path keys of their directories and files and the FQN
+   * keys of their classes and functions are set afterwards.
+   */
+  private void setKeys(final Session session) {
+    directoryRepository.backfillPathKeys(session, KEY_BATCH_SIZE);
+    clazzRepository.backfillFqnKeys(session, KEY_BATCH_SIZE);
+  }
+
   private void addRandomSpan(final Trace trace, final String name) {
-    final Span span = new Span(name);
+    final Span span = new Span(trace.getLandscapeToken(), name);
     final long randNumb = (long) (Math.random() * 100_000_000_000.0);
     span.setStartTime(randNumb);
     span.setEndTime(randNumb + 1);
@@ -444,8 +496,8 @@ public class ExampleDataResource {
   public String createTestingTimestamps() {
     final Landscape landscape = new Landscape("mytokenvalue");
 
-    final Trace trace1 = new Trace("trace1");
-    final Trace trace2 = new Trace("trace2");
+    final Trace trace1 = new Trace(landscape.getTokenId(), "trace1");
+    final Trace trace2 = new Trace(landscape.getTokenId(), "trace2");
 
     for (int i = 0; i < 5; i++) {
       addRandomSpan(trace1, "trace1_span" + i);
@@ -457,6 +509,7 @@ public class ExampleDataResource {
 
     final Session session = sessionFactory.openSession();
     session.save(List.of(landscape));
+    rebuildDerivedSpanData(session);
 
     return "Successfully created testing timestamps";
   }
@@ -1,6 +1,7 @@
 package net.explorviz.persistence.api.v2;
 
 import io.quarkus.logging.Log;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
@@ -41,10 +42,13 @@ import net.explorviz.persistence.repository.CommitRepository.FileComparison;
 import net.explorviz.persistence.repository.FileRevisionRepository;
 import net.explorviz.persistence.repository.FunctionRepository;
 import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.util.LimitDatabaseWork;
 import org.jboss.resteasy.reactive.RestPath;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
 
+@RunOnVirtualThread
+@LimitDatabaseWork
 @Path("/v2/code")
 @SuppressWarnings("PMD.CouplingBetweenObjects")
 public class CodeResource {
@@ -1,6 +1,7 @@
 package net.explorviz.persistence.api.v2;
 
 import io.quarkus.logging.Log;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import io.smallrye.mutiny.Multi;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.GET;
@@ -21,11 +22,14 @@ import net.explorviz.persistence.repository.ApplicationRepository;
 import net.explorviz.persistence.repository.CommitRepository;
 import net.explorviz.persistence.repository.RepositoryRepository;
 import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.util.LimitDatabaseWork;
 import org.jboss.resteasy.reactive.RestPath;
 import org.jboss.resteasy.reactive.RestQuery;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
 
+@RunOnVirtualThread
+@LimitDatabaseWork
 @Path("/v2/landscapes/{landscapeToken}")
 public class LandscapeResource {
 
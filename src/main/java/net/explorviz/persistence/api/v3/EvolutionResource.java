@@ -1,6 +1,7 @@
 package net.explorviz.persistence.api.v3;
 
 import io.quarkus.logging.Log;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.NotFoundException;
@@ -20,11 +21,14 @@ import net.explorviz.persistence.api.v3.model.CommitTreeDto;
 import net.explorviz.persistence.ogm.Commit;
 import net.explorviz.persistence.repository.CommitRepository;
 import net.explorviz.persistence.repository.RepositoryRepository;
+import net.explorviz.persistence.util.LimitDatabaseWork;
 import org.jboss.resteasy.reactive.RestPath;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
 
 /** Contains endpoints concerning git repository analysis. */
+@RunOnVirtualThread
+@LimitDatabaseWork
 @Path("/v3/landscapes/{landscapeToken}")
 public class EvolutionResource {
 
@@ -1,5 +1,6 @@
 package net.explorviz.persistence.api.v3;
 
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
@@ -12,11 +13,14 @@ import net.explorviz.persistence.api.v3.model.landscape.FlatLandscapeDto;
 import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.repository.FileDetailedMapper;
 import net.explorviz.persistence.repository.StructureRepository;
+import net.explorviz.persistence.util.LimitDatabaseWork;
 import org.jboss.resteasy.reactive.RestPath;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
 
 /** Contains endpoints concerning landscape structure data, i.e. the shape of the landscape. */
+@RunOnVirtualThread
+@LimitDatabaseWork
 @Path("/v3/landscapes/{landscapeToken}/structure")
 public class StructureResource {
 
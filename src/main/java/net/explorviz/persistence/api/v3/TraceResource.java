@@ -1,9 +1,11 @@
 package net.explorviz.persistence.api.v3;
 
 import io.quarkus.logging.Log;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.MediaType;
@@ -19,8 +21,10 @@ import net.explorviz.persistence.api.v3.model.MetricSummaryDto;
 import net.explorviz.persistence.api.v3.model.SimpleFunctionDto;
 import net.explorviz.persistence.api.v3.model.trace.TimestampDto;
 import net.explorviz.persistence.api.v3.model.trace.TraceDto;
+import net.explorviz.persistence.api.v3.model.trace.TraceSummaryDto;
 import net.explorviz.persistence.ogm.Trace;
 import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.util.LimitDatabaseWork;
 import org.jboss.resteasy.reactive.RestPath;
 import org.jboss.resteasy.reactive.RestQuery;
 import org.neo4j.ogm.session.Session;
@@ -30,6 +34,8 @@ import org.neo4j.ogm.session.SessionFactory;
  * Contains endpoints concerning dynamic data, i.e. communication data retrieved from runtime
  * analysis of traces.
  */
+@RunOnVirtualThread
+@LimitDatabaseWork
 @Path("/v3/landscapes/{landscapeToken}")
 public class TraceResource {
   private static final String REQUEST_COUNT = "requestCount";
@@ -40,33 +46,75 @@ public class TraceResource {
 
   @Inject TraceRepository traceRepository;
 
+  /**
+   * Returns the traces of a landscape containing any span within the given time range. By default,
+   * each trace includes all of its spans, see {@link TraceDto}. In summary mode, only the summaries
+   * maintained during ingest are returned, see {@link TraceSummaryDto}, and the spans of a single
+   * trace can be retrieved via {@link #getTrace(String, String)}.
+   *
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param from Lower bound of time range to include (epoch nanosecond value)
+   * @param to Upper bound of time range to include (epoch nanosecond value)
+   * @param summary Whether to return trace summaries instead of traces with all spans
+   */
   @GET
   @Produces(MediaType.APPLICATION_JSON)
   @Path("/dynamic")
-  public List<TraceDto> getDynamicData(
-      @RestPath final String landscapeToken, @RestQuery final Long from, @RestQuery final Long to) {
+  public List<?> getDynamicData(
+      @RestPath final String landscapeToken,
+      @RestQuery final Long from,
+      @RestQuery final Long to,
+      @RestQuery final boolean summary) {
 
     final Session session = sessionFactory.openSession();
 
     final long fromTimestamp = Objects.requireNonNullElse(from, Long.MIN_VALUE);
     final long toTimestamp = Objects.requireNonNullElse(to, Long.MAX_VALUE);
 
+    if (summary) {
+      return traceRepository
+          .findTraceSummaries(session, landscapeToken, fromTimestamp, toTimestamp)
+          .stream()
+          .map(s -> new TraceSummaryDto(s, landscapeToken))
+          .toList();
+    }
+
     final List<Trace> ogmTraces =
         traceRepository.findHydratedTraces(session, landscapeToken, fromTimestamp, toTimestamp);
 
     return ogmTraces.stream()
-        .filter(
-            t -> {
-              if (t.getStartTime() == null || t.getEndTime() == null) {
-                Log.errorf("Trace missing start or end timestamp, ignoring: %s", t.getTraceId());
-                return false;
-              }
-              return true;
-            })
+        .filter(TraceResource::hasTimestamps)
         .map(t -> new TraceDto(t, landscapeToken))
         .toList();
   }
 
+  /**
+   * Returns a single trace including all of its spans.
+   *
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param traceId ID of the trace as specified by OpenTelemetry
+   */
+  @GET
+  @Produces(MediaType.APPLICATION_JSON)
+  @Path("/dynamic/{traceId}")
+  public TraceDto getTrace(@RestPath final String landscapeToken, @RestPath final String traceId) {
+    final Session session = sessionFactory.openSession();
+
+    return traceRepository
+        .findHydratedTrace(session, landscapeToken, traceId)
+        .filter(TraceResource::hasTimestamps)
+        .map(t -> new TraceDto(t, landscapeToken))
+        .orElseThrow(NotFoundException::new);
+  }
+
+  private static boolean hasTimestamps(final Trace trace) {
+    if (trace.getStartTime() == null || trace.getEndTime() == null) {
+      Log.errorf("Trace missing start or end timestamp, ignoring: %s", trace.getTraceId());
+      return false;
+    }
+    return true;
+  }
+
   @GET
   @Produces(MediaType.APPLICATION_JSON)
   @Path("/file-communication")
@@ -11,9 +11,15 @@ import net.explorviz.persistence.ogm.Trace;
  * @param startTime Start time of the trace, as Unix epoch timestamp
  * @param endTime End time of the trace, as Unix epoch timestamp
  * @param spanList Spans that are part of this trace, see {@link SpanDto}
+ * @param samplingRatio Share of traces kept while this trace was ingested, 1 unless load was shed
  */
 public record TraceDto(
-    String landscapeToken, String traceId, long startTime, long endTime, List<SpanDto> spanList) {
+    String landscapeToken,
+    String traceId,
+    long startTime,
+    long endTime,
+    List<SpanDto> spanList,
+    double samplingRatio) {
 
   public TraceDto(final Trace ogmTrace, final String landscapeToken) {
     this(
@@ -21,6 +27,7 @@ public record TraceDto(
         ogmTrace.getTraceId(),
         ogmTrace.getStartTime(),
         ogmTrace.getEndTime(),
-        ogmTrace.getSpans().stream().map(s -> new SpanDto(s, ogmTrace.getTraceId())).toList());
+        ogmTrace.getSpans().stream().map(s -> new SpanDto(s, ogmTrace.getTraceId())).toList(),
+        ogmTrace.getSamplingRatio());
   }
 }
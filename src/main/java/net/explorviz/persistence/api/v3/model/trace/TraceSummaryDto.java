@@ -0,0 +1,46 @@
+package net.explorviz.persistence.api.v3.model.trace;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import java.util.Objects;
+import net.explorviz.persistence.repository.TraceRepository.TraceSummary;
+
+/**
+ * Represents a trace without its spans as used for the trace overview in the frontend. The spans of
+ * a trace can be retrieved separately, see {@link TraceDto}.
+ *
+ * @param landscapeToken String identifier of the visualization landscape
+ * @param traceId ID of the trace as specified by OpenTelemetry
+ * @param startTime Start time of the trace, as Unix epoch timestamp
+ * @param endTime End time of the trace, as Unix epoch timestamp
+ * @param duration Duration of the trace in nanoseconds
+ * @param spanCount Number of spans that are part of this trace
+ * @param depth Number of levels of the span tree
+ * @param rootFunctionId ID of the flat landscape function that the root span represents. Omitted
+ *     if the root span has not been received
+ * @param samplingRatio Share of traces kept while this trace was ingested, 1 unless load was shed
+ */
+public record TraceSummaryDto(
+    String landscapeToken,
+    String traceId,
+    long startTime,
+    long endTime,
+    long duration,
+    long spanCount,
+    long depth,
+    @JsonInclude(Include.NON_NULL) String rootFunctionId,
+    double samplingRatio) {
+
+  public TraceSummaryDto(final TraceSummary summary, final String landscapeToken) {
+    this(
+        landscapeToken,
+        summary.traceId(),
+        summary.startTime(),
+        summary.endTime(),
+        summary.duration(),
+        summary.spanCount(),
+        summary.depth(),
+        Objects.toString(summary.rootFunctionId(), null),
+        summary.samplingRatio());
+  }
+}
@@ -0,0 +1,178 @@
+package net.explorviz.persistence.backfill;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.IdentifierDictionary;
+import net.explorviz.persistence.messaging.SpanIngestWorkers;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Imports recorded spans from Avro container files of {@link SpanData}, e.g. to replay captures
+ * into another environment or to rebuild landscapes after a purge without going through Kafka.
+ * Spans are persisted by the {@link SpanIngestWorkers} in batches of the configured size, so the
+ * resulting graph including the span counts and aggregated calls is the same as if the spans had
+ * been consumed. Since the workers persist one batch at a time, imported batches interleave with
+ * the batches consumed from Kafka rather than racing them. Reading and decoding the next batch
+ * overlaps with writing the previous one.
+ *
+ * <p>Spans are written in file order and batches one after another. If writing a batch fails, the
+ * import is aborted and earlier batches remain committed; since spans persisted before are not
+ * counted again, the same file can simply be imported again. Progress is logged in the configured
+ * interval and the number of imported spans is exposed as metric {@value #METRIC_PREFIX}.spans.
+ */
+@ApplicationScoped
+public class SpanBackfillImporter {
+
+  private static final String METRIC_PREFIX = "explorviz.backfill";
+
+  @ConfigProperty(name = "explorviz.backfill.batch-size", defaultValue = "5000")
+  int batchSize;
+
+  @ConfigProperty(name = "explorviz.backfill.progress-interval", defaultValue = "10s")
+  Duration progressInterval;
+
+  @Inject IdentifierDictionary identifierDictionary;
+
+  @Inject MeterRegistry meterRegistry;
+
+  @Inject SpanIngestWorkers spanIngestWorkers;
+
+  private ExecutorService writer;
+
+  private Counter importedSpans;
+
+  @PostConstruct
+  void init() {
+    writer =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "span-backfill");
+              thread.setDaemon(true);
+              return thread;
+            });
+    importedSpans = meterRegistry.counter(METRIC_PREFIX + ".spans");
+  }
+
+  @PreDestroy
+  void shutdown() {
+    writer.shutdown();
+  }
+
+  /**
+   * Imports all spans of an Avro container file and returns once they are committed.
+   *
+   * @param avroFile Avro container file of {@link SpanData} records, closed once read
+   * @return Number of imported spans and the achieved throughput
+   * @throws IOException if the file could not be read
+   * @throws RuntimeException if writing a batch failed; the batches before remain committed
+   */
+  public ImportResult importSpans(final InputStream avroFile) throws IOException {
+    final long startTime = System.nanoTime();
+    final AtomicLong committed = new AtomicLong();
+    long batches = 0;
+    long lastProgress = startTime;
+    CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+
+    try (DataFileStream<SpanData> reader =
+        new DataFileStream<>(avroFile, new SpecificDatumReader<>(SpanData.class))) {
+      List<SpanData> batch = new ArrayList<>(batchSize);
+      while (reader.hasNext()) {
+        final SpanData spanData = reader.next();
+        identifierDictionary.internIdentifiers(spanData);
+        batch.add(spanData);
+
+        if (batch.size() >= batchSize) {
+          pending = writeAfter(pending, batch, committed);
+          batches++;
+          batch = new ArrayList<>(batchSize);
+        }
+
+        final long now = System.nanoTime();
+        if (now - lastProgress >= progressInterval.toNanos()) {
+          lastProgress = now;
+          Log.infof(
+              "Backfilled %d spans (%.0f spans/s)",
+              committed.get(), spansPerSecond(committed.get(), now - startTime));
+        }
+      }
+      if (!batch.isEmpty()) {
+        pending = writeAfter(pending, batch, committed);
+        batches++;
+      }
+    } finally {
+      // Never return while a batch is still being written, even if reading failed
+      join(pending);
+    }
+
+    final long duration = System.nanoTime() - startTime;
+    final ImportResult result =
+        new ImportResult(
+            committed.get(),
+            batches,
+            Duration.ofNanos(duration).toMillis(),
+            spansPerSecond(committed.get(), duration));
+    Log.infof(
+        "Backfilled %d spans in %d batches within %d ms (%.0f spans/s)",
+        result.spans(), result.batches(), result.durationMillis(), result.spansPerSecond());
+    return result;
+  }
+
+  /** Writes the batch once the previous batch has been committed. */
+  private CompletableFuture<Void> writeAfter(
+      final CompletableFuture<Void> previous,
+      final List<SpanData> batch,
+      final AtomicLong committed) {
+    join(previous);
+    return CompletableFuture.runAsync(
+        () -> {
+          spanIngestWorkers.persist(batch);
+          committed.addAndGet(batch.size());
+          importedSpans.increment(batch.size());
+        },
+        writer);
+  }
+
+  private static void join(final CompletableFuture<Void> future) {
+    try {
+      future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  private static double spansPerSecond(final long spans, final long nanos) {
+    return nanos > 0 ? spans * 1_000_000_000.0 / nanos : 0;
+  }
+
+  /**
+   * Outcome of an import.
+   *
+   * @param spans Number of imported spans
+   * @param batches Number of written batches
+   * @param durationMillis Duration of the import in milliseconds
+   * @param spansPerSecond Average throughput of the import
+   */
+  public record ImportResult(
+      long spans, long batches, long durationMillis, double spansPerSecond) {}
+}
@@ -0,0 +1,96 @@
+package net.explorviz.persistence.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.Optional;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * In-process cache holding a {@link DirectoryTrie} per landscape and repository, such that the
+ * parent directories of the files of a commit can be resolved without matching their paths from
+ * the repository root. Tries are created on first use of their repository and filled lazily with
+ * the directories which static ingest looks up or creates.
+ *
+ * <p>The cache is bounded by the total number of directories of all tries and evicts whole tries.
+ * Since the tries hold raw node ids, a trie has to be invalidated whenever Directory nodes of its
+ * repository are deleted or moved, and whenever a transaction which may have added directories to
+ * it is rolled back. Hit and miss counts are exposed as metrics under the name {@value
+ * #CACHE_NAME}.
+ */
+@ApplicationScoped
+public class DirectoryPathCache {
+
+  private static final String CACHE_NAME = "explorviz.static.directory-cache";
+
+  @ConfigProperty(name = "explorviz.static.directory-cache.max-size", defaultValue = "1000000")
+  long maxSize;
+
+  @ConfigProperty(
+      name = "explorviz.static.directory-cache.expire-after-access",
+      defaultValue = "1h")
+  Duration expireAfterAccess;
+
+  @Inject MeterRegistry meterRegistry;
+
+  private Cache<RepositoryKey, DirectoryTrie> cache;
+
+  @PostConstruct
+  void init() {
+    cache =
+        Caffeine.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher((RepositoryKey key, DirectoryTrie trie) -> trie.size())
+            .expireAfterAccess(expireAfterAccess)
+            .recordStats()
+            .build();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+  }
+
+  public Optional<DirectoryTrie> getTrie(final String landscapeToken, final String repositoryName) {
+    return Optional.ofNullable(
+        cache.getIfPresent(new RepositoryKey(landscapeToken, repositoryName)));
+  }
+
+  /**
+   * Adds an empty trie for the given repository unless another caller added one meanwhile.
+   *
+   * @param rootId ID of the repository's root directory
+   * @return The trie of the repository
+   */
+  public DirectoryTrie addTrie(
+      final String landscapeToken, final String repositoryName, final long rootId) {
+    final DirectoryTrie trie = new DirectoryTrie(rootId);
+    final DirectoryTrie existing =
+        cache.asMap().putIfAbsent(new RepositoryKey(landscapeToken, repositoryName), trie);
+    return existing != null ? existing : trie;
+  }
+
+  /**
+   * Updates the weight of a trie to which directories were added, which may evict other tries. Has
+   * no effect if the trie has been invalidated meanwhile.
+   */
+  public void updateWeight(
+      final String landscapeToken, final String repositoryName, final DirectoryTrie trie) {
+    cache
+        .asMap()
+        .computeIfPresent(
+            new RepositoryKey(landscapeToken, repositoryName),
+            (key, cached) -> cached == trie ? trie : cached);
+  }
+
+  public void invalidate(final String landscapeToken, final String repositoryName) {
+    cache.invalidate(new RepositoryKey(landscapeToken, repositoryName));
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  private record RepositoryKey(String landscapeToken, String repositoryName) {}
+}
@@ -0,0 +1,91 @@
+package net.explorviz.persistence.cache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trie of the static directory structure of one repository, mapping the path of each known
+ * directory below the repository's root directory to the id of its Directory node. Paths are given
+ * as their directory names, without the name of the root directory. Directories are only ever
+ * added, so the trie may be read and extended concurrently.
+ */
+public final class DirectoryTrie {
+
+  private final Node root;
+
+  private final AtomicInteger size = new AtomicInteger(1);
+
+  public DirectoryTrie(final long rootId) {
+    this.root = new Node(rootId);
+  }
+
+  /** Returns the number of directories in the trie, including the root directory. */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Returns the longest prefix of the given path whose directories are all known.
+   *
+   * @param path Directory names below the root directory
+   */
+  public Prefix findLongestPrefix(final List<String> path) {
+    Node node = root;
+    int length = 0;
+    for (final String name : path) {
+      final Node child = node.children.get(name);
+      if (child == null) {
+        break;
+      }
+      node = child;
+      length++;
+    }
+    return new Prefix(length, node.id);
+  }
+
+  /**
+   * Adds a directory whose parent directory is known already.
+   *
+   * @param path Directory names below the root directory, ending with the added directory
+   * @param directoryId ID of the Directory node at the given path
+   * @return False if the parent directory is not known
+   */
+  public boolean add(final List<String> path, final long directoryId) {
+    if (path.isEmpty()) {
+      return false;
+    }
+    Node parent = root;
+    for (final String name : path.subList(0, path.size() - 1)) {
+      parent = parent.children.get(name);
+      if (parent == null) {
+        return false;
+      }
+    }
+    if (parent.children.putIfAbsent(path.get(path.size() - 1), new Node(directoryId)) == null) {
+      size.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * Longest known prefix of a path.
+   *
+   * @param length Number of directory names of the path which are known
+   * @param directoryId ID of the Directory node at the end of the prefix, i.e. of the root
+   *     directory if the length is 0
+   */
+  public record Prefix(int length, long directoryId) {}
+
+  private static final class Node {
+
+    private final long id;
+
+    private final Map<String, Node> children = new ConcurrentHashMap<>();
+
+    private Node(final long id) {
+      this.id = id;
+    }
+  }
+}
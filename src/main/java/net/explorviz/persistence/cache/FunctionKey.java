@@ -0,0 +1,33 @@
+package net.explorviz.persistence.cache;
+
+import net.explorviz.persistence.avro.SpanData;
+
+/**
+ * Identifies the Function node a span is mapped to. Two spans with equal keys are guaranteed to
+ * resolve to the same Function, which allows resolving each function only once per batch.
+ *
+ * @param landscapeTokenId String identifier of the visualization landscape
+ * @param applicationName Name of the application the span originates from
+ * @param filePath File path relative to the application root, separated by '/'
+ * @param className Fully-qualified class name separated by '.', null for top-level functions
+ * @param functionName Name of the function
+ * @param commitHash Hash of the commit the application was built from, null if unknown
+ */
+public record FunctionKey(
+    String landscapeTokenId,
+    String applicationName,
+    String filePath,
+    String className,
+    String functionName,
+    String commitHash) {
+
+  public static FunctionKey of(final SpanData spanData) {
+    return new FunctionKey(
+        spanData.getLandscapeTokenId(),
+        spanData.getApplicationName(),
+        spanData.getFilePath(),
+        spanData.getClassName(),
+        spanData.getFunctionName(),
+        spanData.getCommitHash());
+  }
+}
@@ -0,0 +1,74 @@
+package net.explorviz.persistence.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * In-process cache mapping a {@link FunctionKey} to the id of the Function node that spans with
+ * this key represent. Resolving a function otherwise requires several path-matching queries per
+ * span, even though almost all spans map to a small set of functions.
+ *
+ * <p>Entries are evicted by size and time since last access. Since the cache holds raw node ids,
+ * it has to be invalidated whenever Function nodes of the runtime structure are deleted or moved.
+ * Hit and miss counts are exposed as metrics under the name {@value #CACHE_NAME}.
+ */
+@ApplicationScoped
+public class FunctionResolutionCache {
+
+  private static final String CACHE_NAME = "explorviz.spans.function-cache";
+
+  @ConfigProperty(name = "explorviz.spans.function-cache.max-size", defaultValue = "100000")
+  long maxSize;
+
+  @ConfigProperty(name = "explorviz.spans.function-cache.expire-after-access", defaultValue = "1h")
+  Duration expireAfterAccess;
+
+  @Inject MeterRegistry meterRegistry;
+
+  private Cache<FunctionKey, Long> cache;
+
+  @PostConstruct
+  void init() {
+    cache =
+        Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterAccess(expireAfterAccess)
+            .recordStats()
+            .build();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+  }
+
+  /**
+   * Returns the cached function ids for all given keys that are present in the cache. Keys without
+   * an entry are omitted from the result and counted as misses.
+   */
+  public Map<FunctionKey, Long> getAllPresent(final Set<FunctionKey> keys) {
+    return cache.getAllPresent(keys);
+  }
+
+  public void put(final FunctionKey key, final Long functionId) {
+    cache.put(key, functionId);
+  }
+
+  public void invalidate(final FunctionKey key) {
+    cache.invalidate(key);
+  }
+
+  /** Removes all entries belonging to the landscape with the given token. */
+  public void invalidateLandscape(final String landscapeToken) {
+    cache.asMap().keySet().removeIf(key -> landscapeToken.equals(key.landscapeTokenId()));
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+}
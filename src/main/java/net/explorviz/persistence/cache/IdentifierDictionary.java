@@ -0,0 +1,113 @@
+package net.explorviz.persistence.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import net.explorviz.persistence.avro.SpanData;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Shared dictionary of the identifiers spans are made of, e.g. landscape tokens, application
+ * names, file paths and function names. Almost all spans repeat a small set of these strings, but
+ * every deserialized span carries its own copies. Interning them lets buffered spans share a single
+ * instance, whose hash code is computed only once, and lets map lookups succeed on reference
+ * equality. File paths and class names are split only once, the resulting segment arrays are
+ * shared between all callers and must not be modified.
+ *
+ * <p>Entries are evicted by size. Hit and miss counts are exposed as metrics under the name
+ * {@value #CACHE_NAME}.
+ */
+@ApplicationScoped
+public class IdentifierDictionary {
+
+  private static final String CACHE_NAME = "explorviz.spans.identifier-dictionary";
+
+  private static final Pattern PATH_SEPARATOR = Pattern.compile("/");
+
+  private static final Pattern CLASS_SEPARATOR = Pattern.compile("\\.");
+
+  @ConfigProperty(name = "explorviz.spans.identifier-dictionary.max-size", defaultValue = "100000")
+  long maxSize;
+
+  @Inject MeterRegistry meterRegistry;
+
+  private Cache<String, String> strings;
+
+  private Cache<String, String[]> pathSegments;
+
+  private Cache<String, String[]> classSegments;
+
+  private Cache<String, String> upperCaseStrings;
+
+  /** Creates a dictionary to be initialized by CDI. */
+  public IdentifierDictionary() {
+    // Initialized in init() once the config properties are injected
+  }
+
+  /** Creates a standalone dictionary without metrics, e.g. for benchmarks. */
+  public IdentifierDictionary(final long maxSize) {
+    this.maxSize = maxSize;
+    createCaches();
+  }
+
+  @PostConstruct
+  void init() {
+    createCaches();
+    CaffeineCacheMetrics.monitor(meterRegistry, strings, CACHE_NAME);
+  }
+
+  private void createCaches() {
+    strings = Caffeine.newBuilder().maximumSize(maxSize).recordStats().build();
+    pathSegments = Caffeine.newBuilder().maximumSize(maxSize).build();
+    classSegments = Caffeine.newBuilder().maximumSize(maxSize).build();
+    upperCaseStrings = Caffeine.newBuilder().maximumSize(maxSize).build();
+  }
+
+  /** Returns the shared instance equal to the given string, null if the string is null. */
+  public String intern(final String value) {
+    if (value == null) {
+      return null;
+    }
+    final String interned = strings.asMap().putIfAbsent(value, value);
+    return interned == null ? value : interned;
+  }
+
+  /** Replaces the identifiers of the span with their shared instances. */
+  public void internIdentifiers(final SpanData spanData) {
+    spanData.setLandscapeTokenId(intern(spanData.getLandscapeTokenId()));
+    spanData.setApplicationName(intern(spanData.getApplicationName()));
+    spanData.setFilePath(intern(spanData.getFilePath()));
+    spanData.setClassName(intern(spanData.getClassName()));
+    spanData.setFunctionName(intern(spanData.getFunctionName()));
+    spanData.setCommitHash(intern(spanData.getCommitHash()));
+    spanData.setLanguage(intern(spanData.getLanguage()));
+  }
+
+  /** Returns the segments of a file path separated by '/'. The array must not be modified. */
+  public String[] splitPath(final String filePath) {
+    return pathSegments.get(filePath, path -> internAll(PATH_SEPARATOR.split(path)));
+  }
+
+  /** Returns the segments of a class name separated by '.'. The array must not be modified. */
+  public String[] splitClassName(final String className) {
+    return classSegments.get(className, name -> internAll(CLASS_SEPARATOR.split(name)));
+  }
+
+  /** Returns the given string in upper case, e.g. to map a language name to its enum constant. */
+  public String toUpperCase(final String value) {
+    return upperCaseStrings.get(value, v -> intern(v.toUpperCase(Locale.ENGLISH)));
+  }
+
+  private String[] internAll(final String[] segments) {
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = intern(segments[i]);
+    }
+    return segments;
+  }
+}
@@ -2,21 +2,37 @@ package net.explorviz.persistence.grpc;
 
 import com.google.protobuf.Empty;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
 import io.quarkus.grpc.GrpcService;
-import io.smallrye.common.annotation.Blocking;
-import io.smallrye.mutiny.Uni;
+import io.quarkus.logging.Log;
+import io.quarkus.virtual.threads.VirtualThreads;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.explorviz.persistence.cache.DirectoryPathCache;
+import net.explorviz.persistence.messaging.SpanIngestWorkers;
 import net.explorviz.persistence.ogm.Branch;
 import net.explorviz.persistence.ogm.Commit;
-import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.ogm.Repository;
 import net.explorviz.persistence.ogm.Tag;
+import net.explorviz.persistence.proto.CommitAck;
 import net.explorviz.persistence.proto.CommitData;
-import net.explorviz.persistence.proto.CommitService;
+import net.explorviz.persistence.proto.CommitServiceGrpc;
 import net.explorviz.persistence.proto.FileIdentifier;
 import net.explorviz.persistence.repository.ApplicationRepository;
 import net.explorviz.persistence.repository.BranchRepository;
@@ -24,39 +40,401 @@ import net.explorviz.persistence.repository.CommitRepository;
 import net.explorviz.persistence.repository.FileRevisionRepository;
 import net.explorviz.persistence.repository.LandscapeRepository;
 import net.explorviz.persistence.repository.RepositoryRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository;
 import net.explorviz.persistence.repository.TagRepository;
+import net.explorviz.persistence.util.DatabaseBusyException;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.DatabaseWorkLimiter;
 import net.explorviz.persistence.util.GrpcExceptionMapper;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
 import org.neo4j.ogm.transaction.Transaction;
 
+/**
+ * Persists commits along with the file revisions they contain. Implemented against the
+ * StreamObserver API like {@link FileDataServiceImpl}, such that {@link
+ * #persistCommits(StreamObserver)} controls how many commits a client may have in flight.
+ */
 @GrpcService
-public class CommitServiceImpl implements CommitService {
+public class CommitServiceImpl extends CommitServiceGrpc.CommitServiceImplBase {
 
   private static final String NO_PARENT_ID = "NONE";
+
+  @ConfigProperty(name = "explorviz.grpc.commits.max-in-flight", defaultValue = "1000")
+  int maxInFlight;
+
+  @ConfigProperty(name = "explorviz.grpc.commits.batch-size", defaultValue = "100")
+  int batchSize;
+
   @Inject ApplicationRepository applicationRepository;
+
   @Inject BranchRepository branchRepository;
+
   @Inject CommitRepository commitRepository;
+
   @Inject LandscapeRepository landscapeRepository;
+
   @Inject RepositoryRepository repositoryRepository;
+
   @Inject FileRevisionRepository fileRevisionRepository;
+
+  @Inject SpanCountBucketRepository spanCountBucketRepository;
+
   @Inject TagRepository tagRepository;
+
   @Inject SessionFactory sessionFactory;
 
-  @Blocking
-  @Override
-  public Uni<Empty> persistCommit(final CommitData request) {
-    final Session session = sessionFactory.openSession();
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
 
-    try (Transaction tx = session.beginTransaction()) {
-      saveCommitData(session, request);
-      tx.commit();
-      return Uni.createFrom().item(Empty.getDefaultInstance());
+  @Inject DirectoryPathCache directoryPathCache;
+
+  @Inject SpanIngestWorkers spanIngestWorkers;
+
+  /** Falls back to worker threads if quarkus.virtual-threads.enabled is false. */
+  @Inject @VirtualThreads ExecutorService virtualThreads;
+
+  @RunOnVirtualThread
+  @Override
+  public void persistCommit(
+      final CommitData request, final StreamObserver<Empty> responseObserver) {
+    try {
+      saveCommits(List.of(request));
+      responseObserver.onNext(Empty.getDefaultInstance());
+      responseObserver.onCompleted();
     } catch (Exception e) { // NOPMD - intentional: Handling in GGrpcExceptionMapper
-      return Uni.createFrom().failure(GrpcExceptionMapper.mapToGrpcException(e, request));
+      responseObserver.onError(GrpcExceptionMapper.mapToGrpcException(e, request));
+    }
+  }
+
+  /**
+   * Persists a stream of commits, e.g. the history of a repository, without a round trip per
+   * commit. Up to max-in-flight commits are requested from the client at once. A single writer per
+   * call persists them in the order they were sent, grouping all commits which arrived meanwhile
+   * into transactions of up to batch-size commits, and requests as many new commits as it
+   * acknowledged. As a commit inherits the unchanged files of its parent, a commit whose parent is
+   * neither persisted nor written before in this call is held back until its parent is written,
+   * such that clients may send commits in any order. Commits whose parent is still missing when
+   * the client half-closes the call fail with FAILED_PRECONDITION. If a transaction fails, its
+   * commits are written one by one, and commits whose parent could not be persisted fail without
+   * being written.
+   */
+  @Override
+  public StreamObserver<CommitData> persistCommits(
+      final StreamObserver<CommitAck> responseObserver) {
+    final ServerCallStreamObserver<CommitAck> call =
+        (ServerCallStreamObserver<CommitAck>) responseObserver;
+    call.disableAutoRequest();
+    call.request(maxInFlight);
+    return new CommitStream(call);
+  }
+
+  /**
+   * Commits the given commits within a single transaction, in the given order. If the transaction
+   * fails, the cached directories of the affected repositories are dropped, since they may include
+   * directories which were rolled back. The transaction sets the timeline span counts of new
+   * commits, so it runs between span batches, see {@link
+   * SpanIngestWorkers#runExclusively(Runnable)}.
+   */
+  private void saveCommits(final List<CommitData> commits) {
+    spanIngestWorkers.runExclusively(
+        () -> {
+          final Session session = sessionFactory.openSession();
+
+          try (DatabaseWorkLimiter.Permit permit =
+                  databaseWorkLimiter.acquire(DatabaseWorkClass.STATIC_INGEST);
+              Transaction tx = session.beginTransaction()) {
+            commits.forEach(commitData -> saveCommitData(session, commitData));
+            tx.commit();
+          } catch (RuntimeException e) {
+            commits.forEach(
+                commitData ->
+                    directoryPathCache.invalidate(
+                        commitData.getLandscapeToken(), commitData.getRepositoryName()));
+            throw e;
+          }
+        });
+  }
+
+  private static boolean hasParent(final CommitData commitData) {
+    return !commitData.getParentCommitId().isEmpty()
+        && !NO_PARENT_ID.equals(commitData.getParentCommitId());
+  }
+
+  private static StatusRuntimeException parentNotPersisted(final String parentCommitId) {
+    return Status.FAILED_PRECONDITION
+        .withDescription("Parent commit " + parentCommitId + " was not persisted.")
+        .asRuntimeException();
+  }
+
+  /**
+   * Whether a commit was persisted before. If this cannot be determined, the commit is considered
+   * missing, such that its children are held back rather than written without inherited files.
+   */
+  private boolean isPersisted(final String commitHash, final String landscapeToken) {
+    try {
+      return commitRepository
+          .findCommitByHashAndLandscapeToken(
+              sessionFactory.openSession(), commitHash, landscapeToken)
+          .isPresent();
+    } catch (RuntimeException e) { // NOPMD
+      Log.warnf("Could not look up commit %s: %s", commitHash, e.getMessage());
+      return false;
+    }
+  }
+
+  /** Receives the commits of one PersistCommits call and hands them to a writer. */
+  private final class CommitStream implements StreamObserver<CommitData> {
+
+    private final ServerCallStreamObserver<CommitAck> call;
+
+    /** Guards the received commits and the state of the writer. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Queue<CommitData> received = new ArrayDeque<>();
+
+    /** Commits of this call which failed, such that their children fail as well. */
+    private final Set<String> failedCommits = new HashSet<>();
+
+    /** Commits of this call which were written, such that their children can be written. */
+    private final Set<String> writtenCommits = new HashSet<>();
+
+    /**
+     * Commits waiting for their parent to be written, by parent. Only accessed by the writer, like
+     * the other commit sets.
+     */
+    private final Map<String, List<CommitData>> heldByParent = new LinkedHashMap<>();
+
+    private final Set<String> heldCommits = new HashSet<>();
+
+    /** Held commits whose parent was written, to be written before further received commits. */
+    private final Queue<CommitData> released = new ArrayDeque<>();
+
+    private boolean writing;
+
+    private boolean completed;
+
+    private boolean cancelled;
+
+    private CommitStream(final ServerCallStreamObserver<CommitAck> call) {
+      this.call = call;
+    }
+
+    @Override
+    public void onNext(final CommitData commitData) {
+      lock.lock();
+      try {
+        received.add(commitData);
+        if (writing) {
+          return;
+        }
+        writing = true;
+      } finally {
+        lock.unlock();
+      }
+      virtualThreads.execute(this::write);
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      lock.lock();
+      try {
+        cancelled = true;
+        Log.warnf(
+            "PersistCommits call was aborted by the client with %d unwritten commits: %s",
+            received.size(),
+            t.getMessage());
+        received.clear();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      lock.lock();
+      try {
+        completed = true;
+        if (writing) {
+          return;
+        }
+        writing = true;
+      } finally {
+        lock.unlock();
+      }
+      // The writer rejects the held commits before completing the call
+      virtualThreads.execute(this::write);
+    }
+
+    /** Writes batches until no received commit is left, completing the call if it half-closed. */
+    private void write() {
+      while (true) {
+        if (!released.isEmpty()) {
+          // Released commits were requested when they were held
+          writeBatch(poll(released));
+          continue;
+        }
+
+        final List<CommitData> batch;
+        final boolean complete;
+        lock.lock();
+        try {
+          batch = poll(received);
+          if (batch.isEmpty()) {
+            writing = false;
+            complete = completed && !cancelled;
+          } else {
+            complete = false;
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        if (batch.isEmpty()) {
+          if (complete) {
+            finish();
+          }
+          return;
+        }
+        writeBatch(batch);
+        if (!call.isCancelled()) {
+          call.request(batch.size());
+        }
+      }
+    }
+
+    private List<CommitData> poll(final Queue<CommitData> commits) {
+      final List<CommitData> batch = new ArrayList<>(batchSize);
+      while (batch.size() < batchSize && !commits.isEmpty()) {
+        batch.add(commits.poll());
+      }
+      return batch;
+    }
+
+    /**
+     * Writes the held commits whose parent was persisted meanwhile, e.g. by another call, rejects
+     * the remaining ones and completes the call.
+     */
+    private void finish() {
+      heldByParent.entrySet().stream()
+          .filter(
+              entry ->
+                  !heldCommits.contains(entry.getKey())
+                      && isPersisted(entry.getKey(), entry.getValue().get(0).getLandscapeToken()))
+          .map(Map.Entry::getKey)
+          .toList()
+          .forEach(this::release);
+      while (!released.isEmpty()) {
+        writeBatch(poll(released));
+      }
+
+      for (final String parentCommitId : List.copyOf(heldByParent.keySet())) {
+        if (!heldCommits.contains(parentCommitId)) {
+          failHeldChildren(parentCommitId);
+        }
+      }
+      call.onCompleted();
+    }
+
+    private void writeBatch(final List<CommitData> batch) {
+      final List<CommitData> writable = new ArrayList<>(batch.size());
+      final Set<String> writableCommits = new HashSet<>();
+      for (final CommitData commitData : batch) {
+        final String parentCommitId = commitData.getParentCommitId();
+        if (!hasParent(commitData)
+            || writtenCommits.contains(parentCommitId)
+            || writableCommits.contains(parentCommitId)) {
+          writable.add(commitData);
+          writableCommits.add(commitData.getCommitId());
+        } else if (failedCommits.contains(parentCommitId)) {
+          fail(commitData, parentNotPersisted(parentCommitId));
+        } else if (heldCommits.contains(parentCommitId)
+            || !isPersisted(parentCommitId, commitData.getLandscapeToken())) {
+          heldByParent.computeIfAbsent(parentCommitId, k -> new ArrayList<>()).add(commitData);
+          heldCommits.add(commitData.getCommitId());
+        } else {
+          writable.add(commitData);
+          writableCommits.add(commitData.getCommitId());
+        }
+      }
+      if (writable.isEmpty()) {
+        return;
+      }
+
+      try {
+        saveCommits(writable);
+      } catch (Exception e) { // NOPMD - intentional: Handling in GGrpcExceptionMapper
+        if (writable.size() == 1 || e instanceof DatabaseBusyException) {
+          writable.forEach(commitData -> fail(commitData, e));
+        } else {
+          writable.forEach(commitData -> writeBatch(List.of(commitData)));
+        }
+        return;
+      }
+      for (final CommitData commitData : writable) {
+        writtenCommits.add(commitData.getCommitId());
+        acknowledge(
+            CommitAck.newBuilder()
+                .setCommitId(commitData.getCommitId())
+                .setCode(Status.Code.OK.name())
+                .build());
+        release(commitData.getCommitId());
+      }
+    }
+
+    private void release(final String parentCommitId) {
+      final List<CommitData> children = heldByParent.remove(parentCommitId);
+      if (children != null) {
+        children.forEach(child -> heldCommits.remove(child.getCommitId()));
+        released.addAll(children);
+      }
+    }
+
+    private void fail(final CommitData commitData, final Exception e) {
+      reject(commitData, e);
+      failHeldChildren(commitData.getCommitId());
+    }
+
+    /** Rejects the commits held for the given commit and, transitively, those held for them. */
+    private void failHeldChildren(final String parentCommitId) {
+      final Queue<String> failedParents = new ArrayDeque<>(List.of(parentCommitId));
+      while (!failedParents.isEmpty()) {
+        final String failedParent = failedParents.poll();
+        final List<CommitData> children = heldByParent.remove(failedParent);
+        if (children == null) {
+          continue;
+        }
+        for (final CommitData child : children) {
+          heldCommits.remove(child.getCommitId());
+          reject(child, parentNotPersisted(failedParent));
+          failedParents.add(child.getCommitId());
+        }
+      }
+    }
+
+    private void reject(final CommitData commitData, final Exception e) {
+      failedCommits.add(commitData.getCommitId());
+      final StatusRuntimeException status = GrpcExceptionMapper.mapToGrpcException(e, commitData);
+      acknowledge(
+          CommitAck.newBuilder()
+              .setCommitId(commitData.getCommitId())
+              .setCode(status.getStatus().getCode().name())
+              .setDescription(String.valueOf(status.getStatus().getDescription()))
+              .build());
+    }
+
+    private void acknowledge(final CommitAck ack) {
+      if (!call.isCancelled()) {
+        call.onNext(ack);
+      }
     }
   }
 
+  /**
+   * Writes a commit along with its branch, tags and files. A commit with a parent inherits the
+   * unchanged files of the parent, so the parent has to be persisted before, otherwise the commit
+   * is rejected with FAILED_PRECONDITION instead of being written without the inherited files.
+   */
   public void saveCommitData(final Session session, final CommitData commitData) {
     final Repository repo =
         repositoryRepository
@@ -68,6 +446,18 @@ public class CommitServiceImpl implements CommitService {
                         .withDescription("No corresponding state data was sent before.")
                         .asRuntimeException());
 
+    final Optional<Commit> parentCommit;
+    if (hasParent(commitData)) {
+      parentCommit =
+          Optional.of(
+              commitRepository
+                  .findCommitByHashAndLandscapeToken(
+                      session, commitData.getParentCommitId(), commitData.getLandscapeToken())
+                  .orElseThrow(() -> parentNotPersisted(commitData.getParentCommitId())));
+    } else {
+      parentCommit = Optional.empty();
+    }
+
     final Branch branch =
         branchRepository.getOrCreateBranch(
             session,
@@ -79,6 +469,8 @@ public class CommitServiceImpl implements CommitService {
     final Commit commit =
         commitRepository.getOrCreateCommit(
             session, commitData.getCommitId(), commitData.getLandscapeToken());
+    // A commit which is sent again has inherited its files and been counted already
+    final boolean isNewCommit = commit.getId() == null;
     commit.setBranch(branch);
     commit.setCommitDate(
         Instant.ofEpochSecond(
@@ -88,53 +480,15 @@ public class CommitServiceImpl implements CommitService {
             commitData.getAuthorDate().getSeconds(), commitData.getAuthorDate().getNanos()));
     repo.addCommit(commit);
 
-    commitData
-        .getAddedFilesList()
-        .forEach(
-            f ->
-                fileRevisionRepository.createFileStructureFromStaticData(
-                    session,
-                    f,
-                    commitData.getRepositoryName(),
-                    commitData.getLandscapeToken(),
-                    commit));
-
-    commitData
-        .getModifiedFilesList()
-        .forEach(
-            f ->
-                fileRevisionRepository.createFileStructureFromStaticData(
-                    session,
-                    f,
-                    commitData.getRepositoryName(),
-                    commitData.getLandscapeToken(),
-                    commit));
-
-    if (!commitData.getParentCommitId().isEmpty()
-        && !NO_PARENT_ID.equals(commitData.getParentCommitId())) {
-      final Map<String, FileRevision> parentFiles =
-          fileRevisionRepository.findStaticFilesWithFqnForRepositoryAndCommitAndLandscapeToken(
-              session,
-              commitData.getRepositoryName(),
-              commitData.getParentCommitId(),
-              commitData.getLandscapeToken());
-
-      final List<String> modifiedPaths =
-          commitData.getModifiedFilesList().stream()
-              .map(FileIdentifier::getFilePath)
-              .collect(Collectors.toList());
-      final List<String> deletedPaths =
-          commitData.getDeletedFilesList().stream()
-              .map(FileIdentifier::getFilePath)
-              .collect(Collectors.toList());
-
-      parentFiles.forEach(
-          (path, fileRevision) -> {
-            if (!modifiedPaths.contains(path) && !deletedPaths.contains(path)) {
-              commit.addFileRevision(fileRevision);
-            }
-          });
-    }
+    fileRevisionRepository.createFileStructuresFromStaticData(
+        session,
+        Stream.concat(
+                commitData.getAddedFilesList().stream(),
+                commitData.getModifiedFilesList().stream())
+            .toList(),
+        commitData.getRepositoryName(),
+        commitData.getLandscapeToken(),
+        commit);
 
     commitData
         .getTagsList()
@@ -149,15 +503,44 @@ public class CommitServiceImpl implements CommitService {
               repo.addTag(tag);
             });
 
-    if (commitData.getParentCommitId().isEmpty()
-        || NO_PARENT_ID.equals(commitData.getParentCommitId())) {
+    if (parentCommit.isEmpty()) {
       session.save(List.of(repo, branch, commit));
     } else {
-      final Commit parentCommit =
-          commitRepository.getOrCreateCommit(
-              session, commitData.getParentCommitId(), commitData.getLandscapeToken());
-      commit.addParentCommit(parentCommit);
-      session.save(List.of(repo, branch, commit, parentCommit));
+      commit.addParentCommit(parentCommit.get());
+      session.save(List.of(repo, branch, commit, parentCommit.get()));
+
+      // The commit node has to exist before it can inherit the unchanged files of its parent
+      if (isNewCommit) {
+        fileRevisionRepository.inheritFileRevisionsFromParentCommit(
+            session,
+            commitData.getRepositoryName(),
+            commitData.getLandscapeToken(),
+            commitData.getParentCommitId(),
+            commitData.getCommitId(),
+            Stream.concat(
+                    commitData.getModifiedFilesList().stream(),
+                    commitData.getDeletedFilesList().stream())
+                .map(FileIdentifier::getFilePath)
+                .collect(Collectors.toSet()));
+      }
+    }
+
+    // Spans of the commit's files persisted before the commit existed are counted for it
+    if (isNewCommit) {
+      spanCountBucketRepository.countNewCommit(
+          session,
+          commitData.getLandscapeToken(),
+          commitData.getRepositoryName(),
+          parentCommit.map(Commit::getId).orElse(null),
+          commit.getId(),
+          commitData.getCommitId(),
+          Stream.of(
+                  commitData.getAddedFilesList(),
+                  commitData.getModifiedFilesList(),
+                  commitData.getDeletedFilesList())
+              .flatMap(List::stream)
+              .map(FileIdentifier::getFilePath)
+              .collect(Collectors.toSet()));
     }
   }
 }
@@ -2,27 +2,50 @@ package net.explorviz.persistence.grpc;
 
 import com.google.protobuf.Empty;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
 import io.quarkus.grpc.GrpcService;
-import io.smallrye.common.annotation.Blocking;
-import io.smallrye.mutiny.Uni;
+import io.quarkus.logging.Log;
+import io.quarkus.virtual.threads.VirtualThreads;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import net.explorviz.persistence.ogm.Clazz;
 import net.explorviz.persistence.ogm.Field;
 import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.ogm.Function;
 import net.explorviz.persistence.proto.ClassData;
 import net.explorviz.persistence.proto.FileData;
-import net.explorviz.persistence.proto.FileDataService;
+import net.explorviz.persistence.proto.FileDataServiceGrpc;
+import net.explorviz.persistence.proto.FileStatus;
+import net.explorviz.persistence.proto.FunctionData;
+import net.explorviz.persistence.proto.PersistFilesResponse;
 import net.explorviz.persistence.repository.ClazzRepository;
 import net.explorviz.persistence.repository.FileRevisionRepository;
 import net.explorviz.persistence.repository.FunctionRepository;
+import net.explorviz.persistence.util.DatabaseBusyException;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.DatabaseWorkLimiter;
 import net.explorviz.persistence.util.GrpcExceptionMapper;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
 import org.neo4j.ogm.transaction.Transaction;
 
+/**
+ * Persists the static data of files. Implemented against the StreamObserver API rather than the
+ * Mutiny one, since the latter buffers client streams without bound, whereas {@link
+ * #persistFiles(StreamObserver)} requests files from the client only as fast as they are written.
+ */
 @GrpcService
-public class FileDataServiceImpl implements FileDataService {
+public class FileDataServiceImpl extends FileDataServiceGrpc.FileDataServiceImplBase {
+
+  @ConfigProperty(name = "explorviz.grpc.files.batch-size", defaultValue = "200")
+  int batchSize;
 
   @Inject ClazzRepository clazzRepository;
 
@@ -30,19 +53,137 @@ public class FileDataServiceImpl implements FileDataService {
 
   @Inject FunctionRepository functionRepository;
 
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
+
   @Inject SessionFactory sessionFactory;
 
-  @Blocking
+  /** Falls back to worker threads if quarkus.virtual-threads.enabled is false. */
+  @Inject @VirtualThreads ExecutorService virtualThreads;
+
+  @RunOnVirtualThread
+  @Override
+  public void persistFile(final FileData request, final StreamObserver<Empty> responseObserver) {
+    try {
+      saveFiles(List.of(request));
+      responseObserver.onNext(Empty.getDefaultInstance());
+      responseObserver.onCompleted();
+    } catch (Exception e) { // NOPMD - intentional: Handling in GGrpcExceptionMapper
+      responseObserver.onError(GrpcExceptionMapper.mapToGrpcException(e, request));
+    }
+  }
+
+  /**
+   * Persists a stream of files, batch-size files per transaction. Flow control is manual: a batch
+   * is requested from the client, written on a virtual thread, and the next batch is requested
+   * once it has been committed, so at most one batch per call is held in memory. If a batch fails,
+   * its files are written one by one to determine which of them cannot be persisted. The response
+   * holds the number of persisted files and the status of each file which failed.
+   */
   @Override
-  public Uni<Empty> persistFile(final FileData request) {
+  public StreamObserver<FileData> persistFiles(
+      final StreamObserver<PersistFilesResponse> responseObserver) {
+    final ServerCallStreamObserver<PersistFilesResponse> call =
+        (ServerCallStreamObserver<PersistFilesResponse>) responseObserver;
+    call.disableAutoRequest();
+    call.request(batchSize);
+    return new FileStream(call);
+  }
+
+  /** Commits the given files within a single transaction. */
+  private void saveFiles(final List<FileData> files) {
     final Session session = sessionFactory.openSession();
 
-    try (Transaction tx = session.beginTransaction()) {
-      saveFileData(session, request);
+    try (DatabaseWorkLimiter.Permit permit =
+            databaseWorkLimiter.acquire(DatabaseWorkClass.STATIC_INGEST);
+        Transaction tx = session.beginTransaction()) {
+      files.forEach(fileData -> saveFileData(session, fileData));
       tx.commit();
-      return Uni.createFrom().item(Empty.getDefaultInstance());
-    } catch (Exception e) { // NOPMD - intentional: Handling in GGrpcExceptionMapper
-      return Uni.createFrom().failure(GrpcExceptionMapper.mapToGrpcException(e, request));
+    }
+  }
+
+  /** Receives the files of one PersistFiles call. gRPC delivers its callbacks one at a time. */
+  private final class FileStream implements StreamObserver<FileData> {
+
+    private final ServerCallStreamObserver<PersistFilesResponse> call;
+
+    private final PersistFilesResponse.Builder response = PersistFilesResponse.newBuilder();
+
+    private List<FileData> batch = new ArrayList<>();
+
+    /** Completes once the last submitted batch has been written. */
+    private CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+
+    private FileStream(final ServerCallStreamObserver<PersistFilesResponse> call) {
+      this.call = call;
+    }
+
+    @Override
+    public void onNext(final FileData fileData) {
+      batch.add(fileData);
+      if (batch.size() >= batchSize) {
+        submitBatch(true);
+      }
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      Log.warnf(
+          "PersistFiles call was aborted by the client after %d persisted files: %s",
+          response.getPersistedFiles(),
+          t.getMessage());
+    }
+
+    @Override
+    public void onCompleted() {
+      if (!batch.isEmpty()) {
+        submitBatch(false);
+      }
+      written.whenComplete(
+          (result, e) -> {
+            if (e == null) {
+              call.onNext(response.build());
+              call.onCompleted();
+            } else {
+              call.onError(Status.INTERNAL.withCause(e).asRuntimeException());
+            }
+          });
+    }
+
+    private void submitBatch(final boolean requestNext) {
+      final List<FileData> files = batch;
+      batch = new ArrayList<>(batchSize);
+      written =
+          written.thenRunAsync(
+              () -> {
+                writeBatch(files);
+                if (requestNext && !call.isCancelled()) {
+                  call.request(batchSize);
+                }
+              },
+              virtualThreads);
+    }
+
+    private void writeBatch(final List<FileData> files) {
+      try {
+        saveFiles(files);
+        response.setPersistedFiles(response.getPersistedFiles() + files.size());
+      } catch (Exception e) { // NOPMD - intentional: Handling in GGrpcExceptionMapper
+        if (files.size() == 1 || e instanceof DatabaseBusyException) {
+          files.forEach(fileData -> addFailure(fileData, e));
+        } else {
+          files.forEach(fileData -> writeBatch(List.of(fileData)));
+        }
+      }
+    }
+
+    private void addFailure(final FileData fileData, final Exception e) {
+      final StatusRuntimeException status = GrpcExceptionMapper.mapToGrpcException(e, fileData);
+      response.addFailedFiles(
+          FileStatus.newBuilder()
+              .setFileHash(fileData.getFileHash())
+              .setFilePath(fileData.getFilePath())
+              .setCode(status.getStatus().getCode().name())
+              .setDescription(String.valueOf(status.getStatus().getDescription())));
     }
   }
 
@@ -70,17 +211,36 @@ public class FileDataServiceImpl implements FileDataService {
     file.setModifiedLines(fileData.getModifiedLines());
     file.setDeletedLines(fileData.getDeletedLines());
 
-    fileData.getClassesList().forEach(c -> file.addClass(createClazz(session, c, fileData)));
+    fileData
+        .getClassesList()
+        .forEach(c -> file.addClass(createClazz(session, c, fileData, file.getId(), null)));
 
-    fileData.getFunctionsList().forEach(f -> file.addFunction(new Function(f)));
+    fileData
+        .getFunctionsList()
+        .forEach(f -> file.addFunction(createFunction(f, file.getId(), f.getName())));
 
     file.setHasFileData(true);
 
     session.save(file);
   }
 
+  /**
+   * Creates the given class, or completes an existing one, along with its inner classes and
+   * functions.
+   *
+   * @param fileId ID of the FileRevision containing the class
+   * @param outerFqn FQN of the enclosing class, null for a class declared directly in the file
+   */
   private Clazz createClazz(
-      final Session session, final ClassData classData, final FileData fileData) {
+      final Session session,
+      final ClassData classData,
+      final FileData fileData,
+      final Long fileId,
+      final String outerFqn) {
+    final String fqn =
+        outerFqn == null
+            ? classData.getName()
+            : ClazzRepository.toFqn(outerFqn, classData.getName());
     return clazzRepository
         .findClassByLandscapeTokenAndRepositoryAndFileHashAndClazzName(
             session,
@@ -126,6 +286,8 @@ public class FileDataServiceImpl implements FileDataService {
                             newClazz.setMetrics(classData.getMetricsMap());
                             return newClazz;
                           });
+              // A reused class is keyed for the current file, even if it carried a key before
+              clazz.setFqnKey(fileId, fqn);
 
               classData
                   .getFieldsList()
@@ -136,15 +298,24 @@ public class FileDataServiceImpl implements FileDataService {
 
               classData
                   .getInnerClassesList()
-                  .forEach(c -> clazz.addInnerClass(createClazz(session, c, fileData)));
+                  .forEach(
+                      c -> clazz.addInnerClass(createClazz(session, c, fileData, fileId, fqn)));
 
-              classData.getFunctionsList().forEach(f -> clazz.addFunction(new Function(f)));
+              classData
+                  .getFunctionsList()
+                  .forEach(
+                      f ->
+                          clazz.addFunction(
+                              createFunction(
+                                  f, fileId, ClazzRepository.toFqn(fqn, f.getName()))));
 
               classData
                   .getSuperclassesList()
                   .forEach(
                       superFqn -> {
                         final String[] splitSuperFqn = superFqn.split("::");
+                        // A placeholder is not contained in any file revision, so it has no FQN
+                        // key until it is reused for the class of an analyzed file
                         clazz.addSuperclass(
                             clazzRepository
                                 .findClassByLandscapeTokenAndRepositoryAndClazzFqn(
@@ -160,4 +331,11 @@ public class FileDataServiceImpl implements FileDataService {
               return clazz;
             });
   }
+
+  private static Function createFunction(
+      final FunctionData functionData, final Long fileId, final String fqn) {
+    final Function function = new Function(functionData);
+    function.setFqnKey(fileId, fqn);
+    return function;
+  }
 }
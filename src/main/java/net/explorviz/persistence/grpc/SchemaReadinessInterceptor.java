@@ -0,0 +1,33 @@
+package net.explorviz.persistence.grpc;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.quarkus.grpc.GlobalInterceptor;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import net.explorviz.persistence.schema.SchemaManager;
+
+/** Rejects gRPC calls with UNAVAILABLE until the database schema is online. */
+@GlobalInterceptor
+@ApplicationScoped
+public class SchemaReadinessInterceptor implements ServerInterceptor {
+
+  @Inject SchemaManager schemaManager;
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      final ServerCall<ReqT, RespT> call,
+      final Metadata headers,
+      final ServerCallHandler<ReqT, RespT> next) {
+    if (!schemaManager.isReady()) {
+      call.close(
+          Status.UNAVAILABLE.withDescription("Database indexes are not online yet."),
+          new Metadata());
+      return new ServerCall.Listener<>() {};
+    }
+    return next.startCall(call, headers);
+  }
+}
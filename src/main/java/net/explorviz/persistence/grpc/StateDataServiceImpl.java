@@ -1,12 +1,13 @@
 package net.explorviz.persistence.grpc;
 
 import io.quarkus.grpc.GrpcService;
-import io.smallrye.common.annotation.Blocking;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import io.smallrye.mutiny.Uni;
 import jakarta.inject.Inject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import net.explorviz.persistence.cache.DirectoryPathCache;
 import net.explorviz.persistence.ogm.Application;
 import net.explorviz.persistence.ogm.Branch;
 import net.explorviz.persistence.ogm.Commit;
@@ -22,6 +23,8 @@ import net.explorviz.persistence.repository.CommitRepository;
 import net.explorviz.persistence.repository.DirectoryRepository;
 import net.explorviz.persistence.repository.LandscapeRepository;
 import net.explorviz.persistence.repository.RepositoryRepository;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.DatabaseWorkLimiter;
 import net.explorviz.persistence.util.GrpcExceptionMapper;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
@@ -30,6 +33,8 @@ import org.neo4j.ogm.transaction.Transaction;
 @GrpcService
 public class StateDataServiceImpl implements StateDataService {
 
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
+
   @Inject SessionFactory sessionFactory;
 
   @Inject ApplicationRepository applicationRepository;
@@ -38,18 +43,22 @@ public class StateDataServiceImpl implements StateDataService {
 
   @Inject CommitRepository commitRepository;
 
+  @Inject DirectoryPathCache directoryPathCache;
+
   @Inject DirectoryRepository directoryRepository;
 
   @Inject LandscapeRepository landscapeRepository;
 
   @Inject RepositoryRepository repositoryRepository;
 
-  @Blocking
+  @RunOnVirtualThread
   @Override
   public Uni<StateData> getStateData(final StateDataRequest request) {
     final Session session = sessionFactory.openSession();
 
-    try (Transaction tx = session.beginTransaction()) {
+    try (DatabaseWorkLimiter.Permit permit =
+            databaseWorkLimiter.acquire(DatabaseWorkClass.STATIC_INGEST);
+        Transaction tx = session.beginTransaction()) {
       saveStateData(session, request);
       tx.commit();
 
@@ -68,6 +77,8 @@ public class StateDataServiceImpl implements StateDataService {
 
       return Uni.createFrom().item(stateDataBuilder.build());
     } catch (Exception e) { // NOPMD - intentional: Handling in GrpcExceptionMapper
+      // Cached directories of the repository may have been rolled back
+      directoryPathCache.invalidate(request.getLandscapeToken(), request.getRepositoryName());
       return Uni.createFrom().failure(GrpcExceptionMapper.mapToGrpcException(e, request));
     }
   }
@@ -91,7 +102,11 @@ public class StateDataServiceImpl implements StateDataService {
     repository.addBranch(branch);
 
     if (repository.getRootDirectory() == null) {
+      // A previous repository of the same name may have been deleted along with its directories
+      directoryPathCache.invalidate(stateData.getLandscapeToken(), stateData.getRepositoryName());
       final Directory repoRootDirectory = new Directory(stateData.getRepositoryName());
+      repoRootDirectory.setRepositoryRoot(
+          stateData.getLandscapeToken(), stateData.getRepositoryName());
       repository.setRootDirectory(repoRootDirectory);
     }
 
@@ -0,0 +1,64 @@
+package net.explorviz.persistence.messaging;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.microprofile.reactive.messaging.Message;
+
+/**
+ * Acknowledges a batch of records received from Kafka once each of its spans has been committed to
+ * the database or published to the dead-letter channel. Spans are released individually, since
+ * the spans of one batch may be written with different traces, retried or dead-lettered. The
+ * throttled commit strategy only commits offsets up to the first record of a partition which has
+ * not been acknowledged yet, so spans which were only held in memory are consumed again after a
+ * restart. Batches appended to the write-ahead log are acknowledged the same way towards their log
+ * segment instead.
+ */
+public final class BatchAcknowledgement {
+
+  /** Acknowledgement of spans which were not received from Kafka, releasing has no effect. */
+  public static final BatchAcknowledgement NONE = new BatchAcknowledgement(null, 0);
+
+  private final Runnable onReleased;
+
+  private final AtomicInteger pendingSpans;
+
+  private BatchAcknowledgement(final Runnable onReleased, final int spans) {
+    this.onReleased = onReleased;
+    this.pendingSpans = new AtomicInteger(spans);
+  }
+
+  /**
+   * Creates the acknowledgement of a received batch. Empty batches are acknowledged immediately.
+   *
+   * @param message Message holding the spans of one poll
+   */
+  public static BatchAcknowledgement of(final Message<? extends List<?>> message) {
+    if (message.getPayload().isEmpty()) {
+      message.ack();
+      return NONE;
+    }
+    return new BatchAcknowledgement(message::ack, message.getPayload().size());
+  }
+
+  /**
+   * Creates an acknowledgement which runs the given action once all spans are released.
+   *
+   * @param spans Number of spans to release, at least 1
+   * @param onReleased Action run once, after the last span has been released
+   */
+  public static BatchAcknowledgement of(final int spans, final Runnable onReleased) {
+    return new BatchAcknowledgement(onReleased, spans);
+  }
+
+  /** Releases the given number of spans and acknowledges the batch once all are released. */
+  public void release(final int spans) {
+    if (onReleased != null && pendingSpans.addAndGet(-spans) == 0) {
+      onReleased.run();
+    }
+  }
+
+  /** Releases one span per entry, i.e. each span of a list along with its acknowledgement. */
+  public static void releaseEach(final List<BatchAcknowledgement> acknowledgements) {
+    acknowledgements.forEach(acknowledgement -> acknowledgement.release(1));
+  }
+}
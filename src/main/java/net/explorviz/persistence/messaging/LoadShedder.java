@@ -0,0 +1,274 @@
+package net.explorviz.persistence.messaging;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.smallrye.reactive.messaging.kafka.api.IncomingKafkaRecordBatchMetadata;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.DatabaseWorkLimiter;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.neo4j.ogm.session.SessionFactory;
+
+/**
+ * Sheds load while the span consumer lags behind, by keeping only a share of the incoming traces.
+ * Whole traces are kept or dropped based on a hash of their trace id, so that no trace is stored
+ * partially. A decision is made for every trace seen while shedding is enabled, also while all
+ * traces are kept, and remembered for the decision TTL, such that late spans of a trace follow its
+ * first spans even if the sampling ratio changed in between. While load is shed, traces without a
+ * remembered decision, e.g. because it was evicted, are kept if they have been persisted before.
+ * Kept traces record the ratio they were sampled with as samplingRatio, and each of their spans is
+ * counted as 1 / samplingRatio spans in the timeline and the aggregated calls.
+ *
+ * <p>The lag is measured as the age of the newest record of each poll. While it exceeds the lag
+ * threshold and does not decrease, the sampling ratio is multiplied by the backoff ratio once per
+ * adjust interval, down to the minimum ratio. Shedding stops once the lag fell below the recovery
+ * lag. The current sampling ratio and the number of dropped spans are exposed as metrics under
+ * the prefix {@value #METRIC_PREFIX}.
+ */
+@ApplicationScoped
+public class LoadShedder {
+
+  private static final String METRIC_PREFIX = "explorviz.spans.shedding";
+
+  /** Ratio of traces kept while no load is shed. */
+  private static final double FULL_RATIO = 1.0;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.enabled", defaultValue = "false")
+  boolean enabled;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.lag-threshold", defaultValue = "5m")
+  Duration lagThreshold;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.recovery-lag", defaultValue = "1m")
+  Duration recoveryLag;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.adjust-interval", defaultValue = "30s")
+  Duration adjustInterval;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.backoff-ratio", defaultValue = "0.5")
+  double backoffRatio;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.min-ratio", defaultValue = "0.1")
+  double minRatio;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.decision-ttl", defaultValue = "10m")
+  Duration decisionTtl;
+
+  @ConfigProperty(name = "explorviz.spans.shedding.max-decisions", defaultValue = "1000000")
+  long maxDecisions;
+
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
+
+  @Inject MeterRegistry meterRegistry;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject TraceRepository traceRepository;
+
+  private Cache<TraceKey, Decision> decisions;
+
+  private Counter droppedSpans;
+
+  private volatile double samplingRatio = FULL_RATIO;
+
+  private long lastAdjustment;
+
+  private Duration lagAtLastAdjustment = Duration.ZERO;
+
+  @PostConstruct
+  void init() {
+    decisions =
+        Caffeine.newBuilder().maximumSize(maxDecisions).expireAfterAccess(decisionTtl).build();
+    droppedSpans = meterRegistry.counter(METRIC_PREFIX + ".dropped");
+    meterRegistry.gauge(METRIC_PREFIX + ".sampling-ratio", this, LoadShedder::getSamplingRatio);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns the share of new traces currently kept, 1 while no load is shed. */
+  public double getSamplingRatio() {
+    return samplingRatio;
+  }
+
+  /**
+   * Updates the lag using the timestamps of the Kafka records a poll consisted of. Polls without
+   * Kafka metadata, e.g. from the in-memory connector, leave the lag unchanged.
+   *
+   * @param records Spans received in one poll
+   */
+  public void updateLag(final Message<?> records) {
+    if (!enabled) {
+      return;
+    }
+    records
+        .getMetadata(IncomingKafkaRecordBatchMetadata.class)
+        .ifPresent(
+            metadata -> {
+              long newestTimestamp = 0;
+              for (final Object record : metadata.getRecords()) {
+                newestTimestamp =
+                    Math.max(newestTimestamp, ((ConsumerRecord<?, ?>) record).timestamp());
+              }
+              if (newestTimestamp > 0) {
+                updateLag(Duration.ofMillis(System.currentTimeMillis() - newestTimestamp));
+              }
+            });
+  }
+
+  /**
+   * Adjusts the sampling ratio to the given lag, see {@link LoadShedder}.
+   *
+   * @param lag Time between the production and the consumption of the newest record of a poll
+   */
+  public synchronized void updateLag(final Duration lag) {
+    if (!enabled) {
+      return;
+    }
+    final long now = System.nanoTime();
+
+    if (lag.compareTo(recoveryLag) <= 0) {
+      if (samplingRatio < FULL_RATIO) {
+        Log.infof("Span consumer lag recovered to %s, no longer shedding load", lag);
+      }
+      samplingRatio = FULL_RATIO;
+    } else if (lag.compareTo(lagThreshold) > 0
+        && (samplingRatio == FULL_RATIO
+            || (now - lastAdjustment >= adjustInterval.toNanos()
+                && lag.compareTo(lagAtLastAdjustment) >= 0))) {
+      samplingRatio = Math.max(minRatio, samplingRatio * backoffRatio);
+      lastAdjustment = now;
+      lagAtLastAdjustment = lag;
+      Log.warnf("Span consumer lags behind by %s, keeping %.2f of new traces", lag, samplingRatio);
+    }
+  }
+
+  /**
+   * Returns the spans of all kept traces. Traces are decided on when their first span is seen, see
+   * {@link LoadShedder}.
+   *
+   * @param spans Spans received in one poll
+   * @return The given list if all spans are kept, otherwise a list of the kept spans
+   */
+  public List<SpanData> sample(final List<SpanData> spans) {
+    if (!enabled) {
+      return spans;
+    }
+    final Map<TraceKey, Decision> pollDecisions = decide(spans);
+    final List<SpanData> kept = new ArrayList<>(spans.size());
+
+    for (final SpanData spanData : spans) {
+      if (pollDecisions
+          .get(new TraceKey(spanData.getLandscapeTokenId(), spanData.getTraceId()))
+          .keep()) {
+        kept.add(spanData);
+      }
+    }
+
+    droppedSpans.increment(spans.size() - kept.size());
+    return kept.size() == spans.size() ? spans : kept;
+  }
+
+  /** Returns the decision for each trace of the given spans, deciding on new traces. */
+  private Map<TraceKey, Decision> decide(final List<SpanData> spans) {
+    final double ratio = samplingRatio;
+    final Map<TraceKey, Decision> pollDecisions = new HashMap<>();
+    final List<TraceKey> undecided = new ArrayList<>();
+
+    for (final SpanData spanData : spans) {
+      final TraceKey key = new TraceKey(spanData.getLandscapeTokenId(), spanData.getTraceId());
+      if (!pollDecisions.containsKey(key)) {
+        final Decision decision = decisions.getIfPresent(key);
+        pollDecisions.put(key, decision);
+        if (decision == null) {
+          undecided.add(key);
+        }
+      }
+    }
+    if (undecided.isEmpty()) {
+      return pollDecisions;
+    }
+
+    final Map<List<String>, Double> persistedRatios =
+        ratio < FULL_RATIO ? findPersistedRatios(undecided) : Map.of();
+    for (final TraceKey key : undecided) {
+      final Double persistedRatio =
+          persistedRatios.get(List.of(key.landscapeTokenId(), key.traceId()));
+      final Decision decision =
+          persistedRatio != null
+              ? new Decision(true, persistedRatio)
+              : new Decision(hash(key.traceId()) < ratio, ratio);
+      // Another poll may have decided on the same trace meanwhile
+      final Decision previous = decisions.asMap().putIfAbsent(key, decision);
+      pollDecisions.put(key, previous != null ? previous : decision);
+    }
+    return pollDecisions;
+  }
+
+  private Map<List<String>, Double> findPersistedRatios(final List<TraceKey> traceKeys) {
+    final List<Map<String, String>> keyRows =
+        traceKeys.stream()
+            .map(
+                key -> Map.of("landscapeTokenId", key.landscapeTokenId(), "traceId", key.traceId()))
+            .toList();
+    try (DatabaseWorkLimiter.Permit permit =
+        databaseWorkLimiter.acquire(DatabaseWorkClass.SPAN_INGEST)) {
+      return traceRepository.findSamplingRatios(sessionFactory.openSession(), keyRows);
+    }
+  }
+
+  /**
+   * Returns the ratio the trace of the given span was sampled with, 1 if it was not sampled.
+   *
+   * @param spanData Any span of the trace
+   */
+  public double getTraceSamplingRatio(final SpanData spanData) {
+    if (!enabled) {
+      return FULL_RATIO;
+    }
+    final Decision decision =
+        decisions.getIfPresent(
+            new TraceKey(spanData.getLandscapeTokenId(), spanData.getTraceId()));
+    return decision != null ? decision.ratio() : FULL_RATIO;
+  }
+
+  /**
+   * Maps a trace id to [0, 1). String hashes are stable across instances and restarts, so that
+   * consumers of the same topic agree on which traces to keep. The hash is mixed with the
+   * finalizer of MurmurHash3, since trace ids tend to differ in their last characters only.
+   */
+  private static double hash(final String traceId) {
+    int hash = traceId.hashCode();
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return Integer.toUnsignedLong(hash) / 0x1p32;
+  }
+
+  private record TraceKey(String landscapeTokenId, String traceId) {}
+
+  /**
+   * Whether a trace is kept, along with the sampling ratio at the time of the decision.
+   *
+   * @param keep True if the spans of the trace are persisted
+   * @param ratio Sampling ratio the trace was decided with
+   */
+  private record Decision(boolean keep, double ratio) {}
+}
@@ -1,33 +1,141 @@
 package net.explorviz.persistence.messaging;
 
 import io.quarkus.logging.Log;
-import io.smallrye.reactive.messaging.annotations.Blocking;
+import io.quarkus.virtual.threads.VirtualThreads;
+import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import net.explorviz.persistence.avro.SpanData;
-import net.explorviz.persistence.messaging.service.SpanPersistenceService;
+import net.explorviz.persistence.cache.IdentifierDictionary;
+import net.explorviz.persistence.wal.SpanWriteAheadLog;
+import org.eclipse.microprofile.reactive.messaging.Acknowledgment;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
-import org.neo4j.ogm.session.Session;
-import org.neo4j.ogm.session.SessionFactory;
-import org.neo4j.ogm.transaction.Transaction;
+import org.eclipse.microprofile.reactive.messaging.Message;
 
 @ApplicationScoped
 public class SpanDataConsumer {
 
-  @Inject SpanPersistenceService spanPersistenceService;
+  @Inject IdentifierDictionary identifierDictionary;
 
-  @Inject SessionFactory sessionFactory;
+  @Inject LoadShedder loadShedder;
 
-  @Blocking
+  @Inject SpanIngestWorkers spanIngestWorkers;
+
+  @Inject SpanRetryQueue spanRetryQueue;
+
+  @Inject SpanWriteAheadLog spanWriteAheadLog;
+
+  @Inject TraceAssemblyBuffer traceAssemblyBuffer;
+
+  /** Falls back to worker threads if quarkus.virtual-threads.enabled is false. */
+  @Inject @VirtualThreads ExecutorService virtualThreads;
+
+  /**
+   * Consumes all spans of a single Kafka poll on a virtual thread, see {@link #consumeBatch(List,
+   * BatchAcknowledgement)}. The returned Uni completes once the spans are persisted or buffered,
+   * such that polls are processed one after another. The poll is acknowledged separately, once all
+   * of its spans have been committed or dead-lettered, so offsets never advance past spans which
+   * are only held in memory. While the consumer lags behind, the spans of traces dropped by the
+   * {@link LoadShedder} are acknowledged right away. If the {@link SpanWriteAheadLog} is enabled,
+   * the poll is acknowledged as soon as its spans are durable in the log instead, and the log
+   * segment is released once they have been committed.
+   *
+   * @param records Spans received in one poll, in partition order
+   */
   @Incoming("explorviz-spans")
-  public void consume(final SpanData spanData) {
-    final Session session = sessionFactory.openSession();
+  @Acknowledgment(Acknowledgment.Strategy.MANUAL)
+  public Uni<Void> consumeRecords(final Message<List<SpanData>> records) {
+    return Uni.createFrom()
+        .voidItem()
+        .invoke(
+            () -> {
+              final BatchAcknowledgement acknowledgement = BatchAcknowledgement.of(records);
+              loadShedder.updateLag(records);
+              final List<SpanData> sampled = loadShedder.sample(records.getPayload());
+              acknowledgement.release(records.getPayload().size() - sampled.size());
+              if (!sampled.isEmpty()) {
+                consumeBatch(sampled, appendToLog(sampled, acknowledgement));
+              }
+            })
+        .runSubscriptionOn(virtualThreads);
+  }
+
+  /**
+   * Appends the given spans to the write-ahead log if it is enabled. If they cannot be appended,
+   * the poll is acknowledged once the spans have been committed, as without the log.
+   *
+   * @return Acknowledgement to release for each span once it has been committed
+   */
+  private BatchAcknowledgement appendToLog(
+      final List<SpanData> spans, final BatchAcknowledgement acknowledgement) {
+    if (!spanWriteAheadLog.isEnabled()) {
+      return acknowledgement;
+    }
+    try {
+      return spanWriteAheadLog.append(spans, () -> acknowledgement.release(spans.size()));
+    } catch (IOException e) {
+      Log.errorf(e, "Failed to append %d spans to the write-ahead log", spans.size());
+      return acknowledgement;
+    }
+  }
+
+  /**
+   * Consumes spans from the dead-letter topic, such that spans which could not be persisted can be
+   * replayed once the cause has been resolved. The channel is disabled unless explicitly enabled
+   * via mp.messaging.incoming.explorviz-spans-replay.enabled.
+   *
+   * @param records Spans received in one poll from the dead-letter topic
+   */
+  @Incoming("explorviz-spans-replay")
+  @Acknowledgment(Acknowledgment.Strategy.MANUAL)
+  public Uni<Void> replayRecords(final Message<List<SpanData>> records) {
+    return Uni.createFrom()
+        .voidItem()
+        .invoke(
+            () -> {
+              Log.infof("Replaying %d dead-lettered spans", records.getPayload().size());
+              consumeBatch(records.getPayload(), BatchAcknowledgement.of(records));
+            })
+        .runSubscriptionOn(virtualThreads);
+  }
+
+  /**
+   * Consumes spans which need not be acknowledged, see {@link #consumeBatch(List,
+   * BatchAcknowledgement)}.
+   */
+  public void consumeBatch(final List<SpanData> batch) {
+    consumeBatch(batch, BatchAcknowledgement.NONE);
+  }
+
+  /**
+   * Persists the spans of a single poll using the {@link SpanIngestWorkers}. The maximum batch size
+   * and the time to wait for a batch to fill up are configured via the explorviz.spans.batch.*
+   * properties. If trace assembly is enabled, the spans are handed to the {@link
+   * TraceAssemblyBuffer} instead and persisted once their traces are complete. Spans which could
+   * not be persisted are handed to the {@link SpanRetryQueue}. The identifiers of all spans are
+   * replaced with the shared instances of the {@link IdentifierDictionary} first, so that buffered
+   * spans do not retain copies of the same strings.
+   *
+   * @param batch Spans received in one poll, in partition order
+   * @param acknowledgement Acknowledgement released for each span once it is committed
+   */
+  public void consumeBatch(final List<SpanData> batch, final BatchAcknowledgement acknowledgement) {
+    batch.forEach(identifierDictionary::internIdentifiers);
+
+    if (traceAssemblyBuffer.isEnabled()) {
+      traceAssemblyBuffer.add(batch, acknowledgement);
+      return;
+    }
 
-    try (Transaction tx = session.beginTransaction()) {
-      spanPersistenceService.saveSpanData(session, spanData);
-      tx.commit();
+    try {
+      spanIngestWorkers.persist(batch);
+      acknowledgement.release(batch.size());
     } catch (Exception e) { // NOPMD
-      Log.error("Failed to process span: " + spanData.getSpanId(), e);
+      spanRetryQueue.add(batch, Collections.nCopies(batch.size(), acknowledgement), e);
     }
   }
 }
@@ -0,0 +1,209 @@
+package net.explorviz.persistence.messaging;
+
+import io.quarkus.logging.Log;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionKey;
+import net.explorviz.persistence.messaging.service.SpanPersistenceService;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.DatabaseWorkLimiter;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.neo4j.ogm.exception.CypherException;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.neo4j.ogm.transaction.Transaction;
+
+/**
+ * Persists batches of spans using a configurable number of concurrent workers. Each span is routed
+ * to a worker lane by the hash of its trace id or its landscape token, so spans sharing a key are
+ * always written by the same lane in the order they were received, while different keys proceed in
+ * parallel. The functions of a batch are resolved up front in a single transaction, since
+ * resolution may create nodes shared across traces, e.g. directories and functions. Each lane
+ * writes the timeline span counts and the aggregated calls of its spans in the same transaction as
+ * the spans, so a lane which is retried after a failure counts its spans exactly once.
+ *
+ * <p>A batch is only considered persisted once all lanes have been committed.
+ * Batches are persisted one after another, also if they are handed in concurrently, e.g. by the
+ * Kafka consumer, the retry queue and the write-ahead log replay. Thus, the nodes created during
+ * resolution are never duplicated by a racing caller, and the per-key ordering holds across batches
+ * as well. Each transaction holds a permit of the {@link DatabaseWorkLimiter} for span ingest, so
+ * lanes wait while the database is busy with interactive reads.
+ */
+@ApplicationScoped
+public class SpanIngestWorkers {
+
+  /** Key by which spans are routed to worker lanes. */
+  public enum Routing {
+    TRACE,
+    LANDSCAPE
+  }
+
+  @ConfigProperty(name = "explorviz.spans.workers.count", defaultValue = "0")
+  int workerCount;
+
+  @ConfigProperty(name = "explorviz.spans.workers.routing", defaultValue = "TRACE")
+  Routing routing;
+
+  @ConfigProperty(name = "explorviz.spans.workers.max-deadlock-retries", defaultValue = "3")
+  int maxDeadlockRetries;
+
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
+
+  @Inject SpanPersistenceService spanPersistenceService;
+
+  @Inject SessionFactory sessionFactory;
+
+  /** Serializes all batches, since resolving their functions creates shared nodes. */
+  private final ReentrantLock persistLock = new ReentrantLock(true);
+
+  private ExecutorService executor;
+
+  private int laneCount;
+
+  @PostConstruct
+  void init() {
+    laneCount = workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor =
+        Executors.newFixedThreadPool(
+            laneCount,
+            runnable -> {
+              final Thread thread =
+                  new Thread(runnable, "span-ingest-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Persists the given spans and returns once all of them are committed. Waits while another batch
+   * is being persisted.
+   *
+   * @param batch Spans in the order they were received
+   * @throws RuntimeException if resolving the functions or writing any of the lanes failed; lanes
+   *     which succeeded remain committed along with their aggregates
+   * @throws net.explorviz.persistence.util.DatabaseBusyException if the database is busy with
+   *     other work for too long
+   */
+  public void persist(final List<SpanData> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    persistLock.lock();
+    try {
+      final Map<FunctionKey, Long> functionIds =
+          inTransaction(session -> spanPersistenceService.resolveFunctionIds(session, batch));
+
+      final List<CompletableFuture<Void>> lanes = new ArrayList<>();
+      for (final List<SpanData> laneSpans : partition(batch)) {
+        if (!laneSpans.isEmpty()) {
+          lanes.add(
+              CompletableFuture.runAsync(
+                  () ->
+                      withRetries(
+                          laneSpans.size(),
+                          session -> {
+                            spanPersistenceService.saveTraces(session, laneSpans, functionIds);
+                            return null;
+                          }),
+                  executor));
+        }
+      }
+
+      CompletableFuture.allOf(lanes.toArray(CompletableFuture[]::new)).join();
+    } finally {
+      persistLock.unlock();
+    }
+  }
+
+  /**
+   * Runs the given work while no batch is being persisted, and waits while a batch is being
+   * persisted. Used for writes of static data which adjust the timeline span counts of persisted
+   * spans, e.g. when persisting a commit, such that spans persisted concurrently are counted
+   * exactly once. The work should be proportional to the size of the change, as span ingest waits
+   * for it.
+   *
+   * @param work Work to run, expected to open and commit its own transaction
+   */
+  public void runExclusively(final Runnable work) {
+    runExclusively(
+        () -> {
+          work.run();
+          return null;
+        });
+  }
+
+  /**
+   * Runs the given work while no batch is being persisted and returns its result, see {@link
+   * #runExclusively(Runnable)}.
+   */
+  public <T> T runExclusively(final Supplier<T> work) {
+    persistLock.lock();
+    try {
+      return work.get();
+    } finally {
+      persistLock.unlock();
+    }
+  }
+
+  private List<List<SpanData>> partition(final List<SpanData> batch) {
+    final List<List<SpanData>> partitions = new ArrayList<>(laneCount);
+    for (int i = 0; i < laneCount; i++) {
+      partitions.add(new ArrayList<>());
+    }
+
+    for (final SpanData spanData : batch) {
+      final String key =
+          routing == Routing.LANDSCAPE
+              ? spanData.getLandscapeTokenId()
+              : spanData.getLandscapeTokenId() + spanData.getTraceId();
+      partitions.get(Math.floorMod(key.hashCode(), laneCount)).add(spanData);
+    }
+
+    return partitions;
+  }
+
+  private <T> T withRetries(final int spanCount, final Function<Session, T> work) {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        return inTransaction(work);
+      } catch (CypherException e) {
+        // Lanes may still lock the same Function nodes in different order
+        if (attempt >= maxDeadlockRetries || !e.getCode().startsWith("Neo.TransientError")) {
+          throw e;
+        }
+        Log.debugf("Retrying %d spans after transient error %s", spanCount, e.getCode());
+      }
+    }
+  }
+
+  private <T> T inTransaction(final Function<Session, T> work) {
+    final Session session = sessionFactory.openSession();
+    try (DatabaseWorkLimiter.Permit permit =
+            databaseWorkLimiter.acquire(DatabaseWorkClass.SPAN_INGEST);
+        Transaction tx = session.beginTransaction()) {
+      final T result = work.apply(session);
+      tx.commit();
+      return result;
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package net.explorviz.persistence.messaging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.interceptor.Interceptor;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.explorviz.persistence.avro.SpanData;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Emitter;
+import org.eclipse.microprofile.reactive.messaging.OnOverflow;
+
+/**
+ * Retries spans which could not be persisted, e.g. due to transient deadlocks between concurrent
+ * writers or a short database outage. Failed spans are retried in batches after an exponential
+ * backoff with jitter. Once a batch failed the configured number of attempts, it is bisected such
+ * that only the spans which still fail on their own are published to the dead-letter channel
+ * {@value #DEAD_LETTER_CHANNEL}, from where they can be replayed later. Spans are published to the
+ * dead-letter channel directly if the queue is full or if they are still queued on shutdown. The
+ * records of a span are only acknowledged once it has been persisted by a retry or its publication
+ * to the dead-letter channel has been confirmed.
+ *
+ * <p>The number of retried and dead-lettered spans as well as the current queue size are exposed
+ * as metrics under the prefix {@value #METRIC_PREFIX}.
+ */
+@ApplicationScoped
+public class SpanRetryQueue {
+
+  public static final String DEAD_LETTER_CHANNEL = "explorviz-spans-dlq";
+
+  private static final String METRIC_PREFIX = "explorviz.spans.retry";
+
+  @ConfigProperty(name = "explorviz.spans.retry.max-attempts", defaultValue = "5")
+  int maxAttempts;
+
+  @ConfigProperty(name = "explorviz.spans.retry.initial-backoff", defaultValue = "1s")
+  Duration initialBackoff;
+
+  @ConfigProperty(name = "explorviz.spans.retry.max-backoff", defaultValue = "1m")
+  Duration maxBackoff;
+
+  @ConfigProperty(name = "explorviz.spans.retry.max-batch-size", defaultValue = "500")
+  int maxBatchSize;
+
+  @ConfigProperty(name = "explorviz.spans.retry.max-queued-spans", defaultValue = "100000")
+  int maxQueuedSpans;
+
+  @Inject MeterRegistry meterRegistry;
+
+  @Inject SpanIngestWorkers spanIngestWorkers;
+
+  @Inject
+  @Channel(DEAD_LETTER_CHANNEL)
+  @OnOverflow(OnOverflow.Strategy.UNBOUNDED_BUFFER)
+  Emitter<SpanData> deadLetterEmitter;
+
+  private final DelayQueue<FailedBatch> queue = new DelayQueue<>();
+
+  private final AtomicInteger queuedSpans = new AtomicInteger();
+
+  private Counter retriedSpans;
+
+  private Counter deadLetteredSpans;
+
+  @PostConstruct
+  void init() {
+    retriedSpans = meterRegistry.counter(METRIC_PREFIX + ".retried");
+    deadLetteredSpans = meterRegistry.counter(METRIC_PREFIX + ".dead-lettered");
+    meterRegistry.gauge(METRIC_PREFIX + ".queued", queuedSpans);
+  }
+
+  /**
+   * Schedules spans whose first attempt to be persisted failed for a retry.
+   *
+   * @param spans Spans which could not be persisted
+   * @param acknowledgements Acknowledgement of each span, in the same order as the spans
+   * @param cause Failure of the first attempt
+   */
+  public void add(
+      final List<SpanData> spans,
+      final List<BatchAcknowledgement> acknowledgements,
+      final Exception cause) {
+    if (spans.isEmpty()) {
+      return;
+    }
+    Log.warnf(cause, "Failed to persist %d spans, scheduling retry", spans.size());
+    schedule(List.copyOf(spans), List.copyOf(acknowledgements), 1);
+  }
+
+  /** Returns the number of spans waiting for a retry. */
+  public int getQueuedSpans() {
+    return queuedSpans.get();
+  }
+
+  /** Retries all spans whose backoff has elapsed. */
+  @Scheduled(
+      every = "${explorviz.spans.retry.poll-interval:1s}",
+      concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  void retryDueSpans() {
+    final List<FailedBatch> due = new ArrayList<>();
+    queue.drainTo(due);
+    retry(due);
+  }
+
+  /** Retries all queued spans regardless of their backoff. */
+  public void retryAll() {
+    retry(drainAll());
+  }
+
+  void onStop(@Observes @Priority(Interceptor.Priority.LIBRARY_AFTER) final ShutdownEvent event) {
+    for (final FailedBatch batch : drainAll()) {
+      queuedSpans.addAndGet(-batch.spans().size());
+      deadLetter(batch.spans(), batch.acknowledgements());
+    }
+  }
+
+  private List<FailedBatch> drainAll() {
+    final List<FailedBatch> batches = new ArrayList<>();
+    for (final FailedBatch batch : queue) {
+      if (queue.remove(batch)) {
+        batches.add(batch);
+      }
+    }
+    return batches;
+  }
+
+  /** Retries the given batches combined into chunks of at most the maximum batch size. */
+  private void retry(final List<FailedBatch> batches) {
+    List<FailedBatch> chunk = new ArrayList<>();
+    int chunkSize = 0;
+
+    for (final FailedBatch batch : batches) {
+      if (!chunk.isEmpty() && chunkSize + batch.spans().size() > maxBatchSize) {
+        retryChunk(chunk);
+        chunk = new ArrayList<>();
+        chunkSize = 0;
+      }
+      chunk.add(batch);
+      chunkSize += batch.spans().size();
+    }
+
+    if (!chunk.isEmpty()) {
+      retryChunk(chunk);
+    }
+  }
+
+  private void retryChunk(final List<FailedBatch> chunk) {
+    final int spanCount = chunk.stream().mapToInt(batch -> batch.spans().size()).sum();
+    queuedSpans.addAndGet(-spanCount);
+    retriedSpans.increment(spanCount);
+    persistChunk(chunk);
+  }
+
+  /**
+   * Persists the batches of a chunk with a single write. If the write fails, each batch is written
+   * on its own, so that a batch which keeps failing does not hold back the others.
+   */
+  private void persistChunk(final List<FailedBatch> chunk) {
+    final List<SpanData> spans = chunk.stream().flatMap(batch -> batch.spans().stream()).toList();
+    try {
+      spanIngestWorkers.persist(spans);
+      chunk.forEach(batch -> BatchAcknowledgement.releaseEach(batch.acknowledgements()));
+    } catch (Exception e) { // NOPMD
+      Log.warnf("Retry of %d spans failed: %s", spans.size(), e.getMessage());
+      if (chunk.size() > 1) {
+        chunk.forEach(batch -> persistChunk(List.of(batch)));
+      } else {
+        final FailedBatch batch = chunk.get(0);
+        schedule(batch.spans(), batch.acknowledgements(), batch.attempts() + 1);
+      }
+    }
+  }
+
+  /**
+   * Queues the spans for another attempt, or publishes them to the dead-letter channel if they are
+   * out of attempts or the queue is full.
+   *
+   * @param spans Spans which could not be persisted
+   * @param acknowledgements Acknowledgement of each span
+   * @param failedAttempts Number of attempts which have failed so far
+   */
+  private void schedule(
+      final List<SpanData> spans,
+      final List<BatchAcknowledgement> acknowledgements,
+      final int failedAttempts) {
+    if (failedAttempts >= maxAttempts) {
+      Log.errorf("Giving up on %d spans after %d attempts", spans.size(), failedAttempts);
+      deadLetterFailing(spans, acknowledgements);
+      return;
+    }
+    if (queuedSpans.addAndGet(spans.size()) > maxQueuedSpans) {
+      queuedSpans.addAndGet(-spans.size());
+      Log.errorf("Retry queue is full, giving up on %d spans", spans.size());
+      deadLetter(spans, acknowledgements);
+      return;
+    }
+
+    queue.add(
+        new FailedBatch(
+            spans, acknowledgements, failedAttempts, System.nanoTime() + backoff(failedAttempts)));
+  }
+
+  /**
+   * Returns the delay in nanoseconds before the next attempt. The delay doubles with each failed
+   * attempt up to the maximum backoff, and is randomized to between half and the full delay so that
+   * spans which failed together are not retried in lockstep.
+   */
+  private long backoff(final int failedAttempts) {
+    long delay = initialBackoff.toNanos();
+    for (int i = 1; i < failedAttempts && delay < maxBackoff.toNanos(); i++) {
+      delay *= 2;
+    }
+    delay = Math.min(delay, maxBackoff.toNanos());
+    final long halfDelay = Math.max(delay / 2, 1);
+    return halfDelay + ThreadLocalRandom.current().nextLong(halfDelay);
+  }
+
+  /**
+   * Publishes the spans of a failed batch to the dead-letter channel which cannot be persisted on
+   * their own. The batch is bisected and each half is persisted, such that a single span which
+   * cannot be persisted does not take the other spans of its batch with it.
+   */
+  private void deadLetterFailing(
+      final List<SpanData> spans, final List<BatchAcknowledgement> acknowledgements) {
+    if (spans.size() == 1) {
+      deadLetter(spans, acknowledgements);
+      return;
+    }
+
+    final int half = spans.size() / 2;
+    persistOrDeadLetter(spans.subList(0, half), acknowledgements.subList(0, half));
+    persistOrDeadLetter(
+        spans.subList(half, spans.size()), acknowledgements.subList(half, spans.size()));
+  }
+
+  private void persistOrDeadLetter(
+      final List<SpanData> spans, final List<BatchAcknowledgement> acknowledgements) {
+    try {
+      spanIngestWorkers.persist(spans);
+      BatchAcknowledgement.releaseEach(acknowledgements);
+    } catch (Exception e) { // NOPMD
+      deadLetterFailing(spans, acknowledgements);
+    }
+  }
+
+  /**
+   * Publishes the spans to the dead-letter channel. A span is acknowledged once its publication has
+   * been confirmed, otherwise its record remains unacknowledged and is consumed again.
+   */
+  private void deadLetter(
+      final List<SpanData> spans, final List<BatchAcknowledgement> acknowledgements) {
+    deadLetteredSpans.increment(spans.size());
+    for (int i = 0; i < spans.size(); i++) {
+      final SpanData spanData = spans.get(i);
+      final BatchAcknowledgement acknowledgement = acknowledgements.get(i);
+      deadLetterEmitter
+          .send(spanData)
+          .whenComplete(
+              (ignored, error) -> {
+                if (error == null) {
+                  acknowledgement.release(1);
+                } else {
+                  Log.errorf(
+                      error,
+                      "Failed to publish span %s to dead-letter channel",
+                      spanData.getSpanId());
+                }
+              });
+    }
+  }
+
+  /**
+   * Spans which failed to be persisted together.
+   *
+   * @param spans Failed spans
+   * @param acknowledgements Acknowledgement of each span
+   * @param attempts Number of failed attempts
+   * @param dueAt Time of the next attempt as given by {@link System#nanoTime()}
+   */
+  private record FailedBatch(
+      List<SpanData> spans, List<BatchAcknowledgement> acknowledgements, int attempts, long dueAt)
+      implements Delayed {
+
+    @Override
+    public long getDelay(final TimeUnit unit) {
+      return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(final Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+}
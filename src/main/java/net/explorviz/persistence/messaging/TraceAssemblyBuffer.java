@@ -0,0 +1,176 @@
+package net.explorviz.persistence.messaging;
+
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import net.explorviz.persistence.avro.SpanData;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Collects incoming spans per trace and persists each trace once it is complete, i.e. once no new
+ * span has been received for the trace within the quiet period or the trace has been buffered for
+ * longer than the maximum age. All traces which are due are handed to the {@link
+ * SpanIngestWorkers} together, such that a trace along with all of its spans and relationships is
+ * written by one statement instead of one read-modify-write cycle per span.
+ *
+ * <p>The buffer is flushed early if it holds more spans than configured or if the heap usage
+ * exceeds the configured ratio, and it is flushed completely on shutdown. Traces which could not be
+ * persisted are handed to the {@link SpanRetryQueue}. Buffered spans are only held in memory, but
+ * their records are not acknowledged before they have been committed, so they are consumed again
+ * if the service terminates unexpectedly.
+ */
+@ApplicationScoped
+public class TraceAssemblyBuffer {
+
+  @ConfigProperty(name = "explorviz.spans.assembly.enabled", defaultValue = "false")
+  boolean enabled;
+
+  @ConfigProperty(name = "explorviz.spans.assembly.quiet-period", defaultValue = "2s")
+  Duration quietPeriod;
+
+  @ConfigProperty(name = "explorviz.spans.assembly.max-age", defaultValue = "30s")
+  Duration maxAge;
+
+  @ConfigProperty(name = "explorviz.spans.assembly.max-buffered-spans", defaultValue = "100000")
+  int maxBufferedSpans;
+
+  @ConfigProperty(name = "explorviz.spans.assembly.max-heap-usage", defaultValue = "0.8")
+  double maxHeapUsage;
+
+  @Inject SpanIngestWorkers spanIngestWorkers;
+
+  @Inject SpanRetryQueue spanRetryQueue;
+
+  private final Map<TraceKey, PendingTrace> pendingTraces = new ConcurrentHashMap<>();
+
+  private final AtomicInteger bufferedSpans = new AtomicInteger();
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Adds spans which need not be acknowledged, see {@link #add(List, BatchAcknowledgement)}. */
+  public void add(final List<SpanData> spans) {
+    add(spans, BatchAcknowledgement.NONE);
+  }
+
+  /**
+   * Adds the given spans to the traces they belong to. If the buffer is under memory pressure
+   * afterwards, all buffered traces are persisted immediately.
+   *
+   * @param spans Spans in the order they were received
+   * @param acknowledgement Acknowledgement released for each span once it is committed
+   */
+  public void add(final List<SpanData> spans, final BatchAcknowledgement acknowledgement) {
+    final long now = System.nanoTime();
+
+    for (final SpanData spanData : spans) {
+      pendingTraces.compute(
+          new TraceKey(spanData.getLandscapeTokenId(), spanData.getTraceId()),
+          (key, pending) -> {
+            final PendingTrace trace = pending == null ? new PendingTrace(now) : pending;
+            trace.add(spanData, acknowledgement, now);
+            return trace;
+          });
+    }
+
+    if (bufferedSpans.addAndGet(spans.size()) > maxBufferedSpans || isHeapUsageExceeded()) {
+      Log.debugf("Flushing %d buffered spans early due to memory pressure", bufferedSpans.get());
+      flushAll();
+    }
+  }
+
+  /** Persists all traces that have been quiet for the quiet period or exceeded the maximum age. */
+  @Scheduled(
+      every = "${explorviz.spans.assembly.flush-interval:1s}",
+      concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  void flushCompletedTraces() {
+    if (!enabled) {
+      return;
+    }
+    final long now = System.nanoTime();
+    flush(
+        pending ->
+            now - pending.lastReceived >= quietPeriod.toNanos()
+                || now - pending.firstReceived >= maxAge.toNanos());
+  }
+
+  /** Persists all buffered traces regardless of whether they are complete. */
+  public void flushAll() {
+    flush(pending -> true);
+  }
+
+  void onStop(@Observes final ShutdownEvent event) {
+    flushAll();
+  }
+
+  private void flush(final Predicate<PendingTrace> isDue) {
+    final List<SpanData> dueSpans = new ArrayList<>();
+    final List<BatchAcknowledgement> dueAcknowledgements = new ArrayList<>();
+
+    for (final TraceKey traceKey : pendingTraces.keySet()) {
+      pendingTraces.computeIfPresent(
+          traceKey,
+          (key, pending) -> {
+            if (!isDue.test(pending)) {
+              return pending;
+            }
+            dueSpans.addAll(pending.spans);
+            dueAcknowledgements.addAll(pending.acknowledgements);
+            return null;
+          });
+    }
+
+    if (dueSpans.isEmpty()) {
+      return;
+    }
+    bufferedSpans.addAndGet(-dueSpans.size());
+
+    try {
+      spanIngestWorkers.persist(dueSpans);
+      BatchAcknowledgement.releaseEach(dueAcknowledgements);
+    } catch (Exception e) { // NOPMD
+      spanRetryQueue.add(dueSpans, dueAcknowledgements, e);
+    }
+  }
+
+  private boolean isHeapUsageExceeded() {
+    final Runtime runtime = Runtime.getRuntime();
+    final long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+    return usedMemory > runtime.maxMemory() * maxHeapUsage;
+  }
+
+  private record TraceKey(String landscapeTokenId, String traceId) {}
+
+  /** Spans of a single trace received so far. Only modified while holding the map entry's lock. */
+  private static final class PendingTrace {
+    private final List<SpanData> spans = new ArrayList<>();
+    private final List<BatchAcknowledgement> acknowledgements = new ArrayList<>();
+    private final long firstReceived;
+    private long lastReceived;
+
+    private PendingTrace(final long firstReceived) {
+      this.firstReceived = firstReceived;
+      this.lastReceived = firstReceived;
+    }
+
+    private void add(
+        final SpanData spanData,
+        final BatchAcknowledgement acknowledgement,
+        final long receivedAt) {
+      spans.add(spanData);
+      acknowledgements.add(acknowledgement);
+      lastReceived = receivedAt;
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package net.explorviz.persistence.messaging.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionKey;
+
+/**
+ * Spans of a batch prepared for writing, i.e. grouped by trace and keyed by span id. The function
+ * id of each span is looked up once, such that the {@link FunctionKey} of a span is not rebuilt
+ * for each of the derived rows and counts.
+ *
+ * @param functionIds Function node id per span, keyed by identity
+ * @param traceRows Rows for {@link
+ *     net.explorviz.persistence.repository.SpanRepository#mergeTraces}, one per trace
+ * @param batchSpans First occurrence of each span of the batch by its span key
+ * @param lookupKeys Keys of the batch's spans followed by the keys of their parents
+ */
+record PreparedBatch(
+    Map<SpanData, Long> functionIds,
+    List<Map<String, Object>> traceRows,
+    Map<List<String>, SpanData> batchSpans,
+    Set<List<String>> lookupKeys) {
+
+  /**
+   * Prepares the given spans for writing.
+   *
+   * @param spans Spans to persist, in the order they were received
+   * @param functionIds Function node id for each {@link FunctionKey} of the given spans
+   */
+  static PreparedBatch of(final List<SpanData> spans, final Map<FunctionKey, Long> functionIds) {
+    return of(spans, functionIds, spanData -> 1.0);
+  }
+
+  /**
+   * Prepares the given spans for writing.
+   *
+   * @param spans Spans to persist, in the order they were received
+   * @param functionIds Function node id for each {@link FunctionKey} of the given spans
+   * @param samplingRatios Ratio the trace of a span was sampled with, see {@link
+   *     net.explorviz.persistence.messaging.LoadShedder}
+   */
+  static PreparedBatch of(
+      final List<SpanData> spans,
+      final Map<FunctionKey, Long> functionIds,
+      final ToDoubleFunction<SpanData> samplingRatios) {
+    final Map<SpanData, Long> functionIdsBySpan = new IdentityHashMap<>(spans.size());
+    final Map<List<String>, List<SpanData>> spansByTrace = new LinkedHashMap<>();
+    final Map<List<String>, SpanData> batchSpans = new LinkedHashMap<>();
+
+    for (final SpanData spanData : spans) {
+      functionIdsBySpan.put(spanData, functionIds.get(FunctionKey.of(spanData)));
+      spansByTrace
+          .computeIfAbsent(
+              List.of(spanData.getLandscapeTokenId(), spanData.getTraceId()),
+              traceKey -> new ArrayList<>())
+          .add(spanData);
+      batchSpans.putIfAbsent(
+          spanKey(spanData.getLandscapeTokenId(), spanData.getSpanId()), spanData);
+    }
+
+    final List<Map<String, Object>> traceRows = new ArrayList<>(spansByTrace.size());
+    spansByTrace
+        .values()
+        .forEach(
+            traceSpans ->
+                traceRows.add(toTraceRow(traceSpans, functionIdsBySpan, samplingRatios)));
+
+    // Parents outside the batch are looked up along with the batch's spans
+    final Set<List<String>> lookupKeys = new LinkedHashSet<>(batchSpans.keySet());
+    for (final SpanData spanData : batchSpans.values()) {
+      if (!spanData.getParentId().isEmpty()) {
+        lookupKeys.add(spanKey(spanData.getLandscapeTokenId(), spanData.getParentId()));
+      }
+    }
+
+    return new PreparedBatch(functionIdsBySpan, traceRows, batchSpans, lookupKeys);
+  }
+
+  /** Returns the function node id of a span of this batch. */
+  Long functionId(final SpanData spanData) {
+    return functionIds.get(spanData);
+  }
+
+  /**
+   * Returns the rows for {@link
+   * net.explorviz.persistence.repository.TraceRepository#refreshSummaries} of the traces with new
+   * spans.
+   *
+   * @param newSpanKeys Keys of the spans recorded for the first time
+   */
+  @SuppressWarnings("unchecked")
+  List<Map<String, Object>> summaryRows(final Set<List<String>> newSpanKeys) {
+    final List<Map<String, Object>> rows = new ArrayList<>();
+
+    for (final Map<String, Object> traceRow : traceRows) {
+      final String landscapeToken = (String) traceRow.get("landscapeTokenId");
+      final List<Map<String, Object>> spanRows = (List<Map<String, Object>>) traceRow.get("spans");
+      final List<Map<String, Object>> newSpanRows = new ArrayList<>();
+      for (final Map<String, Object> spanRow : spanRows) {
+        if (newSpanKeys.contains(spanKey(landscapeToken, (String) spanRow.get("spanId")))) {
+          newSpanRows.add(spanRow);
+        }
+      }
+      if (newSpanRows.isEmpty()) {
+        continue;
+      }
+
+      final Set<String> newSpanIds = new LinkedHashSet<>();
+      newSpanRows.forEach(spanRow -> newSpanIds.add((String) spanRow.get("spanId")));
+      final Set<String> subtreeRoots = new LinkedHashSet<>();
+      Map<String, Object> earliestRoot = null;
+      for (final Map<String, Object> spanRow : newSpanRows) {
+        final String parentId = (String) spanRow.get("parentId");
+        if (!newSpanIds.contains(parentId)) {
+          subtreeRoots.add((String) spanRow.get("spanId"));
+        }
+        if (parentId.isEmpty()
+            && (earliestRoot == null
+                || (long) spanRow.get("startTime") < (long) earliestRoot.get("startTime"))) {
+          earliestRoot =
+              Map.of(
+                  "startTime", spanRow.get("startTime"),
+                  "functionId", spanRow.get("functionId"));
+        }
+      }
+
+      rows.add(
+          Map.of(
+              "landscapeTokenId", landscapeToken,
+              "traceId", traceRow.get("traceId"),
+              "newSpanCount", newSpanIds.size(),
+              "subtreeRoots", List.copyOf(subtreeRoots),
+              "newRoots", earliestRoot == null ? List.of() : List.of(earliestRoot)));
+    }
+
+    return rows;
+  }
+
+  static List<String> spanKey(final String landscapeToken, final String spanId) {
+    return List.of(landscapeToken, spanId);
+  }
+
+  private static Map<String, Object> toTraceRow(
+      final List<SpanData> spans,
+      final Map<SpanData, Long> functionIds,
+      final ToDoubleFunction<SpanData> samplingRatios) {
+    final List<Map<String, Object>> spanRows = new ArrayList<>(spans.size());
+    long startTime = Long.MAX_VALUE;
+    long endTime = Long.MIN_VALUE;
+
+    for (final SpanData spanData : orderParentsFirst(spans)) {
+      spanRows.add(
+          Map.of(
+              "spanId", spanData.getSpanId(),
+              "parentId", spanData.getParentId(),
+              "startTime", spanData.getStartTime(),
+              "endTime", spanData.getEndTime(),
+              "functionId", functionIds.get(spanData)));
+      startTime = Math.min(startTime, spanData.getStartTime());
+      endTime = Math.max(endTime, spanData.getEndTime());
+    }
+
+    final SpanData first = spans.get(0);
+    return Map.of(
+        "landscapeTokenId", first.getLandscapeTokenId(),
+        "traceId", first.getTraceId(),
+        "startTime", startTime,
+        "endTime", endTime,
+        "samplingRatio", samplingRatios.applyAsDouble(first),
+        "spans", spanRows);
+  }
+
+  /**
+   * Orders the spans of a trace such that each parent precedes its children. Spans whose parent is
+   * not part of the given list are treated as roots. Spans that are only reachable via a cycle of
+   * parent references are appended at the end.
+   */
+  private static List<SpanData> orderParentsFirst(final List<SpanData> spans) {
+    final Set<String> spanIds =
+        spans.stream().map(SpanData::getSpanId).collect(Collectors.toSet());
+    final Map<String, List<SpanData>> childrenByParentId = new HashMap<>();
+    final Deque<SpanData> pending = new ArrayDeque<>();
+
+    for (final SpanData spanData : spans) {
+      if (spanIds.contains(spanData.getParentId())) {
+        childrenByParentId
+            .computeIfAbsent(spanData.getParentId(), parentId -> new ArrayList<>())
+            .add(spanData);
+      } else {
+        pending.add(spanData);
+      }
+    }
+
+    final List<SpanData> ordered = new ArrayList<>(spans.size());
+    while (!pending.isEmpty()) {
+      final SpanData spanData = pending.poll();
+      ordered.add(spanData);
+      final List<SpanData> children = childrenByParentId.remove(spanData.getSpanId());
+      if (children != null) {
+        pending.addAll(children);
+      }
+    }
+    childrenByParentId.values().forEach(ordered::addAll);
+
+    return ordered;
+  }
+}
@@ -3,23 +3,33 @@ package net.explorviz.persistence.messaging.service;
 import com.google.common.collect.ObjectArrays;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 import net.explorviz.persistence.avro.SpanData;
-import net.explorviz.persistence.ogm.Application;
+import net.explorviz.persistence.cache.FunctionKey;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.cache.IdentifierDictionary;
+import net.explorviz.persistence.messaging.LoadShedder;
 import net.explorviz.persistence.ogm.Clazz;
-import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.ogm.Function;
-import net.explorviz.persistence.ogm.Landscape;
-import net.explorviz.persistence.ogm.Span;
-import net.explorviz.persistence.ogm.Trace;
-import net.explorviz.persistence.repository.ApplicationRepository;
 import net.explorviz.persistence.repository.ClazzRepository;
 import net.explorviz.persistence.repository.CommitRepository;
 import net.explorviz.persistence.repository.FileRevisionRepository;
+import net.explorviz.persistence.repository.FunctionCallRepository;
+import net.explorviz.persistence.repository.FunctionCallRepository.CallKey;
+import net.explorviz.persistence.repository.FunctionCallRepository.CallTotals;
 import net.explorviz.persistence.repository.FunctionRepository;
-import net.explorviz.persistence.repository.LandscapeRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository.BucketKey;
 import net.explorviz.persistence.repository.SpanRepository;
+import net.explorviz.persistence.repository.SpanRepository.RecordedChild;
 import net.explorviz.persistence.repository.TraceRepository;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
@@ -27,160 +37,312 @@ import org.neo4j.ogm.session.SessionFactory;
 @ApplicationScoped
 public class SpanPersistenceService {
 
-  @Inject ApplicationRepository applicationRepository;
-
   @Inject ClazzRepository clazzRepository;
 
   @Inject CommitRepository commitRepository;
 
   @Inject FileRevisionRepository fileRevisionRepository;
 
+  @Inject FunctionCallRepository functionCallRepository;
+
   @Inject FunctionRepository functionRepository;
 
-  @Inject LandscapeRepository landscapeRepository;
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject IdentifierDictionary identifierDictionary;
+
+  @Inject LoadShedder loadShedder;
+
+  @Inject SpanCountBucketRepository spanCountBucketRepository;
 
   @Inject SpanRepository spanRepository;
 
+  @Inject TraceRepository traceRepository;
+
   @Inject SessionFactory sessionFactory;
 
-  @Inject TraceRepository traceRepository;
+  /**
+   * Resolves the Function node ids of all spans in the batch, creating any missing parts of the
+   * file and class structure. Since this may create shared nodes like directories and functions, it
+   * must not be executed concurrently for overlapping batches.
+   *
+   * @param session OGM session object, expected to be part of an open transaction
+   * @param batch Spans whose functions to resolve
+   * @return Function node id for each distinct {@link FunctionKey} of the batch
+   */
+  public Map<FunctionKey, Long> resolveFunctionIds(
+      final Session session, final List<SpanData> batch) {
+    final Map<FunctionKey, Long> functionIds = findCachedFunctionIds(session, batch);
+
+    for (final SpanData spanData : batch) {
+      final FunctionKey functionKey = FunctionKey.of(spanData);
 
-  public void saveSpanData(final Session session, final SpanData spanData) {
-    final Span span = spanRepository.getOrCreateSpan(session, spanData.getSpanId());
+      if (!functionIds.containsKey(functionKey)) {
+        final Long functionId = resolveFunctionId(session, spanData);
+        functionIds.put(functionKey, functionId);
+        functionResolutionCache.put(functionKey, functionId);
+      }
+    }
 
-    span.setStartTime(spanData.getStartTime());
-    span.setEndTime(spanData.getEndTime());
+    return functionIds;
+  }
+
+  /**
+   * Writes the spans grouped by trace with a single statement. Only the trace and span nodes of the
+   * given spans are written, such that batches of disjoint traces can be written concurrently.
+   * Traces record the ratio they were sampled with by the {@link LoadShedder}, and the spans
+   * recorded for the first time are folded into their summaries, added to the timeline span counts
+   * and to the aggregated calls. Since the aggregates are written in the same transaction as the
+   * spans, a redelivered span is counted exactly once, also if an earlier attempt failed.
+   *
+   * @param session OGM session object, expected to be part of an open transaction
+   * @param spans Spans to persist, in the order they were received. The parents of the spans are
+   *     expected to be either among them or persisted already, e.g. spans of whole traces.
+   * @param functionIds Function node id for each {@link FunctionKey} of the given spans, see {@link
+   *     #resolveFunctionIds(Session, List)}
+   */
+  public void saveTraces(
+      final Session session, final List<SpanData> spans, final Map<FunctionKey, Long> functionIds) {
+    final PreparedBatch prepared =
+        PreparedBatch.of(spans, functionIds, loadShedder::getTraceSamplingRatio);
+
+    final Map<List<String>, Long> newSpanWeights =
+        spanRepository.mergeTraces(session, prepared.traceRows());
+    traceRepository.refreshSummaries(session, prepared.summaryRows(newSpanWeights.keySet()));
+    saveAggregates(session, prepared, newSpanWeights);
+  }
 
-    if (!spanData.getParentId().isEmpty()) {
-      final Span parentSpan = spanRepository.getOrCreateSpan(session, spanData.getParentId());
-      span.setParentSpan(parentSpan);
+  /**
+   * Adds the spans recorded for the first time to the span counts of the timeline and to the
+   * aggregated calls between functions, such that redelivered spans are not counted again. The
+   * counters are locked in a fixed order, so concurrent writers of disjoint traces do not deadlock.
+   * Each span is counted with its weight, i.e. as 1 / samplingRatio spans of its trace.
+   */
+  private void saveAggregates(
+      final Session session,
+      final PreparedBatch prepared,
+      final Map<List<String>, Long> newSpanWeights) {
+    if (newSpanWeights.isEmpty()) {
+      return;
     }
 
-    final Trace trace = traceRepository.getOrCreateTrace(session, spanData.getTraceId());
-    trace.addSpan(span);
+    final Map<List<String>, SpanData> newSpans = new LinkedHashMap<>(prepared.batchSpans());
+    newSpans.keySet().retainAll(newSpanWeights.keySet());
 
-    final Landscape landscape =
-        landscapeRepository.getOrCreateLandscape(session, spanData.getLandscapeTokenId());
-    landscape.addTrace(trace);
+    spanCountBucketRepository.incrementSpanCounts(
+        session, countSpans(session, newSpans, newSpanWeights, prepared));
+    functionCallRepository.incrementCalls(
+        session, collectCalls(session, prepared, newSpans, newSpanWeights));
+  }
 
-    final Function function;
-    if (spanData.getCommitHash() != null) {
-      function = resolveFunctionFqn(session, spanData, spanData.getCommitHash(), landscape);
-    } else {
-      function = resolveFunctionFqn(session, spanData, landscape);
+  /**
+   * Counts the given spans with their weights per timeline bucket, for their landscape and for each
+   * commit containing their function.
+   */
+  private Map<BucketKey, Long> countSpans(
+      final Session session,
+      final Map<List<String>, SpanData> spans,
+      final Map<List<String>, Long> weights,
+      final PreparedBatch prepared) {
+    final Map<BucketKey, Long> spanCounts = new HashMap<>();
+    if (spans.isEmpty()) {
+      return spanCounts;
     }
 
-    span.setFunction(function);
+    final Map<Long, List<String>> commitHashes =
+        spanCountBucketRepository.findCommitHashesForFunctions(
+            session,
+            spans.values().stream().map(prepared::functionId).collect(Collectors.toSet()));
+
+    spans.forEach(
+        (spanKey, spanData) -> {
+          final String token = spanData.getLandscapeTokenId();
+          final long startTime = spanData.getStartTime();
+          final long weight = weights.get(spanKey);
+          spanCounts.merge(
+              BucketKey.of(token, SpanCountBucketRepository.ALL_COMMITS, startTime),
+              weight,
+              Long::sum);
+          for (final String commitHash :
+              commitHashes.getOrDefault(prepared.functionId(spanData), List.of())) {
+            spanCounts.merge(BucketKey.of(token, commitHash, startTime), weight, Long::sum);
+          }
+        });
 
-    session.save(List.of(span, trace, landscape, function));
+    return spanCounts;
   }
 
-  private Function resolveFunctionFqn(
-      final Session session, final SpanData spanData, final Landscape landscape) {
-    final String[] splitFilePath = spanData.getFilePath().split("/");
-    final String functionName = spanData.getFunctionName();
+  /**
+   * Collects the calls between the functions of parent and child spans which become known with
+   * this batch. A call is added once both spans have been persisted, i.e. either when a new child
+   * arrives whose parent is known or when a new parent arrives for children persisted before.
+   * Expects the spans of the batch to be written already.
+   */
+  private Map<CallKey, CallTotals> collectCalls(
+      final Session session,
+      final PreparedBatch prepared,
+      final Map<List<String>, SpanData> newSpans,
+      final Map<List<String>, Long> weights) {
+    final Map<CallKey, CallTotals> calls = new HashMap<>();
+
+    final Set<List<String>> outsideParentKeys = new LinkedHashSet<>(prepared.lookupKeys());
+    outsideParentKeys.removeAll(prepared.batchSpans().keySet());
+    final Map<List<String>, Long> recordedSpans =
+        spanRepository.findRecordedSpans(session, toKeyRows(outsideParentKeys));
+
+    for (final Map.Entry<List<String>, SpanData> entry : newSpans.entrySet()) {
+      final SpanData child = entry.getValue();
+      if (child.getParentId().isEmpty()) {
+        continue;
+      }
+      final List<String> parentKey =
+          PreparedBatch.spanKey(child.getLandscapeTokenId(), child.getParentId());
+      final SpanData parent = prepared.batchSpans().get(parentKey);
+      final Long callerId =
+          parent == null ? recordedSpans.get(parentKey) : prepared.functionId(parent);
+      if (callerId != null) {
+        calls.merge(
+            CallKey.of(
+                child.getLandscapeTokenId(),
+                callerId,
+                prepared.functionId(child),
+                child.getStartTime()),
+            CallTotals.ofSpan(
+                child.getStartTime(), child.getEndTime(), weights.get(entry.getKey())),
+            CallTotals::add);
+      }
+    }
+
+    for (final RecordedChild child :
+        spanRepository.findRecordedChildren(session, toKeyRows(newSpans.keySet()))) {
+      if (newSpans.containsKey(PreparedBatch.spanKey(child.landscapeToken(), child.spanId()))) {
+        // Already added above along with the other new children
+        continue;
+      }
+      final SpanData parent =
+          newSpans.get(PreparedBatch.spanKey(child.landscapeToken(), child.parentId()));
+      calls.merge(
+          CallKey.of(
+              child.landscapeToken(),
+              prepared.functionId(parent),
+              child.functionId(),
+              child.startTime()),
+          CallTotals.ofSpan(child.startTime(), child.endTime(), child.weight()),
+          CallTotals::add);
+    }
 
-    final FileRevision fileRevision =
-        resolveFileRevision(session, spanData, splitFilePath, landscape);
-    fileRevision.setLanguage(spanData.getLanguage().toUpperCase(Locale.ENGLISH));
-    session.save(fileRevision);
+    return calls;
+  }
+
+  private static List<Map<String, String>> toKeyRows(final Collection<List<String>> spanKeys) {
+    return spanKeys.stream()
+        .map(key -> Map.of("landscapeToken", key.get(0), "spanId", key.get(1)))
+        .toList();
+  }
+
+  /**
+   * Returns the cached function ids for the spans of the batch. Cached ids are verified with a
+   * single query, since the referenced nodes may have been deleted since they were cached, e.g. by
+   * a transaction that was rolled back. Invalid entries are evicted from the cache.
+   */
+  private Map<FunctionKey, Long> findCachedFunctionIds(
+      final Session session, final List<SpanData> batch) {
+    final Set<FunctionKey> functionKeys =
+        batch.stream().map(FunctionKey::of).collect(Collectors.toSet());
+    final Map<FunctionKey, Long> cachedIds =
+        new HashMap<>(functionResolutionCache.getAllPresent(functionKeys));
+
+    if (cachedIds.isEmpty()) {
+      return cachedIds;
+    }
+
+    final Map<Long, String> expectedNames = new HashMap<>();
+    cachedIds.forEach((key, functionId) -> expectedNames.put(functionId, key.functionName()));
+    final Set<Long> existingIds =
+        functionRepository.findExistingFunctionIds(session, expectedNames);
 
-    final Function function;
+    cachedIds
+        .entrySet()
+        .removeIf(
+            entry -> {
+              if (existingIds.contains(entry.getValue())) {
+                return false;
+              }
+              functionResolutionCache.invalidate(entry.getKey());
+              return true;
+            });
+
+    return cachedIds;
+  }
 
+  private Long resolveFunctionId(final Session session, final SpanData spanData) {
+    if (spanData.getCommitHash() != null) {
+      return resolveFunctionId(session, spanData, spanData.getCommitHash());
+    }
+    return resolveRuntimeFunctionId(session, spanData);
+  }
+
+  /**
+   * Resolves the function of a span gathered from runtime analysis, creating any missing nodes of
+   * its file and class structure on the way. All writes target the missing nodes and their
+   * relationships only, such that the cost does not depend on the size of the landscape.
+   */
+  private Long resolveRuntimeFunctionId(final Session session, final SpanData spanData) {
+    final Long fileRevisionId =
+        fileRevisionRepository.createFileStructureForRuntimeData(
+            session,
+            identifierDictionary.splitPath(spanData.getFilePath()),
+            spanData.getApplicationName(),
+            spanData.getLandscapeTokenId());
+    fileRevisionRepository.updateLanguage(
+        session, fileRevisionId, identifierDictionary.toUpperCase(spanData.getLanguage()));
+
+    final Long parentId;
     if (spanData.getClassName() != null) {
-      final Clazz clazz =
+      final String[] classPath = identifierDictionary.splitClassName(spanData.getClassName());
+      parentId =
           clazzRepository
-              .findClassByClassPathAndFileRevisionId(
-                  session, spanData.getClassName().split("\\."), fileRevision.getId())
+              .findClassByClassPathAndFileRevisionId(session, classPath, fileRevisionId)
+              .map(Clazz::getId)
               .orElseGet(
                   () ->
-                      clazzRepository.createClazzPathAndReturnLastClazz(
-                          session, spanData.getClassName().split("\\."), fileRevision.getId()));
-
-      function =
-          functionRepository
-              .findFunctionByFunctionNameAndClazzId(session, functionName, clazz.getId())
-              .orElse(new Function(functionName));
-      clazz.addFunction(function);
-      session.save(clazz);
+                      clazzRepository.createClazzPathAndReturnLastClazzId(
+                          session, classPath, fileRevisionId));
     } else {
-      function =
-          functionRepository
-              .findFunctionWithFunctionNameAndFileRevisionId(
-                  session, functionName, fileRevision.getId())
-              .orElse(new Function(functionName));
-      fileRevision.addFunction(function);
-      session.save(fileRevision);
+      parentId = fileRevisionId;
     }
 
-    return function;
+    return functionRepository.getOrCreateFunctionInParent(
+        session, spanData.getFunctionName(), parentId);
   }
 
-  private Function resolveFunctionFqn(
-      final Session session,
-      final SpanData spanData,
-      final String commitHash,
-      final Landscape landscape) {
-    final String[] splitFilePath = spanData.getFilePath().split("/");
+  private Long resolveFunctionId(
+      final Session session, final SpanData spanData, final String commitHash) {
+    final String[] splitFilePath = identifierDictionary.splitPath(spanData.getFilePath());
     final String functionName = spanData.getFunctionName();
 
+    final Optional<Function> function;
     if (spanData.getClassName() != null) {
-      return functionRepository
-          .findFunction(
+      function =
+          functionRepository.findFunction(
               session,
               spanData.getApplicationName(),
               ObjectArrays.concat(splitFilePath, functionName),
               spanData.getLandscapeTokenId(),
               commitHash,
-              spanData.getClassName().split("\\."))
-          .orElseGet(() -> resolveFunctionFqn(session, spanData, landscape));
+              identifierDictionary.splitClassName(spanData.getClassName()));
     } else {
-      return functionRepository
-          .findFunction(
+      function =
+          functionRepository.findFunction(
               session,
               spanData.getApplicationName(),
               ObjectArrays.concat(splitFilePath, functionName),
               commitHash,
-              spanData.getLandscapeTokenId())
-          .orElseGet(() -> resolveFunctionFqn(session, spanData, landscape));
+              spanData.getLandscapeTokenId());
     }
-  }
-
-  private FileRevision resolveFileRevision(
-      final Session session,
-      final SpanData spanData,
-      final String[] splitFileFqn,
-      final Landscape landscape) {
-    return fileRevisionRepository
-        .findFileRevisionFromAppNameAndPathWithoutCommit(
-            session, spanData.getApplicationName(), splitFileFqn, spanData.getLandscapeTokenId())
-        .orElseGet(
-            () -> {
-              final Application application =
-                  applicationRepository
-                      .findApplicationByNameAndLandscapeToken(
-                          session, spanData.getApplicationName(), spanData.getLandscapeTokenId())
-                      .orElse(new Application(spanData.getApplicationName()));
-              landscape.addApplication(application);
-
-              final FileRevision fileRevision;
-
-              if (application.getRootDirectory() == null) {
-                // Application did not previously exist, build file structure from scratch
-                fileRevision =
-                    fileRevisionRepository.createFileStructureForNewApplicationFromFqn(
-                        session, application, splitFileFqn);
-              } else {
-                // Create missing directories and file for existing Application
-                fileRevision =
-                    fileRevisionRepository.createFileStructureForExistingApplicationFromFileFqn(
-                        session,
-                        splitFileFqn,
-                        application.getName(),
-                        spanData.getLandscapeTokenId());
-              }
 
-              return fileRevision;
-            });
+    return function
+        .map(Function::getId)
+        .orElseGet(() -> resolveRuntimeFunctionId(session, spanData));
   }
 }
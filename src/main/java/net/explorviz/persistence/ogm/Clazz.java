@@ -23,6 +23,14 @@ public class Clazz implements Comparable<Clazz> {
 
   private String name;
 
+  /**
+   * Materialized FQN key of the class: the ID of the FileRevision containing it, directly or as an
+   * inner class, and the names of the enclosing classes and the class itself, separated by '.'.
+   */
+  private Long fileRevisionId;
+
+  private String fqn;
+
   private ClassType type;
 
   @Relationship(type = "INHERITS", direction = Relationship.Direction.OUTGOING)
@@ -63,6 +71,26 @@ public class Clazz implements Comparable<Clazz> {
     return name;
   }
 
+  public Long getFileRevisionId() {
+    return fileRevisionId;
+  }
+
+  /** Returns the FQN of the class within its file revision, see {@link #fqn}. */
+  public String getFqn() {
+    return fqn;
+  }
+
+  /**
+   * Sets the FQN key, see {@link #fqn}.
+   *
+   * @param fileRevisionId ID of the FileRevision containing the class
+   * @param fqn Class names from the outermost class to this class, separated by '.'
+   */
+  public void setFqnKey(final Long fileRevisionId, final String fqn) {
+    this.fileRevisionId = fileRevisionId;
+    this.fqn = fqn;
+  }
+
   public ClassType getType() {
     return type;
   }
@@ -47,6 +47,10 @@ public class Commit {
     this.hash = hash;
   }
 
+  public Long getId() {
+    return id;
+  }
+
   public String getHash() {
     return hash;
   }
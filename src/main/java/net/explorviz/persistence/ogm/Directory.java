@@ -21,6 +21,29 @@ public class Directory implements Comparable<Directory> {
 
   private String name;
 
+  /**
+   * Token of the landscape containing the directory tree, part of the materialized path key of the
+   * directory, see {@link #path}.
+   */
+  private String landscapeToken;
+
+  /** Name of the {@link Repository} whose root directory the directory is below, if any. */
+  private String repositoryName;
+
+  /**
+   * Name of the {@link Application} whose runtime root directory the directory is below, if it is
+   * not below the root directory of a repository.
+   */
+  private String applicationName;
+
+  /**
+   * Path of the directory relative to the root directory of its repository or application, with
+   * names separated by '/'. The root directory itself has an empty path. Together with the
+   * landscape token and the repository or application name, the path uniquely identifies the
+   * directory and allows looking it up without traversing the tree.
+   */
+  private String path;
+
   @Relationship(type = "CONTAINS", direction = Relationship.Direction.OUTGOING)
   private final SortedSet<Directory> subdirectories = new TreeSet<>();
 
@@ -43,6 +66,33 @@ public class Directory implements Comparable<Directory> {
     return name;
   }
 
+  public String getLandscapeToken() {
+    return landscapeToken;
+  }
+
+  public String getRepositoryName() {
+    return repositoryName;
+  }
+
+  public String getApplicationName() {
+    return applicationName;
+  }
+
+  /**
+   * Returns the path of the directory relative to the root directory of its repository or
+   * application, see {@link #path}.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /** Sets the path key of the root directory of the given repository. */
+  public void setRepositoryRoot(final String landscapeToken, final String repositoryName) {
+    this.landscapeToken = landscapeToken;
+    this.repositoryName = repositoryName;
+    this.path = "";
+  }
+
   public SortedSet<Directory> getSubdirectories() {
     return new TreeSet<>(subdirectories);
   }
@@ -37,6 +37,19 @@ public class FileRevision implements Comparable<FileRevision> {
    */
   private String hash;
 
+  /**
+   * Materialized path key of the file, composed like the one of a directory, see {@link
+   * Directory#getPath()}. For files from static analysis, the key and the hash uniquely identify
+   * the file revision.
+   */
+  private String landscapeToken;
+
+  private String repositoryName;
+
+  private String applicationName;
+
+  private String path;
+
   @Relationship(type = "CONTAINS", direction = Relationship.Direction.OUTGOING)
   private final SortedSet<Clazz> classes = new TreeSet<>();
 
@@ -97,6 +110,22 @@ public class FileRevision implements Comparable<FileRevision> {
     this.hash = hash;
   }
 
+  public String getLandscapeToken() {
+    return landscapeToken;
+  }
+
+  public String getRepositoryName() {
+    return repositoryName;
+  }
+
+  public String getApplicationName() {
+    return applicationName;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
   public SortedSet<Clazz> getClasses() {
     return new TreeSet<>(classes);
   }
@@ -19,6 +19,14 @@ public class Function implements Comparable<Function> {
 
   private String name;
 
+  /**
+   * Materialized FQN key of the function: the ID of the FileRevision containing it and its name,
+   * preceded by the FQN of its class and '.' for methods, see {@link Clazz#getFqn()}.
+   */
+  private Long fileRevisionId;
+
+  private String fqn;
+
   private String returnType;
 
   private boolean constructor;
@@ -67,6 +75,26 @@ public class Function implements Comparable<Function> {
     return name;
   }
 
+  public Long getFileRevisionId() {
+    return fileRevisionId;
+  }
+
+  /** Returns the FQN of the function within its file revision, see {@link #fqn}. */
+  public String getFqn() {
+    return fqn;
+  }
+
+  /**
+   * Sets the FQN key, see {@link #fqn}.
+   *
+   * @param fileRevisionId ID of the FileRevision containing the function
+   * @param fqn FQN of the function within the file revision
+   */
+  public void setFqnKey(final Long fileRevisionId, final String fqn) {
+    this.fileRevisionId = fileRevisionId;
+    this.fqn = fqn;
+  }
+
   public String getReturnType() {
     return returnType;
   }
@@ -20,6 +20,12 @@ public class Span implements Comparable<Span> {
    */
   @Id @GeneratedValue private Long id;
 
+  /**
+   * Token of the landscape containing this span. Together with the {@link #spanId}, it uniquely
+   * identifies a span.
+   */
+  private String landscapeToken;
+
   private String spanId;
 
   private long startTime;
@@ -36,10 +42,15 @@ public class Span implements Comparable<Span> {
     // Empty constructor required by Neo4j OGM
   }
 
-  public Span(final String spanId) {
+  public Span(final String landscapeToken, final String spanId) {
+    this.landscapeToken = landscapeToken;
     this.spanId = spanId;
   }
 
+  public String getLandscapeToken() {
+    return landscapeToken;
+  }
+
   public String getSpanId() {
     return spanId;
   }
@@ -1,5 +1,6 @@
 package net.explorviz.persistence.ogm;
 
+import java.util.Collections;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import org.neo4j.ogm.annotation.GeneratedValue;
@@ -22,12 +23,25 @@ public class Trace {
    */
   @Id @GeneratedValue private Long id;
 
+  /**
+   * Token of the landscape containing this trace. Together with the {@link #traceId}, it uniquely
+   * identifies a trace.
+   */
+  private String landscapeToken;
+
   private String traceId;
 
   private Long startTime;
 
   private Long endTime;
 
+  /**
+   * Share of traces that were kept while this trace was ingested, 1 unless load was shed. Counts
+   * derived from sampled traces are scaled back up by dividing by this ratio. Traces written before
+   * load shedding existed have no ratio.
+   */
+  private Double samplingRatio;
+
   @Relationship(type = "CONTAINS", direction = Relationship.Direction.OUTGOING)
   private final SortedSet<Span> spans = new TreeSet<>();
 
@@ -35,10 +49,15 @@ public class Trace {
     // Empty constructor required by Neo4j OGM
   }
 
-  public Trace(final String traceId) {
+  public Trace(final String landscapeToken, final String traceId) {
+    this.landscapeToken = landscapeToken;
     this.traceId = traceId;
   }
 
+  public String getLandscapeToken() {
+    return landscapeToken;
+  }
+
   public String getTraceId() {
     return traceId;
   }
@@ -59,8 +78,16 @@ public class Trace {
     this.endTime = endTime;
   }
 
+  public double getSamplingRatio() {
+    return samplingRatio != null ? samplingRatio : 1.0;
+  }
+
+  public void setSamplingRatio(final double samplingRatio) {
+    this.samplingRatio = samplingRatio;
+  }
+
   public SortedSet<Span> getSpans() {
-    return new TreeSet<>(spans);
+    return Collections.unmodifiableSortedSet(spans);
   }
 
   public void addSpan(final Span span) {
@@ -2,13 +2,14 @@ package net.explorviz.persistence.repository;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import net.explorviz.persistence.ogm.Clazz;
-import net.explorviz.persistence.ogm.FileRevision;
 import org.neo4j.ogm.model.Result;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
@@ -17,44 +18,68 @@ import org.neo4j.ogm.session.SessionFactory;
 @SuppressWarnings({"PMD.AvoidDuplicateLiterals", "PMD.UseObjectForClearerAPI"})
 public class ClazzRepository {
 
+  /**
+   * Finds the file revisions and the classes with an FQN key which contain a class or function
+   * without one, i.e. the starting points for propagating the keys downwards.
+   */
+  private static final String FIND_UNKEYED_PARENTS =
+      """
+      MATCH (n:Clazz|Function)
+      WHERE n.fqn IS NULL AND n.name IS NOT NULL
+      MATCH (parent:FileRevision|Clazz)-[:CONTAINS]->(n)
+      WHERE parent:FileRevision OR parent.fqn IS NOT NULL
+      RETURN DISTINCT id(parent) AS parentId;
+      """;
+
+  /**
+   * Sets the FQN keys of the classes and functions without one within the given file revisions and
+   * classes with an FQN key, see {@link Clazz#getFqn()}. Returns a row for each keyed node.
+   */
+  private static final String KEY_CHILDREN =
+      """
+      UNWIND $parentIds AS parentId
+      MATCH (parent:FileRevision|Clazz)-[:CONTAINS]->(n:Clazz|Function)
+      WHERE
+        id(parent) = parentId AND
+        (parent:FileRevision OR parent.fqn IS NOT NULL) AND
+        n.fqn IS NULL AND
+        n.name IS NOT NULL
+      SET
+        n.fileRevisionId =
+          CASE WHEN parent:FileRevision THEN id(parent) ELSE parent.fileRevisionId END,
+        n.fqn = CASE WHEN parent:FileRevision THEN n.name ELSE parent.fqn + "." + n.name END
+      RETURN id(n) AS keyedId, n:Clazz AS isClazz;
+      """;
+
   @Inject SessionFactory sessionFactory;
 
+  @Inject FileRevisionRepository fileRevisionRepository;
+
+  /**
+   * Retrieve a class of a file from runtime analysis along with its relationships.
+   *
+   * @param className Names of the enclosing classes and the class itself, separated by '.'
+   */
   public Optional<Clazz> findClassDynamicData(
       final Session session,
       final String landscapeToken,
       final String applicationName,
       final String[] filePathSegments,
-      final String classNameSegments) {
-    return Optional.ofNullable(
-        session.queryForObject(
-            Clazz.class,
-            """
-            MATCH (l:Landscape {tokenId: $tokenId})
-              -[:CONTAINS]->(app:Application {name: $appName})
-              -[:HAS_ROOT]->(appRoot:Directory)
-            MATCH p = (pathRoot:Directory|FileRevision)-[:CONTAINS]->*(file:FileRevision)
-            WHERE
-              (appRoot)-[:CONTAINS]->(pathRoot) AND
-              NOT (:Commit)-[:CONTAINS]->(file)) AND
-              all(j IN range(0, length(p)) WHERE nodes(p)[j].name = $filePathSegments[j]) AND
-              size(nodes(p)) = size($filePathSegments)
-            MATCH p = (:Clazz)-[:CONTAINS]->*(class:Clazz)
-            WHERE
-              (file)-[:CONTAINS]->(class) AND
-              all(j IN range(0, length(p)) WHERE nodes(p)[j].name = $classNameSegments[j]) AND
-              size(nodes(p)) = size($classNameSegments)
-            OPTIONAL MATCH (class)-[r]->(other)
-            RETURN DISTINCT class, r, other;
-            """,
-            Map.of(
-                "tokenId",
-                landscapeToken,
-                "appName",
-                applicationName,
-                "filePathSegments",
-                filePathSegments,
-                "classNameSegments",
-                classNameSegments)));
+      final String className) {
+    return fileRevisionRepository
+        .findFileRevisionFromAppNameAndPathWithoutCommit(
+            session, applicationName, filePathSegments, landscapeToken)
+        .flatMap(
+            file ->
+                Optional.ofNullable(
+                    session.queryForObject(
+                        Clazz.class,
+                        """
+                        MATCH (class:Clazz {fileRevisionId: $fileId, fqn: $fqn})
+                        OPTIONAL MATCH (class)-[r]->(other)
+                        RETURN DISTINCT class, r, other;
+                        """,
+                        Map.of("fileId", file.getId(), "fqn", className))));
   }
 
   public Optional<Clazz> findClassByClassPathAndFileRevisionId(
@@ -63,100 +88,119 @@ public class ClazzRepository {
         session.queryForObject(
             Clazz.class,
             """
-            MATCH (file:FileRevision)
-            WHERE id(file) = $fileId
-
-            MATCH p = (file)-[:CONTAINS]->*(:Clazz)
-            WHERE
-            all(j IN range(0, length(p)) WHERE nodes(p)[j+1].name = $pathSegments[j]) AND
-            size(nodes(p))-1 = size($pathSegments)
-
-            RETURN last(nodes(p));
+            MATCH (class:Clazz {fileRevisionId: $fileId, fqn: $fqn})
+            RETURN class;
             """,
-            Map.of("pathSegments", classPath, "fileId", fileRevisionId)));
+            Map.of("fileId", fileRevisionId, "fqn", toFqn(classPath))));
   }
 
+  /**
+   * Find the innermost class of the given class path which exists in the given file revision. Each
+   * prefix of the class path is looked up by its FQN key.
+   *
+   * @return A map holding the found class as "existingClass", null if no class of the path exists,
+   *     and the class names below it as "remainingPath"
+   */
   public Optional<Map<String, Object>> findLongestMatchingClassPathByFileRevisionsId(
       final Session session, final String[] classPath, final Long fileRevisionId) {
-    final Result result =
-        session.query(
-            """
-            MATCH (file:FileRevision)
-            WHERE id(file) = $fileId
-
-            OPTIONAL MATCH p = (file)-[:CONTAINS]->*(:Clazz)
-
-            WITH p, nodes(p)[1..] AS classes
-            WHERE classes IS NULL
-              OR  all(i IN range(0, size(classes)-1)
-                WHERE classes[i].name = $pathSegments[i])
-
-            ORDER BY size(classes) DESC
-            LIMIT 1
+    final List<String> prefixes = new ArrayList<>(classPath.length);
+    for (int length = 1; length <= classPath.length; length++) {
+      prefixes.add(toFqn(Arrays.copyOf(classPath, length)));
+    }
 
-            RETURN
-            CASE
-              WHEN classes IS NULL or size(classes) = 0 THEN null
-              ELSE classes[-1]
-            END AS existingClass,
-            $pathSegments[coalesce(size(classes),0)..] AS remainingPath
+    final Clazz existingClass =
+        session.queryForObject(
+            Clazz.class,
+            """
+            MATCH (class:Clazz {fileRevisionId: $fileId})
+            WHERE class.fqn IN $prefixes
+            RETURN class
+            ORDER BY size(class.fqn) DESC
+            LIMIT 1;
             """,
-            Map.of("pathSegments", classPath, "fileId", fileRevisionId));
+            Map.of("fileId", fileRevisionId, "prefixes", prefixes));
+    final int matchedLength =
+        existingClass == null ? 0 : prefixes.indexOf(existingClass.getFqn()) + 1;
 
-    final Iterator<Map<String, Object>> resultIterator = result.queryResults().iterator();
-    if (!resultIterator.hasNext()) {
-      return Optional.empty();
-    }
+    final Map<String, Object> result = new HashMap<>();
+    result.put("existingClass", existingClass);
+    result.put("remainingPath", Arrays.copyOfRange(classPath, matchedLength, classPath.length));
+    return Optional.of(result);
+  }
 
-    return Optional.of(resultIterator.next());
+  public Clazz createClazzPathAndReturnLastClazz(
+      final Session session, final String[] classPath, final Long fileRevisionId) {
+    final Long lastClazzId =
+        createClazzPathAndReturnLastClazzId(session, classPath, fileRevisionId);
+    return session.load(Clazz.class, lastClazzId, 0);
   }
 
   /*
   The fileId is a fallback. If findLongestMatchingClassPathByFileRevisionsId doesn't find any
   existing clazz, then the whole clazz path will be created and the first one will be added to
-  the corresponding FileRevision
+  the corresponding FileRevision. Only the missing classes, with their FQN keys, and their
+  relationships are written.
   */
-  @SuppressWarnings("PMD.NullAssignment")
-  public Clazz createClazzPathAndReturnLastClazz(
+  public Long createClazzPathAndReturnLastClazzId(
       final Session session, final String[] classPath, final Long fileRevisionId) {
-    final Map<String, Object> resultMap =
+    Map<String, Object> resultMap =
         findLongestMatchingClassPathByFileRevisionsId(session, classPath, fileRevisionId)
-            .orElse(null);
+            .orElse(Map.of());
+    // Classes saved without an FQN key are keyed below the innermost one found and looked up again
+    while (resultMap.get("remainingPath") instanceof String[] remainingPath
+        && remainingPath.length > 0
+        && keyChildren(session, List.of(getInnermostId(resultMap, fileRevisionId))) > 0) {
+      resultMap =
+          findLongestMatchingClassPathByFileRevisionsId(session, classPath, fileRevisionId)
+              .orElse(Map.of());
+    }
 
-    Clazz existingClazz = null;
+    final Long startId;
+    final int existingLength;
 
-    if (resultMap != null) {
-      existingClazz = resultMap.get("existingClass") instanceof Clazz cl ? cl : null;
-    }
-    final String[] remainingPath;
-
-    if (existingClazz == null) {
-      final FileRevision fileRevision =
-          session.queryForObject(
-              FileRevision.class,
-              """
-              MATCH (f:FileRevision)
-              WHERE id(f)=$fileId
-              RETURN f;
-              """,
-              Map.of("fileId", fileRevisionId));
-      existingClazz = new Clazz(classPath[0]);
-      fileRevision.addClass(existingClazz);
-      session.save(fileRevision);
-      remainingPath = Arrays.copyOfRange(classPath, 1, classPath.length);
+    if (resultMap.get("existingClass") instanceof Clazz existingClazz) {
+      startId = existingClazz.getId();
+      existingLength =
+          classPath.length
+              - (resultMap.get("remainingPath") instanceof String[] rp ? rp.length : 0);
     } else {
-      remainingPath = resultMap.get("remainingPath") instanceof String[] rp ? rp : new String[0];
+      startId = fileRevisionId;
+      existingLength = 0;
+    }
+
+    if (existingLength == classPath.length) {
+      return startId;
     }
 
-    Clazz lastClazz = existingClazz;
-    for (final String clazzName : remainingPath) {
-      final Clazz newClazz = new Clazz(clazzName);
-      lastClazz.addInnerClass(newClazz);
-      lastClazz = newClazz;
+    final List<Map<String, String>> classes = new ArrayList<>();
+    for (int length = existingLength + 1; length <= classPath.length; length++) {
+      classes.add(
+          Map.of(
+              "name", classPath[length - 1], "fqn", toFqn(Arrays.copyOf(classPath, length))));
     }
-    session.save(existingClazz);
 
-    return lastClazz;
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH (start:FileRevision|Clazz)
+        WHERE id(start) = $startId
+        CALL (start) {
+          UNWIND $classes AS clazz
+          CREATE (c:Clazz {name: clazz.name, fileRevisionId: $fileId, fqn: clazz.fqn})
+          RETURN collect(c) AS classes
+        }
+        WITH [start] + classes AS chain
+        CALL apoc.nodes.link(chain, "CONTAINS")
+        RETURN id(last(chain));
+        """,
+        Map.of("startId", startId, "fileId", fileRevisionId, "classes", classes));
+  }
+
+  private static Long getInnermostId(
+      final Map<String, Object> resultMap, final Long fileRevisionId) {
+    return resultMap.get("existingClass") instanceof Clazz existingClazz
+        ? existingClazz.getId()
+        : fileRevisionId;
   }
 
   public Optional<Clazz> findClassByLandscapeTokenAndRepositoryAndFileHashAndClazzName(
@@ -258,8 +302,8 @@ public class ClazzRepository {
    *
    * @return A map of each class's fqn to the corresponding Clazz object, separated by '/'. To
    *     account for inner classes, the filename is followed by the class name. Note that since the
-   *     fqn is derived from the node path, it may not be compliant to any standard notation (e.g.
-   *     Java).
+   *     fqn is derived from the file's path key, it may not be compliant to any standard notation
+   *     (e.g. Java).
    */
   public Map<String, Clazz> findStaticClassesWithFqnForApplicationAndCommitAndLandscapeToken(
       final Session session,
@@ -272,19 +316,25 @@ public class ClazzRepository {
     final Result result =
         session.query(
             """
-            MATCH (l:Landscape {tokenId: $tokenId})
-              -[:CONTAINS]->(a:Application {name: $appName})
+            MATCH (:Landscape {tokenId: $tokenId})
+              -[:CONTAINS]->(:Application {name: $appName})
               -[:HAS_ROOT]->(appRoot:Directory)
-            WHERE (l)
-              -[:CONTAINS]->(:Repository)
-              -[:HAS_ROOT]->(:Directory)
-              -[:CONTAINS*0..]->(appRoot)
-            MATCH p = (appRoot)-[:CONTAINS]->*(f:FileRevision)-[:CONTAINS]->(c:Clazz)
-            WHERE (:Commit {hash: $commitHash})-[:CONTAINS]->(f)
-            WITH c, [node IN nodes(p)[1..] | node.name] AS nodeNames
+            WHERE appRoot.repositoryName IS NOT NULL
+            MATCH (:Commit {hash: $commitHash})-[:CONTAINS]->(f:FileRevision)
+            WHERE
+              f.landscapeToken = $tokenId AND
+              f.repositoryName = appRoot.repositoryName AND
+              (appRoot.path = "" OR f.path STARTS WITH appRoot.path + "/")
+            MATCH (f)-[:CONTAINS]->(c:Clazz)
+            WITH
+              c,
+              CASE appRoot.path
+                WHEN "" THEN f.path
+                ELSE substring(f.path, size(appRoot.path) + 1)
+              END AS filePath
             RETURN DISTINCT
               c AS clazz,
-              apoc.text.join(nodeNames, "/") AS fqn;
+              filePath + "/" + c.name AS fqn;
             """,
             Map.of(
                 "tokenId", landscapeToken, "appName", applicationName, "commitHash", commitHash));
@@ -298,4 +348,66 @@ public class ClazzRepository {
 
     return filePathToClazzMap;
   }
+
+  /**
+   * Sets the FQN keys of the classes and functions within the given file revisions and classes
+   * which have been saved without one, e.g. before the keys were introduced, see {@link
+   * Clazz#getFqn()}. Called for the innermost class or file revision found by a lookup before
+   * anything is created below it.
+   *
+   * @return Number of keyed classes and functions
+   */
+  public long keyChildren(final Session session, final Collection<Long> parentIds) {
+    return keyChildren(session, parentIds, new ArrayList<>());
+  }
+
+  private long keyChildren(
+      final Session session, final Collection<Long> parentIds, final List<Long> keyedClassIds) {
+    long keyed = 0;
+    for (final Map<String, Object> row :
+        session.query(KEY_CHILDREN, Map.of("parentIds", List.copyOf(parentIds))).queryResults()) {
+      keyed++;
+      if (Boolean.TRUE.equals(row.get("isClazz"))) {
+        keyedClassIds.add(((Number) row.get("keyedId")).longValue());
+      }
+    }
+    return keyed;
+  }
+
+  /**
+   * Sets the FQN keys of all classes and functions within a file revision saved without one, see
+   * {@link Clazz#getFqn()}. Superclass placeholders, which are not contained in any file revision,
+   * are not keyed. The keys are propagated level by level from the file revisions and the classes
+   * keyed in the previous level, in chunks of at most the given number of parents, each committed
+   * separately. Thus each relationship is visited once, and an interrupted backfill resumes where
+   * it stopped.
+   *
+   * @return Number of keyed classes and functions
+   */
+  public long backfillFqnKeys(final Session session, final int batchSize) {
+    List<Long> parentIds = new ArrayList<>();
+    for (final Map<String, Object> row :
+        session.query(FIND_UNKEYED_PARENTS, Map.of()).queryResults()) {
+      parentIds.add(((Number) row.get("parentId")).longValue());
+    }
+
+    long total = 0;
+    while (!parentIds.isEmpty()) {
+      final List<Long> keyedClassIds = new ArrayList<>();
+      for (int from = 0; from < parentIds.size(); from += batchSize) {
+        total +=
+            keyChildren(
+                session,
+                parentIds.subList(from, Math.min(from + batchSize, parentIds.size())),
+                keyedClassIds);
+      }
+      parentIds = keyedClassIds;
+    }
+    return total;
+  }
+
+  /** Joins the given class names to an FQN key, see {@link Clazz#getFqn()}. */
+  public static String toFqn(final String... classNames) {
+    return String.join(".", classNames);
+  }
 }
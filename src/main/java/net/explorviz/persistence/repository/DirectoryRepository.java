@@ -1,76 +1,355 @@
 package net.explorviz.persistence.repository;
 
 import jakarta.enterprise.context.ApplicationScoped;
-import java.util.Iterator;
+import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import net.explorviz.persistence.cache.DirectoryPathCache;
+import net.explorviz.persistence.cache.DirectoryTrie;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
 import net.explorviz.persistence.ogm.Directory;
 import org.neo4j.ogm.model.Result;
 import org.neo4j.ogm.session.Session;
 
 @ApplicationScoped
 public class DirectoryRepository {
-  private static final String FIND_LONGEST_PATH_MATCH_STATIC_DATA =
+
+  /** Finds the root directory of a repository and sets its path key if it is missing. */
+  private static final String FIND_ROOT_DIRECTORY_STATIC_DATA =
       """
-      WITH $pathSegments AS pathSegments
-      MATCH (l:Landscape {tokenId: $tokenId})
-        -[:CONTAINS]->(r:Repository {name: $repoName})
+      MATCH (:Landscape {tokenId: $tokenId})
+        -[:CONTAINS]->(:Repository {name: $repoName})
         -[:HAS_ROOT]->(rd:Directory {name: $repoName})
-      OPTIONAL MATCH p=(rd)-[:CONTAINS]->*(:Directory)
-      WHERE all(
-        j in range(0,length(p))
-        WHERE nodes(p)[j].name = pathSegments[j]
+      FOREACH (_ IN CASE WHEN rd.path IS NULL THEN [1] ELSE [] END |
+        SET rd.landscapeToken = $tokenId, rd.repositoryName = $repoName, rd.path = ""
       )
-      RETURN coalesce(last(nodes(p)), rd) AS existingDir,
-             pathSegments[coalesce(length(p)+1, 0)..] AS remainingPath
-      ORDER BY size(nodes(p)) DESC
-      LIMIT 1;
+      RETURN id(rd);
+      """;
+
+  /** Finds the directories at the given paths of a repository by their path key. */
+  private static final String FIND_EXISTING_DIRECTORIES =
+      """
+      UNWIND $paths AS path
+      MATCH (d:Directory {landscapeToken: $tokenId, repositoryName: $repoName, path: path})
+      RETURN path, id(d) AS directoryId;
       """;
 
-  private Map<String, Object> findLongestPathMatchStaticData(
+  /**
+   * Creates the given directories, each below either an existing directory or a directory created
+   * by an earlier entry, and returns their ids in the given order.
+   */
+  private static final String CREATE_DIRECTORIES =
+      """
+      CALL () {
+        UNWIND $directories AS directory
+        CREATE (d:Directory {
+          name: directory.name,
+          landscapeToken: $tokenId,
+          repositoryName: $repoName,
+          path: directory.path
+        })
+        RETURN collect(d) AS created
+      }
+      CALL (created) {
+        UNWIND range(0, size(created) - 1) AS i
+        WITH created[i] AS d, $directories[i] AS directory
+        OPTIONAL MATCH (existingParent:Directory)
+        WHERE id(existingParent) = directory.parentId
+        WITH d, coalesce(existingParent, created[directory.parentIndex]) AS parent
+        CREATE (parent)-[:CONTAINS]->(d)
+        RETURN count(d) AS linked
+      }
+      RETURN [d IN created | id(d)] AS directoryIds;
+      """;
+
+  /** Sets the path keys of repository root directories, see {@link Directory#getPath()}. */
+  private static final String BACKFILL_REPOSITORY_ROOTS =
+      """
+      MATCH (l:Landscape)-[:CONTAINS]->(r:Repository)-[:HAS_ROOT]->(root:Directory)
+      WHERE root.path IS NULL
+      WITH l, r, root LIMIT $batchSize
+      SET root.landscapeToken = l.tokenId, root.repositoryName = r.name, root.path = ""
+      RETURN count(root);
+      """;
+
+  /**
+   * Sets the path keys of application root directories which are not below a repository root, i.e.
+   * the roots of runtime trees.
+   */
+  private static final String BACKFILL_APPLICATION_ROOTS =
+      """
+      MATCH (l:Landscape)-[:CONTAINS]->(a:Application)-[:HAS_ROOT]->(root:Directory)
+      WHERE root.path IS NULL
+      WITH l, a, root LIMIT $batchSize
+      SET root.landscapeToken = l.tokenId, root.applicationName = a.name, root.path = ""
+      RETURN count(root);
+      """;
+
+  /**
+   * Finds the directories with a path key which contain a directory or file without one, i.e. the
+   * starting points for propagating the keys downwards.
+   */
+  private static final String FIND_UNKEYED_PARENTS =
+      """
+      MATCH (n:Directory|FileRevision)
+      WHERE n.path IS NULL AND n.name IS NOT NULL
+      MATCH (parent:Directory)-[:CONTAINS]->(n)
+      WHERE parent.path IS NOT NULL
+      RETURN DISTINCT id(parent) AS parentId;
+      """;
+
+  /**
+   * Sets the path keys of the directories and files without one within the given directories with
+   * a path key, and returns the ids of the keyed directories.
+   */
+  private static final String KEY_CHILDREN =
+      """
+      UNWIND $parentIds AS parentId
+      MATCH (parent:Directory)-[:CONTAINS]->(n:Directory|FileRevision)
+      WHERE
+        id(parent) = parentId AND
+        parent.path IS NOT NULL AND
+        n.path IS NULL AND
+        n.name IS NOT NULL
+      SET
+        n.landscapeToken = parent.landscapeToken,
+        n.repositoryName = parent.repositoryName,
+        n.applicationName = parent.applicationName,
+        n.path = CASE parent.path WHEN "" THEN n.name ELSE parent.path + "/" + n.name END
+      RETURN
+        count(n) AS keyed,
+        collect(CASE WHEN n:Directory THEN id(n) END) AS keyedDirectoryIds;
+      """;
+
+  @Inject DirectoryPathCache directoryPathCache;
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  public Directory createDirectoryStructureAndReturnLastDirStaticData(
       final Session session,
-      final String[] pathSegments,
+      final String[] filePath,
       final String repoName,
       final String landscapeTokenId) {
-    final Result result =
-        session.query(
-            FIND_LONGEST_PATH_MATCH_STATIC_DATA,
-            Map.of(
-                "tokenId", landscapeTokenId, "repoName", repoName, "pathSegments", pathSegments));
+    final Long lastDirId =
+        createDirectoryStructureAndReturnLastDirIdStaticData(
+            session, filePath, repoName, landscapeTokenId);
+    return session.load(Directory.class, lastDirId, 0);
+  }
+
+  /**
+   * Creates any directories of the given path which are missing below the repository's root
+   * directory, see {@link #resolveDirectoriesStaticData(Session, Collection, String, String)}.
+   *
+   * @param filePath Directory names starting with the name of the repository's root directory
+   * @return ID of the directory at the end of the given path
+   */
+  public Long createDirectoryStructureAndReturnLastDirIdStaticData(
+      final Session session,
+      final String[] filePath,
+      final String repoName,
+      final String landscapeTokenId) {
+    final List<String> path = List.of(filePath).subList(1, filePath.length);
+    return resolveDirectoriesStaticData(session, List.of(path), repoName, landscapeTokenId)
+        .get(path);
+  }
+
+  /**
+   * Resolves the ids of the given directories of a repository, creating any which are missing.
+   * Directories known to the {@link DirectoryPathCache} are resolved without a query. The unknown
+   * directories of all other paths are looked up by their path keys in a single query, and all
+   * missing directories are created in a single statement. Only the missing
+   * directories and their relationships are written, the existing part of the directory tree is
+   * neither loaded nor saved.
+   *
+   * @param directoryPaths Directory names below the repository's root directory, an empty path
+   *     denotes the root directory itself
+   * @return ID of the directory at the end of each given path
+   */
+  public Map<List<String>, Long> resolveDirectoriesStaticData(
+      final Session session,
+      final Collection<List<String>> directoryPaths,
+      final String repoName,
+      final String landscapeTokenId) {
+    final DirectoryTrie trie =
+        directoryPathCache
+            .getTrie(landscapeTokenId, repoName)
+            .orElseGet(() -> addTrie(session, repoName, landscapeTokenId));
 
-    final Iterator<Map<String, Object>> resultIterator = result.queryResults().iterator();
-    if (!resultIterator.hasNext()) {
-      throw new NoSuchElementException("resultIterator empty");
+    final Map<List<String>, Long> directoryIds = new HashMap<>();
+    final Set<List<String>> unresolved = new LinkedHashSet<>();
+    for (final List<String> path : directoryPaths) {
+      final DirectoryTrie.Prefix prefix = trie.findLongestPrefix(path);
+      if (prefix.length() == path.size()) {
+        directoryIds.put(path, prefix.directoryId());
+      } else {
+        unresolved.add(path);
+      }
     }
+    if (unresolved.isEmpty()) {
+      return directoryIds;
+    }
+
+    final List<List<String>> unresolvedPaths = List.copyOf(unresolved);
+    findExistingDirectories(session, trie, unresolvedPaths, repoName, landscapeTokenId);
+    createMissingDirectories(session, trie, unresolvedPaths, repoName, landscapeTokenId);
+    directoryPathCache.updateWeight(landscapeTokenId, repoName, trie);
 
-    return resultIterator.next();
+    unresolvedPaths.forEach(
+        path -> directoryIds.put(path, trie.findLongestPrefix(path).directoryId()));
+    return directoryIds;
   }
 
-  public Directory createDirectoryStructureAndReturnLastDirStaticData(
+  private DirectoryTrie addTrie(
+      final Session session, final String repoName, final String landscapeTokenId) {
+    final Long rootId =
+        session.queryForObject(
+            Long.class,
+            FIND_ROOT_DIRECTORY_STATIC_DATA,
+            Map.of("tokenId", landscapeTokenId, "repoName", repoName));
+    if (rootId == null) {
+      throw new NoSuchElementException("No existing directory found");
+    }
+    return directoryPathCache.addTrie(landscapeTokenId, repoName, rootId);
+  }
+
+  /**
+   * Adds the existing directories of the given paths to the trie, looking up all directories below
+   * the longest known prefix of each path by their path key. Directories saved without a path key
+   * are keyed below the longest known prefix and looked up again, so they are not created twice.
+   */
+  private void findExistingDirectories(
       final Session session,
-      final String[] filePath,
+      final DirectoryTrie trie,
+      final List<List<String>> paths,
       final String repoName,
       final String landscapeTokenId) {
-    final Map<String, Object> resultMap =
-        findLongestPathMatchStaticData(session, filePath, repoName, landscapeTokenId);
-    final Directory existingDir =
-        resultMap.get("existingDir") instanceof Directory dir ? dir : null;
-    if (existingDir == null) {
-      throw new NoSuchElementException("No existing directory found");
+    while (true) {
+      lookUpDirectories(session, trie, paths, repoName, landscapeTokenId);
+
+      final Set<Long> prefixIds = new LinkedHashSet<>();
+      for (final List<String> path : paths) {
+        final DirectoryTrie.Prefix prefix = trie.findLongestPrefix(path);
+        if (prefix.length() < path.size()) {
+          prefixIds.add(prefix.directoryId());
+        }
+      }
+      if (prefixIds.isEmpty() || keyChildren(session, prefixIds) == 0) {
+        return;
+      }
     }
+  }
 
-    final String[] remainingPath =
-        resultMap.get("remainingPath") instanceof String[] rp ? rp : new String[0];
+  private void lookUpDirectories(
+      final Session session,
+      final DirectoryTrie trie,
+      final List<List<String>> paths,
+      final String repoName,
+      final String landscapeTokenId) {
+    final Set<String> lookups = new LinkedHashSet<>();
+    for (final List<String> path : paths) {
+      for (int length = trie.findLongestPrefix(path).length() + 1;
+          length <= path.size();
+          length++) {
+        lookups.add(toPathKey(path.subList(0, length)));
+      }
+    }
+
+    final Map<String, Long> existingIds = new HashMap<>();
+    session
+        .query(
+            FIND_EXISTING_DIRECTORIES,
+            Map.of(
+                "tokenId", landscapeTokenId, "repoName", repoName, "paths", List.copyOf(lookups)))
+        .queryResults()
+        .forEach(
+            row ->
+                existingIds.putIfAbsent(
+                    (String) row.get("path"), ((Number) row.get("directoryId")).longValue()));
 
-    Directory lastDir = existingDir;
-    for (final String dirName : remainingPath) {
-      final Directory newDir = new Directory(dirName);
-      lastDir.addSubdirectory(newDir);
-      lastDir = newDir;
+    for (final List<String> path : paths) {
+      for (int length = trie.findLongestPrefix(path).length() + 1;
+          length <= path.size();
+          length++) {
+        final Long directoryId = existingIds.get(toPathKey(path.subList(0, length)));
+        if (directoryId == null) {
+          break;
+        }
+        trie.add(List.copyOf(path.subList(0, length)), directoryId);
+      }
     }
-    session.save(existingDir);
+  }
 
-    return lastDir;
+  /** Creates the missing directories of the given paths and adds them to the trie. */
+  private void createMissingDirectories(
+      final Session session,
+      final DirectoryTrie trie,
+      final List<List<String>> paths,
+      final String repoName,
+      final String landscapeTokenId) {
+    // Each missing directory once, parents before their children
+    final Map<List<String>, Integer> missingIndexes = new LinkedHashMap<>();
+    final List<Map<String, Object>> directories = new ArrayList<>();
+    for (final List<String> path : paths) {
+      final DirectoryTrie.Prefix prefix = trie.findLongestPrefix(path);
+      for (int length = prefix.length() + 1; length <= path.size(); length++) {
+        final List<String> missingPath = List.copyOf(path.subList(0, length));
+        if (missingIndexes.containsKey(missingPath)) {
+          continue;
+        }
+        final Map<String, Object> directory = new HashMap<>();
+        directory.put("name", missingPath.get(length - 1));
+        directory.put("path", toPathKey(missingPath));
+        if (length == prefix.length() + 1) {
+          directory.put("parentId", prefix.directoryId());
+        } else {
+          directory.put("parentIndex", missingIndexes.get(missingPath.subList(0, length - 1)));
+        }
+        missingIndexes.put(missingPath, directories.size());
+        directories.add(directory);
+      }
+    }
+    if (directories.isEmpty()) {
+      return;
+    }
+
+    final Object[] ids =
+        toArray(
+            session
+                .query(
+                    CREATE_DIRECTORIES,
+                    Map.of(
+                        "tokenId",
+                        landscapeTokenId,
+                        "repoName",
+                        repoName,
+                        "directories",
+                        directories))
+                .queryResults()
+                .iterator()
+                .next()
+                .get("directoryIds"));
+    missingIndexes.forEach(
+        (missingPath, index) -> trie.add(missingPath, ((Number) ids[index]).longValue()));
+  }
+
+  /** Joins the given directory names to a path key, see {@link Directory#getPath()}. */
+  public static String toPathKey(final List<String> names) {
+    return String.join("/", names);
+  }
+
+  /** OGM returns lists of a query result as arrays, unless they are empty. */
+  private static Object[] toArray(final Object list) {
+    if (list instanceof Object[] array) {
+      return array;
+    }
+    return list instanceof Collection<?> collection ? collection.toArray() : new Object[0];
   }
 
   /**
@@ -79,7 +358,7 @@ public class DirectoryRepository {
    * the node is not moved. An exception to this is if a file is already present under the same
    * name, but not with the same hash; in this case, the file is also moved. The source directory
    * and any children which have an equivalent node already present in the target directory are
-   * deleted after the merge.
+   * deleted after the merge. The path keys of moved nodes are updated to their new location.
    *
    * @param session OGM session object
    * @param sourceDirectoryId ID of the directory node whose child nodes to migrate
@@ -111,5 +390,89 @@ public class DirectoryRepository {
         DETACH DELETE n;
         """,
         Map.of("sourceDirId", sourceDirectoryId, "destinationDirId", destinationDirectoryId));
+    // Moved nodes of a runtime tree are keyed relative to the target's repository from now on
+    session.query(
+        """
+        MATCH (dst:Directory)
+        WHERE id(dst) = $destinationDirId AND dst.repositoryName IS NOT NULL
+        MATCH p = (dst)-[:CONTAINS]->+(n:Directory|FileRevision)
+        WHERE n.applicationName IS NOT NULL
+        WITH dst, n, apoc.text.join([node IN nodes(p)[1..] | node.name], "/") AS relativePath
+        SET
+          n.landscapeToken = dst.landscapeToken,
+          n.repositoryName = dst.repositoryName,
+          n.path = CASE dst.path WHEN "" THEN relativePath ELSE dst.path + "/" + relativePath END
+        REMOVE n.applicationName;
+        """,
+        Map.of("destinationDirId", destinationDirectoryId));
+    // Functions and directories below the source directory may have been deleted or moved
+    functionResolutionCache.invalidateAll();
+    directoryPathCache.invalidateAll();
+  }
+
+  /**
+   * Sets the path keys of the children of the given directories which have been saved without one,
+   * e.g. before the keys were introduced, see {@link Directory#getPath()}. Called for the deepest
+   * directory found by a lookup before anything is created below it.
+   *
+   * @return Number of keyed directories and files
+   */
+  public long keyChildren(final Session session, final Collection<Long> parentIds) {
+    return keyChildren(session, parentIds, new ArrayList<>());
+  }
+
+  private long keyChildren(
+      final Session session, final Collection<Long> parentIds, final List<Long> keyedDirectoryIds) {
+    final Map<String, Object> row =
+        session
+            .query(KEY_CHILDREN, Map.of("parentIds", List.copyOf(parentIds)))
+            .queryResults()
+            .iterator()
+            .next();
+    for (final Object id : toArray(row.get("keyedDirectoryIds"))) {
+      keyedDirectoryIds.add(((Number) id).longValue());
+    }
+    return ((Number) row.get("keyed")).longValue();
+  }
+
+  /**
+   * Sets the path keys of all directories and files saved without one, see {@link
+   * Directory#getPath()}. The keys of the repository root directories are propagated downwards
+   * first, afterwards those of the application root directories of runtime trees. The keys are
+   * propagated level by level from the directories keyed in the previous level, in chunks of at
+   * most the given number of parent directories, each committed separately. Thus each relationship
+   * is visited once, and an interrupted backfill resumes where it stopped.
+   *
+   * @return Number of keyed directories and files
+   */
+  public long backfillPathKeys(final Session session, final int batchSize) {
+    long total = 0;
+    for (final String backfillRoots :
+        List.of(BACKFILL_REPOSITORY_ROOTS, BACKFILL_APPLICATION_ROOTS)) {
+      long updated;
+      do {
+        updated =
+            session.queryForObject(Long.class, backfillRoots, Map.of("batchSize", batchSize));
+        total += updated;
+      } while (updated > 0);
+
+      List<Long> parentIds = new ArrayList<>();
+      for (final Map<String, Object> row :
+          session.query(FIND_UNKEYED_PARENTS, Map.of()).queryResults()) {
+        parentIds.add(((Number) row.get("parentId")).longValue());
+      }
+      while (!parentIds.isEmpty()) {
+        final List<Long> keyedDirectoryIds = new ArrayList<>();
+        for (int from = 0; from < parentIds.size(); from += batchSize) {
+          total +=
+              keyChildren(
+                  session,
+                  parentIds.subList(from, Math.min(from + batchSize, parentIds.size())),
+                  keyedDirectoryIds);
+        }
+        parentIds = keyedDirectoryIds;
+      }
+    }
+    return total;
   }
 }
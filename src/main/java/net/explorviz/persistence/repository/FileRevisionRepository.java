@@ -2,17 +2,17 @@ package net.explorviz.persistence.repository;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
-import java.util.stream.Stream;
 import net.explorviz.persistence.ogm.Application;
 import net.explorviz.persistence.ogm.Commit;
-import net.explorviz.persistence.ogm.Directory;
 import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.proto.FileIdentifier;
 import org.jboss.logging.Logger;
@@ -24,25 +24,131 @@ import org.neo4j.ogm.session.SessionFactory;
 @SuppressWarnings({"PMD.AvoidDuplicateLiterals", "PMD.TooManyMethods"})
 public class FileRevisionRepository {
 
+  /**
+   * Finds the deepest existing directory on the path of a runtime file below the application's
+   * root directory, looking up all directories on the path by their path keys. The keys are
+   * relative to the root of the tree containing the application's root directory, i.e. to the root
+   * directory of a repository if the application has been found by static analysis. Returns the
+   * application's root directory if none of the directories exists.
+   */
   private static final String FIND_LONGEST_PATH_MATCH_FOR_FQN_WITHOUT_COMMIT =
       """
-      MATCH (l:Landscape {tokenId: $tokenId})
-        -[:CONTAINS]->(app:Application {name: $appName})
-        -[:HAS_ROOT]->(appRootDir:Directory)
-      OPTIONAL MATCH p = (fqnRoot:Directory|FileRevision)
-        -[:CONTAINS]->*(lastNode:Directory|FileRevision)
-      WHERE
-        (appRootDir)-[:CONTAINS]->(fqnRoot) AND
-        all(j IN range(0, length(p)) WHERE nodes(p)[j].name = $pathSegments[j]) AND
-        (size(nodes(p)) < size($pathSegments) XOR "FileRevision" IN labels(lastNode)) AND
-        size(nodes(p)) <= size($pathSegments) AND
-        NOT (:Commit)-[:CONTAINS]->(lastNode)
+      MATCH (:Landscape {tokenId: $tokenId})
+        -[:CONTAINS]->(:Application {name: $appName})
+        -[:HAS_ROOT]->(appRoot:Directory)
+      CALL (appRoot) {
+        UNWIND range(1, size($pathSegments) - 1) AS depth
+        WITH
+          depth,
+          CASE appRoot.path
+            WHEN "" THEN apoc.text.join($pathSegments[..depth], "/")
+            ELSE appRoot.path + "/" + apoc.text.join($pathSegments[..depth], "/")
+          END AS path
+        CALL (appRoot, path) {
+          MATCH (d:Directory {
+            landscapeToken: $tokenId, repositoryName: appRoot.repositoryName, path: path
+          })
+          RETURN d
+          UNION
+          MATCH (d:Directory {
+            landscapeToken: $tokenId, applicationName: appRoot.applicationName, path: path
+          })
+          RETURN d
+        }
+        WITH depth, d
+        ORDER BY depth DESC
+        RETURN head(collect([depth, id(d)])) AS longest
+      }
       RETURN
-        coalesce(lastNode, appRootDir) AS existingNode,
-        $pathSegments[coalesce(length(p)+1, 0)..] AS remainingPath
-      ORDER BY length(p) DESC
-      LIMIT 1;
+        coalesce(longest[1], id(appRoot)) AS existingDirId,
+        coalesce(longest[0], 0) AS existingDepth;
+      """;
+
+  /**
+   * Ensures that the landscape, the application within the landscape and the application's root
+   * directory exist, creating only what is missing. A runtime root directory is only created if the
+   * application has no root directory yet. An existing runtime root directory saved without a path
+   * key gets one, whereas a root directory within a repository is keyed from the repository's root.
+   */
+  private static final String MERGE_RUNTIME_APPLICATION_ROOT =
+      """
+      MERGE (l:Landscape {tokenId: $tokenId})
+      MERGE (l)-[:CONTAINS]->(app:Application {name: $appName})
+      WITH app
+      OPTIONAL MATCH (app)-[:HAS_ROOT]->(existingRoot:Directory)
+      FOREACH (_ IN CASE WHEN existingRoot IS NULL THEN [1] ELSE [] END |
+        CREATE (app)-[:HAS_ROOT]->(:Directory {
+          name: $rootName, landscapeToken: $tokenId, applicationName: $appName, path: ""
+        })
+      )
+      FOREACH (_ IN CASE
+          WHEN
+            existingRoot IS NOT NULL AND
+            existingRoot.path IS NULL AND
+            NOT EXISTS { MATCH (:Directory)-[:CONTAINS]->(existingRoot) } AND
+            NOT EXISTS { MATCH (:Repository)-[:HAS_ROOT]->(existingRoot) }
+          THEN [1]
+          ELSE []
+        END |
+        SET
+          existingRoot.landscapeToken = $tokenId,
+          existingRoot.applicationName = $appName,
+          existingRoot.path = ""
+      );
+      """;
+
+  /**
+   * Creates the given chain of directories below the starting directory and a new FileRevision
+   * within the last of them. The created nodes inherit the path key of the starting directory.
+   * Neither the starting directory nor any of its ancestors are loaded or written.
+   */
+  private static final String CREATE_REMAINING_FILE_PATH =
+      """
+      MATCH (start:Directory)
+      WHERE id(start) = $startId
+      WITH start, CASE start.path WHEN "" THEN "" ELSE start.path + "/" END AS pathPrefix
+      CALL (start, pathPrefix) {
+        UNWIND range(0, size($directoryNames) - 1) AS i
+        CREATE (d:Directory {
+          name: $directoryNames[i],
+          landscapeToken: start.landscapeToken,
+          repositoryName: start.repositoryName,
+          applicationName: start.applicationName,
+          path: pathPrefix + $directoryPaths[i]
+        })
+        RETURN collect(d) AS directories
+      }
+      CREATE (file:FileRevision {
+        name: $fileName,
+        hasFileData: false,
+        landscapeToken: start.landscapeToken,
+        repositoryName: start.repositoryName,
+        applicationName: start.applicationName,
+        path: pathPrefix + $filePath
+      })
+      WITH file, [start] + directories + [file] AS chain
+      CALL apoc.nodes.link(chain, "CONTAINS")
+      RETURN id(file) AS fileId;
       """;
+
+  /**
+   * Sets the path keys of the files of a commit which have been saved without one, e.g. before the
+   * keys were introduced, from the names of the directories between them and the repository's root
+   * directory. Each file is walked upwards to the root, which touches only its ancestors.
+   */
+  private static final String KEY_COMMIT_FILES =
+      """
+      MATCH (:Landscape {tokenId: $tokenId})-[:CONTAINS]->(r:Repository {name: $repoName})
+      MATCH (r)-[:HAS_ROOT]->(root:Directory)
+      MATCH (r)-[:CONTAINS]->(:Commit {hash: $commitHash})-[:CONTAINS]->(f:FileRevision)
+      WHERE f.path IS NULL
+      MATCH p = (f)<-[:CONTAINS]-+(root)
+      SET
+        f.landscapeToken = $tokenId,
+        f.repositoryName = $repoName,
+        f.path = apoc.text.join(reverse([n IN nodes(p)[..-1] | n.name]), "/");
+      """;
+
   private static final Logger LOGGER = Logger.getLogger(FileRevisionRepository.class);
 
   @Inject SessionFactory sessionFactory;
@@ -50,19 +156,28 @@ public class FileRevisionRepository {
   @Inject DirectoryRepository directoryRepository;
   @Inject LandscapeRepository landscapeRepository;
 
-  private FileRevision createRemainingFilePath(
-      final Session session, final Directory startingDirectory, final String[] remainingPath) {
-    Directory currentDirectory = startingDirectory;
-    for (int i = 0; i < remainingPath.length - 1; i++) {
-      final Directory newDirectory = new Directory(remainingPath[i]);
-      currentDirectory.addSubdirectory(newDirectory);
-      currentDirectory = newDirectory;
+  private Long createRemainingFilePath(
+      final Session session, final Long startingDirectoryId, final String[] remainingPath) {
+    // Paths relative to the starting directory
+    final String[] relativePaths = new String[remainingPath.length];
+    for (int i = 0; i < remainingPath.length; i++) {
+      relativePaths[i] = String.join("/", Arrays.copyOfRange(remainingPath, 0, i + 1));
     }
-
-    final FileRevision file = new FileRevision(remainingPath[remainingPath.length - 1]);
-    currentDirectory.addFileRevision(file);
-    session.save(startingDirectory);
-    return file;
+    final int fileIndex = remainingPath.length - 1;
+    return session.queryForObject(
+        Long.class,
+        CREATE_REMAINING_FILE_PATH,
+        Map.of(
+            "startId",
+            startingDirectoryId,
+            "directoryNames",
+            Arrays.copyOfRange(remainingPath, 0, fileIndex),
+            "directoryPaths",
+            Arrays.copyOfRange(relativePaths, 0, fileIndex),
+            "fileName",
+            remainingPath[fileIndex],
+            "filePath",
+            relativePaths[fileIndex]));
   }
 
   private Map<String, Object> findLongestPathMatchForFqn(
@@ -78,24 +193,26 @@ public class FileRevisionRepository {
 
     final Iterator<Map<String, Object>> resultIterator = result.queryResults().iterator();
     if (!resultIterator.hasNext()) {
-      throw new NoSuchElementException("resultIterator empty");
+      throw new NoSuchElementException("Application root not found. Does the application exist?");
     }
 
     return resultIterator.next();
   }
 
   /**
-   * Create any missing Directory / FileRevision nodes according to the provided FQN for an existing
-   * Application object which is already connected to the Landscape graph.
+   * Create any missing Landscape / Application / Directory / FileRevision nodes according to the
+   * provided FQN for a file gathered from runtime analysis. Only the missing nodes and their
+   * relationships are written; existing aggregates like the Landscape or the Application's
+   * directory tree are neither loaded nor saved.
    *
    * @param session OGM session object.
-   * @param applicationName Name of an existing application which is already connected to the
-   *     Landscape with the given token.
    * @param splitFileFqn File FQN starting from application root (not inclusive), e.g. ["net",
    *     "explorviz", "persistence", "MyClass.java"]
-   * @return The existing or newly created FileRevision according to the provided FQN
+   * @param applicationName Name of the application, which is created if absent
+   * @param landscapeToken Token of the landscape, which is created if absent
+   * @return ID of the existing or newly created FileRevision according to the provided FQN
    */
-  public FileRevision createFileStructureForExistingApplicationFromFileFqn(
+  public Long createFileStructureForRuntimeData(
       final Session session,
       final String[] splitFileFqn,
       final String applicationName,
@@ -103,79 +220,152 @@ public class FileRevisionRepository {
 
     validateFqn(splitFileFqn);
 
-    final Map<String, Object> resultMap =
-        findLongestPathMatchForFqn(session, splitFileFqn, applicationName, landscapeToken);
+    final Optional<FileRevision> existingFile =
+        findFileRevisionFromAppNameAndPathWithoutCommit(
+            session, applicationName, splitFileFqn, landscapeToken);
+    if (existingFile.isPresent()) {
+      return existingFile.get().getId();
+    }
 
-    final String[] remainingPath =
-        resultMap.get("remainingPath") instanceof String[] p ? p : new String[0];
-    if (remainingPath.length == 0) {
-      if (resultMap.get("existingNode") instanceof FileRevision fileRev) {
-        return fileRev;
+    session.query(
+        MERGE_RUNTIME_APPLICATION_ROOT,
+        Map.of(
+            "tokenId",
+            landscapeToken,
+            "appName",
+            applicationName,
+            "rootName",
+            Application.ROOT_NAME_PLACEHOLDER_RUNTIME));
+
+    Map<String, Object> resultMap =
+        findLongestPathMatchForFqn(session, splitFileFqn, applicationName, landscapeToken);
+    // Nodes saved without a path key are keyed below the deepest directory and looked up again
+    while (directoryRepository.keyChildren(
+            session, List.of(((Number) resultMap.get("existingDirId")).longValue()))
+        > 0) {
+      final Optional<FileRevision> keyedFile =
+          findFileRevisionFromAppNameAndPathWithoutCommit(
+              session, applicationName, splitFileFqn, landscapeToken);
+      if (keyedFile.isPresent()) {
+        return keyedFile.get().getId();
       }
-      throw new NoSuchElementException("remainingPath is length 0, but result is not FileRevision");
+      resultMap =
+          findLongestPathMatchForFqn(session, splitFileFqn, applicationName, landscapeToken);
     }
+    final long existingDirId = ((Number) resultMap.get("existingDirId")).longValue();
+    final int existingDepth = ((Number) resultMap.get("existingDepth")).intValue();
 
-    final Directory startingDirectory =
-        resultMap.get("existingNode") instanceof Directory dir ? dir : null;
-    if (startingDirectory == null) {
-      // Root directory not matched, application does not exist or has no root
-      throw new NoSuchElementException("startingDirectory is null. Does the application exist?");
-    }
+    return createRemainingFilePath(
+        session,
+        existingDirId,
+        Arrays.copyOfRange(splitFileFqn, existingDepth, splitFileFqn.length));
+  }
 
-    return createRemainingFilePath(session, startingDirectory, remainingPath);
+  public void updateLanguage(
+      final Session session, final Long fileRevisionId, final String language) {
+    session.query(
+        """
+        MATCH (f:FileRevision)
+        WHERE id(f) = $fileId
+        SET f.language = $language;
+        """,
+        Map.of("fileId", fileRevisionId, "language", language));
+  }
+
+  public FileRevision createFileStructureFromStaticData(
+      final Session session,
+      final FileIdentifier fileIdentifier,
+      final String repoName,
+      final String landscapeTokenId,
+      final Commit commit) {
+    return createFileStructuresFromStaticData(
+            session, List.of(fileIdentifier), repoName, landscapeTokenId, commit)
+        .get(0);
   }
 
   /**
-   * Create Directory / FileRevision nodes according to the provided FQN for a newly created
-   * Application object which is not yet connected to the Landscape graph.
+   * Links the given files into their directories and adds them to the commit. The parent
+   * directories of all files are resolved at once, creating any which are missing, see {@link
+   * DirectoryRepository#resolveDirectoriesStaticData}. File revisions which do not exist in their
+   * directory yet are created.
    *
-   * @param session OGM session object.
-   * @param application Newly created application object, assumed not to have a root directory.
-   * @param splitFileFqn File FQN starting from application root (not inclusive), e.g. ["net",
-   *     "explorviz", "persistence", "MyClass.java"]
-   * @return The newly created FileRevision according to the provided FQN
+   * @return File revision of each given file, in the given order
    */
-  public FileRevision createFileStructureForNewApplicationFromFqn(
-      final Session session, final Application application, final String[] splitFileFqn) {
-
-    final Directory rootDir = new Directory(Application.ROOT_NAME_PLACEHOLDER_RUNTIME);
-    application.setRootDirectory(rootDir);
-    session.save(application);
-    return createRemainingFilePath(session, rootDir, splitFileFqn);
+  public List<FileRevision> createFileStructuresFromStaticData(
+      final Session session,
+      final List<FileIdentifier> fileIdentifiers,
+      final String repoName,
+      final String landscapeTokenId,
+      final Commit commit) {
+    final List<String[]> filePaths =
+        fileIdentifiers.stream().map(f -> f.getFilePath().split("/")).toList();
+    final List<List<String>> directoryPaths =
+        filePaths.stream()
+            .map(pathSegments -> List.of(pathSegments).subList(0, pathSegments.length - 1))
+            .toList();
+    final Map<List<String>, Long> directoryIds =
+        directoryRepository.resolveDirectoriesStaticData(
+            session, directoryPaths, repoName, landscapeTokenId);
+
+    final List<FileRevision> files = new ArrayList<>(fileIdentifiers.size());
+    for (int i = 0; i < fileIdentifiers.size(); i++) {
+      files.add(
+          createFileRevisionFromStaticData(
+              session,
+              fileIdentifiers.get(i),
+              filePaths.get(i),
+              directoryIds.get(directoryPaths.get(i)),
+              repoName,
+              landscapeTokenId,
+              commit));
+    }
+    return files;
   }
 
-  public FileRevision createFileStructureFromStaticData(
+  private FileRevision createFileRevisionFromStaticData(
       final Session session,
       final FileIdentifier fileIdentifier,
+      final String[] pathSegments,
+      final Long parentDirId,
       final String repoName,
       final String landscapeTokenId,
       final Commit commit) {
-    final String[] pathSegments = fileIdentifier.getFilePath().split("/");
-    String[] directorySegments = {repoName};
-    if (pathSegments.length > 1) {
-      directorySegments = Arrays.copyOfRange(pathSegments, 0, pathSegments.length - 1);
-      directorySegments =
-          Stream.concat(Stream.of(repoName), Arrays.stream(directorySegments))
-              .toArray(String[]::new);
-    }
-
-    FileRevision file =
-        getFileRevisionFromHashAndPath(
-                session, fileIdentifier.getFileHash(), repoName, landscapeTokenId, pathSegments)
-            .orElse(null);
-    if (file == null) {
-      file = new FileRevision(pathSegments[pathSegments.length - 1], fileIdentifier.getFileHash());
+    // Only link the file into its directory, the commit and its files are saved by the caller.
+    // The keys are also set on a match, in case the file has been saved without them.
+    final Long persistedFileId =
+        session.queryForObject(
+            Long.class,
+            """
+            MATCH (d:Directory)
+            WHERE id(d) = $dirId
+            MERGE (d)-[:CONTAINS]->(f:FileRevision {name: $fileName, hash: $fileHash})
+              ON CREATE SET f.hasFileData = false
+              SET
+                f.landscapeToken = $tokenId,
+                f.repositoryName = $repoName,
+                f.path = $path
+            RETURN id(f);
+            """,
+            Map.of(
+                "dirId",
+                parentDirId,
+                "fileName",
+                pathSegments[pathSegments.length - 1],
+                "fileHash",
+                fileIdentifier.getFileHash(),
+                "tokenId",
+                landscapeTokenId,
+                "repoName",
+                repoName,
+                "path",
+                String.join("/", pathSegments)));
+    if (persistedFileId == null) {
+      throw new NoSuchElementException("Directory " + parentDirId + " does not exist");
     }
 
+    final FileRevision file = session.load(FileRevision.class, persistedFileId, 0);
     commit.addFileRevision(file);
 
-    final Directory parentDir =
-        directoryRepository.createDirectoryStructureAndReturnLastDirStaticData(
-            session, directorySegments, repoName, landscapeTokenId);
-    parentDir.addFileRevision(file);
-
-    session.save(List.of(parentDir, commit, file));
-
     return file;
   }
 
@@ -189,13 +379,11 @@ public class FileRevisionRepository {
         session.queryForObject(
             FileRevision.class,
             """
-                MATCH (:Landscape {tokenId: $tokenId})-[:CONTAINS]->(:Repository {name: $repoName})
-                  -[:HAS_ROOT]->(root:Directory)
-                MATCH p = (root)-[:CONTAINS]->*(file:FileRevision {hash: $fileHash})
-                WHERE all(j in range(1, length(p)) WHERE nodes(p)[j].name=$pathSegments[j-1])
-                  AND length(p)=size($pathSegments)
-                RETURN file
-                LIMIT 1;
+            MATCH (file:FileRevision {
+              landscapeToken: $tokenId, repositoryName: $repoName, path: $path, hash: $fileHash
+            })
+            RETURN file
+            LIMIT 1;
             """,
             Map.of(
                 "tokenId",
@@ -204,8 +392,8 @@ public class FileRevisionRepository {
                 repoName,
                 "fileHash",
                 fileHash,
-                "pathSegments",
-                pathSegments)));
+                "path",
+                String.join("/", pathSegments))));
   }
 
   /**
@@ -230,26 +418,24 @@ public class FileRevisionRepository {
         session.queryForObject(
             FileRevision.class,
             """
-                MATCH (l:Landscape {tokenId: $tokenId})
-                  -[:CONTAINS]->(:Repository {name: $repoName})
-                  -[:HAS_ROOT]->(repoRootDir:Directory)
-                MATCH p = (repoRootDir)-[:CONTAINS]->*(file:FileRevision)
-                WHERE
-                  length(p) = size($pathSegments) AND
-                  all(j IN range(1, length(p)) WHERE nodes(p)[j].name = $pathSegments[j-1]) AND
-                  EXISTS {
-                    (:Commit {hash: $commitHash})-[:CONTAINS]->(file)
-                  }
-                OPTIONAL MATCH (file)-[r:CONTAINS*0..3]->(sub)
-                RETURN file, r, sub;
+            MATCH (file:FileRevision {
+              landscapeToken: $tokenId, repositoryName: $repoName, path: $path
+            })
+            WHERE
+              file.hash IS NOT NULL AND
+              EXISTS {
+                (:Commit {hash: $commitHash})-[:CONTAINS]->(file)
+              }
+            OPTIONAL MATCH (file)-[r:CONTAINS*0..3]->(sub)
+            RETURN file, r, sub;
             """,
             Map.of(
                 "tokenId",
                 landscapeToken,
                 "repoName",
                 repoName,
-                "pathSegments",
-                pathSegments,
+                "path",
+                String.join("/", pathSegments),
                 "commitHash",
                 commitHash)));
   }
@@ -264,25 +450,28 @@ public class FileRevisionRepository {
         session.queryForObject(
             FileRevision.class,
             """
-                MATCH (l:Landscape {tokenId: $tokenId})
-                  -[:CONTAINS]->(:Application {name: $appName})
-                  -[:HAS_ROOT]->(appRootDir:Directory)
-                MATCH p = (appRootDir)-[:CONTAINS]->*(file:FileRevision)
-                WHERE
-                  length(p) = size($pathSegments) AND
-                  all(j IN range(1, length(p)) WHERE nodes(p)[j].name = $pathSegments[j-1]) AND
-                  EXISTS {
-                    (:Commit {hash: $commitHash})-[:CONTAINS]->(file)
-                  }
-                RETURN file;
+            MATCH (:Landscape {tokenId: $tokenId})
+              -[:CONTAINS]->(:Application {name: $appName})
+              -[:HAS_ROOT]->(appRoot:Directory)
+            MATCH (file:FileRevision {
+              landscapeToken: $tokenId,
+              repositoryName: appRoot.repositoryName,
+              path: CASE appRoot.path WHEN "" THEN $path ELSE appRoot.path + "/" + $path END
+            })
+            WHERE
+              file.hash IS NOT NULL AND
+              EXISTS {
+                (:Commit {hash: $commitHash})-[:CONTAINS]->(file)
+              }
+            RETURN file;
             """,
             Map.of(
                 "tokenId",
                 landscapeToken,
                 "appName",
                 applicationName,
-                "pathSegments",
-                pathSegments,
+                "path",
+                String.join("/", pathSegments),
                 "commitHash",
                 commitHash)));
   }
@@ -296,23 +485,40 @@ public class FileRevisionRepository {
         session.queryForObject(
             FileRevision.class,
             """
-                MATCH (l:Landscape {tokenId: $tokenId})
-                  -[:CONTAINS]->(:Application {name: $appName})
-                  -[:HAS_ROOT]->(appRootDir:Directory)
-                MATCH p = (appRootDir)-[:CONTAINS]->*(file:FileRevision)
-                WHERE
-                  length(p) = size($pathSegments) AND
-                  all(j IN range(1, length(p)) WHERE nodes(p)[j].name = $pathSegments[j-1]) AND
-                  NOT (:Commit)-[:CONTAINS]->(file)
-                RETURN file;
+            MATCH (:Landscape {tokenId: $tokenId})
+              -[:CONTAINS]->(:Application {name: $appName})
+              -[:HAS_ROOT]->(appRoot:Directory)
+            WITH
+              appRoot,
+              CASE
+                WHEN $parentPath = "" THEN appRoot.path
+                WHEN appRoot.path = "" THEN $parentPath
+                ELSE appRoot.path + "/" + $parentPath
+              END AS parentPath
+            CALL (appRoot, parentPath) {
+              MATCH (parent:Directory {
+                landscapeToken: $tokenId, repositoryName: appRoot.repositoryName, path: parentPath
+              })
+              RETURN parent
+              UNION
+              MATCH (parent:Directory {
+                landscapeToken: $tokenId, applicationName: appRoot.applicationName, path: parentPath
+              })
+              RETURN parent
+            }
+            MATCH (parent)-[:CONTAINS]->(file:FileRevision {name: $fileName})
+            WHERE NOT (:Commit)-[:CONTAINS]->(file)
+            RETURN file;
             """,
             Map.of(
                 "tokenId",
                 landscapeToken,
                 "appName",
                 applicationName,
-                "pathSegments",
-                pathSegments)));
+                "parentPath",
+                String.join("/", Arrays.copyOfRange(pathSegments, 0, pathSegments.length - 1)),
+                "fileName",
+                pathSegments[pathSegments.length - 1])));
   }
 
   /**
@@ -332,19 +538,21 @@ public class FileRevisionRepository {
     final Result result =
         session.query(
             """
-            MATCH (l:Landscape {tokenId: $tokenId})
+            MATCH (:Landscape {tokenId: $tokenId})
               -[:CONTAINS]->(:Application {name: $appName})
               -[:HAS_ROOT]->(appRoot:Directory)
-            WHERE (l)
-              -[:CONTAINS]->(:Repository)
-              -[:HAS_ROOT]->(:Directory)
-              -[:CONTAINS*0..]->(appRoot)
-            MATCH p = (appRoot)-[:CONTAINS]->*(f:FileRevision)
-            WHERE (:Commit {hash: $commitHash})-[:CONTAINS]->(f)
-            WITH f, [node IN nodes(p)[1..] | node.name] AS nodeNames
+            WHERE appRoot.repositoryName IS NOT NULL
+            MATCH (:Commit {hash: $commitHash})-[:CONTAINS]->(f:FileRevision)
+            WHERE
+              f.landscapeToken = $tokenId AND
+              f.repositoryName = appRoot.repositoryName AND
+              (appRoot.path = "" OR f.path STARTS WITH appRoot.path + "/")
             RETURN DISTINCT
               f AS file,
-              apoc.text.join(nodeNames, "/") AS filePath;
+              CASE appRoot.path
+                WHEN "" THEN f.path
+                ELSE substring(f.path, size(appRoot.path) + 1)
+              END AS filePath;
             """,
             Map.of(
                 "tokenId", landscapeToken, "appName", applicationName, "commitHash", commitHash));
@@ -359,37 +567,53 @@ public class FileRevisionRepository {
     return filePathToFileRevisionMap;
   }
 
-  public Map<String, FileRevision> findStaticFilesWithFqnForRepositoryAndCommitAndLandscapeToken(
+  /**
+   * Lets a commit contain all file revisions of its parent commit except for those at the given
+   * paths, i.e. the files which the commit modified or deleted. The parent's files are filtered by
+   * their path keys against the changed paths, which the database checks against a hash set built
+   * once per statement, and the remaining CONTAINS relationships are copied within a single
+   * statement. Neither the parent's files nor their paths are transferred to the service, so the
+   * cost on this side is proportional to the diff of the commit rather than the repository size.
+   * The relationships are created without checking for existing ones, so this must only be called
+   * once, for a freshly created commit. Files which the commit already contains, e.g. added files
+   * which reuse a file revision of the parent, are skipped. The parent's files saved without a path
+   * key are keyed beforehand, so they are matched by the changed paths; files which still lack one
+   * are not below the repository's root directory and are always inherited.
+   *
+   * @param changedPaths Paths relative to the repository root which the commit does not inherit
+   */
+  public void inheritFileRevisionsFromParentCommit(
       final Session session,
       final String repoName,
+      final String landscapeToken,
+      final String parentCommitHash,
       final String commitHash,
-      final String landscapeToken) {
-
-    final Map<String, FileRevision> filePathToFileRevisionMap = new HashMap<>();
-
-    final Result result =
-        session.query(
-            """
-            MATCH (l:Landscape {tokenId: $tokenId})
-              -[:CONTAINS]->(:Repository {name: $repoName})
-              -[:HAS_ROOT]->(repoRoot:Directory)
-            MATCH p = (repoRoot)-[:CONTAINS*]->(f:FileRevision)
-            WHERE (:Commit {hash: $commitHash})-[:CONTAINS]->(f)
-            WITH f, [node IN nodes(p)[1..] | node.name] AS nodeNames
-            RETURN DISTINCT
-              f AS file,
-              apoc.text.join(nodeNames, "/") AS filePath;
-            """,
-            Map.of("tokenId", landscapeToken, "repoName", repoName, "commitHash", commitHash));
-
-    result
-        .queryResults()
-        .forEach(
-            queryResult ->
-                filePathToFileRevisionMap.put(
-                    (String) queryResult.get("filePath"), (FileRevision) queryResult.get("file")));
-
-    return filePathToFileRevisionMap;
+      final Collection<String> changedPaths) {
+    session.query(
+        KEY_COMMIT_FILES,
+        Map.of("tokenId", landscapeToken, "repoName", repoName, "commitHash", parentCommitHash));
+    session.query(
+        """
+        MATCH (:Landscape {tokenId: $tokenId})-[:CONTAINS]->(r:Repository {name: $repoName})
+        MATCH (r)-[:CONTAINS]->(parent:Commit {hash: $parentCommitHash})
+        MATCH (r)-[:CONTAINS]->(c:Commit {hash: $commitHash})
+        MATCH (parent)-[:CONTAINS]->(f:FileRevision)
+        WHERE
+          (f.path IS NULL OR NOT f.path IN $changedPaths) AND
+          NOT (c)-[:CONTAINS]->(f)
+        CREATE (c)-[:CONTAINS]->(f);
+        """,
+        Map.of(
+            "tokenId",
+            landscapeToken,
+            "repoName",
+            repoName,
+            "parentCommitHash",
+            parentCommitHash,
+            "commitHash",
+            commitHash,
+            "changedPaths",
+            List.copyOf(changedPaths)));
   }
 
   private void validateFqn(final String[] splitFqn) {
@@ -0,0 +1,201 @@
+package net.explorviz.persistence.repository;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.neo4j.ogm.session.Session;
+
+/**
+ * Maintains aggregated calls between functions, such that the communication between files can be
+ * answered without joining all spans to their parents. For each landscape, pair of caller and
+ * callee function and time bucket of {@link #BUCKET_SIZE}, a CALLS relationship from the function
+ * of the parent span to the function of the child span holds the number of calls and their summed
+ * execution time. Calls are assigned to buckets by the start time of the child span. Child spans of
+ * sampled traces are counted as 1 / samplingRatio calls.
+ */
+@ApplicationScoped
+public class FunctionCallRepository {
+
+  /** Size of the time buckets in nanoseconds. */
+  public static final long BUCKET_SIZE = 10_000_000_000L;
+
+  /** Name of the migration building the calls from previously persisted spans. */
+  public static final String REBUILD_MIGRATION = "function-calls";
+
+  /**
+   * Adds the given calls to the aggregated calls, creating them if absent. Totals are negative for
+   * calls of deleted spans, aggregated calls which drop to zero are removed. Increments are applied
+   * in a fixed order, so that concurrent writers lock shared functions in the same order.
+   *
+   * @param session OGM session object, expected to be part of the transaction writing the spans
+   * @param calls Calls to add per bucket
+   */
+  public void incrementCalls(final Session session, final Map<CallKey, CallTotals> calls) {
+    if (calls.isEmpty()) {
+      return;
+    }
+
+    final List<Map<String, Object>> rows = new ArrayList<>(calls.size());
+    calls.entrySet().stream()
+        .sorted(Map.Entry.comparingByKey())
+        .forEach(entry -> rows.add(entry.getKey().toRow(entry.getValue())));
+
+    session.query(
+        """
+        UNWIND $rows AS r
+        MATCH (caller:Function)
+        WHERE id(caller) = r.callerId
+        MATCH (callee:Function)
+        WHERE id(callee) = r.calleeId
+        MERGE (caller)-[c:CALLS {
+          landscapeToken: r.landscapeToken,
+          startTime: r.startTime
+        }]->(callee)
+          ON CREATE SET c.requestCount = 0, c.executionTime = 0
+        SET
+          c.requestCount = c.requestCount + r.requestCount,
+          c.executionTime = c.executionTime + r.executionTime
+        WITH c
+        WHERE c.requestCount <= 0
+        DELETE c;
+        """,
+        Map.of("rows", rows));
+  }
+
+  /**
+   * Adds the calls of the persisted child spans of the given traces to the aggregated calls. Used
+   * to rebuild the calls of a landscape trace by trace after {@link #deleteCalls(Session, String,
+   * int)}. Must not run concurrently with the ingest of spans for the landscape.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param traceIds Ids of the traces whose child spans to add
+   */
+  public void addCalls(
+      final Session session, final String landscapeToken, final List<String> traceIds) {
+    session.query(
+        """
+        UNWIND $traceIds AS traceId
+        MATCH (t:Trace {landscapeToken: $tokenId, traceId: traceId})
+          -[:CONTAINS]->(child:Span)
+          -[:HAS_PARENT]->(parent:Span)
+        WHERE child.startTime IS NOT NULL
+        MATCH (child)-[:REPRESENTS]->(callee:Function)
+        MATCH (parent)-[:REPRESENTS]->(caller:Function)
+        WITH
+          caller,
+          callee,
+          child,
+          toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0))) AS weight
+        WITH
+          caller,
+          callee,
+          toInteger(child.startTime / $bucketSize) * $bucketSize AS startTime,
+          sum(weight) AS requestCount,
+          sum(weight * (child.endTime - child.startTime)) AS executionTime
+        MERGE (caller)-[c:CALLS {landscapeToken: $tokenId, startTime: startTime}]->(callee)
+          ON CREATE SET c.requestCount = 0, c.executionTime = 0
+        SET
+          c.requestCount = c.requestCount + requestCount,
+          c.executionTime = c.executionTime + executionTime;
+        """,
+        Map.of("tokenId", landscapeToken, "traceIds", traceIds, "bucketSize", BUCKET_SIZE));
+  }
+
+  /** Deletes all aggregated calls of a landscape. */
+  public void deleteCalls(final Session session, final String landscapeToken) {
+    session.query(
+        "MATCH ()-[c:CALLS {landscapeToken: $tokenId}]->() DELETE c;",
+        Map.of("tokenId", landscapeToken));
+  }
+
+  /**
+   * Deletes up to the given number of aggregated calls of a landscape.
+   *
+   * @return Number of deleted calls, 0 once all calls are deleted
+   */
+  public long deleteCalls(final Session session, final String landscapeToken, final int limit) {
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH ()-[c:CALLS {landscapeToken: $tokenId}]->()
+        WITH c LIMIT $limit
+        DELETE c
+        RETURN count(*);
+        """,
+        Map.of("tokenId", landscapeToken, "limit", limit));
+  }
+
+  /**
+   * Identifies the aggregated calls between two functions within a time bucket.
+   *
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param callerId Id of the function of the parent span
+   * @param calleeId Id of the function of the child span
+   * @param startTime Start of the bucket (epoch nanosecond value)
+   */
+  public record CallKey(String landscapeToken, long callerId, long calleeId, long startTime)
+      implements Comparable<CallKey> {
+
+    public static CallKey of(
+        final String landscapeToken,
+        final long callerId,
+        final long calleeId,
+        final long childStartTime) {
+      return new CallKey(
+          landscapeToken, callerId, calleeId, childStartTime / BUCKET_SIZE * BUCKET_SIZE);
+    }
+
+    Map<String, Object> toRow(final CallTotals totals) {
+      return Map.of(
+          "landscapeToken", landscapeToken,
+          "callerId", callerId,
+          "calleeId", calleeId,
+          "startTime", startTime,
+          "requestCount", totals.requestCount(),
+          "executionTime", totals.executionTime());
+    }
+
+    @Override
+    public int compareTo(final CallKey other) {
+      int result = Long.compare(callerId, other.callerId);
+      if (result == 0) {
+        result = Long.compare(calleeId, other.calleeId);
+      }
+      if (result == 0) {
+        result = landscapeToken.compareTo(other.landscapeToken);
+      }
+      if (result == 0) {
+        result = Long.compare(startTime, other.startTime);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Number of calls and their summed execution time.
+   *
+   * @param requestCount Number of calls
+   * @param executionTime Summed duration of the child spans in nanoseconds
+   */
+  public record CallTotals(long requestCount, long executionTime) {
+
+    /**
+     * Returns the totals of a child span standing for the given number of spans, see {@link
+     * net.explorviz.persistence.messaging.LoadShedder}.
+     */
+    public static CallTotals ofSpan(final long startTime, final long endTime, final long weight) {
+      return new CallTotals(weight, weight * (endTime - startTime));
+    }
+
+    public CallTotals negate() {
+      return new CallTotals(-requestCount, -executionTime);
+    }
+
+    public CallTotals add(final CallTotals other) {
+      return new CallTotals(
+          requestCount + other.requestCount, executionTime + other.executionTime);
+    }
+  }
+}
@@ -1,12 +1,15 @@
 package net.explorviz.persistence.repository;
 
 import com.google.common.collect.ObjectArrays;
+import com.google.common.collect.Sets;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.ogm.Function;
 import org.neo4j.ogm.model.Result;
@@ -15,47 +18,6 @@ import org.neo4j.ogm.session.Session;
 @ApplicationScoped
 public class FunctionRepository {
 
-  private static final String FIND_BY_FQN_AND_LANDSCAPE_TOKEN_STATEMENT =
-      """
-      MATCH (l:Landscape {tokenId: $tokenId})
-      MATCH (func:Function {name: $name})
-      WHERE (l)
-        -[:CONTAINS]->(:Trace)
-        -[:CONTAINS]->(:Span)
-        -[:REPRESENTS]->(func)
-      MATCH (l)
-        -[:CONTAINS]->(:Application {name: $appName})
-        -[:HAS_ROOT]->(appRoot:Directory)
-      MATCH p = (fqnRoot:Directory|FileRevision)-[:CONTAINS]->*(file:FileRevision)
-      WHERE
-        (appRoot)-[:CONTAINS]->(fqnRoot) AND
-        (file)-[:CONTAINS]->(func) AND
-        NOT (:Commit)-[:CONTAINS]->(file) AND
-        all(j IN range(0, length(p)) WHERE nodes(p)[j].name = $pathSegments[j]) AND
-        size(nodes(p)) = size($pathSegments)
-      RETURN func;
-      """;
-
-  private static final String FIND_BY_FQN_AND_LANDSCAPE_TOKEN_AND_COMMIT_HASH_STATEMENT =
-      """
-      MATCH (l:Landscape {tokenId: $tokenId})
-        -[:CONTAINS]->(:Application {name: $appName})
-        -[:HAS_ROOT]->(appRoot:Directory)
-      WHERE (l)
-        -[:CONTAINS]->(:Repository)
-        -[:HAS_ROOT]->(:Directory)
-        -[:CONTAINS*0..]->(appRoot:Directory)
-      MATCH p = (fqnRoot:Directory|FileRevision)
-        -[:CONTAINS]->*(file:FileRevision)
-        -[:CONTAINS]->(func:Function)
-      WHERE
-        (appRoot)-[:CONTAINS]->(fqnRoot) AND
-        all(j IN range(0, length(p)) WHERE nodes(p)[j].name = $pathSegments[j]) AND
-        size(nodes(p)) = size($pathSegments)
-      MATCH (file)<-[:CONTAINS]-(:Commit {hash: $commitHash})
-      RETURN func;
-      """;
-
   @Inject FileRevisionRepository fileRevisionRepository;
 
   public Optional<Function> findFunctionByApplicationNameAndFqnAndLandscapeToken(
@@ -63,21 +25,12 @@ public class FunctionRepository {
       final String applicationName,
       final String[] fqn,
       final String landscapeToken) {
-    final String[] functionFilePath = Arrays.copyOfRange(fqn, 0, fqn.length - 1);
-    final String functionName = fqn[fqn.length - 1];
-    return Optional.ofNullable(
-        session.queryForObject(
-            Function.class,
-            FIND_BY_FQN_AND_LANDSCAPE_TOKEN_STATEMENT,
-            Map.of(
-                "tokenId",
-                landscapeToken,
-                "name",
-                functionName,
-                "pathSegments",
-                functionFilePath,
-                "appName",
-                applicationName)));
+    return fileRevisionRepository
+        .findFileRevisionFromAppNameAndPathWithoutCommit(
+            session, applicationName, Arrays.copyOf(fqn, fqn.length - 1), landscapeToken)
+        .flatMap(
+            fileRevision ->
+                findFunctionByFqnKey(session, fileRevision.getId(), fqn[fqn.length - 1]));
   }
 
   public Optional<Function> findFunctionByApplicationNameAndFqnAndCommitHashAndLandscapeToken(
@@ -86,19 +39,16 @@ public class FunctionRepository {
       final String[] fqn,
       final String commitHash,
       final String landscapeToken) {
-    return Optional.ofNullable(
-        session.queryForObject(
-            Function.class,
-            FIND_BY_FQN_AND_LANDSCAPE_TOKEN_AND_COMMIT_HASH_STATEMENT,
-            Map.of(
-                "tokenId",
-                landscapeToken,
-                "pathSegments",
-                fqn,
-                "commitHash",
-                commitHash,
-                "appName",
-                applicationName)));
+    return fileRevisionRepository
+        .findFileRevisionFromAppNameAndCommitHashAndPath(
+            session,
+            applicationName,
+            commitHash,
+            Arrays.copyOf(fqn, fqn.length - 1),
+            landscapeToken)
+        .flatMap(
+            fileRevision ->
+                findFunctionByFqnKey(session, fileRevision.getId(), fqn[fqn.length - 1]));
   }
 
   public Optional<Function> findFunctionByFunctionNameAndFileIdAndClassPath(
@@ -106,26 +56,25 @@ public class FunctionRepository {
       final String functionName,
       final Long fileId,
       final String[] classPath) {
+    return findFunctionByFqnKey(
+        session, fileId, ClazzRepository.toFqn(ObjectArrays.concat(classPath, functionName)));
+  }
+
+  /**
+   * Find a function by its FQN key, see {@link Function#getFqn()}. If the file revision contains
+   * overloads of the function, any of them is returned.
+   */
+  public Optional<Function> findFunctionByFqnKey(
+      final Session session, final Long fileRevisionId, final String fqn) {
     return Optional.ofNullable(
         session.queryForObject(
             Function.class,
             """
-            MATCH (file:FileRevision)
-            WHERE id(file) = $fileId
-
-            MATCH p = (file)-[:CONTAINS]->(:Clazz)
-                      -[:CONTAINS]->*(:Clazz)
-                      -[:CONTAINS]->(func:Function)
-
-            WITH p, func, nodes(p)[1..] AS cf
-            WHERE size(cf) = size($pathSegments)
-              AND all(i IN range(0, size($pathSegments)-1)
-                  WHERE cf[i].name = $pathSegments[i])
-
-            RETURN func;
+            MATCH (f:Function {fileRevisionId: $fileId, fqn: $fqn})
+            RETURN f
+            LIMIT 1;
             """,
-            Map.of(
-                "fileId", fileId, "pathSegments", ObjectArrays.concat(classPath, functionName))));
+            Map.of("fileId", fileRevisionId, "fqn", fqn)));
   }
 
   public Optional<Function> findFunctionByFunctionNameAndClazzId(
@@ -188,7 +137,7 @@ public class FunctionRepository {
    * application at a particular commit.
    *
    * @return A map of each function's fqn to the corresponding Function object, separated by '/'.
-   *     Note that since the fqn is derived from the node path, it may not be compliant to any
+   *     Note that since the fqn is derived from the file's path key, it may not be compliant to any
    *     standard notation (e.g. Java).
    */
   public Map<String, Function> findStaticFunctionsWithFqnForApplicationAndCommitAndLandscapeToken(
@@ -202,19 +151,25 @@ public class FunctionRepository {
     final Result result =
         session.query(
             """
-            MATCH (l:Landscape {tokenId: $tokenId})
-              -[:CONTAINS]->(a:Application {name: $appName})
+            MATCH (:Landscape {tokenId: $tokenId})
+              -[:CONTAINS]->(:Application {name: $appName})
               -[:HAS_ROOT]->(appRoot:Directory)
-            WHERE (l)
-              -[:CONTAINS]->(:Repository)
-              -[:HAS_ROOT]->(:Directory)
-              -[:CONTAINS*0..]->(appRoot)
-            MATCH p = (appRoot)-[:CONTAINS]->*(f:FileRevision)-[:CONTAINS]->(fn:Function)
-            WHERE (:Commit {hash: $commitHash})-[:CONTAINS]->(f)
-            WITH fn, [node IN nodes(p)[1..] | node.name] AS nodeNames
+            WHERE appRoot.repositoryName IS NOT NULL
+            MATCH (:Commit {hash: $commitHash})-[:CONTAINS]->(f:FileRevision)
+            WHERE
+              f.landscapeToken = $tokenId AND
+              f.repositoryName = appRoot.repositoryName AND
+              (appRoot.path = "" OR f.path STARTS WITH appRoot.path + "/")
+            MATCH (f)-[:CONTAINS]->(fn:Function)
+            WITH
+              fn,
+              CASE appRoot.path
+                WHEN "" THEN f.path
+                ELSE substring(f.path, size(appRoot.path) + 1)
+              END AS filePath
             RETURN DISTINCT
               fn AS function,
-              apoc.text.join(nodeNames, "/") AS fqn;
+              filePath + "/" + fn.name AS fqn;
             """,
             Map.of(
                 "tokenId", landscapeToken, "appName", applicationName, "commitHash", commitHash));
@@ -231,16 +186,60 @@ public class FunctionRepository {
 
   public Optional<Function> findFunctionWithFunctionNameAndFileRevisionId(
       final Session session, final String functionName, final Long fileRevisionId) {
-    return Optional.ofNullable(
-        session.queryForObject(
-            Function.class,
+    return findFunctionByFqnKey(session, fileRevisionId, functionName);
+  }
+
+  /**
+   * Returns the ID of the function with the given name that is directly contained in the Clazz or
+   * FileRevision with the given ID, creating the function if it does not exist yet. The FQN key is
+   * also set on an existing function, in case it has been saved without one. The parent node is
+   * neither loaded nor saved.
+   */
+  public Long getOrCreateFunctionInParent(
+      final Session session, final String functionName, final Long parentId) {
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH (parent:Clazz|FileRevision)
+        WHERE id(parent) = $parentId
+        MERGE (parent)-[:CONTAINS]->(f:Function {name: $functionName})
+        SET
+          f.fileRevisionId = CASE WHEN parent:Clazz THEN parent.fileRevisionId ELSE id(parent) END,
+          f.fqn = CASE WHEN parent:Clazz THEN parent.fqn + "." + f.name ELSE f.name END
+        RETURN id(f);
+        """,
+        Map.of("functionName", functionName, "parentId", parentId));
+  }
+
+  /**
+   * Check which of the given Function node ids still refer to an existing function with the
+   * expected name. Used to validate cached ids before relying on them.
+   *
+   * @param session OGM session object
+   * @param functionNamesById Expected function name for each node id
+   * @return The subset of ids that refer to an existing Function with the expected name
+   */
+  public Set<Long> findExistingFunctionIds(
+      final Session session, final Map<Long, String> functionNamesById) {
+    if (functionNamesById.isEmpty()) {
+      return Set.of();
+    }
+
+    final List<Map<String, Object>> rows =
+        functionNamesById.entrySet().stream()
+            .map(e -> Map.<String, Object>of("id", e.getKey(), "name", e.getValue()))
+            .toList();
+
+    return Sets.newHashSet(
+        session.query(
+            Long.class,
             """
-            MATCH (file:FileRevision)
-            WHERE id(file)=$fileId
-            MATCH (file)-[:CONTAINS]->(f:Function {name: $functionName})
-            RETURN f;
+            UNWIND $rows AS row
+            MATCH (f:Function)
+            WHERE id(f) = row.id AND f.name = row.name
+            RETURN id(f);
             """,
-            Map.of("functionName", functionName, "fileId", fileRevisionId)));
+            Map.of("rows", rows)));
   }
 
   public Optional<Function> findFunction(
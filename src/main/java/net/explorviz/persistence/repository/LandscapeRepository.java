@@ -2,6 +2,8 @@ package net.explorviz.persistence.repository;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import net.explorviz.persistence.ogm.Landscape;
@@ -26,6 +28,14 @@ public class LandscapeRepository {
     return findLandscapeByTokenId(session, tokenId);
   }
 
+  public List<String> findAllTokenIds(final Session session) {
+    final List<String> tokenIds = new ArrayList<>();
+    session
+        .query(String.class, "MATCH (l:Landscape) RETURN l.tokenId;", Map.of())
+        .forEach(tokenIds::add);
+    return tokenIds;
+  }
+
   public Landscape getOrCreateLandscape(final Session session, final String tokenId) {
     return findLandscapeByTokenId(session, tokenId).orElse(new Landscape(tokenId));
   }
@@ -0,0 +1,26 @@
+package net.explorviz.persistence.repository;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import java.util.Map;
+import org.neo4j.ogm.session.Session;
+
+/**
+ * Records which one-time data migrations have been applied to the database, e.g. building derived
+ * data from data persisted before it was introduced. Migrations are tracked by name in
+ * SchemaMigration nodes, so they are repeated after the database has been purged.
+ */
+@ApplicationScoped
+public class SchemaMigrationRepository {
+
+  public boolean isApplied(final Session session, final String name) {
+    return session.queryForObject(
+            Long.class,
+            "MATCH (m:SchemaMigration {name: $name}) RETURN count(m);",
+            Map.of("name", name))
+        > 0;
+  }
+
+  public void markApplied(final Session session, final String name) {
+    session.query("MERGE (:SchemaMigration {name: $name});", Map.of("name", name));
+  }
+}
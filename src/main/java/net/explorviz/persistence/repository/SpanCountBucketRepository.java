@@ -0,0 +1,413 @@
+package net.explorviz.persistence.repository;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import net.explorviz.persistence.repository.TraceRepository.Timestamp;
+import org.neo4j.ogm.session.Session;
+
+/**
+ * Maintains the number of spans per landscape and time bucket, such that the timeline can be
+ * answered without scanning all spans. Counters are kept at several resolutions, see {@link
+ * #RESOLUTIONS}, and each span is counted once for its landscape and once for every commit
+ * containing the file of its function. Counters for the whole landscape use an empty commit hash.
+ * Spans of sampled traces are counted as 1 / samplingRatio spans, see {@link
+ * net.explorviz.persistence.messaging.LoadShedder}.
+ * Spans are counted for the commits existing when they are persisted, so the counters of a new
+ * commit are derived from those of its parent commit when it is persisted, see {@link
+ * #countNewCommit(Session, String, String, Long, Long, String, Collection)}.
+ */
+@ApplicationScoped
+public class SpanCountBucketRepository {
+
+  /** Bucket sizes in nanoseconds for which counters are kept, from coarsest to finest. */
+  public static final List<Long> RESOLUTIONS =
+      List.of(3_600_000_000_000L, 60_000_000_000L, 1_000_000_000L);
+
+  /** Commit hash of the counters covering all spans of a landscape. */
+  public static final String ALL_COMMITS = "";
+
+  /** Name of the migration building the counters from previously persisted spans. */
+  public static final String REBUILD_MIGRATION = "span-count-buckets";
+
+  /**
+   * Adds the rows commitHash, resolution, startTime and spanCount to the counters of the landscape
+   * $tokenId, creating them if absent.
+   */
+  private static final String MERGE_COUNTS_CLAUSE =
+      """
+      MERGE (b:SpanCountBucket {
+        landscapeToken: $tokenId,
+        commitHash: commitHash,
+        resolution: resolution,
+        startTime: startTime
+      })
+        ON CREATE SET b.spanCount = 0
+      SET b.spanCount = b.spanCount + spanCount;
+      """;
+
+  /**
+   * Adds the given counts to the counters, creating them if absent. Counts are negative for deleted
+   * spans, counters which drop to zero are removed. Increments are applied in a fixed order, so
+   * that concurrent writers lock shared counters in the same order.
+   *
+   * @param session OGM session object, expected to be part of the transaction writing the spans
+   * @param counts Number of new or deleted spans per bucket at the finest resolution
+   */
+  public void incrementSpanCounts(final Session session, final Map<BucketKey, Long> counts) {
+    if (counts.isEmpty()) {
+      return;
+    }
+
+    final Map<BucketKey, Long> rollups = new HashMap<>();
+    counts.forEach(
+        (key, count) -> {
+          for (final long resolution : RESOLUTIONS) {
+            rollups.merge(key.atResolution(resolution), count, Long::sum);
+          }
+        });
+
+    final List<Map<String, Object>> rows = new ArrayList<>(rollups.size());
+    rollups.entrySet().stream()
+        .sorted(Map.Entry.comparingByKey())
+        .forEach(entry -> rows.add(entry.getKey().toRow(entry.getValue())));
+
+    session.query(
+        """
+        UNWIND $rows AS r
+        MERGE (b:SpanCountBucket {
+          landscapeToken: r.landscapeToken,
+          commitHash: r.commitHash,
+          resolution: r.resolution,
+          startTime: r.startTime
+        })
+          ON CREATE SET b.spanCount = 0
+        SET b.spanCount = b.spanCount + r.spanCount
+        WITH b
+        WHERE b.spanCount <= 0
+        DELETE b;
+        """,
+        Map.of("rows", rows));
+  }
+
+  /**
+   * Returns the span counts of a landscape in buckets of the given size from the counters. The
+   * coarsest resolution which evenly divides the bucket size and to which both bounds are aligned
+   * is used. If the bounds are not aligned to any resolution, counters of the finest resolution
+   * which overlap the time range are included, i.e. the bounds are effectively widened to whole
+   * seconds.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param commitHash Hash of the commit to count spans for, or {@link #ALL_COMMITS}
+   * @param newest Upper bound of time range to include (epoch nanosecond value)
+   * @param oldest Lower bound of time range to include (epoch nanosecond value)
+   * @param bucketSize Size of the returned buckets in nanoseconds
+   * @return Span count per bucket, ordered by start time. Empty if the bucket size is not a
+   *     multiple of any resolution, in which case the spans need to be counted directly
+   */
+  public Optional<List<Timestamp>> findTimestamps(
+      final Session session,
+      final String landscapeToken,
+      final String commitHash,
+      final long newest,
+      final long oldest,
+      final long bucketSize) {
+    final List<Long> candidates =
+        RESOLUTIONS.stream().filter(resolution -> bucketSize % resolution == 0).toList();
+    if (candidates.isEmpty()) {
+      return Optional.empty();
+    }
+
+    final long resolution =
+        candidates.stream()
+            .filter(r -> isAligned(oldest, r) && isAligned(newest + 1, r))
+            .findFirst()
+            .orElse(candidates.get(candidates.size() - 1));
+
+    return Optional.of(
+        session.queryDto(
+            """
+            MATCH (b:SpanCountBucket {
+              landscapeToken: $tokenId,
+              commitHash: $commitHash,
+              resolution: $resolution
+            })
+            WHERE b.startTime + $resolution > $oldest AND b.startTime <= $newest
+            WITH b, toInteger(b.startTime / $bucketSize) * $bucketSize AS bucket
+            RETURN bucket AS startTimeEpochNano, sum(b.spanCount) AS spanCount
+            ORDER BY bucket ASC;
+            """,
+            Map.of(
+                "tokenId", landscapeToken,
+                "commitHash", commitHash,
+                "resolution", resolution,
+                "newest", newest,
+                "oldest", oldest,
+                "bucketSize", bucketSize),
+            Timestamp.class));
+  }
+
+  private static boolean isAligned(final long bound, final long resolution) {
+    // Unbounded lower bound, or unbounded upper bound since Long.MAX_VALUE + 1 overflows
+    return bound == Long.MIN_VALUE || Math.floorMod(bound, resolution) == 0;
+  }
+
+  /**
+   * Finds the hashes of all commits containing the files of the given functions.
+   *
+   * @param session OGM session object
+   * @param functionIds Function node ids
+   * @return Commit hashes per function id, functions without commit are omitted
+   */
+  public Map<Long, List<String>> findCommitHashesForFunctions(
+      final Session session, final Set<Long> functionIds) {
+    final Map<Long, List<String>> commitHashes = new HashMap<>();
+    if (functionIds.isEmpty()) {
+      return commitHashes;
+    }
+
+    session
+        .query(
+            """
+            MATCH (f:Function)<-[:CONTAINS*]-(:FileRevision)<-[:CONTAINS]-(c:Commit)
+            WHERE id(f) IN $functionIds
+            RETURN id(f) AS functionId, collect(DISTINCT c.hash) AS commitHashes;
+            """,
+            Map.of("functionIds", List.copyOf(functionIds)))
+        .queryResults()
+        .forEach(
+            row ->
+                commitHashes.put(
+                    ((Number) row.get("functionId")).longValue(),
+                    toStringList(row.get("commitHashes"))));
+    return commitHashes;
+  }
+
+  private static List<String> toStringList(final Object value) {
+    final List<String> strings = new ArrayList<>();
+    if (value instanceof Collection<?> collection) {
+      collection.forEach(element -> strings.add((String) element));
+    } else if (value instanceof Object[] array) {
+      for (final Object element : array) {
+        strings.add((String) element);
+      }
+    }
+    return strings;
+  }
+
+  /**
+   * Adds the persisted spans of the given traces to the counters, for their landscape and for each
+   * commit containing the file of their function. Used to rebuild the counters of a landscape trace
+   * by trace after {@link #deleteSpanCounts(Session, String, int)}. Must not run concurrently with
+   * the ingest of spans for the landscape.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param traceIds Ids of the traces whose spans to count
+   */
+  public void addSpanCounts(
+      final Session session, final String landscapeToken, final List<String> traceIds) {
+    session.query(
+        """
+        UNWIND $traceIds AS traceId
+        MATCH (t:Trace {landscapeToken: $tokenId, traceId: traceId})-[:CONTAINS]->(s:Span)
+        WHERE s.startTime IS NOT NULL
+        CALL (s) {
+          RETURN $allCommits AS commitHash
+          UNION
+          MATCH (s)-[:REPRESENTS]->(:Function)
+            <-[:CONTAINS*]-(:FileRevision)
+            <-[:CONTAINS]-(c:Commit)
+          RETURN DISTINCT c.hash AS commitHash
+        }
+        UNWIND $resolutions AS resolution
+        WITH
+          commitHash,
+          resolution,
+          toInteger(s.startTime / resolution) * resolution AS startTime,
+          sum(toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0)))) AS spanCount
+        """
+            + MERGE_COUNTS_CLAUSE,
+        Map.of(
+            "tokenId", landscapeToken,
+            "traceIds", traceIds,
+            "allCommits", ALL_COMMITS,
+            "resolutions", RESOLUTIONS));
+  }
+
+  /**
+   * Sets the counters of a new commit from those of its parent commit, such that the cost depends
+   * on the changes of the commit rather than on the size of the repository. The parent's counters
+   * are copied, and the persisted spans of the files at the changed paths are added if only the
+   * commit contains them, e.g. added or modified files, or subtracted if only the parent contains
+   * them, e.g. modified or deleted files. Must not run concurrently with the ingest of spans for
+   * the landscape, and only once, within the transaction creating the commit and its files.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param repoName Name of the repository of the commit
+   * @param parentCommitId Node id of the parent commit, or null if the commit has no parent
+   * @param commitId Node id of the commit
+   * @param commitHash Hash of the commit
+   * @param changedPaths Paths relative to the repository root which the commit added, modified or
+   *     deleted
+   */
+  public void countNewCommit(
+      final Session session,
+      final String landscapeToken,
+      final String repoName,
+      final Long parentCommitId,
+      final Long commitId,
+      final String commitHash,
+      final Collection<String> changedPaths) {
+    final Map<String, Object> parameters = new HashMap<>();
+    parameters.put("tokenId", landscapeToken);
+    parameters.put("repoName", repoName);
+    parameters.put("parentCommitId", parentCommitId);
+    parameters.put("commitId", commitId);
+    parameters.put("commitHash", commitHash);
+    parameters.put("changedPaths", List.copyOf(changedPaths));
+    parameters.put("resolutions", RESOLUTIONS);
+
+    if (parentCommitId != null) {
+      session.query(
+          """
+          MATCH (parent:Commit)
+          WHERE id(parent) = $parentCommitId
+          MATCH (pb:SpanCountBucket {landscapeToken: $tokenId, commitHash: parent.hash})
+          WITH
+            $commitHash AS commitHash,
+            pb.resolution AS resolution,
+            pb.startTime AS startTime,
+            pb.spanCount AS spanCount
+          """
+              + MERGE_COUNTS_CLAUSE,
+          parameters);
+    }
+
+    session.query(
+        """
+        MATCH (c:Commit)
+        WHERE id(c) = $commitId
+        OPTIONAL MATCH (parent:Commit)
+        WHERE id(parent) = $parentCommitId
+        UNWIND $changedPaths AS changedPath
+        MATCH (fr:FileRevision {
+          landscapeToken: $tokenId, repositoryName: $repoName, path: changedPath
+        })
+        WITH DISTINCT
+          fr,
+          EXISTS { (c)-[:CONTAINS]->(fr) } AS inCommit,
+          parent IS NOT NULL AND EXISTS { (parent)-[:CONTAINS]->(fr) } AS inParent
+        WHERE inCommit <> inParent
+        WITH fr, CASE WHEN inCommit THEN 1 ELSE -1 END AS sign
+        MATCH (fr)-[:CONTAINS*]->(:Function)<-[:REPRESENTS]-(s:Span {landscapeToken: $tokenId})
+        WHERE s.startTime IS NOT NULL
+        OPTIONAL MATCH (t:Trace)-[:CONTAINS]->(s)
+        UNWIND $resolutions AS resolution
+        WITH
+          $commitHash AS commitHash,
+          resolution,
+          toInteger(s.startTime / resolution) * resolution AS startTime,
+          sum(sign * toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0)))) AS spanCount
+        WHERE spanCount <> 0
+        """
+            + MERGE_COUNTS_CLAUSE,
+        parameters);
+
+    if (parentCommitId != null) {
+      // Counters of spans in files the commit no longer contains drop to zero
+      session.query(
+          """
+          MATCH (b:SpanCountBucket {landscapeToken: $tokenId, commitHash: $commitHash})
+          WHERE b.spanCount <= 0
+          DELETE b;
+          """,
+          parameters);
+    }
+  }
+
+  /** Deletes all counters of a landscape. */
+  public void deleteSpanCounts(final Session session, final String landscapeToken) {
+    session.query(
+        "MATCH (b:SpanCountBucket {landscapeToken: $tokenId}) DETACH DELETE b;",
+        Map.of("tokenId", landscapeToken));
+  }
+
+  /**
+   * Deletes up to the given number of counters of a landscape.
+   *
+   * @return Number of deleted counters, 0 once all counters are deleted
+   */
+  public long deleteSpanCounts(
+      final Session session, final String landscapeToken, final int limit) {
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH (b:SpanCountBucket {landscapeToken: $tokenId})
+        WITH b LIMIT $limit
+        DETACH DELETE b
+        RETURN count(*);
+        """,
+        Map.of("tokenId", landscapeToken, "limit", limit));
+  }
+
+  /**
+   * Identifies a counter at the finest resolution, or at the given resolution after {@link
+   * #atResolution(long)}.
+   *
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param commitHash Hash of the commit, or {@link #ALL_COMMITS}
+   * @param startTime Start of the bucket (epoch nanosecond value)
+   * @param resolution Size of the bucket in nanoseconds
+   */
+  public record BucketKey(
+      String landscapeToken, String commitHash, long startTime, long resolution)
+      implements Comparable<BucketKey> {
+
+    public static BucketKey of(
+        final String landscapeToken, final String commitHash, final long spanStartTime) {
+      final long resolution = RESOLUTIONS.get(RESOLUTIONS.size() - 1);
+      return new BucketKey(
+          landscapeToken, commitHash, spanStartTime / resolution * resolution, resolution);
+    }
+
+    BucketKey atResolution(final long targetResolution) {
+      return new BucketKey(
+          landscapeToken,
+          commitHash,
+          startTime / targetResolution * targetResolution,
+          targetResolution);
+    }
+
+    Map<String, Object> toRow(final long spanCount) {
+      return Map.of(
+          "landscapeToken", landscapeToken,
+          "commitHash", commitHash,
+          "resolution", resolution,
+          "startTime", startTime,
+          "spanCount", spanCount);
+    }
+
+    @Override
+    public int compareTo(final BucketKey other) {
+      int result = landscapeToken.compareTo(other.landscapeToken);
+      if (result == 0) {
+        result = commitHash.compareTo(other.commitHash);
+      }
+      if (result == 0) {
+        result = Long.compare(resolution, other.resolution);
+      }
+      if (result == 0) {
+        result = Long.compare(startTime, other.startTime);
+      }
+      return result;
+    }
+  }
+}
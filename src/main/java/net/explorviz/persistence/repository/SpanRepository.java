@@ -2,6 +2,8 @@ package net.explorviz.persistence.repository;
 
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import net.explorviz.persistence.ogm.Span;
@@ -11,6 +13,70 @@ import org.neo4j.ogm.session.SessionFactory;
 @ApplicationScoped
 public class SpanRepository {
 
+  /**
+   * Set-based write of a batch of traces. Each row describes a single trace with its time range and
+   * the list of its spans, each along with the id of the Function node it represents, which must
+   * have been resolved beforehand. Traces and spans are merged on their landscape token and id,
+   * which is backed by a uniqueness constraint, so that redelivered spans neither duplicate nodes
+   * nor require a preceding read. Landscape, trace and span nodes are created if absent, the
+   * trace's time range is widened to include the new spans, its sampling ratio is kept from its
+   * first write, and the CONTAINS, REPRESENTS and HAS_PARENT relationships are merged. A span whose
+   * function no longer exists, e.g. because it was deleted after it had been resolved, is written
+   * without REPRESENTS relationship, but still with its parent. Spans are expected to be ordered
+   * such that parents precede their children, so that placeholder spans are only created for
+   * parents outside of the batch.
+   *
+   * <p>The statement returns the spans which are recorded for the first time, i.e. which were absent
+   * or only a placeholder before, along with their weight, i.e. the number of spans each of them
+   * stands for given the sampling ratio of its trace. Each span is write-locked by setting its end
+   * time before its start time is read, such that concurrent transactions writing the same span
+   * cannot both report it.
+   */
+  private static final String MERGE_TRACES_STATEMENT =
+      """
+      UNWIND $traces AS tr
+      MERGE (l:Landscape {tokenId: tr.landscapeTokenId})
+      MERGE (t:Trace {landscapeToken: tr.landscapeTokenId, traceId: tr.traceId})
+        ON CREATE SET
+          t.startTime = tr.startTime,
+          t.endTime = tr.endTime,
+          t.samplingRatio = tr.samplingRatio
+        ON MATCH SET
+          t.samplingRatio = coalesce(t.samplingRatio, tr.samplingRatio),
+          t.startTime = CASE
+            WHEN t.startTime IS NULL OR tr.startTime < t.startTime THEN tr.startTime
+            ELSE t.startTime
+          END,
+          t.endTime = CASE
+            WHEN t.endTime IS NULL OR tr.endTime > t.endTime THEN tr.endTime
+            ELSE t.endTime
+          END
+      MERGE (l)-[:CONTAINS]->(t)
+      WITH t, tr
+      UNWIND tr.spans AS s
+      MERGE (sp:Span {landscapeToken: tr.landscapeTokenId, spanId: s.spanId})
+      SET sp.endTime = s.endTime
+      WITH t, tr, s, sp, sp.startTime IS NULL AS isNew
+      SET sp.startTime = s.startTime
+      MERGE (t)-[:CONTAINS]->(sp)
+      WITH t, tr, s, sp, isNew
+      OPTIONAL MATCH (f:Function)
+      WHERE id(f) = s.functionId
+      FOREACH (func IN CASE WHEN f IS NULL THEN [] ELSE [f] END |
+        MERGE (sp)-[:REPRESENTS]->(func)
+      )
+      FOREACH (parentId IN CASE WHEN s.parentId = "" THEN [] ELSE [s.parentId] END |
+        MERGE (p:Span {landscapeToken: tr.landscapeTokenId, spanId: parentId})
+        MERGE (sp)-[:HAS_PARENT]->(p)
+      )
+      WITH t, tr, s, isNew
+      WHERE isNew
+      RETURN DISTINCT
+        tr.landscapeTokenId AS landscapeToken,
+        s.spanId AS spanId,
+        toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0))) AS weight;
+      """;
+
   @Inject ApplicationRepository applicationRepository;
 
   @Inject FileRevisionRepository fileRevisionRepository;
@@ -23,13 +89,242 @@ public class SpanRepository {
 
   @Inject TraceRepository traceRepository;
 
-  public Optional<Span> findSpanById(final Session session, final String spanId) {
+  public Optional<Span> findSpanById(
+      final Session session, final String landscapeToken, final String spanId) {
     return Optional.ofNullable(
         session.queryForObject(
-            Span.class, "MATCH (s:Span {spanId: $spanId}) RETURN s;", Map.of("spanId", spanId)));
+            Span.class,
+            "MATCH (s:Span {landscapeToken: $tokenId, spanId: $spanId}) RETURN s;",
+            Map.of("tokenId", landscapeToken, "spanId", spanId)));
+  }
+
+  /**
+   * Finds which of the given spans have already been persisted with their timing, as opposed to
+   * spans which are absent or have only been created as placeholder for the parent of another span.
+   *
+   * @param session OGM session object
+   * @param spanKeys One map per span containing the keys landscapeToken and spanId
+   * @return Id of the represented function per already persisted span, keyed by the list of
+   *     landscape token and span id
+   */
+  public Map<List<String>, Long> findRecordedSpans(
+      final Session session, final List<Map<String, String>> spanKeys) {
+    final Map<List<String>, Long> recorded = new HashMap<>();
+    if (spanKeys.isEmpty()) {
+      return recorded;
+    }
+
+    session
+        .query(
+            """
+            UNWIND $spanKeys AS k
+            MATCH (s:Span {landscapeToken: k.landscapeToken, spanId: k.spanId})
+            WHERE s.startTime IS NOT NULL
+            OPTIONAL MATCH (s)-[:REPRESENTS]->(f:Function)
+            RETURN s.landscapeToken AS landscapeToken, s.spanId AS spanId, id(f) AS functionId;
+            """,
+            Map.of("spanKeys", spanKeys))
+        .queryResults()
+        .forEach(
+            row ->
+                recorded.put(
+                    List.of((String) row.get("landscapeToken"), (String) row.get("spanId")),
+                    row.get("functionId") == null
+                        ? null
+                        : ((Number) row.get("functionId")).longValue()));
+    return recorded;
+  }
+
+  /**
+   * Finds the already persisted children of the given spans, i.e. children which have been
+   * received before their parent.
+   *
+   * @param session OGM session object
+   * @param spanKeys One map per parent span containing the keys landscapeToken and spanId
+   * @return Persisted children along with the function they represent and their weight
+   */
+  public List<RecordedChild> findRecordedChildren(
+      final Session session, final List<Map<String, String>> spanKeys) {
+    if (spanKeys.isEmpty()) {
+      return List.of();
+    }
+
+    return session.queryDto(
+        """
+        UNWIND $spanKeys AS k
+        MATCH (:Span {landscapeToken: k.landscapeToken, spanId: k.spanId})
+          <-[:HAS_PARENT]-(c:Span)
+          -[:REPRESENTS]->(f:Function)
+        WHERE c.startTime IS NOT NULL
+        OPTIONAL MATCH (t:Trace)-[:CONTAINS]->(c)
+        RETURN
+          k.landscapeToken AS landscapeToken,
+          c.spanId AS spanId,
+          k.spanId AS parentId,
+          c.startTime AS startTime,
+          c.endTime AS endTime,
+          id(f) AS functionId,
+          toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0))) AS weight;
+        """,
+        Map.of("spanKeys", spanKeys),
+        RecordedChild.class);
+  }
+
+  /**
+   * Finds spans of traces in the landscape which ended before the given cutoff.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param cutoff Traces ending before this time are expired (epoch nanosecond value)
+   * @param limit Maximum number of spans to return
+   * @return Expired spans along with their function and the function of their parent
+   */
+  public List<ExpiredSpan> findExpiredSpans(
+      final Session session, final String landscapeToken, final long cutoff, final int limit) {
+    return session.queryDto(
+        """
+        MATCH (t:Trace {landscapeToken: $tokenId})-[:CONTAINS]->(s:Span)
+        WHERE t.endTime < $cutoff
+        WITH t, s LIMIT $limit
+        OPTIONAL MATCH (s)-[:REPRESENTS]->(f:Function)
+        OPTIONAL MATCH (s)-[:HAS_PARENT]->(p:Span)-[:REPRESENTS]->(pf:Function)
+        WHERE p.startTime IS NOT NULL
+        RETURN
+          s.spanId AS spanId,
+          s.startTime AS startTime,
+          s.endTime AS endTime,
+          id(f) AS functionId,
+          id(pf) AS parentFunctionId,
+          toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0))) AS weight;
+        """,
+        Map.of("tokenId", landscapeToken, "cutoff", cutoff, "limit", limit),
+        ExpiredSpan.class);
   }
 
-  public Span getOrCreateSpan(final Session session, final String spanId) {
-    return findSpanById(session, spanId).orElse(new Span(spanId));
+  public void deleteSpans(
+      final Session session, final String landscapeToken, final List<String> spanIds) {
+    session.query(
+        """
+        UNWIND $spanIds AS spanId
+        MATCH (s:Span {landscapeToken: $tokenId, spanId: spanId})
+        DETACH DELETE s;
+        """,
+        Map.of("tokenId", landscapeToken, "spanIds", spanIds));
   }
+
+  /**
+   * Deletes placeholder spans, i.e. spans which have only been created as parent of another span,
+   * that are no longer referenced by any child. Processes at most the given number of spans.
+   *
+   * @return Number of deleted spans
+   */
+  public long deleteOrphanedPlaceholders(
+      final Session session, final String landscapeToken, final int limit) {
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH (s:Span {landscapeToken: $tokenId})
+        WHERE
+          s.spanId IS NOT NULL AND
+          s.startTime IS NULL AND
+          NOT EXISTS { ()-[:HAS_PARENT]->(s) }
+        WITH s LIMIT $limit
+        DETACH DELETE s
+        RETURN count(*);
+        """,
+        Map.of("tokenId", landscapeToken, "limit", limit));
+  }
+
+  /**
+   * Sets the landscape token of spans persisted before it was introduced, taken from their trace or
+   * for placeholder spans from the trace of one of their children. Expects the traces to be
+   * backfilled already. Processes at most the given number of spans.
+   *
+   * @return Number of updated spans, 0 once all spans have a landscape token
+   */
+  public long backfillLandscapeTokens(final Session session, final int batchSize) {
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH (s:Span)
+        WHERE s.landscapeToken IS NULL
+        WITH s LIMIT $batchSize
+        OPTIONAL MATCH (t:Trace)-[:CONTAINS]->(s)
+        OPTIONAL MATCH (childTrace:Trace)-[:CONTAINS]->(:Span)-[:HAS_PARENT]->(s)
+        WITH s, head(collect(t.landscapeToken) + collect(childTrace.landscapeToken)) AS token
+        WHERE token IS NOT NULL
+        SET s.landscapeToken = token
+        RETURN count(s);
+        """,
+        Map.of("batchSize", batchSize));
+  }
+
+  /**
+   * Writes a batch of traces using a single statement, see {@link #MERGE_TRACES_STATEMENT}.
+   *
+   * @param session OGM session object
+   * @param traces One map per trace containing the keys landscapeTokenId, traceId, startTime,
+   *     endTime, samplingRatio and spans. Each span is a map containing the keys spanId, parentId
+   *     (empty string for root spans), startTime, endTime and functionId.
+   * @return Weight of each span recorded for the first time, keyed by the list of landscape token
+   *     and span id
+   */
+  public Map<List<String>, Long> mergeTraces(
+      final Session session, final List<Map<String, Object>> traces) {
+    final Map<List<String>, Long> newSpanWeights = new HashMap<>();
+    if (traces.isEmpty()) {
+      return newSpanWeights;
+    }
+
+    session
+        .query(MERGE_TRACES_STATEMENT, Map.of("traces", traces))
+        .queryResults()
+        .forEach(
+            row ->
+                newSpanWeights.put(
+                    List.of((String) row.get("landscapeToken"), (String) row.get("spanId")),
+                    ((Number) row.get("weight")).longValue()));
+    return newSpanWeights;
+  }
+
+  /**
+   * Span that has been persisted before its parent.
+   *
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param spanId Id of the span
+   * @param parentId Id of the parent span
+   * @param startTime Start time of the span (epoch nanosecond value)
+   * @param endTime End time of the span (epoch nanosecond value)
+   * @param functionId Id of the function the span represents
+   * @param weight Number of spans the span stands for, see {@link
+   *     net.explorviz.persistence.messaging.LoadShedder}
+   */
+  public record RecordedChild(
+      String landscapeToken,
+      String spanId,
+      String parentId,
+      long startTime,
+      long endTime,
+      long functionId,
+      long weight) {}
+
+  /**
+   * Span of a trace which ended before the retention cutoff.
+   *
+   * @param spanId Id of the span
+   * @param startTime Start time of the span (epoch nanosecond value)
+   * @param endTime End time of the span (epoch nanosecond value)
+   * @param functionId Id of the function the span represents, null if absent
+   * @param parentFunctionId Id of the function of the parent span, null if the parent has not been
+   *     persisted
+   * @param weight Number of spans the span stands for, see {@link
+   *     net.explorviz.persistence.messaging.LoadShedder}
+   */
+  public record ExpiredSpan(
+      String spanId,
+      long startTime,
+      long endTime,
+      Long functionId,
+      Long parentFunctionId,
+      long weight) {}
 }
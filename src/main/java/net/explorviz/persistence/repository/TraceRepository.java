@@ -3,9 +3,13 @@ package net.explorviz.persistence.repository;
 import com.google.common.collect.Lists;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import net.explorviz.persistence.cache.DirectoryPathCache;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
 import net.explorviz.persistence.ogm.Trace;
 import org.neo4j.ogm.session.Session;
 import org.neo4j.ogm.session.SessionFactory;
@@ -14,14 +18,80 @@ import org.neo4j.ogm.session.SessionFactory;
 @SuppressWarnings("PMD.AvoidDuplicateLiterals")
 public class TraceRepository {
 
+  /** Name of the migration computing the summaries of previously persisted traces. */
+  public static final String SUMMARY_MIGRATION = "trace-summaries-v2";
+
+  /**
+   * Sets the depth of the span r and of all spans below it, given that the depth of its parent is
+   * up to date, and returns the greatest of them as subtreeDepth. The depth of a span is its
+   * number of ancestors plus one, where placeholders for parents which have not been received yet
+   * have the depth 1.
+   */
+  private static final String SET_SUBTREE_DEPTH_CLAUSE =
+      """
+      OPTIONAL MATCH (r)-[:HAS_PARENT]->(p:Span)
+      WITH r, CASE WHEN p IS NULL THEN 1 ELSE coalesce(p.depth, 1) + 1 END AS rootDepth
+      MATCH path = (r)<-[:HAS_PARENT*0..]-(d:Span)
+      SET d.depth = rootDepth + length(path)
+      RETURN max(rootDepth + length(path)) AS subtreeDepth
+      """;
+
+  @Inject DirectoryPathCache directoryPathCache;
+
+  @Inject FunctionCallRepository functionCallRepository;
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
   @Inject SessionFactory sessionFactory;
 
-  public Optional<Trace> findTraceById(final Session session, final String traceId) {
+  @Inject SpanCountBucketRepository spanCountBucketRepository;
+
+  public Optional<Trace> findTraceById(
+      final Session session, final String landscapeToken, final String traceId) {
     return Optional.ofNullable(
         session.queryForObject(
             Trace.class,
-            "MATCH (t:Trace {traceId: $traceId}) RETURN t;",
-            Map.of("traceId", traceId)));
+            "MATCH (t:Trace {landscapeToken: $tokenId, traceId: $traceId}) RETURN t;",
+            Map.of("tokenId", landscapeToken, "traceId", traceId)));
+  }
+
+  /**
+   * Sets the landscape token of traces persisted before it was introduced, taken from the landscape
+   * containing them. Processes at most the given number of traces.
+   *
+   * @return Number of updated traces, 0 once all traces have a landscape token
+   */
+  public long backfillLandscapeTokens(final Session session, final int batchSize) {
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH (l:Landscape)-[:CONTAINS]->(t:Trace)
+        WHERE t.landscapeToken IS NULL
+        WITH l, t LIMIT $batchSize
+        SET t.landscapeToken = l.tokenId
+        RETURN count(t);
+        """,
+        Map.of("batchSize", batchSize));
+  }
+
+  /**
+   * Deletes traces in the landscape which ended before the given cutoff and no longer contain any
+   * span. Processes at most the given number of traces.
+   *
+   * @return Number of deleted traces
+   */
+  public long deleteExpiredTraces(
+      final Session session, final String landscapeToken, final long cutoff, final int limit) {
+    return session.queryForObject(
+        Long.class,
+        """
+        MATCH (t:Trace {landscapeToken: $tokenId})
+        WHERE t.endTime < $cutoff AND NOT EXISTS { (t)-[:CONTAINS]->(:Span) }
+        WITH t LIMIT $limit
+        DETACH DELETE t
+        RETURN count(*);
+        """,
+        Map.of("tokenId", landscapeToken, "cutoff", cutoff, "limit", limit));
   }
 
   /**
@@ -57,6 +127,216 @@ public class TraceRepository {
             Map.of("tokenId", landscapeToken, "from", from, "to", to)));
   }
 
+  /**
+   * Finds a single trace, hydrated like {@link #findHydratedTraces(Session, String, long, long)}.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param traceId OpenTelemetry trace ID
+   * @return Optional describing the trace with all contained spans. Empty if no such trace exists
+   */
+  public Optional<Trace> findHydratedTrace(
+      final Session session, final String landscapeToken, final String traceId) {
+    return Lists.newArrayList(
+            session.query(
+                Trace.class,
+                """
+                MATCH (t:Trace {landscapeToken: $tokenId, traceId: $traceId})
+                CALL apoc.path.subgraphAll(t, {
+                  relationshipFilter: "CONTAINS>|REPRESENTS>|HAS_PARENT>"
+                })
+                YIELD relationships
+                UNWIND relationships as r
+                RETURN startNode(r), r, endNode(r);
+                """,
+                Map.of("tokenId", landscapeToken, "traceId", traceId)))
+        .stream()
+        .findFirst();
+  }
+
+  /**
+   * Finds the summaries of all traces in a landscape whose time range overlaps the given one,
+   * without loading their spans. Summaries are maintained during ingest, see {@link
+   * #refreshSummaries(Session, List)}.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param from Lower bound of time range to include (epoch nanosecond value)
+   * @param to Upper bound of time range to include (epoch nanosecond value)
+   * @return Summaries of the traces in the landscape within the time range, ordered by start time
+   */
+  public List<TraceSummary> findTraceSummaries(
+      final Session session, final String landscapeToken, final long from, final long to) {
+    return session.queryDto(
+        """
+        MATCH (t:Trace {landscapeToken: $tokenId})
+        WHERE t.endTime >= $from AND t.startTime <= $to
+        RETURN
+          t.traceId AS traceId,
+          t.startTime AS startTime,
+          t.endTime AS endTime,
+          coalesce(t.duration, t.endTime - t.startTime) AS duration,
+          coalesce(t.spanCount, 0) AS spanCount,
+          coalesce(t.depth, 0) AS depth,
+          t.rootFunctionId AS rootFunctionId,
+          coalesce(t.samplingRatio, 1.0) AS samplingRatio
+        ORDER BY t.startTime ASC;
+        """,
+        Map.of("tokenId", landscapeToken, "from", from, "to", to),
+        TraceSummary.class);
+  }
+
+  /**
+   * Folds the spans recorded for the first time into the summaries of their traces: the number of
+   * contained spans, the id of the function represented by the earliest root span, the duration and
+   * the depth of the span tree. Only the new spans and the spans persisted below them are visited,
+   * taking the depth of a new span from the stored depth of its parent, such that the cost does not
+   * depend on the size of the trace. Called within the transaction writing the spans.
+   *
+   * @param session OGM session object
+   * @param traces One map per trace with new spans containing the keys landscapeTokenId, traceId,
+   *     newSpanCount, subtreeRoots (ids of the new spans whose parent is not new) and newRoots (the
+   *     earliest new root span as map of startTime and functionId, if any)
+   */
+  public void refreshSummaries(final Session session, final List<Map<String, Object>> traces) {
+    if (traces.isEmpty()) {
+      return;
+    }
+    session.query(
+        """
+        UNWIND $traces AS tr
+        MATCH (t:Trace {landscapeToken: tr.landscapeTokenId, traceId: tr.traceId})
+        CALL (tr) {
+          UNWIND tr.subtreeRoots AS spanId
+          CALL (tr, spanId) {
+            MATCH (r:Span {landscapeToken: tr.landscapeTokenId, spanId: spanId})
+        """
+            + SET_SUBTREE_DEPTH_CLAUSE
+            + """
+          }
+          RETURN max(subtreeDepth) AS depth
+        }
+        SET
+          t.spanCount = coalesce(t.spanCount, 0) + tr.newSpanCount,
+          t.duration = t.endTime - t.startTime,
+          t.depth = CASE
+            WHEN depth IS NULL OR depth < coalesce(t.depth, 0) THEN coalesce(t.depth, 0)
+            ELSE depth
+          END
+        FOREACH (root IN [
+            r IN tr.newRoots WHERE t.rootStartTime IS NULL OR r.startTime < t.rootStartTime
+          ] |
+          SET t.rootStartTime = root.startTime, t.rootFunctionId = root.functionId
+        );
+        """,
+        Map.of("traces", traces));
+  }
+
+  /**
+   * Recomputes the summaries of the given traces in a landscape from all of their persisted spans,
+   * e.g. for traces persisted before summaries were introduced. Span depths are recomputed from the
+   * topmost spans of each trace.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param traceIds Ids of the traces to summarize
+   */
+  public void rebuildSummaries(
+      final Session session, final String landscapeToken, final List<String> traceIds) {
+    session.query(
+        """
+        UNWIND $traceIds AS traceId
+        MATCH (t:Trace {landscapeToken: $tokenId, traceId: traceId})
+        CALL (t) {
+          OPTIONAL MATCH (t)-[:CONTAINS]->(root:Span)-[:REPRESENTS]->(f:Function)
+          WHERE NOT EXISTS { (root)-[:HAS_PARENT]->(:Span) }
+          RETURN id(f) AS rootFunctionId, root.startTime AS rootStartTime
+          ORDER BY root.startTime
+          LIMIT 1
+        }
+        CALL (t) {
+          MATCH (t)-[:CONTAINS]->(r:Span)
+          WHERE NOT EXISTS { (r)-[:HAS_PARENT]->(:Span)<-[:CONTAINS]-(t) }
+          CALL (r) {
+        """
+            + SET_SUBTREE_DEPTH_CLAUSE
+            + """
+          }
+          RETURN max(subtreeDepth) AS depth
+        }
+        SET
+          t.spanCount = COUNT { (t)-[:CONTAINS]->(:Span) },
+          t.rootFunctionId = rootFunctionId,
+          t.rootStartTime = rootStartTime,
+          t.duration = t.endTime - t.startTime,
+          t.depth = coalesce(depth, 0);
+        """,
+        Map.of("tokenId", landscapeToken, "traceIds", traceIds));
+  }
+
+  /**
+   * Finds the sampling ratios of those given traces that have been persisted before. Traces
+   * persisted before sampling was introduced have the ratio 1.
+   *
+   * @param session OGM session object
+   * @param traces One map per trace containing the keys landscapeTokenId and traceId
+   * @return Sampling ratio per persisted trace, keyed by landscape token and trace id
+   */
+  public Map<List<String>, Double> findSamplingRatios(
+      final Session session, final List<Map<String, String>> traces) {
+    final Map<List<String>, Double> ratios = new HashMap<>();
+    session
+        .query(
+            """
+            UNWIND $traces AS tr
+            MATCH (t:Trace {landscapeToken: tr.landscapeTokenId, traceId: tr.traceId})
+            RETURN
+              tr.landscapeTokenId AS landscapeToken,
+              tr.traceId AS traceId,
+              coalesce(t.samplingRatio, 1.0) AS samplingRatio;
+            """,
+            Map.of("traces", traces))
+        .queryResults()
+        .forEach(
+            row ->
+                ratios.put(
+                    List.of((String) row.get("landscapeToken"), (String) row.get("traceId")),
+                    ((Number) row.get("samplingRatio")).doubleValue()));
+    return ratios;
+  }
+
+  /**
+   * Finds the ids of the traces in a landscape in ascending order, starting after the given id.
+   * Used to process all traces of a landscape in chunks.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param afterTraceId Exclusive lower bound of the returned ids, empty string to start at the
+   *     first trace
+   * @param limit Maximum number of ids to return
+   * @return Trace ids in ascending order
+   */
+  public List<String> findTraceIds(
+      final Session session,
+      final String landscapeToken,
+      final String afterTraceId,
+      final int limit) {
+    final List<String> traceIds = new ArrayList<>(limit);
+    session
+        .query(
+            """
+            MATCH (t:Trace {landscapeToken: $tokenId})
+            WHERE t.traceId > $afterTraceId
+            RETURN t.traceId AS traceId
+            ORDER BY t.traceId ASC
+            LIMIT $limit;
+            """,
+            Map.of("tokenId", landscapeToken, "afterTraceId", afterTraceId, "limit", limit))
+        .queryResults()
+        .forEach(row -> traceIds.add((String) row.get("traceId")));
+    return traceIds;
+  }
+
   /**
    * Finds an associated commit hash for a trace by looking for any file referenced by the trace
    * that is contained in a commit. The query operates under the assumption that for any given
@@ -86,6 +366,19 @@ public class TraceRepository {
             Map.of("tokenId", landscapeToken, "traceId", traceId)));
   }
 
+  /**
+   * Counts the spans in a landscape whose function is part of the given commit, grouped into
+   * buckets of the given size. The counts are read from the span counts maintained during ingest,
+   * see {@link SpanCountBucketRepository}, unless the bucket size is not a whole number of seconds.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param newest Upper bound of time range to include (epoch nanosecond value)
+   * @param oldest Lower bound of time range to include (epoch nanosecond value)
+   * @param commitHash Hash of the commit
+   * @param bucketSize Size of the buckets in nanoseconds
+   * @return Span count per bucket, ordered by start time
+   */
   public List<Timestamp> findTimestampsForLandscapeTokenAndCommitAndTimeRange(
       final Session session,
       final String landscapeToken,
@@ -93,6 +386,21 @@ public class TraceRepository {
       final long oldest,
       final String commitHash,
       final long bucketSize) {
+    return spanCountBucketRepository
+        .findTimestamps(session, landscapeToken, commitHash, newest, oldest, bucketSize)
+        .orElseGet(
+            () ->
+                countSpansForCommit(
+                    session, landscapeToken, newest, oldest, commitHash, bucketSize));
+  }
+
+  private List<Timestamp> countSpansForCommit(
+      final Session session,
+      final String landscapeToken,
+      final long newest,
+      final long oldest,
+      final String commitHash,
+      final long bucketSize) {
     return session.queryDto(
         """
         MATCH (l:Landscape {tokenId: $tokenId})
@@ -104,8 +412,9 @@ public class TraceRepository {
             <-[:CONTAINS]-(:Commit {hash: $commitHash}) AND
           s.startTime >= $oldest AND s.startTime <= $newest
         WITH
-          s, toInteger(s.startTime / $bucketSize) * $bucketSize AS bucket
-        RETURN bucket AS startTimeEpochNano, COUNT(s) AS spanCount
+          toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0))) AS weight,
+          toInteger(s.startTime / $bucketSize) * $bucketSize AS bucket
+        RETURN bucket AS startTimeEpochNano, sum(weight) AS spanCount
         ORDER BY bucket ASC;
         """,
         Map.of(
@@ -117,12 +426,41 @@ public class TraceRepository {
         Timestamp.class);
   }
 
+  /**
+   * Counts the spans in a landscape, grouped into buckets of the given size. The counts are read
+   * from the span counts maintained during ingest, see {@link SpanCountBucketRepository}, unless
+   * the bucket size is not a whole number of seconds.
+   *
+   * @param session OGM session object
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param newest Upper bound of time range to include (epoch nanosecond value)
+   * @param oldest Lower bound of time range to include (epoch nanosecond value)
+   * @param bucketSize Size of the buckets in nanoseconds
+   * @return Span count per bucket, ordered by start time
+   */
   public List<Timestamp> findTimestampsForLandscapeTokenAndTimeRange(
       final Session session,
       final String landscapeToken,
       final long newest,
       final long oldest,
       final long bucketSize) {
+    return spanCountBucketRepository
+        .findTimestamps(
+            session,
+            landscapeToken,
+            SpanCountBucketRepository.ALL_COMMITS,
+            newest,
+            oldest,
+            bucketSize)
+        .orElseGet(() -> countSpans(session, landscapeToken, newest, oldest, bucketSize));
+  }
+
+  private List<Timestamp> countSpans(
+      final Session session,
+      final String landscapeToken,
+      final long newest,
+      final long oldest,
+      final long bucketSize) {
     return session.queryDto(
         """
         MATCH (l:Landscape {tokenId: $tokenId})
@@ -131,8 +469,9 @@ public class TraceRepository {
         WHERE
           s.startTime >= $oldest AND s.startTime <= $newest
         WITH
-          s, toInteger(s.startTime / $bucketSize) * $bucketSize AS bucket
-        RETURN bucket AS startTimeEpochNano, COUNT(s) AS spanCount
+          toInteger(round(1.0 / coalesce(t.samplingRatio, 1.0))) AS weight,
+          toInteger(s.startTime / $bucketSize) * $bucketSize AS bucket
+        RETURN bucket AS startTimeEpochNano, sum(weight) AS spanCount
         ORDER BY bucket ASC;
         """,
         Map.of(
@@ -172,10 +511,11 @@ public class TraceRepository {
         DETACH DELETE d;
         """,
         Map.of("tokenId", landscapeToken));
-  }
-
-  public Trace getOrCreateTrace(final Session session, final String traceId) {
-    return findTraceById(session, traceId).orElse(new Trace(traceId));
+    spanCountBucketRepository.deleteSpanCounts(session, landscapeToken);
+    functionCallRepository.deleteCalls(session, landscapeToken);
+    functionResolutionCache.invalidateLandscape(landscapeToken);
+    // Directories without files are deleted regardless of their landscape
+    directoryPathCache.invalidateAll();
   }
 
   /**
@@ -186,6 +526,29 @@ public class TraceRepository {
    */
   public record Timestamp(long startTimeEpochNano, long spanCount) {}
 
+  /**
+   * Summary of a trace as maintained during ingest.
+   *
+   * @param traceId ID of the trace as specified by OpenTelemetry
+   * @param startTime Start time of the trace (epoch nanosecond value)
+   * @param endTime End time of the trace (epoch nanosecond value)
+   * @param duration Difference between end and start time in nanoseconds
+   * @param spanCount Number of spans contained in the trace
+   * @param depth Number of levels of the span tree
+   * @param rootFunctionId ID of the function represented by the root span, null if no root span
+   *     has been received
+   * @param samplingRatio Share of traces kept while this trace was ingested
+   */
+  public record TraceSummary(
+      String traceId,
+      long startTime,
+      long endTime,
+      long duration,
+      long spanCount,
+      long depth,
+      Long rootFunctionId,
+      double samplingRatio) {}
+
   /**
    * Represents aggregated communication between two files.
    *
@@ -221,7 +584,9 @@ public class TraceRepository {
       long executionTime) {}
 
   /**
-   * Finds aggregated communication between files for a given landscape and time range.
+   * Finds aggregated communication between files for a given landscape and time range. The
+   * communication is computed from the calls between functions aggregated during ingest, see {@link
+   * FunctionCallRepository}, i.e. the time range is effectively widened to whole buckets.
    *
    * @param session OGM session object
    * @param landscapeToken String identifier of the visualization landscape
@@ -233,20 +598,30 @@ public class TraceRepository {
       final Session session, final String landscapeToken, final long from, final long to) {
     return session.queryDto(
         """
-        MATCH (l:Landscape {tokenId: $tokenId})-[:CONTAINS]->(t:Trace)-[:CONTAINS]->(child:Span)
-        MATCH (child)-[:HAS_PARENT]->(parent:Span)
-        WHERE child.startTime >= $from AND child.startTime <= $to
-        MATCH (child)-[:REPRESENTS]->(childFunc:Function)<-[:CONTAINS*]-(childFile:FileRevision)
-        MATCH (parent)-[:REPRESENTS]->(parentFunc:Function)<-[:CONTAINS*]-(parentFile:FileRevision)
-        WITH parentFile, childFile, COUNT(child) AS requestCount, COUNT(DISTINCT childFunc) AS functionCount, SUM(child.endTime - child.startTime) AS executionTime
+        MATCH (parentFunc:Function)-[c:CALLS {landscapeToken: $tokenId}]->(childFunc:Function)
+        WHERE c.startTime + $bucketSize > $from AND c.startTime <= $to
+        WITH parentFunc, childFunc, SUM(c.requestCount) AS requestCount, SUM(c.executionTime) AS executionTime
+        MATCH (childFunc)<-[:CONTAINS*]-(childFile:FileRevision)
+        MATCH (parentFunc)<-[:CONTAINS*]-(parentFile:FileRevision)
+        WITH parentFile, childFile, SUM(requestCount) AS requestCount, COUNT(DISTINCT childFunc) AS functionCount, SUM(executionTime) AS executionTime
         RETURN id(parentFile) AS sourceFileId, parentFile.name AS sourceFileName, id(childFile) AS targetFileId, childFile.name AS targetFileName, requestCount, functionCount, executionTime;
         """,
-        Map.of("tokenId", landscapeToken, "from", from, "to", to),
+        Map.of(
+            "tokenId",
+            landscapeToken,
+            "from",
+            from,
+            "to",
+            to,
+            "bucketSize",
+            FunctionCallRepository.BUCKET_SIZE),
         FileCommunication.class);
   }
 
   /**
-   * Finds unique functions called from a source file to a target file within a given time range.
+   * Finds unique functions called from a source file to a target file within a given time range,
+   * computed from the calls between functions aggregated during ingest like {@link
+   * #findAggregatedFileCommunication(Session, String, long, long)}.
    *
    * @param session OGM session object
    * @param landscapeToken String identifier of the visualization landscape
@@ -267,16 +642,16 @@ public class TraceRepository {
         """
         MATCH (sourceNode) WHERE id(sourceNode) = $sourceFileId
         MATCH (targetNode) WHERE id(targetNode) = $targetFileId
-        MATCH (l:Landscape {tokenId: $tokenId})-[:CONTAINS]->(t:Trace)-[:CONTAINS]->(child:Span)
-        MATCH (child)-[:HAS_PARENT]->(parent:Span)
-        WHERE child.startTime >= $from AND child.startTime <= $to
-        MATCH (child)-[:REPRESENTS]->(childFunc:Function)<-[:CONTAINS*]-(childFile:FileRevision)
-        MATCH (parent)-[:REPRESENTS]->(parentFunc:Function)<-[:CONTAINS*]-(parentFile:FileRevision)
+        MATCH (parentFunc:Function)-[c:CALLS {landscapeToken: $tokenId}]->(childFunc:Function)
+        WHERE c.startTime + $bucketSize > $from AND c.startTime <= $to
+        WITH sourceNode, targetNode, parentFunc, childFunc, SUM(c.requestCount) AS requestCount, SUM(c.executionTime) AS executionTime
+        MATCH (childFunc)<-[:CONTAINS*]-(childFile:FileRevision)
+        MATCH (parentFunc)<-[:CONTAINS*]-(parentFile:FileRevision)
         WHERE (sourceNode)-[:CONTAINS*0..]->(parentFile) AND (targetNode)-[:CONTAINS*0..]->(childFile)
         RETURN id(childFunc) AS functionId, childFunc.name AS functionName,
                id(parentFile) AS sourceFileId, parentFile.name AS sourceFileName,
                id(childFile) AS targetFileId, childFile.name AS targetFileName,
-               COUNT(child) AS requestCount, SUM(child.endTime - child.startTime) AS executionTime;
+               SUM(requestCount) AS requestCount, SUM(executionTime) AS executionTime;
         """,
         Map.of(
             "tokenId",
@@ -288,7 +663,9 @@ public class TraceRepository {
             "from",
             from,
             "to",
-            to),
+            to,
+            "bucketSize",
+            FunctionCallRepository.BUCKET_SIZE),
         FunctionCommunication.class);
   }
 }
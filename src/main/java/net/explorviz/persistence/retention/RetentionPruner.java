@@ -0,0 +1,291 @@
+package net.explorviz.persistence.retention;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.configuration.DurationConverter;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import net.explorviz.persistence.messaging.SpanIngestWorkers;
+import net.explorviz.persistence.repository.FunctionCallRepository;
+import net.explorviz.persistence.repository.FunctionCallRepository.CallKey;
+import net.explorviz.persistence.repository.FunctionCallRepository.CallTotals;
+import net.explorviz.persistence.repository.LandscapeRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository.BucketKey;
+import net.explorviz.persistence.repository.SpanRepository;
+import net.explorviz.persistence.repository.SpanRepository.ExpiredSpan;
+import net.explorviz.persistence.repository.SpanRepository.RecordedChild;
+import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.schema.SchemaManager;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.DatabaseWorkLimiter;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.neo4j.ogm.transaction.Transaction;
+
+/**
+ * Periodically deletes runtime data older than the retention period of its landscape. A trace
+ * expires once it ended before the retention period. Expired spans are deleted in chunks of at
+ * most the configured size, each in its own transaction and followed by a pause, such that neither
+ * the transaction memory nor the ingest is exhausted. The timeline span counts and aggregated
+ * function calls are decremented within the same transaction. Afterwards, traces without spans and
+ * placeholder spans without children are deleted in chunks as well. Each chunk runs between span
+ * batches, see {@link SpanIngestWorkers#runExclusively(java.util.function.Supplier)}, such that the
+ * counts are not adjusted concurrently with the ingest of spans of the same traces.
+ *
+ * <p>The job keeps no state besides the data itself, so an interrupted run simply continues with
+ * the next one. The file and class structure discovered from the spans is kept. The number of
+ * deleted spans, traces and chunks is exposed as metrics under the prefix {@value
+ * #METRIC_PREFIX}.
+ */
+@ApplicationScoped
+public class RetentionPruner {
+
+  private static final String METRIC_PREFIX = "explorviz.retention";
+
+  @ConfigProperty(name = "explorviz.retention.enabled", defaultValue = "false")
+  boolean enabled;
+
+  @ConfigProperty(name = "explorviz.retention.period")
+  Optional<Duration> defaultPeriod;
+
+  @ConfigProperty(name = "explorviz.retention.landscape-periods")
+  Optional<List<String>> landscapePeriodEntries;
+
+  @ConfigProperty(name = "explorviz.retention.chunk-size", defaultValue = "10000")
+  int chunkSize;
+
+  @ConfigProperty(name = "explorviz.retention.chunk-delay", defaultValue = "100ms")
+  Duration chunkDelay;
+
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
+
+  @Inject FunctionCallRepository functionCallRepository;
+
+  @Inject LandscapeRepository landscapeRepository;
+
+  @Inject MeterRegistry meterRegistry;
+
+  @Inject SchemaManager schemaManager;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanCountBucketRepository spanCountBucketRepository;
+
+  @Inject SpanIngestWorkers spanIngestWorkers;
+
+  @Inject SpanRepository spanRepository;
+
+  @Inject TraceRepository traceRepository;
+
+  private final Map<String, Duration> landscapePeriods = new HashMap<>();
+
+  private Counter deletedSpans;
+
+  private Counter deletedTraces;
+
+  private Counter deletedChunks;
+
+  @PostConstruct
+  void init() {
+    for (final String entry : landscapePeriodEntries.orElse(List.of())) {
+      final int separator = entry.lastIndexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException(
+            "Invalid landscape retention period, expected <token>=<duration>: " + entry);
+      }
+      landscapePeriods.put(
+          entry.substring(0, separator).trim(),
+          DurationConverter.parseDuration(entry.substring(separator + 1).trim()));
+    }
+
+    deletedSpans = meterRegistry.counter(METRIC_PREFIX + ".deleted-spans");
+    deletedTraces = meterRegistry.counter(METRIC_PREFIX + ".deleted-traces");
+    deletedChunks = meterRegistry.counter(METRIC_PREFIX + ".chunks");
+  }
+
+  /** Returns the retention period of the landscape, empty if its data is kept indefinitely. */
+  public Optional<Duration> getRetentionPeriod(final String landscapeToken) {
+    return Optional.ofNullable(landscapePeriods.get(landscapeToken)).or(() -> defaultPeriod);
+  }
+
+  @Scheduled(
+      every = "${explorviz.retention.interval:10m}",
+      delayed = "${explorviz.retention.interval:10m}",
+      concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  void pruneExpiredData() {
+    if (!enabled || !schemaManager.isReady()) {
+      return;
+    }
+
+    final Instant now = Instant.now();
+    final long nowNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+
+    for (final String landscapeToken :
+        landscapeRepository.findAllTokenIds(sessionFactory.openSession())) {
+      final Optional<Duration> period = getRetentionPeriod(landscapeToken);
+      if (period.isEmpty()) {
+        continue;
+      }
+      try {
+        prune(landscapeToken, nowNanos - period.get().toNanos());
+      } catch (RuntimeException e) { // NOPMD
+        Log.errorf(e, "Failed to prune expired data of landscape %s", landscapeToken);
+      }
+    }
+  }
+
+  /**
+   * Deletes the traces of the landscape which ended before the cutoff, along with their spans.
+   *
+   * @param landscapeToken String identifier of the visualization landscape
+   * @param cutoff Traces ending before this time are deleted (epoch nanosecond value)
+   */
+  public void prune(final String landscapeToken, final long cutoff) {
+    long spans = 0;
+    long traces = 0;
+
+    long deleted;
+    while ((deleted = inTransaction(session -> pruneSpans(session, landscapeToken, cutoff))) > 0) {
+      spans += deleted;
+      throttle();
+    }
+    while ((deleted =
+            inTransaction(
+                session ->
+                    traceRepository.deleteExpiredTraces(
+                        session, landscapeToken, cutoff, chunkSize)))
+        > 0) {
+      traces += deleted;
+      deletedTraces.increment(deleted);
+      throttle();
+    }
+    while ((deleted =
+            inTransaction(
+                session ->
+                    spanRepository.deleteOrphanedPlaceholders(session, landscapeToken, chunkSize)))
+        > 0) {
+      spans += deleted;
+      deletedSpans.increment(deleted);
+      throttle();
+    }
+
+    if (spans > 0 || traces > 0) {
+      Log.infof(
+          "Pruned %d traces and %d spans of landscape %s", traces, spans, landscapeToken);
+    }
+  }
+
+  /**
+   * Deletes one chunk of expired spans and subtracts them from the span counts and aggregated
+   * calls. A call is subtracted when the first of its two spans is deleted.
+   *
+   * @return Number of deleted spans
+   */
+  private long pruneSpans(final Session session, final String landscapeToken, final long cutoff) {
+    final List<ExpiredSpan> expiredSpans =
+        spanRepository.findExpiredSpans(session, landscapeToken, cutoff, chunkSize);
+    if (expiredSpans.isEmpty()) {
+      return 0;
+    }
+
+    final Map<String, ExpiredSpan> expiredById =
+        expiredSpans.stream()
+            .collect(Collectors.toMap(ExpiredSpan::spanId, Function.identity(), (a, b) -> a));
+    final Map<Long, List<String>> commitHashes =
+        spanCountBucketRepository.findCommitHashesForFunctions(
+            session,
+            expiredSpans.stream()
+                .map(ExpiredSpan::functionId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet()));
+
+    final Map<BucketKey, Long> spanCounts = new HashMap<>();
+    final Map<CallKey, CallTotals> calls = new HashMap<>();
+
+    for (final ExpiredSpan span : expiredById.values()) {
+      spanCounts.merge(
+          BucketKey.of(landscapeToken, SpanCountBucketRepository.ALL_COMMITS, span.startTime()),
+          -span.weight(),
+          Long::sum);
+      if (span.functionId() == null) {
+        continue;
+      }
+      for (final String commitHash : commitHashes.getOrDefault(span.functionId(), List.of())) {
+        spanCounts.merge(
+            BucketKey.of(landscapeToken, commitHash, span.startTime()), -span.weight(), Long::sum);
+      }
+      if (span.parentFunctionId() != null) {
+        calls.merge(
+            CallKey.of(
+                landscapeToken, span.parentFunctionId(), span.functionId(), span.startTime()),
+            CallTotals.ofSpan(span.startTime(), span.endTime(), span.weight()).negate(),
+            CallTotals::add);
+      }
+    }
+
+    // Calls to children deleted in the same chunk have been subtracted as calls of the children
+    final Set<String> expiredIds = expiredById.keySet();
+    final List<Map<String, String>> parentKeys =
+        expiredIds.stream()
+            .map(spanId -> Map.of("landscapeToken", landscapeToken, "spanId", spanId))
+            .toList();
+    for (final RecordedChild child : spanRepository.findRecordedChildren(session, parentKeys)) {
+      final Long callerId = expiredById.get(child.parentId()).functionId();
+      if (callerId != null && !expiredIds.contains(child.spanId())) {
+        calls.merge(
+            CallKey.of(landscapeToken, callerId, child.functionId(), child.startTime()),
+            CallTotals.ofSpan(child.startTime(), child.endTime(), child.weight()).negate(),
+            CallTotals::add);
+      }
+    }
+
+    spanCountBucketRepository.incrementSpanCounts(session, spanCounts);
+    functionCallRepository.incrementCalls(session, calls);
+    spanRepository.deleteSpans(session, landscapeToken, List.copyOf(expiredIds));
+
+    deletedSpans.increment(expiredIds.size());
+    deletedChunks.increment();
+    return expiredIds.size();
+  }
+
+  private <T> T inTransaction(final Function<Session, T> work) {
+    return spanIngestWorkers.runExclusively(
+        () -> {
+          final Session session = sessionFactory.openSession();
+          try (DatabaseWorkLimiter.Permit permit =
+                  databaseWorkLimiter.acquire(DatabaseWorkClass.STATIC_INGEST);
+              Transaction tx = session.beginTransaction()) {
+            final T result = work.apply(session);
+            tx.commit();
+            return result;
+          }
+        });
+  }
+
+  private void throttle() {
+    if (chunkDelay.isZero()) {
+      return;
+    }
+    try {
+      Thread.sleep(chunkDelay.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while pruning expired data", e);
+    }
+  }
+}
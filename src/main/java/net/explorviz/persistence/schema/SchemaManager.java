@@ -0,0 +1,367 @@
+package net.explorviz.persistence.schema;
+
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import io.quarkus.virtual.threads.VirtualThreads;
+import io.smallrye.reactive.messaging.ChannelRegistry;
+import io.smallrye.reactive.messaging.PausableChannel;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import net.explorviz.persistence.repository.ClazzRepository;
+import net.explorviz.persistence.repository.DirectoryRepository;
+import net.explorviz.persistence.repository.FunctionCallRepository;
+import net.explorviz.persistence.repository.LandscapeRepository;
+import net.explorviz.persistence.repository.SchemaMigrationRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository;
+import net.explorviz.persistence.repository.SpanRepository;
+import net.explorviz.persistence.repository.TraceRepository;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+/**
+ * Declares the indexes and constraints required by the repository queries and creates them
+ * idempotently in the background after startup. Until all of them are ONLINE and the derived span
+ * data has been rebuilt, the service is reported as not ready, the span channel stays paused and
+ * gRPC calls are rejected, since every lookup would otherwise fall back to a label scan. If the
+ * schema cannot be set up, e.g. because the database is unreachable or existing duplicates prevent
+ * a uniqueness constraint, the setup is retried periodically. Afterwards, the path and FQN keys of
+ * nodes saved without them are backfilled in the background.
+ */
+@ApplicationScoped
+public class SchemaManager {
+
+  public static final String SPAN_CHANNEL = "explorviz-spans";
+
+  private static final List<SchemaIndex> SCHEMA_INDEXES =
+      List.of(
+          SchemaIndex.unique("landscape_token_id", "Landscape", "tokenId"),
+          SchemaIndex.unique("span_landscape_span_id", "Span", "landscapeToken", "spanId"),
+          SchemaIndex.unique("trace_landscape_trace_id", "Trace", "landscapeToken", "traceId"),
+          SchemaIndex.unique(
+              "span_count_bucket_key",
+              "SpanCountBucket",
+              "landscapeToken",
+              "commitHash",
+              "resolution",
+              "startTime"),
+          SchemaIndex.range("trace_landscape_end_time", "Trace", "landscapeToken", "endTime"),
+          SchemaIndex.range("commit_hash", "Commit", "hash"),
+          SchemaIndex.range("file_revision_hash", "FileRevision", "hash"),
+          SchemaIndex.range("file_revision_name_hash", "FileRevision", "name", "hash"),
+          SchemaIndex.range("application_name", "Application", "name"),
+          SchemaIndex.range("repository_name", "Repository", "name"),
+          SchemaIndex.range("branch_name", "Branch", "name"),
+          SchemaIndex.range("tag_name", "Tag", "name"),
+          SchemaIndex.range("directory_name", "Directory", "name"),
+          SchemaIndex.range(
+              "file_revision_repository_path",
+              "FileRevision",
+              "landscapeToken",
+              "repositoryName",
+              "path",
+              "hash"),
+          SchemaIndex.range(
+              "directory_repository_path",
+              "Directory",
+              "landscapeToken",
+              "repositoryName",
+              "path"),
+          SchemaIndex.range(
+              "directory_application_path",
+              "Directory",
+              "landscapeToken",
+              "applicationName",
+              "path"),
+          SchemaIndex.range("clazz_name", "Clazz", "name"),
+          SchemaIndex.range("clazz_file_revision_fqn", "Clazz", "fileRevisionId", "fqn"),
+          SchemaIndex.range("function_name", "Function", "name"),
+          SchemaIndex.range("function_file_revision_fqn", "Function", "fileRevisionId", "fqn"),
+          SchemaIndex.relationship(
+              "calls_landscape_start", "CALLS", "landscapeToken", "startTime"));
+
+  @ConfigProperty(name = "explorviz.schema.await-timeout", defaultValue = "10m")
+  Duration awaitTimeout;
+
+  @ConfigProperty(name = "explorviz.schema.backfill-batch-size", defaultValue = "10000")
+  int backfillBatchSize;
+
+  /** Whether startup waits for the schema, e.g. such that tests start against a ready service. */
+  @ConfigProperty(name = "explorviz.schema.block-startup", defaultValue = "false")
+  boolean blockStartup;
+
+  @Inject ChannelRegistry channelRegistry;
+
+  @Inject ClazzRepository clazzRepository;
+
+  @Inject DirectoryRepository directoryRepository;
+
+  @Inject LandscapeRepository landscapeRepository;
+
+  @Inject SchemaMigrationRepository schemaMigrationRepository;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataRebuilder spanDataRebuilder;
+
+  @Inject SpanRepository spanRepository;
+
+  @Inject TraceRepository traceRepository;
+
+  @Inject @VirtualThreads ExecutorService virtualThreads;
+
+  private final AtomicBoolean keyBackfillRunning = new AtomicBoolean();
+
+  private volatile boolean ready;
+
+  private volatile boolean keysBackfilled;
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  void onStart(@Observes final StartupEvent event) {
+    if (blockStartup) {
+      initializeSchema();
+    } else {
+      virtualThreads.execute(this::initializeSchema);
+    }
+  }
+
+  @Scheduled(
+      every = "${explorviz.schema.retry-interval:30s}",
+      delayed = "${explorviz.schema.retry-interval:30s}",
+      concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  void retryInitialization() {
+    if (!ready) {
+      initializeSchema();
+    } else if (!keysBackfilled) {
+      startKeyBackfill();
+    }
+  }
+
+  /**
+   * Returns the state of each declared index and constraint, e.g. ONLINE or POPULATING. Indexes
+   * which do not exist yet are reported as MISSING.
+   */
+  public Map<String, String> getIndexStates() {
+    final Map<String, String> states = new LinkedHashMap<>();
+    getDeclaredNames().forEach(name -> states.put(name, "MISSING"));
+
+    final Session session = sessionFactory.openSession();
+    session
+        .query(
+            """
+            SHOW INDEXES
+            YIELD name, state
+            WHERE name IN $names
+            RETURN name, state;
+            """,
+            Map.of("names", getDeclaredNames()))
+        .queryResults()
+        .forEach(row -> states.put((String) row.get("name"), (String) row.get("state")));
+
+    return states;
+  }
+
+  private static List<String> getDeclaredNames() {
+    return SCHEMA_INDEXES.stream().map(SchemaIndex::name).toList();
+  }
+
+  private synchronized void initializeSchema() {
+    if (ready) {
+      return;
+    }
+
+    try {
+      final Session session = sessionFactory.openSession();
+      runBackfills(session);
+      SCHEMA_INDEXES.forEach(index -> createIndex(session, index));
+
+      Log.info("Waiting for database indexes to come online");
+      session.query(
+          "CALL db.awaitIndexes($timeout);", Map.of("timeout", awaitTimeout.toSeconds()));
+      rebuildDerivedSpanData(session);
+
+      ready = true;
+      Log.info("Database schema is online");
+      resumeSpanChannel();
+      startKeyBackfill();
+    } catch (RuntimeException e) { // NOPMD
+      Log.error("Failed to set up database schema, retrying later", e);
+    }
+  }
+
+  /**
+   * Sets the path keys of directories and files and the FQN keys of classes and functions saved
+   * without them, e.g. before the keys were introduced, in the background while spans are
+   * ingested. Runs on every start, since nodes may also be saved without keys later on, and only
+   * once the indexes are online. Lookups by key set missing keys on demand, see {@link
+   * DirectoryRepository#keyChildren(Session, java.util.Collection)} and {@link
+   * ClazzRepository#keyChildren(Session, java.util.Collection)}, so the ingest does not depend on
+   * the backfill. A failed backfill is retried with the next scheduled check.
+   */
+  private void startKeyBackfill() {
+    if (!keyBackfillRunning.compareAndSet(false, true)) {
+      return;
+    }
+
+    virtualThreads.execute(
+        () -> {
+          try {
+            final Session session = sessionFactory.openSession();
+            logBackfilled(
+                "directory and file path keys",
+                directoryRepository.backfillPathKeys(session, backfillBatchSize));
+            logBackfilled(
+                "class and function FQN keys",
+                clazzRepository.backfillFqnKeys(session, backfillBatchSize));
+            keysBackfilled = true;
+          } catch (RuntimeException e) { // NOPMD
+            Log.error("Failed to backfill keys, retrying later", e);
+          } finally {
+            keyBackfillRunning.set(false);
+          }
+        });
+  }
+
+  /**
+   * Sets properties introduced after data has already been persisted, such that the data satisfies
+   * the declared constraints. Each chunk is committed separately, so an interrupted backfill
+   * resumes where it stopped.
+   */
+  private void runBackfills(final Session session) {
+    backfill(
+        "trace landscape tokens",
+        () -> traceRepository.backfillLandscapeTokens(session, backfillBatchSize));
+    backfill(
+        "span landscape tokens",
+        () -> spanRepository.backfillLandscapeTokens(session, backfillBatchSize));
+  }
+
+  private static void backfill(final String description, final LongSupplier chunk) {
+    long total = 0;
+    long updated;
+    do {
+      updated = chunk.getAsLong();
+      total += updated;
+    } while (updated > 0);
+
+    logBackfilled(description, total);
+  }
+
+  private static void logBackfilled(final String description, final long total) {
+    if (total > 0) {
+      Log.infof("Backfilled %d %s", total, description);
+    }
+  }
+
+  /**
+   * Builds the timeline span counts, the aggregated function calls and the trace summaries from the
+   * persisted spans if they have not been built yet, e.g. for data persisted before they were
+   * introduced. Each landscape is rebuilt from scratch in committed chunks by the {@link
+   * SpanDataRebuilder}, so an interrupted rebuild can safely be repeated.
+   */
+  private void rebuildDerivedSpanData(final Session session) {
+    rebuild(
+        session,
+        SpanCountBucketRepository.REBUILD_MIGRATION,
+        spanDataRebuilder::rebuildSpanCounts);
+    rebuild(session, FunctionCallRepository.REBUILD_MIGRATION, spanDataRebuilder::rebuildCalls);
+    rebuild(session, TraceRepository.SUMMARY_MIGRATION, spanDataRebuilder::rebuildSummaries);
+  }
+
+  private void rebuild(
+      final Session session, final String migration, final Consumer<String> rebuildLandscape) {
+    if (schemaMigrationRepository.isApplied(session, migration)) {
+      return;
+    }
+
+    Log.infof("Running migration %s for persisted spans", migration);
+    landscapeRepository.findAllTokenIds(session).forEach(rebuildLandscape);
+    schemaMigrationRepository.markApplied(session, migration);
+  }
+
+  /**
+   * Creates the index or constraint if it does not exist yet. A uniqueness constraint is required
+   * rather than optional, since the ingest relies on it for concurrent merges, so the schema is not
+   * set up while existing duplicates prevent it.
+   */
+  private void createIndex(final Session session, final SchemaIndex index) {
+    if (!index.unique()) {
+      session.query(index.indexStatement(), Map.of());
+      return;
+    }
+
+    final boolean exists =
+        session.queryForObject(
+            Boolean.class,
+            "SHOW CONSTRAINTS YIELD name WHERE name = $name RETURN count(*) > 0;",
+            Map.of("name", index.name()));
+    if (exists) {
+      return;
+    }
+
+    try {
+      // A plain index of the same name would turn the constraint statement into a no-op
+      session.query("DROP INDEX " + index.name() + " IF EXISTS", Map.of());
+      session.query(index.constraintStatement(), Map.of());
+    } catch (RuntimeException e) { // NOPMD
+      throw new IllegalStateException(
+          "Could not create constraint " + index.name() + ", e.g. due to duplicate nodes", e);
+    }
+  }
+
+  private void resumeSpanChannel() {
+    final PausableChannel channel = channelRegistry.getPausable(SPAN_CHANNEL);
+    // Not pausable if the channel is disabled, e.g. in tests
+    if (channel != null) {
+      channel.resume();
+    }
+  }
+
+  /**
+   * Range index or uniqueness constraint on one or more properties of a node label, or range index
+   * on properties of a relationship type.
+   */
+  private record SchemaIndex(String name, String pattern, List<String> properties, boolean unique) {
+
+    static SchemaIndex range(final String name, final String label, final String... properties) {
+      return new SchemaIndex(name, "(n:" + label + ")", List.of(properties), false);
+    }
+
+    static SchemaIndex unique(final String name, final String label, final String... properties) {
+      return new SchemaIndex(name, "(n:" + label + ")", List.of(properties), true);
+    }
+
+    static SchemaIndex relationship(
+        final String name, final String type, final String... properties) {
+      return new SchemaIndex(name, "()-[n:" + type + "]-()", List.of(properties), false);
+    }
+
+    String indexStatement() {
+      return String.format(
+          "CREATE INDEX %s IF NOT EXISTS FOR %s ON (%s)", name, pattern, nodeProperties());
+    }
+
+    String constraintStatement() {
+      return String.format(
+          "CREATE CONSTRAINT %s IF NOT EXISTS FOR %s REQUIRE (%s) IS UNIQUE",
+          name, pattern, nodeProperties());
+    }
+
+    private String nodeProperties() {
+      return String.join(", ", properties.stream().map(property -> "n." + property).toList());
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package net.explorviz.persistence.schema;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
+import org.eclipse.microprofile.health.Readiness;
+
+/** Reports readiness once all indexes declared by the {@link SchemaManager} are online. */
+@Readiness
+@ApplicationScoped
+public class SchemaReadinessCheck implements HealthCheck {
+
+  @Inject SchemaManager schemaManager;
+
+  @Override
+  public HealthCheckResponse call() {
+    final HealthCheckResponseBuilder response =
+        HealthCheckResponse.named("Database schema").status(schemaManager.isReady());
+
+    try {
+      schemaManager.getIndexStates().forEach(response::withData);
+    } catch (RuntimeException e) { // NOPMD
+      response.down().withData("error", e.getMessage());
+    }
+
+    return response.build();
+  }
+}
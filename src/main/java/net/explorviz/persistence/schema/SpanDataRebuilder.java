@@ -0,0 +1,91 @@
+package net.explorviz.persistence.schema;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+import net.explorviz.persistence.repository.FunctionCallRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository;
+import net.explorviz.persistence.repository.TraceRepository;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.neo4j.ogm.transaction.Transaction;
+
+/**
+ * Rebuilds the data derived from the persisted spans of a landscape, i.e. the timeline span counts,
+ * the aggregated function calls and the trace summaries. The existing data is deleted and rebuilt
+ * from the traces of the landscape in chunks of rebuild-batch-size, each committed separately, so
+ * the size of a transaction does not depend on the size of the landscape. An interrupted rebuild
+ * starts from scratch when repeated. Must not run concurrently with the ingest of spans for the
+ * landscape.
+ */
+@ApplicationScoped
+public class SpanDataRebuilder {
+
+  @ConfigProperty(name = "explorviz.schema.rebuild-batch-size", defaultValue = "1000")
+  int rebuildBatchSize;
+
+  @Inject FunctionCallRepository functionCallRepository;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanCountBucketRepository spanCountBucketRepository;
+
+  @Inject TraceRepository traceRepository;
+
+  public void rebuildSpanCounts(final String landscapeToken) {
+    rebuild(
+        landscapeToken,
+        session ->
+            spanCountBucketRepository.deleteSpanCounts(session, landscapeToken, rebuildBatchSize),
+        (session, traceIds) ->
+            spanCountBucketRepository.addSpanCounts(session, landscapeToken, traceIds));
+  }
+
+  public void rebuildCalls(final String landscapeToken) {
+    rebuild(
+        landscapeToken,
+        session -> functionCallRepository.deleteCalls(session, landscapeToken, rebuildBatchSize),
+        (session, traceIds) -> functionCallRepository.addCalls(session, landscapeToken, traceIds));
+  }
+
+  public void rebuildSummaries(final String landscapeToken) {
+    // Summaries are overwritten per trace, so there is nothing to delete beforehand
+    rebuild(
+        landscapeToken,
+        session -> 0L,
+        (session, traceIds) ->
+            traceRepository.rebuildSummaries(session, landscapeToken, traceIds));
+  }
+
+  private void rebuild(
+      final String landscapeToken,
+      final ToLongFunction<Session> deleteChunk,
+      final BiConsumer<Session, List<String>> addTraces) {
+    final Session session = sessionFactory.openSession();
+
+    long deleted;
+    do {
+      try (Transaction tx = session.beginTransaction()) {
+        deleted = deleteChunk.applyAsLong(session);
+        tx.commit();
+      }
+    } while (deleted > 0);
+
+    String afterTraceId = "";
+    while (true) {
+      final List<String> traceIds =
+          traceRepository.findTraceIds(session, landscapeToken, afterTraceId, rebuildBatchSize);
+      if (traceIds.isEmpty()) {
+        return;
+      }
+      try (Transaction tx = session.beginTransaction()) {
+        addTraces.accept(session, traceIds);
+        tx.commit();
+      }
+      afterTraceId = traceIds.get(traceIds.size() - 1);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package net.explorviz.persistence.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Concurrency limit which adapts to the observed latency using additive increase and
+ * multiplicative decrease (AIMD). Every completed unit of work is compared against the long-term
+ * average latency of its {@link DatabaseWorkClass}, since work of different classes differs in
+ * size. A sample exceeding the average by the tolerance factor indicates queueing in the database
+ * and reduces the limit by the backoff ratio. Samples of work which started before the last
+ * decrease are not counted again. Otherwise, the limit grows by one per window of limit samples
+ * while it is being used at least by half.
+ *
+ * <p>Not thread-safe, callers have to synchronize access.
+ */
+public class AdaptiveLimit {
+
+  /** Weight of a new sample in the long-term average latency. */
+  private static final double AVERAGE_WEIGHT = 0.01;
+
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private final double backoffRatio;
+
+  private final double latencyTolerance;
+
+  private final Map<DatabaseWorkClass, Double> averageLatencies =
+      new EnumMap<>(DatabaseWorkClass.class);
+
+  private double limit;
+
+  private boolean decreased;
+
+  private long lastDecrease;
+
+  /**
+   * Creates a limit starting at the given value.
+   *
+   * @param initialLimit Limit until the first adjustment
+   * @param minLimit Lower bound of the limit
+   * @param maxLimit Upper bound of the limit
+   * @param backoffRatio Factor applied to the limit on a latency increase, between 0 and 1
+   * @param latencyTolerance Factor by which a sample may exceed the average latency
+   */
+  public AdaptiveLimit(
+      final int initialLimit,
+      final int minLimit,
+      final int maxLimit,
+      final double backoffRatio,
+      final double latencyTolerance) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException(
+          "Invalid limit bounds: min " + minLimit + ", max " + maxLimit);
+    }
+    if (backoffRatio <= 0 || backoffRatio >= 1 || latencyTolerance <= 1) {
+      throw new IllegalArgumentException(
+          "Invalid backoff ratio " + backoffRatio + " or latency tolerance " + latencyTolerance);
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.backoffRatio = backoffRatio;
+    this.latencyTolerance = latencyTolerance;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Adjusts the limit to a completed unit of work.
+   *
+   * @param workClass Class of the work
+   * @param startTime Time the work started as given by {@link System#nanoTime()}
+   * @param endTime Time the work ended as given by {@link System#nanoTime()}
+   * @param inFlight Number of units in flight while the work ended, including itself
+   */
+  public void onSample(
+      final DatabaseWorkClass workClass,
+      final long startTime,
+      final long endTime,
+      final int inFlight) {
+    final double latency = endTime - startTime;
+    final Double average = averageLatencies.get(workClass);
+    if (average == null) {
+      averageLatencies.put(workClass, latency);
+      return;
+    }
+    averageLatencies.put(workClass, average + (latency - average) * AVERAGE_WEIGHT);
+
+    if (latency > average * latencyTolerance) {
+      if (!decreased || startTime - lastDecrease > 0) {
+        limit = Math.max(minLimit, limit * backoffRatio);
+        decreased = true;
+        lastDecrease = endTime;
+      }
+    } else if (inFlight * 2 >= limit) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package net.explorviz.persistence.util;
+
+/**
+ * Thrown if a caller could not start working on the database because the configured number of
+ * concurrent callers was exceeded for too long. Callers may retry later.
+ */
+public class DatabaseBusyException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public DatabaseBusyException(final String message) {
+    super(message);
+  }
+
+  public DatabaseBusyException(final String message, final Throwable cause) {
+    super(message, cause);
+  }
+}
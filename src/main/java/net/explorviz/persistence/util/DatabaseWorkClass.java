@@ -0,0 +1,15 @@
+package net.explorviz.persistence.util;
+
+/**
+ * Priority classes of database work, in descending order of priority. When the database is
+ * saturated, waiting work of a higher class is admitted first and lower classes may only use a
+ * share of the concurrency limit, such that background ingest absorbs the slowdown.
+ */
+public enum DatabaseWorkClass {
+  /** Reads issued by the frontend via the REST API. */
+  INTERACTIVE,
+  /** Persisting spans received from Kafka. */
+  SPAN_INGEST,
+  /** Persisting static analysis data received via gRPC, e.g. while backfilling history. */
+  STATIC_INGEST
+}
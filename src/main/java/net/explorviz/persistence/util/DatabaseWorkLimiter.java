@@ -0,0 +1,225 @@
+package net.explorviz.persistence.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Bounds the number of transactions and requests which work on the database at the same time. The
+ * bound is an {@link AdaptiveLimit}, which shrinks as soon as the latency of completed work rises
+ * and grows again while the latency is stable. With handlers running on virtual threads, the
+ * number of concurrent callers is no longer limited by the size of the worker pool, so without a
+ * bound every caller would hold a Bolt connection and a transaction at once.
+ *
+ * <p>Work is admitted by {@link DatabaseWorkClass}: waiting work of a higher class is admitted
+ * first, and each class may only use its configured share of the limit, such that interactive
+ * reads keep their latency while span and static ingest absorb the slowdown. Callers which are not
+ * admitted within the configured timeout are rejected with a {@link DatabaseBusyException}.
+ *
+ * <p>The current limit as well as the number of callers working on, waiting for and rejected from
+ * the database per class are exposed as metrics under the prefix {@value #METRIC_PREFIX}.
+ */
+@ApplicationScoped
+public class DatabaseWorkLimiter {
+
+  private static final String METRIC_PREFIX = "explorviz.db.limiter";
+
+  private static final DatabaseWorkClass[] WORK_CLASSES = DatabaseWorkClass.values();
+
+  @ConfigProperty(name = "explorviz.db.limiter.initial-limit", defaultValue = "32")
+  int initialLimit;
+
+  @ConfigProperty(name = "explorviz.db.limiter.min-limit", defaultValue = "4")
+  int minLimit;
+
+  @ConfigProperty(name = "explorviz.db.limiter.max-limit", defaultValue = "128")
+  int maxLimit;
+
+  @ConfigProperty(name = "explorviz.db.limiter.backoff-ratio", defaultValue = "0.9")
+  double backoffRatio;
+
+  @ConfigProperty(name = "explorviz.db.limiter.latency-tolerance", defaultValue = "2.0")
+  double latencyTolerance;
+
+  @ConfigProperty(name = "explorviz.db.limiter.span-ingest-share", defaultValue = "0.75")
+  double spanIngestShare;
+
+  @ConfigProperty(name = "explorviz.db.limiter.static-ingest-share", defaultValue = "0.5")
+  double staticIngestShare;
+
+  @ConfigProperty(name = "explorviz.db.limiter.acquire-timeout", defaultValue = "30s")
+  Duration acquireTimeout;
+
+  @Inject MeterRegistry meterRegistry;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Map<DatabaseWorkClass, Condition> admissions =
+      new EnumMap<>(DatabaseWorkClass.class);
+
+  private final int[] inFlight = new int[WORK_CLASSES.length];
+
+  private final int[] waiting = new int[WORK_CLASSES.length];
+
+  private final Map<DatabaseWorkClass, Counter> rejected = new EnumMap<>(DatabaseWorkClass.class);
+
+  private int totalInFlight;
+
+  private AdaptiveLimit limit;
+
+  @PostConstruct
+  void init() {
+    limit = new AdaptiveLimit(initialLimit, minLimit, maxLimit, backoffRatio, latencyTolerance);
+
+    meterRegistry.gauge(METRIC_PREFIX + ".limit", this, DatabaseWorkLimiter::getLimit);
+    for (final DatabaseWorkClass workClass : WORK_CLASSES) {
+      final Tags tags = Tags.of("class", workClass.name());
+      final int index = workClass.ordinal();
+      admissions.put(workClass, lock.newCondition());
+      meterRegistry.gauge(
+          METRIC_PREFIX + ".in-flight", tags, inFlight, counts -> read(counts, index));
+      meterRegistry.gauge(METRIC_PREFIX + ".waiting", tags, waiting, counts -> read(counts, index));
+      rejected.put(workClass, meterRegistry.counter(METRIC_PREFIX + ".rejected", tags));
+    }
+  }
+
+  /** Returns the current concurrency limit shared by all classes. */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return limit.getLimit();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until the caller may work on the database. The returned permit must be closed once the
+   * work is done, preferably using try-with-resources.
+   *
+   * @param workClass Priority class of the work
+   * @return Permit to be closed after the database work
+   * @throws DatabaseBusyException if the work was not admitted within the timeout
+   */
+  public Permit acquire(final DatabaseWorkClass workClass) {
+    final int index = workClass.ordinal();
+    long remaining = acquireTimeout.toNanos();
+
+    lock.lock();
+    try {
+      waiting[index]++;
+      try {
+        while (!canAdmit(workClass)) {
+          if (remaining <= 0) {
+            rejected.get(workClass).increment();
+            // Pass on a signal this caller may have received just before timing out
+            signalNext();
+            throw new DatabaseBusyException(
+                "No database capacity became available within " + acquireTimeout);
+          }
+          remaining = admissions.get(workClass).awaitNanos(remaining);
+        }
+      } finally {
+        waiting[index]--;
+      }
+
+      inFlight[index]++;
+      totalInFlight++;
+      // The limit may have grown by more than one, so further waiters may be admissible
+      signalNext();
+      return new Permit(workClass, System.nanoTime());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseBusyException("Interrupted while waiting for database capacity", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release(final DatabaseWorkClass workClass, final long startTime) {
+    final long endTime = System.nanoTime();
+    lock.lock();
+    try {
+      limit.onSample(workClass, startTime, endTime, totalInFlight);
+      inFlight[workClass.ordinal()]--;
+      totalInFlight--;
+      signalNext();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns whether work of the given class may start now, i.e. the share of the limit of its
+   * class is not used up and no admissible work of a higher class is waiting.
+   */
+  private boolean canAdmit(final DatabaseWorkClass workClass) {
+    for (int higher = 0; higher < workClass.ordinal(); higher++) {
+      if (waiting[higher] > 0 && totalInFlight < classLimit(WORK_CLASSES[higher])) {
+        return false;
+      }
+    }
+    return totalInFlight < classLimit(workClass);
+  }
+
+  /** Wakes up one waiter of the highest class which can be admitted. */
+  private void signalNext() {
+    for (final DatabaseWorkClass workClass : WORK_CLASSES) {
+      if (waiting[workClass.ordinal()] > 0 && canAdmit(workClass)) {
+        admissions.get(workClass).signal();
+        return;
+      }
+    }
+  }
+
+  private int classLimit(final DatabaseWorkClass workClass) {
+    final double share =
+        switch (workClass) {
+          case INTERACTIVE -> 1.0;
+          case SPAN_INGEST -> spanIngestShare;
+          case STATIC_INGEST -> staticIngestShare;
+        };
+    return Math.max(1, (int) Math.ceil(limit.getLimit() * share));
+  }
+
+  private int read(final int[] counts, final int index) {
+    lock.lock();
+    try {
+      return counts[index];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Grants work on the database until closed. Closing a permit more than once has no effect. */
+  public final class Permit implements AutoCloseable {
+
+    private final DatabaseWorkClass workClass;
+
+    private final long startTime;
+
+    private boolean released;
+
+    private Permit(final DatabaseWorkClass workClass, final long startTime) {
+      this.workClass = workClass;
+      this.startTime = startTime;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(workClass, startTime);
+      }
+    }
+  }
+}
@@ -26,6 +26,13 @@ public final class GrpcExceptionMapper {
       return (StatusRuntimeException) e;
     }
 
+    if (e instanceof DatabaseBusyException) {
+      return Status.RESOURCE_EXHAUSTED
+          .withCause(e)
+          .withDescription(e.getMessage() + " " + contextInfo + " Please retry later.")
+          .asRuntimeException();
+    }
+
     if (e instanceof IllegalArgumentException) {
       return Status.INVALID_ARGUMENT
           .withCause(e)
@@ -0,0 +1,17 @@
+package net.explorviz.persistence.util;
+
+import jakarta.enterprise.util.Nonbinding;
+import jakarta.interceptor.InterceptorBinding;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** See {@link LimitDatabaseWorkInterceptor}. */
+@InterceptorBinding
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LimitDatabaseWork {
+  @Nonbinding
+  DatabaseWorkClass value() default DatabaseWorkClass.INTERACTIVE;
+}
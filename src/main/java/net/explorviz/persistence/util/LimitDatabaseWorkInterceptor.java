@@ -0,0 +1,42 @@
+package net.explorviz.persistence.util;
+
+import jakarta.annotation.Priority;
+import jakarta.inject.Inject;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+
+/**
+ * When a {@link LimitDatabaseWork} annotation is added to a class or method, each invocation holds
+ * a permit of the {@link DatabaseWorkLimiter} for the annotated class of work while it runs.
+ * Intended for REST resources, whose methods do all their database work before returning. An
+ * annotation on a method takes precedence over an annotation on its class.
+ */
+@LimitDatabaseWork
+@Interceptor
+@Priority(Interceptor.Priority.APPLICATION)
+public class LimitDatabaseWorkInterceptor {
+
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
+
+  @AroundInvoke
+  @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+  public Object limitDatabaseWork(final InvocationContext context) throws Exception {
+    LimitDatabaseWork annotation = context.getMethod().getAnnotation(LimitDatabaseWork.class);
+
+    Class<?> targetClass = context.getTarget().getClass();
+
+    // If method is not directly annotated, go up superclass hierarchy until annotation is found.
+    while (annotation == null && targetClass != null) {
+      annotation = targetClass.getAnnotation(LimitDatabaseWork.class);
+      targetClass = targetClass.getSuperclass();
+    }
+
+    final DatabaseWorkClass workClass =
+        annotation == null ? DatabaseWorkClass.INTERACTIVE : annotation.value();
+
+    try (DatabaseWorkLimiter.Permit permit = databaseWorkLimiter.acquire(workClass)) {
+      return context.proceed();
+    }
+  }
+}
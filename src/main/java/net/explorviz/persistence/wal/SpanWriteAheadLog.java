@@ -0,0 +1,337 @@
+package net.explorviz.persistence.wal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.runtime.configuration.MemorySize;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.interceptor.Interceptor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.messaging.BatchAcknowledgement;
+import net.explorviz.persistence.messaging.SpanIngestWorkers;
+import net.explorviz.persistence.messaging.SpanRetryQueue;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Append-only log of received spans on local disk, such that spans can be acknowledged towards
+ * Kafka as soon as they are durable, while they are buffered and written to the database in large
+ * batches. The log consists of memory-mapped {@link WalSegment} files of a fixed size. Once a
+ * segment is full, it is sealed and a new one is started. A sealed segment is deleted as soon as
+ * the spans of all of its records have been committed or dead-lettered, the active segment is
+ * replaced by a new one under the same condition.
+ *
+ * <p>Segments left behind by a previous run are replayed on startup, i.e. their spans are written
+ * using the {@link SpanIngestWorkers} and handed to the {@link SpanRetryQueue} on failure. Since
+ * spans are merged on their ids, spans which had been committed before are not duplicated.
+ *
+ * <p>The fsync policy determines when appended records are forced to the storage device:
+ *
+ * <ul>
+ *   <li>ALWAYS: after each append, before the append is acknowledged
+ *   <li>INTERVAL: every fsync interval, appends are acknowledged once they have been forced
+ *   <li>NEVER: left to the operating system, appends are acknowledged immediately. Records survive
+ *       a crash of the service, but not of the host
+ * </ul>
+ *
+ * <p>The number of segments on disk and of replayed spans are exposed as metrics under the prefix
+ * {@value #METRIC_PREFIX}.
+ */
+@ApplicationScoped
+public class SpanWriteAheadLog {
+
+  /** When appended records are forced to the storage device. */
+  public enum FsyncPolicy {
+    ALWAYS,
+    INTERVAL,
+    NEVER
+  }
+
+  private static final String METRIC_PREFIX = "explorviz.spans.wal";
+
+  private static final String SEGMENT_PREFIX = "spans-";
+
+  private static final String SEGMENT_SUFFIX = ".wal";
+
+  @ConfigProperty(name = "explorviz.spans.wal.enabled", defaultValue = "false")
+  boolean enabled;
+
+  @ConfigProperty(name = "explorviz.spans.wal.directory", defaultValue = "wal")
+  String directoryName;
+
+  @ConfigProperty(name = "explorviz.spans.wal.segment-size", defaultValue = "64M")
+  MemorySize segmentSize;
+
+  @ConfigProperty(name = "explorviz.spans.wal.fsync", defaultValue = "INTERVAL")
+  FsyncPolicy fsyncPolicy;
+
+  @Inject MeterRegistry meterRegistry;
+
+  @Inject SpanIngestWorkers spanIngestWorkers;
+
+  @Inject SpanRetryQueue spanRetryQueue;
+
+  /** Guards the active segment, since appends may block while segments are forced or rotated. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Set<WalSegment> segments = ConcurrentHashMap.newKeySet();
+
+  private final List<Runnable> pendingDurable = new ArrayList<>();
+
+  private Path directory;
+
+  private Counter replayedSpans;
+
+  private WalSegment activeSegment;
+
+  private long nextSequence;
+
+  @PostConstruct
+  void init() {
+    directory = Path.of(directoryName);
+    replayedSpans = meterRegistry.counter(METRIC_PREFIX + ".replayed");
+    meterRegistry.gauge(METRIC_PREFIX + ".segments", segments, Set::size);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns the number of segment files of the log, including the active one. */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /** Replays the segments of a previous run once the database schema has been set up. */
+  void onStart(
+      @Observes @Priority(Interceptor.Priority.APPLICATION + 1000) final StartupEvent event) {
+    if (enabled) {
+      replay();
+    }
+  }
+
+  /**
+   * Appends the spans of one poll to the active segment. A new segment is started if the active
+   * one is full or all of its records have been committed already.
+   *
+   * @param spans Spans to append
+   * @param onDurable Action run once the record is durable according to the fsync policy, e.g.
+   *     acknowledging the spans towards Kafka
+   * @return Acknowledgement to release for each span once it has been committed
+   * @throws IOException If the record could not be appended, onDurable is not run in that case
+   */
+  public BatchAcknowledgement append(final List<SpanData> spans, final Runnable onDurable)
+      throws IOException {
+    final byte[] encodedSpans = WalSegment.encode(spans);
+    final WalSegment segment;
+
+    lock.lock();
+    try {
+      if (activeSegment == null
+          || activeSegment.isDrained()
+          || !activeSegment.append(encodedSpans)) {
+        rotate(WalSegment.recordSize(encodedSpans));
+        activeSegment.append(encodedSpans);
+      }
+      segment = activeSegment;
+
+      if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+        segment.force();
+      } else if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+        pendingDurable.add(onDurable);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (fsyncPolicy != FsyncPolicy.INTERVAL) {
+      onDurable.run();
+    }
+    return BatchAcknowledgement.of(spans.size(), () -> release(segment));
+  }
+
+  /** Forces the active segment and runs the actions of all appends made durable by it. */
+  @Scheduled(
+      every = "${explorviz.spans.wal.fsync-interval:100ms}",
+      concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  void forceActiveSegment() {
+    final List<Runnable> durable;
+    lock.lock();
+    try {
+      if (pendingDurable.isEmpty()) {
+        return;
+      }
+      activeSegment.force();
+      durable = List.copyOf(pendingDurable);
+      pendingDurable.clear();
+    } finally {
+      lock.unlock();
+    }
+    durable.forEach(Runnable::run);
+  }
+
+  /**
+   * Replays all segments on disk which are not part of the log yet, e.g. segments left behind by a
+   * previous run. The spans of each record are written as one batch.
+   */
+  public void replay() {
+    final List<Path> paths;
+    try {
+      Files.createDirectories(directory);
+      try (Stream<Path> files = Files.list(directory)) {
+        paths = files.filter(SpanWriteAheadLog::isSegment).sorted().toList();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to list write-ahead log " + directory, e);
+    }
+
+    final Set<Path> knownPaths =
+        segments.stream().map(WalSegment::getPath).collect(Collectors.toSet());
+    for (final Path path : paths) {
+      lock.lock();
+      try {
+        nextSequence = Math.max(nextSequence, parseSequence(path) + 1);
+      } finally {
+        lock.unlock();
+      }
+      if (!knownPaths.contains(path)) {
+        replaySegment(path);
+      }
+    }
+  }
+
+  private void replaySegment(final Path path) {
+    final WalSegment segment;
+    final List<List<SpanData>> records;
+    try {
+      segment = WalSegment.open(path);
+      records = segment.readRecords();
+    } catch (IOException e) {
+      Log.errorf(e, "Failed to read write-ahead log segment %s, skipping it", path);
+      return;
+    }
+
+    segments.add(segment);
+    if (records.isEmpty()) {
+      delete(segment);
+      return;
+    }
+    records.forEach(record -> segment.retain());
+
+    Log.infof("Replaying %d records of write-ahead log segment %s", records.size(), path);
+    for (final List<SpanData> spans : records) {
+      final BatchAcknowledgement acknowledgement =
+          BatchAcknowledgement.of(spans.size(), () -> release(segment));
+      replayedSpans.increment(spans.size());
+      try {
+        spanIngestWorkers.persist(spans);
+        acknowledgement.release(spans.size());
+      } catch (Exception e) { // NOPMD
+        spanRetryQueue.add(spans, Collections.nCopies(spans.size(), acknowledgement), e);
+      }
+    }
+  }
+
+  /**
+   * Seals the active segment and starts a new one with room for at least the given number of
+   * bytes. Must be called while holding the lock.
+   */
+  private void rotate(final int minCapacity) throws IOException {
+    if (activeSegment != null) {
+      forceActiveSegment();
+      sealActiveSegment();
+    }
+    Files.createDirectories(directory);
+    activeSegment =
+        WalSegment.create(
+            directory.resolve(
+                String.format("%s%016d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX)),
+            Math.max(segmentSize.asLongValue(), minCapacity));
+    segments.add(activeSegment);
+  }
+
+  private void sealActiveSegment() {
+    activeSegment.seal();
+    if (activeSegment.isCommitted()) {
+      delete(activeSegment);
+    }
+  }
+
+  private void release(final WalSegment segment) {
+    if (segment.release()) {
+      delete(segment);
+    }
+  }
+
+  private void delete(final WalSegment segment) {
+    if (segments.remove(segment)) {
+      try {
+        segment.delete();
+      } catch (IOException e) {
+        Log.errorf(e, "Failed to delete write-ahead log segment %s", segment.getPath());
+      }
+    }
+  }
+
+  private static boolean isSegment(final Path path) {
+    final String name = path.getFileName().toString();
+    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+  }
+
+  private static long parseSequence(final Path path) {
+    final String name = path.getFileName().toString();
+    try {
+      return Long.parseLong(
+          name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Seals the active segment on shutdown, after buffered and retried spans have been written. Its
+   * file is deleted if all of its spans have been committed, all other segments are kept for the
+   * next start.
+   */
+  void onStop(
+      @Observes @Priority(Interceptor.Priority.LIBRARY_AFTER + 1) final ShutdownEvent event) {
+    if (!enabled) {
+      return;
+    }
+    forceActiveSegment();
+    lock.lock();
+    try {
+      if (activeSegment != null) {
+        sealActiveSegment();
+        activeSegment = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (final WalSegment segment : segments) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        Log.errorf(e, "Failed to close write-ahead log segment %s", segment.getPath());
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package net.explorviz.persistence.wal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import net.explorviz.persistence.avro.SpanData;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+/**
+ * Memory-mapped, append-only segment file of the {@link SpanWriteAheadLog}. Each record holds the
+ * spans of one append, encoded as Avro array, and is framed by its length and a CRC32C checksum.
+ * The file is preallocated with zeros, so a length of 0 marks the end of the written records.
+ * Reading stops at the first record whose checksum does not match, i.e. at a torn write.
+ *
+ * <p>A segment counts the appended records which have not been released yet. Once it is sealed
+ * and all of its records have been released, its spans are committed and the file can be deleted.
+ * Appending and sealing must be serialized by the caller, releasing is thread-safe.
+ */
+public final class WalSegment {
+
+  /** Length and checksum preceding each record. */
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+
+  private static final SpecificDatumWriter<SpanData> WRITER =
+      new SpecificDatumWriter<>(SpanData.class);
+
+  private static final SpecificDatumReader<SpanData> READER =
+      new SpecificDatumReader<>(SpanData.class);
+
+  private final Path path;
+
+  private final FileChannel channel;
+
+  private final MappedByteBuffer buffer;
+
+  private final AtomicInteger pendingRecords = new AtomicInteger();
+
+  private volatile boolean sealed;
+
+  private WalSegment(
+      final Path path,
+      final FileChannel channel,
+      final MappedByteBuffer buffer,
+      final boolean sealed) {
+    this.path = path;
+    this.channel = channel;
+    this.buffer = buffer;
+    this.sealed = sealed;
+  }
+
+  /**
+   * Creates a new segment file of the given capacity and maps it for appending.
+   *
+   * @param path Path of the segment file, which must not exist yet
+   * @param capacity Size of the file in bytes
+   */
+  public static WalSegment create(final Path path, final long capacity) throws IOException {
+    final FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    return new WalSegment(
+        path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), false);
+  }
+
+  /**
+   * Opens an existing segment file for reading, e.g. one left behind by a previous run. The
+   * returned segment is sealed.
+   *
+   * @param path Path of the segment file
+   */
+  public static WalSegment open(final Path path) throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    return new WalSegment(
+        path, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), true);
+  }
+
+  /** Returns the size in bytes a record holding the given encoded spans occupies. */
+  public static int recordSize(final byte[] encodedSpans) {
+    return RECORD_HEADER_BYTES + encodedSpans.length;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public boolean isSealed() {
+    return sealed;
+  }
+
+  /** Returns whether the segment has been sealed and all of its records have been released. */
+  public boolean isCommitted() {
+    return sealed && pendingRecords.get() == 0;
+  }
+
+  /** Returns whether the segment holds records, all of which have been released. */
+  public boolean isDrained() {
+    return buffer.position() > 0 && pendingRecords.get() == 0;
+  }
+
+  /**
+   * Appends a record unless the remaining capacity is insufficient. The record counts as pending
+   * until it is released.
+   *
+   * @param encodedSpans Spans encoded by {@link #encode(List)}
+   * @return False if the segment is sealed or the record does not fit
+   */
+  public boolean append(final byte[] encodedSpans) {
+    if (sealed || buffer.remaining() < recordSize(encodedSpans)) {
+      return false;
+    }
+    final CRC32C checksum = new CRC32C();
+    checksum.update(encodedSpans);
+
+    final int position = buffer.position();
+    // The length is written last, so a partially written record is never considered complete
+    buffer.putInt(position + Integer.BYTES, (int) checksum.getValue());
+    buffer.put(position + RECORD_HEADER_BYTES, encodedSpans);
+    buffer.putInt(position, encodedSpans.length);
+    buffer.position(position + recordSize(encodedSpans));
+
+    pendingRecords.incrementAndGet();
+    return true;
+  }
+
+  /** Forces all appended records to the storage device. */
+  public void force() {
+    buffer.force();
+  }
+
+  /** Seals the segment, no further records are appended. */
+  public void seal() {
+    if (!sealed) {
+      force();
+      sealed = true;
+    }
+  }
+
+  /** Adds a record read from an existing segment file as pending. */
+  public void retain() {
+    pendingRecords.incrementAndGet();
+  }
+
+  /**
+   * Releases a record whose spans have been committed.
+   *
+   * @return True if the segment is committed afterwards, see {@link #isCommitted()}
+   */
+  public boolean release() {
+    return pendingRecords.decrementAndGet() == 0 && sealed;
+  }
+
+  /** Closes the segment file and deletes it. */
+  public void delete() throws IOException {
+    channel.close();
+    Files.deleteIfExists(path);
+  }
+
+  /** Closes the segment file, keeping it on disk. */
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Reads all complete records of the segment.
+   *
+   * @return Spans of each record, in the order they were appended
+   */
+  public List<List<SpanData>> readRecords() throws IOException {
+    final List<List<SpanData>> records = new ArrayList<>();
+    int position = 0;
+
+    while (position + RECORD_HEADER_BYTES <= buffer.limit()) {
+      final int length = buffer.getInt(position);
+      if (length <= 0 || position + RECORD_HEADER_BYTES + length > buffer.limit()) {
+        break;
+      }
+      final byte[] encodedSpans = new byte[length];
+      buffer.get(position + RECORD_HEADER_BYTES, encodedSpans);
+
+      final CRC32C checksum = new CRC32C();
+      checksum.update(encodedSpans);
+      if ((int) checksum.getValue() != buffer.getInt(position + Integer.BYTES)) {
+        break;
+      }
+      records.add(decode(encodedSpans));
+      position += RECORD_HEADER_BYTES + length;
+    }
+
+    return records;
+  }
+
+  /** Encodes the given spans as Avro array. */
+  public static byte[] encode(final List<SpanData> spans) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+    encoder.writeArrayStart();
+    encoder.setItemCount(spans.size());
+    for (final SpanData spanData : spans) {
+      encoder.startItem();
+      WRITER.write(spanData, encoder);
+    }
+    encoder.writeArrayEnd();
+    encoder.flush();
+    return out.toByteArray();
+  }
+
+  private static List<SpanData> decode(final byte[] encodedSpans) throws IOException {
+    final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(encodedSpans, null);
+    final List<SpanData> spans = new ArrayList<>();
+    for (long count = decoder.readArrayStart(); count > 0; count = decoder.arrayNext()) {
+      for (long i = 0; i < count; i++) {
+        spans.add(READER.read(null, decoder));
+      }
+    }
+    return spans;
+  }
+}
@@ -0,0 +1,97 @@
+package net.explorviz.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.BatchAcknowledgement;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.messaging.TraceAssemblyBuffer;
+import net.explorviz.persistence.util.TestSpans;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+class BatchAcknowledgementTest {
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  @Inject TraceAssemblyBuffer traceAssemblyBuffer;
+
+  private Session session;
+
+  private AtomicInteger acks;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+    acks = new AtomicInteger();
+  }
+
+  @Test
+  void testRecordsAreAcknowledgedOncePersisted() {
+    spanDataConsumer
+        .consumeRecords(records(span("root", ""), span("child", "root")))
+        .await()
+        .indefinitely();
+
+    assertEquals(1, acks.get());
+    assertEquals(2L, countSpans());
+  }
+
+  @Test
+  void testBufferedRecordsAreAcknowledgedOnceFlushed() {
+    Message<List<SpanData>> firstPoll = records(span("root", ""), span("child", "root"));
+    traceAssemblyBuffer.add(firstPoll.getPayload(), BatchAcknowledgement.of(firstPoll));
+    Message<List<SpanData>> secondPoll = records(span("lateChild", "root"));
+    traceAssemblyBuffer.add(secondPoll.getPayload(), BatchAcknowledgement.of(secondPoll));
+
+    // Buffered spans are not committed yet, so their records must not be acknowledged
+    assertEquals(0, acks.get());
+    assertEquals(0L, countSpans());
+
+    traceAssemblyBuffer.flushAll();
+
+    assertEquals(2, acks.get());
+    assertEquals(3L, countSpans());
+  }
+
+  @Test
+  void testEmptyRecordsAreAcknowledgedImmediately() {
+    BatchAcknowledgement.of(records());
+
+    assertEquals(1, acks.get());
+  }
+
+  private Message<List<SpanData>> records(final SpanData... spans) {
+    return Message.of(
+        List.of(spans),
+        () -> {
+          acks.incrementAndGet();
+          return CompletableFuture.completedFuture(null);
+        });
+  }
+
+  private Long countSpans() {
+    return session.queryForObject(Long.class, "MATCH (s:Span) RETURN count(s);", Map.of());
+  }
+
+  private static SpanData span(final String spanId, final String parentId) {
+    return TestSpans.span("myTrace", spanId).setParentId(parentId).build();
+  }
+}
@@ -13,6 +13,7 @@ import java.util.Map;
 import net.explorviz.persistence.ogm.Clazz;
 import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.repository.ClazzRepository;
+import net.explorviz.persistence.repository.FunctionRepository;
 import net.explorviz.persistence.util.ExpectedCounts;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -23,6 +24,8 @@ import org.neo4j.ogm.session.SessionFactory;
 public class ClazzRepositoryTest {
   @Inject ClazzRepository clazzRepository;
 
+  @Inject FunctionRepository functionRepository;
+
   @Inject SessionFactory sessionFactory;
 
   private Session session;
@@ -77,6 +80,7 @@ public class ClazzRepositoryTest {
     }
 
     session.save(file1);
+    setFqnKeys();
 
     Map<String, Object> resultMap =
         clazzRepository
@@ -104,6 +108,7 @@ public class ClazzRepositoryTest {
     file1.addClass(new Clazz(classPath[0]));
 
     session.save(file1);
+    setFqnKeys();
 
     Map<String, Object> resultMap =
         clazzRepository
@@ -142,6 +147,7 @@ public class ClazzRepositoryTest {
     lastClazz.addInnerClass(new Clazz("D"));
 
     session.save(file1);
+    setFqnKeys();
 
     Map<String, Object> resultMap =
         clazzRepository
@@ -216,6 +222,7 @@ public class ClazzRepositoryTest {
     }
 
     session.save(file1);
+    setFqnKeys();
 
     Clazz clazz =
         clazzRepository.createClazzPathAndReturnLastClazz(session, classPath, file1.getId());
@@ -258,6 +265,7 @@ public class ClazzRepositoryTest {
     file1.addClass(new Clazz(classPath[0]));
 
     session.save(file1);
+    setFqnKeys();
 
     Clazz clazz =
         clazzRepository.createClazzPathAndReturnLastClazz(session, classPath, file1.getId());
@@ -289,4 +297,74 @@ public class ClazzRepositoryTest {
     assertTrue(databaseIsCorrect);
     assertNodeCounts(session, ExpectedCounts.builder().files(1).classes(3).build());
   }
+
+  @Test
+  void testBackfillFqnKeys() {
+    Long fileId =
+        session.queryForObject(
+            Long.class,
+            """
+            CREATE (file:FileRevision {name: "File1.java"})
+            CREATE (file)-[:CONTAINS]->(a:Clazz {name: "A"})
+            CREATE (a)-[:CONTAINS]->(b:Clazz {name: "B"})
+            CREATE (b)-[:CONTAINS]->(:Function {name: "innerFunction"})
+            CREATE (file)-[:CONTAINS]->(:Function {name: "fileFunction"})
+            RETURN id(file);
+            """,
+            Map.of());
+
+    assertEquals(4L, clazzRepository.backfillFqnKeys(session, 1));
+
+    Clazz clazz =
+        clazzRepository
+            .findClassByClassPathAndFileRevisionId(session, new String[] {"A", "B"}, fileId)
+            .orElse(null);
+
+    assertNotNull(clazz);
+    assertEquals("A.B", clazz.getFqn());
+    assertEquals(fileId, clazz.getFileRevisionId());
+    assertTrue(
+        functionRepository
+            .findFunctionByFunctionNameAndFileIdAndClassPath(
+                session, "innerFunction", fileId, new String[] {"A", "B"})
+            .isPresent());
+    assertTrue(
+        functionRepository
+            .findFunctionWithFunctionNameAndFileRevisionId(session, "fileFunction", fileId)
+            .isPresent());
+    assertTrue(
+        functionRepository
+            .findFunctionWithFunctionNameAndFileRevisionId(session, "innerFunction", fileId)
+            .isEmpty());
+  }
+
+  @Test
+  void testCreateClassPathKeysUnkeyedClasses() {
+    Long fileId =
+        session.queryForObject(
+            Long.class,
+            """
+            CREATE (file:FileRevision {name: "File1.java"})
+            CREATE (file)-[:CONTAINS]->(a:Clazz {name: "A"})
+            CREATE (a)-[:CONTAINS]->(:Clazz {name: "B"})
+            RETURN id(file);
+            """,
+            Map.of());
+
+    Clazz clazz =
+        clazzRepository.createClazzPathAndReturnLastClazz(
+            session, new String[] {"A", "B", "C"}, fileId);
+
+    assertEquals("A.B.C", clazz.getFqn());
+    assertEquals(
+        "A.B",
+        session.queryForObject(
+            String.class, "MATCH (b:Clazz {name: 'B'}) RETURN b.fqn;", Map.of()));
+    assertNodeCounts(session, ExpectedCounts.builder().files(1).classes(3).build());
+  }
+
+  /** Classes saved directly bypass the ingest, so their FQN keys are backfilled afterwards. */
+  private void setFqnKeys() {
+    clazzRepository.backfillFqnKeys(session, 1);
+  }
 }
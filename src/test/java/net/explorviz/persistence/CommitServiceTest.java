@@ -11,8 +11,10 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.quarkus.grpc.GrpcClient;
 import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.mutiny.Multi;
 import jakarta.inject.Inject;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -20,11 +22,15 @@ import java.util.Map;
 import net.explorviz.persistence.ogm.Commit;
 import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.ogm.Tag;
+import net.explorviz.persistence.proto.CommitAck;
 import net.explorviz.persistence.proto.CommitData;
 import net.explorviz.persistence.proto.CommitService;
 import net.explorviz.persistence.proto.FileIdentifier;
 import net.explorviz.persistence.proto.StateDataRequest;
 import net.explorviz.persistence.proto.StateDataService;
+import net.explorviz.persistence.repository.SpanCountBucketRepository;
+import net.explorviz.persistence.repository.SpanCountBucketRepository.BucketKey;
+import net.explorviz.persistence.repository.TraceRepository;
 import net.explorviz.persistence.util.ExpectedCounts;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -42,6 +48,10 @@ class CommitServiceTest {
 
   @Inject SessionFactory sessionFactory;
 
+  @Inject SpanCountBucketRepository spanCountBucketRepository;
+
+  @Inject TraceRepository traceRepository;
+
   private Session session;
   private String landscapeToken;
   private String repoName;
@@ -503,4 +513,254 @@ class CommitServiceTest {
         session,
         ExpectedCounts.builder().landscapes(1).repositories(1).directories(1).branches(1).build());
   }
+
+  @Test
+  void testPersistCommitWithUnknownParentCommit() {
+    StatusRuntimeException ex =
+        assertThrows(
+            StatusRuntimeException.class,
+            () ->
+                commitService
+                    .persistCommit(commitData("commit2", "commit1", repoName).build())
+                    .await()
+                    .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS)));
+
+    assertEquals(Status.FAILED_PRECONDITION.getCode(), ex.getStatus().getCode());
+    assertEquals("Parent commit commit1 was not persisted.", ex.getStatus().getDescription());
+    assertNodeCounts(
+        session,
+        ExpectedCounts.builder().landscapes(1).repositories(1).directories(1).branches(1).build());
+  }
+
+  @Test
+  void testPersistCommitsAcknowledgesEachCommit() {
+    // Batches of two: commit2 inherits the file of commit1, children of the failed commit fail
+    List<CommitData> commits =
+        List.of(
+            commitData("commit1", "", repoName)
+                .addAddedFiles(
+                    FileIdentifier.newBuilder().setFileHash("1").setFilePath("src/File1.java"))
+                .build(),
+            commitData("commit2", "commit1", repoName).build(),
+            commitData("unknownRepoCommit", "commit2", "unknownRepo").build(),
+            commitData("orphanedCommit", "unknownRepoCommit", repoName).build(),
+            commitData("commit3", "commit2", repoName).build());
+
+    List<CommitAck> acks =
+        commitService
+            .persistCommits(Multi.createFrom().iterable(commits))
+            .collect()
+            .asList()
+            .await()
+            .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    Long inheritedFiles =
+        session.queryForObject(
+            Long.class,
+            """
+            MATCH (:Commit {hash: 'commit3'})-[:CONTAINS]->(f:FileRevision {hash: '1'})
+            RETURN count(f);
+            """,
+            Map.of());
+
+    assertEquals(
+        List.of("commit1", "commit2", "unknownRepoCommit", "orphanedCommit", "commit3"),
+        acks.stream().map(CommitAck::getCommitId).toList());
+    assertEquals(
+        List.of("OK", "OK", "FAILED_PRECONDITION", "FAILED_PRECONDITION", "OK"),
+        acks.stream().map(CommitAck::getCode).toList());
+    assertEquals(1L, inheritedFiles);
+    assertNodeCounts(
+        session,
+        ExpectedCounts.builder()
+            .landscapes(1)
+            .repositories(1)
+            .branches(1)
+            .directories(2)
+            .files(1)
+            .commits(3)
+            .build());
+  }
+
+  @Test
+  void testPersistCommitsHoldsChildrenUntilTheirParentIsWritten() {
+    List<CommitData> commits =
+        List.of(
+            commitData("commit2", "commit1", repoName).build(),
+            commitData("commit3", "commit2", repoName).build(),
+            commitData("missingParentCommit", "unknownCommit", repoName).build(),
+            commitData("commit1", "", repoName)
+                .addAddedFiles(
+                    FileIdentifier.newBuilder().setFileHash("1").setFilePath("src/File1.java"))
+                .build());
+
+    List<CommitAck> acks =
+        commitService
+            .persistCommits(Multi.createFrom().iterable(commits))
+            .collect()
+            .asList()
+            .await()
+            .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    assertEquals(
+        List.of("commit1", "commit2", "commit3", "missingParentCommit"),
+        acks.stream().map(CommitAck::getCommitId).toList());
+    assertEquals(
+        List.of("OK", "OK", "OK", "FAILED_PRECONDITION"),
+        acks.stream().map(CommitAck::getCode).toList());
+    assertEquals(List.of("1"), containedFileHashes("commit3"));
+  }
+
+  @Test
+  void testPersistCommitInheritsUnchangedFilesOfParent() {
+    CommitData parent =
+        commitData("commit1", "", repoName)
+            .addAddedFiles(file("1", "src/File1.java"))
+            .addAddedFiles(file("2", "src/File2.java"))
+            .addAddedFiles(file("4", "src/FileDel.java"))
+            .build();
+    CommitData child =
+        commitData("commit2", "commit1", repoName)
+            .addAddedFiles(file("3", "src/File3.java"))
+            .addModifiedFiles(file("11", "src/File1.java"))
+            .addDeletedFiles(file("4", "src/FileDel.java"))
+            .build();
+
+    commitService.persistCommit(parent).await().atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+    commitService.persistCommit(child).await().atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    assertEquals(List.of("1", "2", "4"), containedFileHashes("commit1"));
+    assertEquals(List.of("11", "2", "3"), containedFileHashes("commit2"));
+
+    // Sending the commit again does not inherit the files a second time
+    commitService.persistCommit(child).await().atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    assertEquals(List.of("11", "2", "3"), containedFileHashes("commit2"));
+  }
+
+  @Test
+  void testPersistCommitKeysUnkeyedFilesOfParent() {
+    commitService
+        .persistCommit(
+            commitData("commit1", "", repoName)
+                .addAddedFiles(file("1", "src/File1.java"))
+                .addAddedFiles(file("2", "src/File2.java"))
+                .build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    // Files persisted before the path keys were introduced
+    session.query("MATCH (f:FileRevision) REMOVE f.path;", Map.of());
+
+    commitService
+        .persistCommit(
+            commitData("commit2", "commit1", repoName)
+                .addModifiedFiles(file("11", "src/File1.java"))
+                .build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    assertEquals(List.of("11", "2"), containedFileHashes("commit2"));
+  }
+
+  @Test
+  void testPersistCommitWithoutParentInheritsNoFiles() {
+    commitService
+        .persistCommit(
+            commitData("commit1", "", repoName)
+                .addAddedFiles(file("1", "src/File1.java"))
+                .build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+    commitService
+        .persistCommit(
+            commitData("commit2", "NONE", repoName)
+                .addAddedFiles(file("2", "src/File2.java"))
+                .build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    assertEquals(List.of("2"), containedFileHashes("commit2"));
+  }
+
+  @Test
+  void testPersistCommitCountsSpansOfInheritedFiles() {
+    commitService
+        .persistCommit(
+            commitData("commit1", "", repoName)
+                .addAddedFiles(
+                    FileIdentifier.newBuilder().setFileHash("1").setFilePath("src/File1.java"))
+                .build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    // A span of the file persisted before the child commits exist, counted for its commit
+    session.query(
+        """
+        MATCH (:Commit {hash: 'commit1'})-[:CONTAINS]->(f:FileRevision {hash: '1'})
+        CREATE (f)-[:CONTAINS]->(fn:Function {name: 'myMethod'})
+        CREATE (:Span {landscapeToken: $tokenId, spanId: 'span1', startTime: 10, endTime: 20})
+          -[:REPRESENTS]->(fn);
+        """,
+        Map.of("tokenId", landscapeToken));
+    spanCountBucketRepository.incrementSpanCounts(
+        session,
+        Map.of(
+            BucketKey.of(landscapeToken, SpanCountBucketRepository.ALL_COMMITS, 10),
+            1L,
+            BucketKey.of(landscapeToken, "commit1", 10),
+            1L));
+
+    commitService
+        .persistCommit(commitData("commit2", "commit1", repoName).build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+    commitService
+        .persistCommit(
+            commitData("commit3", "commit2", repoName)
+                .addModifiedFiles(file("11", "src/File1.java"))
+                .build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    assertEquals(
+        List.of(new TraceRepository.Timestamp(0, 1)),
+        traceRepository.findTimestampsForLandscapeTokenAndCommitAndTimeRange(
+            session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, "commit2", 1_000_000_000L));
+    assertEquals(
+        List.of(),
+        traceRepository.findTimestampsForLandscapeTokenAndCommitAndTimeRange(
+            session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, "commit3", 1_000_000_000L));
+  }
+
+  private List<String> containedFileHashes(final String commitHash) {
+    List<String> hashes = new ArrayList<>();
+    session
+        .query(
+            """
+            MATCH (:Commit {hash: $commitHash})-[:CONTAINS]->(f:FileRevision)
+            RETURN f.hash AS hash
+            ORDER BY hash;
+            """,
+            Map.of("commitHash", commitHash))
+        .queryResults()
+        .forEach(row -> hashes.add((String) row.get("hash")));
+    return hashes;
+  }
+
+  private static FileIdentifier file(final String fileHash, final String filePath) {
+    return FileIdentifier.newBuilder().setFileHash(fileHash).setFilePath(filePath).build();
+  }
+
+  private CommitData.Builder commitData(
+      final String commitHash, final String parentCommitHash, final String repositoryName) {
+    return CommitData.newBuilder()
+        .setCommitId(commitHash)
+        .setParentCommitId(parentCommitHash)
+        .setRepositoryName(repositoryName)
+        .setBranchName(branchName)
+        .setLandscapeToken(landscapeToken)
+        .setAuthorDate(Timestamp.newBuilder().setSeconds(1).build())
+        .setCommitDate(Timestamp.newBuilder().setSeconds(1).build());
+  }
 }
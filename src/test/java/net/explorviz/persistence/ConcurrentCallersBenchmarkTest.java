@@ -0,0 +1,128 @@
+package net.explorviz.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.quarkus.grpc.GrpcClient;
+import io.quarkus.logging.Log;
+import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.explorviz.persistence.proto.StateDataRequest;
+import net.explorviz.persistence.proto.StateDataService;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.SessionFactory;
+
+/**
+ * Measures throughput and tail latency of gRPC calls issued by many concurrent callers, as done by
+ * the code-agent when it fans out its requests. Each caller works on its own landscape. This class
+ * runs the services on the worker pool, {@link ConcurrentCallersVirtualThreadsBenchmarkTest} runs
+ * the same calls on virtual threads, so that both can be compared from the logged results.
+ *
+ * <p>Excluded from the regular test run, execute with {@code ./gradlew benchmarkTest}. The number
+ * of callers can be set via {@code -PbenchmarkConcurrentCallers=1000}.
+ */
+@QuarkusTest
+@Tag("benchmark")
+class ConcurrentCallersBenchmarkTest {
+
+  private static final Duration RUN_TIMEOUT = Duration.ofMinutes(10);
+
+  @ConfigProperty(name = "explorviz.benchmark.concurrent-callers", defaultValue = "1000")
+  int concurrentCallers;
+
+  @ConfigProperty(name = "explorviz.benchmark.calls-per-caller", defaultValue = "10")
+  int callsPerCaller;
+
+  @GrpcClient StateDataService stateDataService;
+
+  @Inject SessionFactory sessionFactory;
+
+  private double throughput;
+
+  @BeforeEach
+  void init() {
+    sessionFactory.openSession().purgeDatabase();
+  }
+
+  @Test
+  void testConcurrentStateDataCalls() {
+    // The first round creates the landscapes, later rounds find them
+    run(1);
+    final long[] latencies = run(callsPerCaller);
+
+    Arrays.sort(latencies);
+    final long p99 = latencies[(int) Math.ceil(latencies.length * 0.99) - 1];
+    Log.infof(
+        "%s: %d callers, %.1f calls/s, p50 %.1f ms, p99 %.1f ms",
+        getClass().getSimpleName(),
+        concurrentCallers,
+        throughput,
+        latencies[latencies.length / 2] / 1_000_000.0,
+        p99 / 1_000_000.0);
+  }
+
+  /**
+   * Issues the given number of calls per caller with all callers active at once.
+   *
+   * @return Latency of each call in nanoseconds
+   */
+  private long[] run(final int rounds) {
+    final int calls = concurrentCallers * rounds;
+    final long[] latencies = new long[calls];
+    final AtomicInteger failures = new AtomicInteger();
+
+    final long start = System.nanoTime();
+    Multi.createFrom()
+        .range(0, calls)
+        .onItem()
+        .transformToUni(i -> call(i, latencies, failures))
+        .merge(concurrentCallers)
+        .collect()
+        .asList()
+        .await()
+        .atMost(RUN_TIMEOUT);
+    throughput = calls / ((System.nanoTime() - start) / 1_000_000_000.0);
+
+    assertEquals(0, failures.get(), "Failed calls");
+    return latencies;
+  }
+
+  private Uni<Integer> call(final int i, final long[] latencies, final AtomicInteger failures) {
+    return Uni.createFrom()
+        .deferred(
+            () -> {
+              final long start = System.nanoTime();
+              return stateDataService
+                  .getStateData(request(i % concurrentCallers))
+                  .onItemOrFailure()
+                  .invoke(
+                      (result, failure) -> {
+                        latencies[i] = System.nanoTime() - start;
+                        if (failure != null) {
+                          Log.warnf("Call %d failed: %s", i, failure.getMessage());
+                          failures.incrementAndGet();
+                        }
+                      })
+                  .onFailure()
+                  .recoverWithNull()
+                  .replaceWith(i);
+            });
+  }
+
+  private static StateDataRequest request(final int caller) {
+    return StateDataRequest.newBuilder()
+        .setLandscapeToken("benchmark-landscape-" + caller)
+        .setRepositoryName("benchmarkRepo")
+        .setBranchName("main")
+        .putAllApplicationPaths(Map.of("benchmarkApp", ""))
+        .build();
+  }
+}
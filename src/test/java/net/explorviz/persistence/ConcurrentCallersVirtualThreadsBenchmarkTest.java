@@ -0,0 +1,12 @@
+package net.explorviz.persistence;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import net.explorviz.persistence.util.VirtualThreadsProfile;
+import org.junit.jupiter.api.Tag;
+
+/** Runs {@link ConcurrentCallersBenchmarkTest} with the services on virtual threads. */
+@QuarkusTest
+@TestProfile(VirtualThreadsProfile.class)
+@Tag("benchmark")
+class ConcurrentCallersVirtualThreadsBenchmarkTest extends ConcurrentCallersBenchmarkTest {}
@@ -0,0 +1,175 @@
+package net.explorviz.persistence;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.quarkus.grpc.GrpcClient;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.persistence.proto.StateDataRequest;
+import net.explorviz.persistence.proto.StateDataService;
+import net.explorviz.persistence.util.AdaptiveLimit;
+import net.explorviz.persistence.util.DatabaseBusyException;
+import net.explorviz.persistence.util.DatabaseWorkClass;
+import net.explorviz.persistence.util.DatabaseWorkLimiter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+@TestProfile(DatabaseWorkLimiterTest.LimitedProfile.class)
+class DatabaseWorkLimiterTest {
+
+  private static final int LIMIT = 2;
+
+  private static final long GRPC_AWAIT_SECONDS = 5;
+
+  public static class LimitedProfile implements QuarkusTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+      return Map.of(
+          "explorviz.db.limiter.initial-limit", String.valueOf(LIMIT),
+          "explorviz.db.limiter.min-limit", String.valueOf(LIMIT),
+          "explorviz.db.limiter.max-limit", String.valueOf(LIMIT),
+          "explorviz.db.limiter.span-ingest-share", "0.5",
+          "explorviz.db.limiter.static-ingest-share", "0.5",
+          "explorviz.db.limiter.acquire-timeout", "100ms");
+    }
+  }
+
+  @GrpcClient StateDataService stateDataService;
+
+  @Inject DatabaseWorkLimiter databaseWorkLimiter;
+
+  @Inject SessionFactory sessionFactory;
+
+  private final List<DatabaseWorkLimiter.Permit> heldPermits = new ArrayList<>();
+
+  @BeforeEach
+  void init() {
+    sessionFactory.openSession().purgeDatabase();
+  }
+
+  @AfterEach
+  void cleanup() {
+    heldPermits.forEach(DatabaseWorkLimiter.Permit::close);
+    heldPermits.clear();
+  }
+
+  @Test
+  void testGrpcCallIsRejectedWhileDatabaseIsBusy() {
+    occupyDatabase();
+
+    StatusRuntimeException ex =
+        assertThrows(
+            StatusRuntimeException.class,
+            () ->
+                stateDataService
+                    .getStateData(stateDataRequest())
+                    .await()
+                    .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS)));
+    assertEquals(Status.RESOURCE_EXHAUSTED.getCode(), ex.getStatus().getCode());
+
+    cleanup();
+
+    assertEquals(
+        "",
+        stateDataService
+            .getStateData(stateDataRequest())
+            .await()
+            .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS))
+            .getCommitId());
+  }
+
+  @Test
+  void testRestRequestIsRejectedWhileDatabaseIsBusy() {
+    occupyDatabase();
+
+    given()
+        .when()
+        .get("/v3/landscapes/mytokenvalue/timestamps")
+        .then()
+        .statusCode(503)
+        .header("Retry-After", "1");
+
+    cleanup();
+
+    given().when().get("/v3/landscapes/mytokenvalue/timestamps").then().statusCode(200);
+  }
+
+  @Test
+  void testIngestIsLimitedToItsShare() {
+    heldPermits.add(databaseWorkLimiter.acquire(DatabaseWorkClass.STATIC_INGEST));
+
+    assertThrows(
+        DatabaseBusyException.class,
+        () -> databaseWorkLimiter.acquire(DatabaseWorkClass.STATIC_INGEST));
+    assertThrows(
+        DatabaseBusyException.class,
+        () -> databaseWorkLimiter.acquire(DatabaseWorkClass.SPAN_INGEST));
+
+    // Interactive reads may use the remainder of the limit
+    given().when().get("/v3/landscapes/mytokenvalue/timestamps").then().statusCode(200);
+  }
+
+  @Test
+  void testLimitGrowsWhileLatencyIsStable() {
+    AdaptiveLimit limit = new AdaptiveLimit(4, 1, 10, 0.5, 2.0);
+
+    long time = 0;
+    for (int i = 0; i < 100; i++) {
+      limit.onSample(DatabaseWorkClass.INTERACTIVE, time, time + 10, limit.getLimit());
+      time += 10;
+    }
+
+    assertTrue(limit.getLimit() > 4);
+    assertTrue(limit.getLimit() <= 10);
+  }
+
+  @Test
+  void testLimitBacksOffOnLatencyIncrease() {
+    AdaptiveLimit limit = new AdaptiveLimit(8, 1, 10, 0.5, 2.0);
+    limit.onSample(DatabaseWorkClass.INTERACTIVE, 0, 10, 1);
+    // Slower work of another class does not count as a latency increase
+    limit.onSample(DatabaseWorkClass.SPAN_INGEST, 0, 1000, 1);
+    limit.onSample(DatabaseWorkClass.SPAN_INGEST, 1000, 2000, 1);
+    assertEquals(8, limit.getLimit());
+
+    limit.onSample(DatabaseWorkClass.INTERACTIVE, 100, 200, 1);
+    assertEquals(4, limit.getLimit());
+
+    // Work which started before the decrease does not decrease the limit again
+    limit.onSample(DatabaseWorkClass.INTERACTIVE, 150, 250, 1);
+    assertEquals(4, limit.getLimit());
+
+    limit.onSample(DatabaseWorkClass.INTERACTIVE, 300, 400, 1);
+    assertEquals(2, limit.getLimit());
+  }
+
+  private void occupyDatabase() {
+    for (int i = 0; i < LIMIT; i++) {
+      heldPermits.add(databaseWorkLimiter.acquire(DatabaseWorkClass.INTERACTIVE));
+    }
+  }
+
+  private static StateDataRequest stateDataRequest() {
+    return StateDataRequest.newBuilder()
+        .setLandscapeToken("mytokenvalue")
+        .setRepositoryName("myrepo")
+        .setBranchName("main")
+        .putAllApplicationPaths(Map.of("testApp", ""))
+        .build();
+  }
+}
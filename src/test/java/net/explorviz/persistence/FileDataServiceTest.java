@@ -11,6 +11,7 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.quarkus.grpc.GrpcClient;
 import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.mutiny.Multi;
 import jakarta.inject.Inject;
 import java.time.Duration;
 import java.util.ArrayList;
@@ -29,6 +30,7 @@ import net.explorviz.persistence.proto.FileIdentifier;
 import net.explorviz.persistence.proto.FunctionData;
 import net.explorviz.persistence.proto.Language;
 import net.explorviz.persistence.proto.ParameterData;
+import net.explorviz.persistence.proto.PersistFilesResponse;
 import net.explorviz.persistence.proto.StateDataRequest;
 import net.explorviz.persistence.proto.StateDataService;
 import net.explorviz.persistence.util.ExpectedCounts;
@@ -1140,4 +1142,69 @@ class FileDataServiceTest {
             .files(2)
             .build());
   }
+
+  @Test
+  void testPersistFilesReportsFailedFiles() {
+    // Five files are streamed in batches of two, the batch holding the unknown file is split up
+    List<FileIdentifier> knownFiles = new ArrayList<>();
+    for (int i = 1; i <= 4; i++) {
+      knownFiles.add(
+          FileIdentifier.newBuilder()
+              .setFileHash(String.valueOf(i))
+              .setFilePath("src/File" + i + ".java")
+              .build());
+    }
+
+    CommitData commitDataOne =
+        CommitData.newBuilder()
+            .setCommitId("commit1")
+            .setRepositoryName(repoName)
+            .setBranchName(branchName)
+            .setLandscapeToken(landscapeToken)
+            .setAuthorDate(Timestamp.newBuilder().setSeconds(1).setNanos(100).build())
+            .addAllAddedFiles(knownFiles)
+            .build();
+
+    commitService
+        .persistCommit(commitDataOne)
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    List<FileData> files = new ArrayList<>();
+    knownFiles.forEach(f -> files.add(fileData(f.getFileHash(), f.getFilePath())));
+    files.add(2, fileData("5", "src/File5.java"));
+
+    PersistFilesResponse response =
+        fileDataService
+            .persistFiles(Multi.createFrom().iterable(files))
+            .await()
+            .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    Long filesWithFileData =
+        session.queryForObject(
+            Long.class,
+            """
+            MATCH (f:FileRevision {hasFileData: true})
+            RETURN count(f);
+            """,
+            Map.of());
+
+    assertEquals(4, response.getPersistedFiles());
+    assertEquals(1, response.getFailedFilesCount());
+    assertEquals("src/File5.java", response.getFailedFiles(0).getFilePath());
+    assertEquals(
+        Status.FAILED_PRECONDITION.getCode().name(), response.getFailedFiles(0).getCode());
+    assertEquals(4L, filesWithFileData);
+  }
+
+  private FileData fileData(final String fileHash, final String filePath) {
+    return FileData.newBuilder()
+        .setLandscapeToken(landscapeToken)
+        .setRepositoryName(repoName)
+        .setFileHash(fileHash)
+        .setFilePath(filePath)
+        .setLanguage(Language.JAVA)
+        .setLastEditor("Testi")
+        .build();
+  }
 }
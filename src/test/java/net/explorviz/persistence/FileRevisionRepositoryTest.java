@@ -6,14 +6,17 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 
 import io.quarkus.test.junit.QuarkusTest;
 import jakarta.inject.Inject;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import net.explorviz.persistence.cache.DirectoryPathCache;
 import net.explorviz.persistence.ogm.Commit;
 import net.explorviz.persistence.ogm.Directory;
 import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.ogm.Landscape;
 import net.explorviz.persistence.ogm.Repository;
 import net.explorviz.persistence.proto.FileIdentifier;
+import net.explorviz.persistence.repository.DirectoryRepository;
 import net.explorviz.persistence.repository.FileRevisionRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -23,6 +26,10 @@ import org.neo4j.ogm.session.SessionFactory;
 
 @QuarkusTest
 class FileRevisionRepositoryTest {
+  @Inject DirectoryPathCache directoryPathCache;
+
+  @Inject DirectoryRepository directoryRepository;
+
   @Inject FileRevisionRepository fileRevisionRepository;
 
   @Inject SessionFactory sessionFactory;
@@ -48,6 +55,7 @@ class FileRevisionRepositoryTest {
   void cleanup() {
     Session session = sessionFactory.openSession();
     session.purgeDatabase();
+    directoryPathCache.invalidateAll();
   }
 
   @Test
@@ -169,4 +177,151 @@ class FileRevisionRepositoryTest {
     assertEquals(file.getId(), file2.getId());
     assertEquals(1L, result.queryResults().iterator().next().get("res"));
   }
+
+  @Test
+  void testCreateFileStructuresFromStaticDataSharesDirectories() {
+    Session session = sessionFactory.openSession();
+
+    String token = "testToken";
+    String repoName = "testRepo";
+
+    Landscape landscape = new Landscape(token);
+    Directory dir = new Directory(repoName);
+    Repository repo = new Repository(repoName);
+    repo.setRootDirectory(dir);
+    Commit commit = new Commit("commit1");
+    repo.addCommit(commit);
+    landscape.addRepository(repo);
+
+    session.save(landscape);
+
+    List<FileIdentifier> fileIdentifiers =
+        List.of(
+            FileIdentifier.newBuilder().setFileHash("hash1").setFilePath("src/a/A.java").build(),
+            FileIdentifier.newBuilder().setFileHash("hash2").setFilePath("src/a/B.java").build(),
+            FileIdentifier.newBuilder().setFileHash("hash3").setFilePath("src/b/C.java").build());
+
+    List<FileRevision> files =
+        fileRevisionRepository.createFileStructuresFromStaticData(
+            session, fileIdentifiers, repoName, token, commit);
+
+    // Resolved from the cached directories in a later commit
+    Commit commit2 = new Commit("commit2");
+    repo.addCommit(commit2);
+    session.save(repo);
+    fileRevisionRepository.createFileStructuresFromStaticData(
+        session,
+        List.of(
+            FileIdentifier.newBuilder().setFileHash("hash4").setFilePath("src/a/D.java").build()),
+        repoName,
+        token,
+        commit2);
+
+    Result result =
+        session.query(
+            """
+            MATCH (:Directory {name: $repoName})-[:CONTAINS]->(src:Directory {name: 'src'})
+            MATCH (src)-[:CONTAINS]->(a:Directory {name: 'a'})-[:CONTAINS]->(f:FileRevision)
+            RETURN count(DISTINCT src) AS srcCount, count(DISTINCT a) AS aCount,
+              count(f) AS fileCount;
+            """,
+            Map.of("repoName", repoName));
+    Map<String, Object> row = result.queryResults().iterator().next();
+
+    assertEquals(3, files.size());
+    assertEquals(1L, row.get("srcCount"));
+    assertEquals(1L, row.get("aCount"));
+    assertEquals(3L, row.get("fileCount"));
+    assertEquals(
+        4L, session.queryForObject(Long.class, "MATCH (d:Directory) RETURN count(d);", Map.of()));
+  }
+
+  @Test
+  void testBackfillPathKeys() {
+    Session session = sessionFactory.openSession();
+
+    session.query(
+        """
+        CREATE (l:Landscape {tokenId: "testToken"})
+        CREATE (l)-[:CONTAINS]->(r:Repository {name: "testRepo"})
+        CREATE (r)-[:HAS_ROOT]->(root:Directory {name: "testRepo"})
+        CREATE (root)-[:CONTAINS]->(src:Directory {name: "src"})
+        CREATE (src)-[:CONTAINS]->(:FileRevision {name: "A.java", hash: "hash1"})
+        CREATE (l)-[:CONTAINS]->(a:Application {name: "testApp"})
+        CREATE (a)-[:HAS_ROOT]->(appRoot:Directory {name: "*"})
+        CREATE (appRoot)-[:CONTAINS]->(:Directory {name: "net"})
+          -[:CONTAINS]->(:FileRevision {name: "B.java"});
+        """,
+        Map.of());
+
+    assertEquals(6L, directoryRepository.backfillPathKeys(session, 1));
+
+    Optional<FileRevision> staticFile =
+        fileRevisionRepository.getFileRevisionFromHashAndPath(
+            session, "hash1", "testRepo", "testToken", new String[] {"src", "A.java"});
+    Optional<FileRevision> runtimeFile =
+        fileRevisionRepository.findFileRevisionFromAppNameAndPathWithoutCommit(
+            session, "testApp", new String[] {"net", "B.java"}, "testToken");
+
+    assertEquals("src/A.java", staticFile.map(FileRevision::getPath).orElse(null));
+    assertEquals("testRepo", staticFile.map(FileRevision::getRepositoryName).orElse(null));
+    assertEquals("net/B.java", runtimeFile.map(FileRevision::getPath).orElse(null));
+    assertEquals("testApp", runtimeFile.map(FileRevision::getApplicationName).orElse(null));
+  }
+
+  @Test
+  void testCreateFileStructureFromStaticDataKeysUnkeyedDirectories() {
+    Session session = sessionFactory.openSession();
+
+    session.query(
+        """
+        CREATE (l:Landscape {tokenId: "testToken"})
+        CREATE (l)-[:CONTAINS]->(r:Repository {name: "testRepo"})
+        CREATE (r)-[:CONTAINS]->(:Commit {hash: "commit1"})
+        CREATE (r)-[:HAS_ROOT]->(root:Directory {name: "testRepo"})
+        CREATE (root)-[:CONTAINS]->(:Directory {name: "src"})-[:CONTAINS]->(:Directory {name: "a"});
+        """,
+        Map.of());
+    Commit commit = session.queryForObject(Commit.class, "MATCH (c:Commit) RETURN c;", Map.of());
+
+    fileRevisionRepository.createFileStructuresFromStaticData(
+        session,
+        List.of(
+            FileIdentifier.newBuilder().setFileHash("hash1").setFilePath("src/a/A.java").build()),
+        "testRepo",
+        "testToken",
+        commit);
+
+    assertEquals(
+        3L, session.queryForObject(Long.class, "MATCH (d:Directory) RETURN count(d);", Map.of()));
+    assertEquals(
+        "src/a",
+        session.queryForObject(
+            String.class, "MATCH (d:Directory {name: 'a'}) RETURN d.path;", Map.of()));
+  }
+
+  @Test
+  void testCreateFileStructureForRuntimeDataFindsUnkeyedFile() {
+    Session session = sessionFactory.openSession();
+
+    Long fileId =
+        session.queryForObject(
+            Long.class,
+            """
+            CREATE (l:Landscape {tokenId: "testToken"})
+            CREATE (l)-[:CONTAINS]->(a:Application {name: "testApp"})
+            CREATE (a)-[:HAS_ROOT]->(appRoot:Directory {name: "*"})
+            CREATE (appRoot)-[:CONTAINS]->(:Directory {name: "net"})
+              -[:CONTAINS]->(f:FileRevision {name: "B.java"})
+            RETURN id(f);
+            """,
+            Map.of());
+
+    assertEquals(
+        fileId,
+        fileRevisionRepository.createFileStructureForRuntimeData(
+            session, new String[] {"net", "B.java"}, "testApp", "testToken"));
+    assertEquals(
+        2L, session.queryForObject(Long.class, "MATCH (d:Directory) RETURN count(d);", Map.of()));
+  }
 }
@@ -0,0 +1,166 @@
+package net.explorviz.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.quarkus.logging.Log;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.util.TestSpans;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+import org.neo4j.ogm.transaction.Transaction;
+
+/**
+ * Measures the ingest cost per span and per newly created file while the landscape grows. The
+ * landscape is seeded with synthetic traces up to each configured size, then a fixed number of
+ * spans is ingested and the mean duration per span is recorded. The cost at the largest size must
+ * stay within a constant factor of the cost at the smallest size.
+ *
+ * <p>Excluded from the regular test run, execute with {@code ./gradlew benchmarkTest}. Landscape
+ * sizes can be set via {@code -PbenchmarkLandscapeSizes=10000,100000,1000000}.
+ */
+@QuarkusTest
+@Tag("benchmark")
+class IngestScalingBenchmarkTest {
+
+  private static final String LANDSCAPE_TOKEN = "benchmark-landscape";
+  private static final String APP_NAME = "benchmarkApp";
+  private static final int SEED_CHUNK_SIZE = 10_000;
+
+  @ConfigProperty(
+      name = "explorviz.benchmark.landscape-sizes",
+      defaultValue = "10000,100000,1000000")
+  List<Integer> landscapeSizes;
+
+  @ConfigProperty(name = "explorviz.benchmark.measured-spans", defaultValue = "200")
+  int measuredSpans;
+
+  @ConfigProperty(name = "explorviz.benchmark.max-slowdown", defaultValue = "3.0")
+  double maxSlowdown;
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  private Session session;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+  }
+
+  @Test
+  void testIngestCostStaysFlatWithLandscapeSize() {
+    consume(span("seed", "seed", "net/explorviz/Seed.java"));
+    final Long seedFunctionId =
+        session.queryForObject(
+            Long.class, "MATCH (f:Function {name: \"seed\"}) RETURN id(f);", Map.of());
+
+    final List<double[]> results = new ArrayList<>();
+    int seededTraces = 0;
+
+    for (final int landscapeSize : landscapeSizes) {
+      seedTraces(seededTraces, landscapeSize, seedFunctionId);
+      seededTraces = landscapeSize;
+
+      final double nanosPerSpan =
+          measure(i -> span("span-" + landscapeSize + "-" + i, "seed", "net/explorviz/Seed.java"));
+      final double nanosPerFile =
+          measure(
+              i ->
+                  span(
+                      "file-" + landscapeSize + "-" + i,
+                      "method",
+                      "net/explorviz/size" + landscapeSize + "/File" + i + ".java"));
+
+      results.add(new double[] {landscapeSize, nanosPerSpan, nanosPerFile});
+      Log.infof(
+          "Landscape with %d traces: %.3f ms per span, %.3f ms per new file",
+          landscapeSize, nanosPerSpan / 1_000_000, nanosPerFile / 1_000_000);
+    }
+
+    final double[] smallest = results.get(0);
+    final double[] largest = results.get(results.size() - 1);
+    assertTrue(
+        largest[1] <= smallest[1] * maxSlowdown,
+        "Per-span cost grew from " + smallest[1] + " ns to " + largest[1] + " ns");
+    assertTrue(
+        largest[2] <= smallest[2] * maxSlowdown,
+        "Per-file cost grew from " + smallest[2] + " ns to " + largest[2] + " ns");
+  }
+
+  private double measure(final IntFunction<SpanData> spanFactory) {
+    final long start = System.nanoTime();
+    for (int i = 0; i < measuredSpans; i++) {
+      consume(spanFactory.apply(i));
+    }
+    return (double) (System.nanoTime() - start) / measuredSpans;
+  }
+
+  private void seedTraces(final int from, final int to, final Long functionId) {
+    for (int chunkStart = from; chunkStart < to; chunkStart += SEED_CHUNK_SIZE) {
+      try (Transaction tx = session.beginTransaction()) {
+        session.query(
+            """
+            MATCH (l:Landscape {tokenId: $tokenId})
+            MATCH (f:Function)
+            WHERE id(f) = $functionId
+            UNWIND range($from, $to - 1) AS i
+            CREATE (l)-[:CONTAINS]->(t:Trace {
+              landscapeToken: $tokenId,
+              traceId: "seed-trace-" + i,
+              startTime: i,
+              endTime: i + 1
+            })
+            CREATE (t)-[:CONTAINS]->(s:Span {
+              landscapeToken: $tokenId,
+              spanId: "seed-span-" + i,
+              startTime: i,
+              endTime: i + 1
+            })
+            CREATE (s)-[:REPRESENTS]->(f);
+            """,
+            Map.of(
+                "tokenId",
+                LANDSCAPE_TOKEN,
+                "functionId",
+                functionId,
+                "from",
+                chunkStart,
+                "to",
+                Math.min(chunkStart + SEED_CHUNK_SIZE, to)));
+        tx.commit();
+      }
+    }
+  }
+
+  private void consume(final SpanData spanData) {
+    spanDataConsumer.consumeRecords(Message.of(List.of(spanData))).await().indefinitely();
+  }
+
+  private static SpanData span(
+      final String spanId, final String functionName, final String filePath) {
+    return TestSpans.span("trace-" + spanId, spanId)
+        .setApplicationName(APP_NAME)
+        .setLandscapeTokenId(LANDSCAPE_TOKEN)
+        .setFunctionName(functionName)
+        .setFilePath(filePath)
+        .build();
+  }
+}
@@ -0,0 +1,173 @@
+package net.explorviz.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.LoadShedder;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.util.LoadSheddingProfile;
+import net.explorviz.persistence.util.TestSpans;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+@TestProfile(LoadSheddingProfile.class)
+class LoadShedderTest {
+
+  private static final int TRACES = 200;
+
+  private static final String SAMPLING_RATIO_METRIC = "explorviz.spans.shedding.sampling-ratio";
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject LoadShedder loadShedder;
+
+  @Inject MeterRegistry meterRegistry;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  private Session session;
+
+  private AtomicInteger acks;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+    acks = new AtomicInteger();
+  }
+
+  @AfterEach
+  void cleanup() {
+    loadShedder.updateLag(Duration.ZERO);
+  }
+
+  @Test
+  void testTracesAreKeptOrDroppedAsAWhole() {
+    // Exceeds the lag threshold of 5m, so half of the new traces are kept
+    loadShedder.updateLag(Duration.ofMinutes(10));
+    assertEquals(0.5, loadShedder.getSamplingRatio());
+
+    List<SpanData> firstPoll = new ArrayList<>();
+    for (int trace = 0; trace < TRACES; trace++) {
+      firstPoll.add(span("sheddingTrace" + trace, "root" + trace, ""));
+      firstPoll.add(span("sheddingTrace" + trace, "child" + trace, "root" + trace));
+    }
+    spanDataConsumer.consumeRecords(records(firstPoll)).await().indefinitely();
+
+    // Late spans follow the decision for their trace, even though shedding stopped meanwhile
+    loadShedder.updateLag(Duration.ZERO);
+    assertEquals(1.0, meterRegistry.get(SAMPLING_RATIO_METRIC).gauge().value());
+
+    List<SpanData> secondPoll = new ArrayList<>();
+    for (int trace = 0; trace < TRACES; trace++) {
+      secondPoll.add(span("sheddingTrace" + trace, "lateChild" + trace, "root" + trace));
+    }
+    spanDataConsumer.consumeRecords(records(secondPoll)).await().indefinitely();
+
+    long keptTraces = count("MATCH (t:Trace) RETURN count(t);");
+    assertTrue(keptTraces > TRACES / 4 && keptTraces < TRACES * 3 / 4);
+    assertEquals(3 * keptTraces, count("MATCH (s:Span) RETURN count(s);"));
+    assertEquals(0L, count("MATCH (t:Trace) WHERE t.samplingRatio <> 0.5 RETURN count(t);"));
+    assertEquals(2, acks.get());
+
+    // Each kept span stands for 1 / 0.5 spans in the timeline and the aggregated calls
+    assertEquals(
+        2 * 3 * keptTraces,
+        count(
+            "MATCH (b:SpanCountBucket {commitHash: '', resolution: 1000000000}) "
+                + "RETURN sum(b.spanCount);"));
+    assertEquals(
+        2 * 2 * keptTraces, count("MATCH ()-[c:CALLS]->() RETURN sum(c.requestCount);"));
+  }
+
+  @Test
+  void testTracesSeenBeforeSheddingAreKept() {
+    List<SpanData> firstPoll = new ArrayList<>();
+    for (int trace = 0; trace < TRACES; trace++) {
+      firstPoll.add(span("earlyTrace" + trace, "root" + trace, ""));
+    }
+    spanDataConsumer.consumeRecords(records(firstPoll)).await().indefinitely();
+
+    // Late spans of traces decided on before shedding started are kept with their trace
+    loadShedder.updateLag(Duration.ofMinutes(10));
+    assertEquals(0.5, loadShedder.getSamplingRatio());
+
+    List<SpanData> secondPoll = new ArrayList<>();
+    for (int trace = 0; trace < TRACES; trace++) {
+      secondPoll.add(span("earlyTrace" + trace, "child" + trace, "root" + trace));
+    }
+    spanDataConsumer.consumeRecords(records(secondPoll)).await().indefinitely();
+
+    assertEquals(2L * TRACES, count("MATCH (s:Span) RETURN count(s);"));
+    assertEquals(0L, count("MATCH (t:Trace) WHERE t.samplingRatio <> 1.0 RETURN count(t);"));
+    assertEquals(2, acks.get());
+  }
+
+  @Test
+  void testSamplingRatioFollowsLag() {
+    loadShedder.updateLag(Duration.ofMinutes(10));
+    assertEquals(0.5, loadShedder.getSamplingRatio());
+
+    // Growing lag backs off further, down to the minimum ratio of 0.1
+    loadShedder.updateLag(Duration.ofMinutes(20));
+    assertEquals(0.25, loadShedder.getSamplingRatio());
+    loadShedder.updateLag(Duration.ofMinutes(30));
+    loadShedder.updateLag(Duration.ofMinutes(40));
+    loadShedder.updateLag(Duration.ofMinutes(50));
+    assertEquals(0.1, loadShedder.getSamplingRatio());
+
+    // Decreasing lag keeps the ratio until it fell below the recovery lag of 1m
+    loadShedder.updateLag(Duration.ofMinutes(6));
+    loadShedder.updateLag(Duration.ofMinutes(3));
+    assertEquals(0.1, meterRegistry.get(SAMPLING_RATIO_METRIC).gauge().value());
+
+    loadShedder.updateLag(Duration.ofSeconds(30));
+    assertEquals(1.0, meterRegistry.get(SAMPLING_RATIO_METRIC).gauge().value());
+  }
+
+  @Test
+  void testNewTracesAreKeptWithoutLag() {
+    List<SpanData> poll = List.of(span("unsampledTrace", "root", ""));
+    spanDataConsumer.consumeRecords(records(poll)).await().indefinitely();
+
+    assertEquals(1L, count("MATCH (t:Trace {samplingRatio: 1.0}) RETURN count(t);"));
+    assertEquals(1, acks.get());
+  }
+
+  private Message<List<SpanData>> records(final List<SpanData> spans) {
+    return Message.of(
+        spans,
+        () -> {
+          acks.incrementAndGet();
+          return CompletableFuture.completedFuture(null);
+        });
+  }
+
+  private Long count(final String query) {
+    return session.queryForObject(Long.class, query, Map.of());
+  }
+
+  private static SpanData span(final String traceId, final String spanId, final String parentId) {
+    return TestSpans.span(traceId, spanId).setParentId(parentId).build();
+  }
+}
@@ -0,0 +1,176 @@
+package net.explorviz.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.repository.SpanRepository;
+import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.repository.TraceRepository.FileCommunication;
+import net.explorviz.persistence.repository.TraceRepository.Timestamp;
+import net.explorviz.persistence.retention.RetentionPruner;
+import net.explorviz.persistence.util.TestSpans;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+class RetentionPrunerTest {
+
+  private static final long SECOND = 1_000_000_000L;
+
+  private static final String LANDSCAPE_TOKEN = "mytokenvalue";
+
+  private static final String OTHER_LANDSCAPE_TOKEN = "othertokenvalue";
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject RetentionPruner retentionPruner;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  @Inject SpanRepository spanRepository;
+
+  @Inject TraceRepository traceRepository;
+
+  private Session session;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+  }
+
+  @Test
+  void testPruneExpiredTraces() {
+    spanDataConsumer.consumeBatch(
+        List.of(
+            callerSpan(LANDSCAPE_TOKEN, "oldTrace", "oldRoot", 1, 5),
+            calleeSpan(LANDSCAPE_TOKEN, "oldTrace", "oldChild", "oldRoot", 2, 3),
+            // The parent is never received, so it remains a placeholder
+            calleeSpan(LANDSCAPE_TOKEN, "oldTrace", "oldOrphan", "missing", 3, 4),
+            callerSpan(LANDSCAPE_TOKEN, "newTrace", "newRoot", 100, 105),
+            calleeSpan(LANDSCAPE_TOKEN, "newTrace", "newChild", "newRoot", 101, 102),
+            // Calls into the expired trace are removed along with their caller
+            calleeSpan(LANDSCAPE_TOKEN, "newTrace", "newCrossChild", "oldRoot", 103, 104),
+            callerSpan(OTHER_LANDSCAPE_TOKEN, "oldTrace", "oldRoot", 1, 5)));
+
+    assertEquals(3, findFileCommunication(LANDSCAPE_TOKEN).requestCount());
+
+    retentionPruner.prune(LANDSCAPE_TOKEN, 50 * SECOND);
+
+    assertEquals(List.of("newTrace"), findTraceIds(LANDSCAPE_TOKEN));
+    assertEquals(List.of("newChild", "newCrossChild", "newRoot"), findSpanIds(LANDSCAPE_TOKEN));
+    assertTrue(spanRepository.findSpanById(session, LANDSCAPE_TOKEN, "missing").isEmpty());
+
+    assertEquals(
+        List.of(new Timestamp(100 * SECOND, 3)),
+        traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+            session, LANDSCAPE_TOKEN, Long.MAX_VALUE, Long.MIN_VALUE, 10 * SECOND));
+
+    FileCommunication fileCommunication = findFileCommunication(LANDSCAPE_TOKEN);
+    assertEquals(1, fileCommunication.requestCount());
+    assertEquals(SECOND, fileCommunication.executionTime());
+
+    // Other landscapes are not affected
+    assertEquals(List.of("oldTrace"), findTraceIds(OTHER_LANDSCAPE_TOKEN));
+    assertEquals(List.of("oldRoot"), findSpanIds(OTHER_LANDSCAPE_TOKEN));
+  }
+
+  @Test
+  void testPruneIsIdempotent() {
+    spanDataConsumer.consumeBatch(
+        List.of(
+            callerSpan(LANDSCAPE_TOKEN, "oldTrace", "oldRoot", 1, 5),
+            calleeSpan(LANDSCAPE_TOKEN, "oldTrace", "oldChild", "oldRoot", 2, 3)));
+
+    retentionPruner.prune(LANDSCAPE_TOKEN, 50 * SECOND);
+    retentionPruner.prune(LANDSCAPE_TOKEN, 50 * SECOND);
+
+    assertTrue(findTraceIds(LANDSCAPE_TOKEN).isEmpty());
+    assertTrue(findSpanIds(LANDSCAPE_TOKEN).isEmpty());
+    assertTrue(
+        traceRepository
+            .findTimestampsForLandscapeTokenAndTimeRange(
+                session, LANDSCAPE_TOKEN, Long.MAX_VALUE, Long.MIN_VALUE, 10 * SECOND)
+            .isEmpty());
+    assertTrue(
+        traceRepository
+            .findAggregatedFileCommunication(
+                session, LANDSCAPE_TOKEN, Long.MIN_VALUE, Long.MAX_VALUE)
+            .isEmpty());
+  }
+
+  private FileCommunication findFileCommunication(final String landscapeToken) {
+    List<FileCommunication> fileCommunications =
+        traceRepository.findAggregatedFileCommunication(
+            session, landscapeToken, Long.MIN_VALUE, Long.MAX_VALUE);
+    assertEquals(1, fileCommunications.size());
+    return fileCommunications.get(0);
+  }
+
+  private List<String> findTraceIds(final String landscapeToken) {
+    return List.copyOf(
+        session.query(
+            String.class,
+            "MATCH (t:Trace {landscapeToken: $tokenId}) RETURN t.traceId ORDER BY t.traceId;",
+            Map.of("tokenId", landscapeToken)));
+  }
+
+  private List<String> findSpanIds(final String landscapeToken) {
+    return List.copyOf(
+        session.query(
+            String.class,
+            "MATCH (s:Span {landscapeToken: $tokenId}) RETURN s.spanId ORDER BY s.spanId;",
+            Map.of("tokenId", landscapeToken)));
+  }
+
+  private static SpanData callerSpan(
+      final String landscapeToken,
+      final String traceId,
+      final String spanId,
+      final long startSecond,
+      final long endSecond) {
+    return span(landscapeToken, traceId, spanId, "", startSecond, endSecond)
+        .setFunctionName("caller")
+        .setFilePath("net/explorviz/Caller.java")
+        .build();
+  }
+
+  private static SpanData calleeSpan(
+      final String landscapeToken,
+      final String traceId,
+      final String spanId,
+      final String parentId,
+      final long startSecond,
+      final long endSecond) {
+    return span(landscapeToken, traceId, spanId, parentId, startSecond, endSecond)
+        .setFunctionName("callee")
+        .setFilePath("net/explorviz/Callee.java")
+        .build();
+  }
+
+  private static SpanData.Builder span(
+      final String landscapeToken,
+      final String traceId,
+      final String spanId,
+      final String parentId,
+      final long startSecond,
+      final long endSecond) {
+    return TestSpans.span(traceId, spanId)
+        .setLandscapeTokenId(landscapeToken)
+        .setParentId(parentId)
+        .setStartTime(startSecond * SECOND)
+        .setEndTime(endSecond * SECOND);
+  }
+}
@@ -0,0 +1,42 @@
+package net.explorviz.persistence;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.util.Map;
+import net.explorviz.persistence.schema.SchemaManager;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class SchemaManagerTest {
+
+  @Inject SchemaManager schemaManager;
+
+  @Test
+  void testIndexesAreOnlineAfterStartup() {
+    assertTrue(schemaManager.isReady());
+
+    Map<String, String> indexStates = schemaManager.getIndexStates();
+
+    assertTrue(indexStates.containsKey("landscape_token_id"));
+    assertTrue(indexStates.containsKey("span_landscape_span_id"));
+    indexStates.forEach((name, state) -> assertEquals("ONLINE", state, "State of index " + name));
+  }
+
+  @Test
+  void testReadinessReportsSchemaState() {
+    given()
+        .when()
+        .get("/q/health/ready")
+        .then()
+        .statusCode(200)
+        .body("status", equalTo("UP"))
+        .body(
+            "checks.find { it.name == 'Database schema' }.data.trace_landscape_trace_id",
+            equalTo("ONLINE"));
+  }
+}
@@ -0,0 +1,137 @@
+package net.explorviz.persistence;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.util.TestSpans;
+import net.explorviz.persistence.util.TestUtils;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+class SpanBackfillImporterTest {
+
+  private static final long SECOND = 1_000_000_000L;
+
+  private static final String LANDSCAPE_TOKEN = "mytokenvalue";
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  @Inject TraceRepository traceRepository;
+
+  private Session session;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+  }
+
+  @Test
+  void testBackfillMatchesConsumedSpans() throws IOException {
+    // Children precede their parents and traces span several batches of two spans
+    final List<SpanData> spans =
+        List.of(
+            span("trace1", "child1", "root1", "callee", 2, 3),
+            span("trace2", "root2", "", "caller", 11, 15),
+            span("trace1", "root1", "", "caller", 1, 5),
+            span("trace1", "child2", "root1", "callee", 3, 4),
+            span("trace2", "child3", "root2", "callee", 12, 13));
+
+    given()
+        .contentType("application/octet-stream")
+        .body(toAvroFile(spans))
+        .when()
+        .post("/admin/backfill/spans")
+        .then()
+        .statusCode(200)
+        .body("spans", equalTo(5))
+        .body("batches", equalTo(3));
+    final Map<String, Object> backfilled = summarizeGraph();
+
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+    spanDataConsumer.consumeBatch(spans);
+
+    assertEquals(summarizeGraph(), backfilled);
+  }
+
+  @Test
+  void testBackfillRejectsInvalidFile() {
+    given()
+        .contentType("application/octet-stream")
+        .body(new byte[] {1, 2, 3})
+        .when()
+        .post("/admin/backfill/spans")
+        .then()
+        .statusCode(400);
+  }
+
+  private Map<String, Object> summarizeGraph() {
+    return Map.of(
+        "nodes", TestUtils.getNodeCountMap(session),
+        "parents",
+            List.copyOf(
+                session.query(
+                    String.class,
+                    """
+                    MATCH (s:Span)-[:HAS_PARENT]->(p:Span)
+                    RETURN s.spanId + '->' + p.spanId AS edge ORDER BY edge;
+                    """,
+                    Map.of())),
+        "timestamps",
+            traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+                session, LANDSCAPE_TOKEN, Long.MAX_VALUE, Long.MIN_VALUE, 10 * SECOND),
+        "fileCommunication",
+            traceRepository.findAggregatedFileCommunication(
+                session, LANDSCAPE_TOKEN, Long.MIN_VALUE, Long.MAX_VALUE));
+  }
+
+  private static byte[] toAvroFile(final List<SpanData> spans) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DataFileWriter<SpanData> writer =
+        new DataFileWriter<>(new SpecificDatumWriter<>(SpanData.class))) {
+      writer.create(SpanData.getClassSchema(), out);
+      for (final SpanData spanData : spans) {
+        writer.append(spanData);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static SpanData span(
+      final String traceId,
+      final String spanId,
+      final String parentId,
+      final String functionName,
+      final long startSecond,
+      final long endSecond) {
+    return TestSpans.span(traceId, spanId)
+        .setParentId(parentId)
+        .setFilePath("net/explorviz/" + functionName + ".java")
+        .setFunctionName(functionName)
+        .setStartTime(startSecond * SECOND)
+        .setEndTime(endSecond * SECOND)
+        .build();
+  }
+}
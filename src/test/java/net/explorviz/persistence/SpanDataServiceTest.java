@@ -4,6 +4,7 @@ import static net.explorviz.persistence.util.TestUtils.assertNodeCounts;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.common.collect.ImmutableList;
@@ -15,8 +16,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
 import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.messaging.TraceAssemblyBuffer;
 import net.explorviz.persistence.ogm.Application;
 import net.explorviz.persistence.ogm.Branch;
 import net.explorviz.persistence.ogm.Clazz;
@@ -26,10 +30,16 @@ import net.explorviz.persistence.ogm.FileRevision;
 import net.explorviz.persistence.ogm.Function;
 import net.explorviz.persistence.ogm.Landscape;
 import net.explorviz.persistence.ogm.Repository;
+import net.explorviz.persistence.repository.ClazzRepository;
 import net.explorviz.persistence.repository.CommitRepository;
+import net.explorviz.persistence.repository.DirectoryRepository;
 import net.explorviz.persistence.repository.FileRevisionRepository;
 import net.explorviz.persistence.repository.LandscapeRepository;
+import net.explorviz.persistence.repository.TraceRepository;
+import net.explorviz.persistence.repository.TraceRepository.Timestamp;
+import net.explorviz.persistence.schema.SpanDataRebuilder;
 import net.explorviz.persistence.util.ExpectedCounts;
+import org.eclipse.microprofile.reactive.messaging.Message;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
@@ -42,12 +52,24 @@ class SpanDataServiceTest {
 
   @Inject SpanDataConsumer spanDataConsumer;
 
+  @Inject ClazzRepository clazzRepository;
+
   @Inject CommitRepository commitRepository;
 
+  @Inject DirectoryRepository directoryRepository;
+
   @Inject FileRevisionRepository fileRevisionRepository;
 
+  @Inject FunctionResolutionCache functionResolutionCache;
+
   @Inject LandscapeRepository landscapeRepository;
 
+  @Inject SpanDataRebuilder spanDataRebuilder;
+
+  @Inject TraceAssemblyBuffer traceAssemblyBuffer;
+
+  @Inject TraceRepository traceRepository;
+
   @Inject SessionFactory sessionFactory;
 
   private Session session;
@@ -60,6 +82,7 @@ class SpanDataServiceTest {
   void cleanup() {
     session = sessionFactory.openSession();
     session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
 
     landscapeToken = "mytokenvalue";
     baseTraceId = "myTrace";
@@ -67,6 +90,17 @@ class SpanDataServiceTest {
     baseAppName = "myApp";
   }
 
+  /** Consumes a poll and persists it, also if its traces are buffered for assembly. */
+  private void consume(SpanData spanData) {
+    spanDataConsumer.consumeRecords(Message.of(List.of(spanData))).await().indefinitely();
+    traceAssemblyBuffer.flushAll();
+  }
+
+  private void consumeBatch(List<SpanData> batch) {
+    spanDataConsumer.consumeBatch(batch);
+    traceAssemblyBuffer.flushAll();
+  }
+
   @Nested
   class WithoutStaticData {
     private List<String> baseDirNames;
@@ -98,7 +132,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -194,14 +228,14 @@ class SpanDataServiceTest {
       params.put("fileName", baseFileName);
       params.put("funName", baseFunctionName);
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Boolean dbIsCorrectAfterFirstConsumeCall =
           session.queryForObject(Boolean.class, dbStructureQuery, params);
       Long nodeCountAfterFirstConsumeCall =
           session.queryForObject(Long.class, dbNodeCountQuery, Map.of());
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Boolean dbIsCorrectAfterSecondConsumeCall =
           session.queryForObject(Boolean.class, dbStructureQuery, params);
@@ -257,9 +291,9 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -339,7 +373,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       SpanData testSpanDataTwo =
           SpanData.newBuilder()
@@ -355,7 +389,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -431,7 +465,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       SpanData testSpanDataTwo =
           SpanData.newBuilder()
@@ -448,7 +482,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -527,7 +561,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -624,9 +658,9 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -718,7 +752,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -808,9 +842,9 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -910,9 +944,9 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -997,7 +1031,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -1090,9 +1124,9 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -1154,6 +1188,546 @@ class SpanDataServiceTest {
               .functions(2)
               .build());
     }
+
+    /**
+     * A batch containing a child span before its parent and two spans of the same function should
+     * result in the same graph as persisting the spans one by one.
+     */
+    @Test
+    void testPersistSpanBatch() {
+      String spanIdTwo = "span2";
+      String spanIdThree = "span3";
+      String functionNameTwo = "yourMethod";
+
+      SpanData childSpanData =
+          SpanData.newBuilder()
+              .setParentId(baseSpanId)
+              .setSpanId(spanIdTwo)
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setFunctionName(functionNameTwo)
+              .setFilePath(String.join("/", baseFilePath))
+              .setStartTime(2)
+              .setEndTime(4)
+              .setLanguage("")
+              .build();
+
+      SpanData rootSpanData =
+          SpanData.newBuilder()
+              .setParentId("")
+              .setSpanId(baseSpanId)
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setFunctionName(baseFunctionName)
+              .setFilePath(String.join("/", baseFilePath))
+              .setStartTime(1)
+              .setEndTime(5)
+              .setLanguage("")
+              .build();
+
+      SpanData siblingSpanData =
+          SpanData.newBuilder()
+              .setParentId(baseSpanId)
+              .setSpanId(spanIdThree)
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setFunctionName(functionNameTwo)
+              .setFilePath(String.join("/", baseFilePath))
+              .setStartTime(3)
+              .setEndTime(6)
+              .setLanguage("")
+              .build();
+
+      consumeBatch(List.of(childSpanData, rootSpanData, siblingSpanData));
+
+      // Identifiers of the received spans are interned
+      assertSame(rootSpanData.getFilePath(), childSpanData.getFilePath());
+      assertSame(rootSpanData.getFilePath(), siblingSpanData.getFilePath());
+
+      Map<String, Object> params = new HashMap<>();
+      params.put("landscapeToken", landscapeToken);
+      params.put("traceId", baseTraceId);
+      params.put("spanId", baseSpanId);
+      params.put("spanIdTwo", spanIdTwo);
+      params.put("spanIdThree", spanIdThree);
+      params.put("fileName", baseFileName);
+      params.put("funName", baseFunctionName);
+      params.put("funNameTwo", functionNameTwo);
+
+      Boolean databaseIsCorrect =
+          session.queryForObject(
+              Boolean.class,
+              """
+              RETURN EXISTS {
+              MATCH (file:FileRevision {name: $fileName})
+                    -[:CONTAINS]->(f1:Function {name: $funName})
+                    <-[:REPRESENTS]-(s1:Span {spanId: $spanId})
+                    <-[:CONTAINS]-(t:Trace {traceId: $traceId})
+                    <-[:CONTAINS]-(:Landscape {tokenId: $landscapeToken})
+
+              MATCH (file)-[:CONTAINS]->(f2:Function {name: $funNameTwo})
+              MATCH (t)-[:CONTAINS]->(s2:Span {spanId: $spanIdTwo})-[:REPRESENTS]->(f2)
+              MATCH (t)-[:CONTAINS]->(s3:Span {spanId: $spanIdThree})-[:REPRESENTS]->(f2)
+              MATCH (s2)-[:HAS_PARENT]->(s1)<-[:HAS_PARENT]-(s3)
+
+              WHERE t.startTime = 1 AND t.endTime = 6
+              } AS exists;
+              """,
+              params);
+
+      assertTrue(databaseIsCorrect);
+      assertNodeCounts(
+          session,
+          ExpectedCounts.builder()
+              .landscapes(1)
+              .traces(1)
+              .spans(3)
+              .applications(1)
+              .directories(4)
+              .files(1)
+              .functions(2)
+              .build());
+    }
+
+    @Test
+    void testPersistSpanBatchOfManyTraces() {
+      int traceCount = 16;
+      List<SpanData> batch = new ArrayList<>();
+
+      for (int i = 0; i < traceCount; i++) {
+        batch.add(
+            SpanData.newBuilder()
+                .setParentId("")
+                .setSpanId(baseSpanId + i)
+                .setTraceId(baseTraceId + i)
+                .setApplicationName(baseAppName)
+                .setLandscapeTokenId(landscapeToken)
+                .setFunctionName(baseFunctionName)
+                .setFilePath(String.join("/", baseFilePath))
+                .setStartTime(i)
+                .setEndTime(i + 10)
+                .setLanguage("")
+                .build());
+        batch.add(
+            SpanData.newBuilder()
+                .setParentId(baseSpanId + i)
+                .setSpanId(baseSpanId + i + "child")
+                .setTraceId(baseTraceId + i)
+                .setApplicationName(baseAppName)
+                .setLandscapeTokenId(landscapeToken)
+                .setFunctionName(baseFunctionName)
+                .setFilePath(String.join("/", baseFilePath))
+                .setStartTime(i + 1)
+                .setEndTime(i + 2)
+                .setLanguage("")
+                .build());
+      }
+
+      consumeBatch(batch);
+
+      Long completeTraces =
+          session.queryForObject(
+              Long.class,
+              """
+              MATCH (:Landscape {tokenId: $landscapeToken})-[:CONTAINS]->(t:Trace)
+              MATCH (t)-[:CONTAINS]->(child:Span)-[:HAS_PARENT]->(root:Span)<-[:CONTAINS]-(t)
+              WHERE t.startTime = root.startTime AND t.endTime = root.endTime
+              RETURN count(DISTINCT t);
+              """,
+              Map.of("landscapeToken", landscapeToken));
+
+      assertEquals(traceCount, completeTraces);
+      assertNodeCounts(
+          session,
+          ExpectedCounts.builder()
+              .landscapes(1)
+              .traces(traceCount)
+              .spans(2L * traceCount)
+              .applications(1)
+              .directories(4)
+              .files(1)
+              .functions(1)
+              .build());
+    }
+
+    @Test
+    void testPersistSameIdsInDifferentLandscapes() {
+      String otherLandscapeToken = "otherTokenValue";
+
+      SpanData spanData =
+          SpanData.newBuilder()
+              .setParentId("")
+              .setSpanId(baseSpanId)
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setFunctionName(baseFunctionName)
+              .setFilePath(String.join("/", baseFilePath))
+              .setStartTime(1)
+              .setEndTime(2)
+              .setLanguage("")
+              .build();
+      SpanData otherSpanData =
+          SpanData.newBuilder(spanData).setLandscapeTokenId(otherLandscapeToken).build();
+
+      consume(spanData);
+      consume(otherSpanData);
+      // Redelivered span must not create additional nodes
+      consume(spanData);
+
+      for (String token : List.of(landscapeToken, otherLandscapeToken)) {
+        Long spanCount =
+            session.queryForObject(
+                Long.class,
+                """
+                MATCH (:Landscape {tokenId: $tokenId})
+                  -[:CONTAINS]->(:Trace {landscapeToken: $tokenId, traceId: $traceId})
+                  -[:CONTAINS]->(s:Span {landscapeToken: $tokenId, spanId: $spanId})
+                RETURN count(s);
+                """,
+                Map.of("tokenId", token, "traceId", baseTraceId, "spanId", baseSpanId));
+        assertEquals(1L, spanCount);
+      }
+
+      assertNodeCounts(
+          session,
+          ExpectedCounts.builder()
+              .landscapes(2)
+              .traces(2)
+              .spans(2)
+              .applications(2)
+              .directories(8)
+              .files(2)
+              .functions(2)
+              .build());
+    }
+
+    @Test
+    void testTimestampsFromSpanCounts() {
+      long second = 1_000_000_000L;
+      SpanData.Builder builder =
+          SpanData.newBuilder()
+              .setParentId("")
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setFunctionName(baseFunctionName)
+              .setFilePath(String.join("/", baseFilePath))
+              .setLanguage("");
+
+      SpanData root =
+          builder.setSpanId("root").setStartTime(second).setEndTime(80 * second).build();
+      SpanData child =
+          builder
+              .setSpanId("child")
+              .setParentId("root")
+              .setStartTime(second + second / 2)
+              .setEndTime(2 * second)
+              .build();
+      SpanData second12 =
+          builder
+              .setSpanId("second12")
+              .setParentId("")
+              .setStartTime(12 * second)
+              .setEndTime(13 * second)
+              .build();
+      SpanData second70 =
+          builder.setSpanId("second70").setStartTime(70 * second).setEndTime(71 * second).build();
+
+      // Child before its parent creates a placeholder, which is counted once the parent arrives
+      consumeBatch(List.of(child, second12));
+      consumeBatch(List.of(root, second70));
+      // Redelivered spans are not counted again
+      consumeBatch(List.of(root, child));
+
+      assertEquals(
+          List.of(
+              new Timestamp(0, 2), new Timestamp(10 * second, 1), new Timestamp(70 * second, 1)),
+          traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+              session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, 10 * second));
+      assertEquals(
+          List.of(new Timestamp(0, 3), new Timestamp(60 * second, 1)),
+          traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+              session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, 60 * second));
+      assertEquals(
+          List.of(new Timestamp(10 * second, 1)),
+          traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+              session, landscapeToken, 60 * second - 1, 10 * second, 10 * second));
+      // Bucket sizes below the finest counter resolution count the spans directly
+      assertEquals(
+          List.of(
+              new Timestamp(second, 1),
+              new Timestamp(second + second / 2, 1),
+              new Timestamp(12 * second, 1),
+              new Timestamp(70 * second, 1)),
+          traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+              session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, second / 2));
+    }
+
+    @Test
+    void testFileCommunicationFromAggregatedCalls() {
+      SpanData.Builder builder =
+          SpanData.newBuilder()
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setLanguage("");
+
+      SpanData root =
+          builder
+              .setSpanId("root")
+              .setParentId("")
+              .setFunctionName("caller")
+              .setFilePath("net/explorviz/Caller.java")
+              .setStartTime(0)
+              .setEndTime(100)
+              .build();
+      SpanData earlyChild =
+          builder
+              .setSpanId("earlyChild")
+              .setParentId("root")
+              .setFunctionName("callee")
+              .setFilePath("net/explorviz/Callee.java")
+              .setStartTime(10)
+              .setEndTime(30)
+              .build();
+      SpanData lateChild =
+          builder.setSpanId("lateChild").setStartTime(40).setEndTime(45).build();
+
+      // One child arrives before its parent, the other one together with it
+      consumeBatch(List.of(earlyChild));
+      consumeBatch(List.of(root, lateChild));
+      // Redelivered spans are not counted again
+      consumeBatch(List.of(root, earlyChild, lateChild));
+
+      List<TraceRepository.FileCommunication> fileCommunications =
+          traceRepository.findAggregatedFileCommunication(
+              session, landscapeToken, Long.MIN_VALUE, Long.MAX_VALUE);
+
+      assertEquals(1, fileCommunications.size());
+      TraceRepository.FileCommunication fileCommunication = fileCommunications.get(0);
+      assertEquals("Caller.java", fileCommunication.sourceFileName());
+      assertEquals("Callee.java", fileCommunication.targetFileName());
+      assertEquals(2, fileCommunication.requestCount());
+      assertEquals(1, fileCommunication.functionCount());
+      assertEquals(25, fileCommunication.executionTime());
+
+      List<TraceRepository.FunctionCommunication> functionCommunications =
+          traceRepository.findCalledFunctionsBetweenFiles(
+              session,
+              landscapeToken,
+              fileCommunication.sourceFileId(),
+              fileCommunication.targetFileId(),
+              Long.MIN_VALUE,
+              Long.MAX_VALUE);
+
+      assertEquals(1, functionCommunications.size());
+      assertEquals("callee", functionCommunications.get(0).functionName());
+      assertEquals(2, functionCommunications.get(0).requestCount());
+      assertEquals(25, functionCommunications.get(0).executionTime());
+    }
+
+    @Test
+    void testConcurrentlyConsumedBatchesAreCountedOnce() {
+      SpanData.Builder builder =
+          SpanData.newBuilder()
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setLanguage("");
+
+      SpanData root =
+          builder
+              .setSpanId("root")
+              .setParentId("")
+              .setFunctionName("caller")
+              .setFilePath("net/explorviz/Caller.java")
+              .setStartTime(0)
+              .setEndTime(100)
+              .build();
+      SpanData child =
+          builder
+              .setSpanId("child")
+              .setParentId("root")
+              .setFunctionName("callee")
+              .setFilePath("net/explorviz/Callee.java")
+              .setStartTime(10)
+              .setEndTime(30)
+              .build();
+
+      // The same batch handed in concurrently, e.g. by the consumer and the retry queue
+      List<CompletableFuture<Void>> consumers = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        consumers.add(
+            CompletableFuture.runAsync(() -> consumeBatch(List.of(root, child))));
+      }
+      CompletableFuture.allOf(consumers.toArray(CompletableFuture[]::new)).join();
+
+      assertEquals(
+          1L,
+          session.queryForObject(
+              Long.class,
+              "MATCH (d:Directory {name: $name}) RETURN count(d);",
+              Map.of("name", "explorviz")));
+      assertEquals(
+          2L, session.queryForObject(Long.class, "MATCH (f:Function) RETURN count(f);", Map.of()));
+      assertEquals(
+          List.of(new Timestamp(0, 2)),
+          traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+              session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, 10_000_000_000L));
+
+      List<TraceRepository.FileCommunication> fileCommunications =
+          traceRepository.findAggregatedFileCommunication(
+              session, landscapeToken, Long.MIN_VALUE, Long.MAX_VALUE);
+      assertEquals(1, fileCommunications.size());
+      assertEquals(1, fileCommunications.get(0).requestCount());
+    }
+
+    @Test
+    void testRebuildDerivedSpanDataMatchesIngest() {
+      SpanData.Builder builder =
+          SpanData.newBuilder()
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setLanguage("");
+
+      List<SpanData> batch = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        batch.add(
+            builder
+                .setTraceId("trace" + i)
+                .setSpanId("root" + i)
+                .setParentId("")
+                .setFunctionName("caller")
+                .setFilePath("net/explorviz/Caller.java")
+                .setStartTime(i * 20_000_000_000L)
+                .setEndTime(i * 20_000_000_000L + 100)
+                .build());
+        batch.add(
+            builder
+                .setSpanId("child" + i)
+                .setParentId("root" + i)
+                .setFunctionName("callee")
+                .setFilePath("net/explorviz/Callee.java")
+                .setStartTime(i * 20_000_000_000L + 10)
+                .setEndTime(i * 20_000_000_000L + 30)
+                .build());
+      }
+      consumeBatch(batch);
+
+      List<Timestamp> ingestedTimestamps =
+          traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+              session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, 10_000_000_000L);
+      List<TraceRepository.FileCommunication> ingestedCalls =
+          traceRepository.findAggregatedFileCommunication(
+              session, landscapeToken, Long.MIN_VALUE, Long.MAX_VALUE);
+      List<TraceRepository.TraceSummary> ingestedSummaries =
+          traceRepository.findTraceSummaries(
+              session, landscapeToken, Long.MIN_VALUE, Long.MAX_VALUE);
+
+      spanDataRebuilder.rebuildSpanCounts(landscapeToken);
+      spanDataRebuilder.rebuildCalls(landscapeToken);
+      spanDataRebuilder.rebuildSummaries(landscapeToken);
+
+      assertEquals(3, ingestedTimestamps.size());
+      assertEquals(
+          ingestedTimestamps,
+          traceRepository.findTimestampsForLandscapeTokenAndTimeRange(
+              session, landscapeToken, Long.MAX_VALUE, Long.MIN_VALUE, 10_000_000_000L));
+      assertEquals(3, ingestedCalls.get(0).requestCount());
+      assertEquals(
+          ingestedCalls,
+          traceRepository.findAggregatedFileCommunication(
+              session, landscapeToken, Long.MIN_VALUE, Long.MAX_VALUE));
+      assertEquals(3, ingestedSummaries.size());
+      assertEquals(2, ingestedSummaries.get(0).depth());
+      assertEquals(
+          ingestedSummaries,
+          traceRepository.findTraceSummaries(
+              session, landscapeToken, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    void testPersistAssembledTrace() {
+      String spanIdTwo = "span2";
+      String functionNameTwo = "yourMethod";
+
+      SpanData childSpanData =
+          SpanData.newBuilder()
+              .setParentId(baseSpanId)
+              .setSpanId(spanIdTwo)
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setFunctionName(functionNameTwo)
+              .setFilePath(String.join("/", baseFilePath))
+              .setStartTime(2)
+              .setEndTime(4)
+              .setLanguage("")
+              .build();
+
+      SpanData rootSpanData =
+          SpanData.newBuilder()
+              .setParentId("")
+              .setSpanId(baseSpanId)
+              .setTraceId(baseTraceId)
+              .setApplicationName(baseAppName)
+              .setLandscapeTokenId(landscapeToken)
+              .setFunctionName(baseFunctionName)
+              .setFilePath(String.join("/", baseFilePath))
+              .setStartTime(1)
+              .setEndTime(5)
+              .setLanguage("")
+              .build();
+
+      traceAssemblyBuffer.add(List.of(childSpanData));
+      traceAssemblyBuffer.add(List.of(rootSpanData));
+
+      assertNodeCounts(session, ExpectedCounts.builder().build());
+
+      traceAssemblyBuffer.flushAll();
+
+      Map<String, Object> params = new HashMap<>();
+      params.put("landscapeToken", landscapeToken);
+      params.put("traceId", baseTraceId);
+      params.put("spanId", baseSpanId);
+      params.put("spanIdTwo", spanIdTwo);
+      params.put("funName", baseFunctionName);
+      params.put("funNameTwo", functionNameTwo);
+
+      Boolean databaseIsCorrect =
+          session.queryForObject(
+              Boolean.class,
+              """
+              RETURN EXISTS {
+              MATCH (:Landscape {tokenId: $landscapeToken})
+                    -[:CONTAINS]->(t:Trace {traceId: $traceId})
+                    -[:CONTAINS]->(s1:Span {spanId: $spanId})
+                    -[:REPRESENTS]->(:Function {name: $funName})
+              MATCH (t)-[:CONTAINS]->(s2:Span {spanId: $spanIdTwo})
+                    -[:REPRESENTS]->(:Function {name: $funNameTwo})
+              MATCH (s2)-[:HAS_PARENT]->(s1)
+              WHERE t.startTime = 1 AND t.endTime = 5 AND s1.startTime = 1 AND s1.endTime = 5
+              } AS exists;
+              """,
+              params);
+
+      assertTrue(databaseIsCorrect);
+      assertNodeCounts(
+          session,
+          ExpectedCounts.builder()
+              .landscapes(1)
+              .traces(1)
+              .spans(2)
+              .applications(1)
+              .directories(4)
+              .files(1)
+              .functions(2)
+              .build());
+    }
   }
 
   @Nested
@@ -1196,6 +1770,13 @@ class SpanDataServiceTest {
       landscape.addRepository(repository);
 
       session.save(List.of(landscape, application));
+      setKeys(session);
+    }
+
+    /** Static data saved directly bypasses the ingest, so its keys are backfilled afterwards. */
+    private void setKeys(Session session) {
+      directoryRepository.backfillPathKeys(session, 100);
+      clazzRepository.backfillFqnKeys(session, 100);
     }
 
     @BeforeEach
@@ -1286,7 +1867,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -1369,7 +1950,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -1440,7 +2021,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -1542,9 +2123,9 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
-      spanDataConsumer.consume(testSpanDataTwo);
+      consume(testSpanDataTwo);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -1675,7 +2256,7 @@ class SpanDataServiceTest {
               """,
               params);
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Boolean databaseIsCorrect =
           session.queryForObject(
@@ -1752,6 +2333,7 @@ class SpanDataServiceTest {
       clazz.addFunction(new Function(functionNameTwo));
       file.addClass(clazz);
       session.save(file);
+      setKeys(session);
 
       Map<String, Object> params = new HashMap<>();
       params.put("landscapeToken", landscapeToken);
@@ -1815,7 +2397,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Boolean databaseIsCorrect =
           session.queryForObject(
@@ -1892,7 +2474,7 @@ class SpanDataServiceTest {
               .setLanguage("")
               .build();
 
-      spanDataConsumer.consume(testSpanData);
+      consume(testSpanData);
 
       Boolean databaseIsCorrect =
           session.queryForObject(
@@ -0,0 +1,10 @@
+package net.explorviz.persistence;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import net.explorviz.persistence.util.TraceAssemblyProfile;
+
+/** Runs {@link SpanDataServiceTest} with the consumed spans buffered for trace assembly. */
+@QuarkusTest
+@TestProfile(TraceAssemblyProfile.class)
+class SpanDataServiceTraceAssemblyTest extends SpanDataServiceTest {}
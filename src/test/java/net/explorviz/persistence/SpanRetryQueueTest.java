@@ -0,0 +1,182 @@
+package net.explorviz.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.reactive.messaging.memory.InMemoryConnector;
+import io.smallrye.reactive.messaging.memory.InMemorySink;
+import jakarta.inject.Inject;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.BatchAcknowledgement;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.messaging.SpanRetryQueue;
+import net.explorviz.persistence.util.TestSpans;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.eclipse.microprofile.reactive.messaging.spi.Connector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+class SpanRetryQueueTest {
+
+  private static final String BLOCKED_FUNCTION = "blocked";
+
+  private static final String DEAD_LETTERED_METRIC = "explorviz.spans.retry.dead-lettered";
+
+  @Inject
+  @Connector("smallrye-in-memory")
+  InMemoryConnector connector;
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject MeterRegistry meterRegistry;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  @Inject SpanRetryQueue spanRetryQueue;
+
+  private Session session;
+
+  private InMemorySink<SpanData> deadLetterSink;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+
+    // Any new function with the blocked name violates the constraint, so persisting fails
+    session.query(
+        """
+        CREATE CONSTRAINT test_function_name IF NOT EXISTS
+        FOR (f:Function) REQUIRE f.name IS UNIQUE
+        """,
+        Map.of());
+    session.query("CREATE (:Function {name: $name});", Map.of("name", BLOCKED_FUNCTION));
+
+    deadLetterSink = connector.sink(SpanRetryQueue.DEAD_LETTER_CHANNEL);
+    deadLetterSink.clear();
+  }
+
+  @AfterEach
+  void cleanup() {
+    unblock();
+  }
+
+  @Test
+  void testFailedSpanIsRetried() {
+    spanDataConsumer.consumeBatch(List.of(failingSpan()));
+
+    assertEquals(1, spanRetryQueue.getQueuedSpans());
+    assertEquals(0L, countSpans());
+
+    unblock();
+    spanRetryQueue.retryAll();
+
+    assertEquals(0, spanRetryQueue.getQueuedSpans());
+    assertEquals(1L, countSpans());
+    assertTrue(deadLetterSink.received().isEmpty());
+  }
+
+  @Test
+  void testFailedRecordsAreAcknowledgedOnceRetried() {
+    AtomicInteger acks = new AtomicInteger();
+    Message<List<SpanData>> records =
+        Message.of(
+            List.of(failingSpan()),
+            () -> {
+              acks.incrementAndGet();
+              return CompletableFuture.completedFuture(null);
+            });
+
+    spanDataConsumer.consumeRecords(records).await().indefinitely();
+
+    assertEquals(0, acks.get());
+
+    unblock();
+    spanRetryQueue.retryAll();
+
+    assertEquals(1, acks.get());
+    assertEquals(1L, countSpans());
+  }
+
+  @Test
+  void testSpanIsDeadLetteredAfterMaxAttempts() {
+    double deadLetteredBefore = meterRegistry.counter(DEAD_LETTERED_METRIC).count();
+
+    spanDataConsumer.consumeBatch(List.of(failingSpan()));
+    // The first attempt already failed, max-attempts is 5
+    for (int attempt = 2; attempt <= 5; attempt++) {
+      assertEquals(1, spanRetryQueue.getQueuedSpans());
+      spanRetryQueue.retryAll();
+    }
+
+    assertEquals(0, spanRetryQueue.getQueuedSpans());
+    assertEquals(0L, countSpans());
+    assertEquals(1, deadLetterSink.received().size());
+    assertEquals("failingSpan", deadLetterSink.received().get(0).getPayload().getSpanId());
+    assertEquals(deadLetteredBefore + 1, meterRegistry.counter(DEAD_LETTERED_METRIC).count());
+  }
+
+  @Test
+  void testFailedBatchesAreRetriedSeparately() {
+    spanDataConsumer.consumeBatch(List.of(failingSpan()));
+    // A span of the same trace which failed on its own, e.g. due to a deadlock
+    spanRetryQueue.add(
+        List.of(span("validSpan", "valid")),
+        List.of(BatchAcknowledgement.NONE),
+        new IllegalStateException("deadlock"));
+
+    spanRetryQueue.retryAll();
+
+    assertEquals(1, spanRetryQueue.getQueuedSpans());
+    assertEquals(1L, countSpans());
+    assertTrue(deadLetterSink.received().isEmpty());
+  }
+
+  @Test
+  void testOnlyFailingSpansOfBatchAreDeadLettered() {
+    spanDataConsumer.consumeBatch(
+        List.of(span("validSpan", "valid"), failingSpan(), span("otherValidSpan", "otherValid")));
+    // All spans of the trace are written in one transaction and fail together
+    for (int attempt = 2; attempt <= 5; attempt++) {
+      spanRetryQueue.retryAll();
+    }
+
+    assertEquals(0, spanRetryQueue.getQueuedSpans());
+    assertEquals(2L, countSpans());
+    assertEquals(1, deadLetterSink.received().size());
+    assertEquals("failingSpan", deadLetterSink.received().get(0).getPayload().getSpanId());
+  }
+
+  private void unblock() {
+    session.query("DROP CONSTRAINT test_function_name IF EXISTS", Map.of());
+  }
+
+  private Long countSpans() {
+    return session.queryForObject(Long.class, "MATCH (s:Span) RETURN count(s);", Map.of());
+  }
+
+  private static SpanData failingSpan() {
+    return span("failingSpan", BLOCKED_FUNCTION);
+  }
+
+  private static SpanData span(final String spanId, final String functionName) {
+    return TestSpans.span("failingTrace", spanId)
+        .setFunctionName(functionName)
+        .setFilePath("net/explorviz/Blocked.java")
+        .build();
+  }
+}
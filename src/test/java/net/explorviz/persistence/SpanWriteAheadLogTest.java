@@ -0,0 +1,114 @@
+package net.explorviz.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import jakarta.inject.Inject;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.util.TestSpans;
+import net.explorviz.persistence.wal.SpanWriteAheadLog;
+import net.explorviz.persistence.wal.WalSegment;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+@TestProfile(SpanWriteAheadLogTest.WriteAheadLogProfile.class)
+class SpanWriteAheadLogTest {
+
+  private static final String WAL_DIRECTORY = "build/test-wal";
+
+  public static class WriteAheadLogProfile implements QuarkusTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+      return Map.of(
+          "explorviz.spans.wal.enabled", "true",
+          "explorviz.spans.wal.directory", WAL_DIRECTORY,
+          "explorviz.spans.wal.fsync", "ALWAYS");
+    }
+  }
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  @Inject SpanWriteAheadLog spanWriteAheadLog;
+
+  private Session session;
+
+  private AtomicInteger acks;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+    acks = new AtomicInteger();
+  }
+
+  @Test
+  void testSegmentIsDeletedOnceCommitted() {
+    spanDataConsumer.consumeRecords(records(List.of(span("walSpan1")))).await().indefinitely();
+
+    // Acknowledged once appended, the segment stays active until the next append
+    assertEquals(1, acks.get());
+    assertEquals(1L, count("MATCH (s:Span {spanId: 'walSpan1'}) RETURN count(s);"));
+
+    spanDataConsumer.consumeRecords(records(List.of(span("walSpan2")))).await().indefinitely();
+
+    assertEquals(2, acks.get());
+    assertEquals(1, spanWriteAheadLog.getSegmentCount());
+  }
+
+  @Test
+  void testLeftOverSegmentIsReplayed() throws Exception {
+    Path path = Path.of(WAL_DIRECTORY, "spans-9000000000000000.wal");
+    Files.createDirectories(path.getParent());
+    Files.deleteIfExists(path);
+
+    WalSegment segment = WalSegment.create(path, 4096);
+    segment.append(WalSegment.encode(List.of(span("replayedSpan1"), span("replayedSpan2"))));
+    segment.append(WalSegment.encode(List.of(span("replayedSpan3"))));
+    segment.force();
+    segment.close();
+
+    spanWriteAheadLog.replay();
+
+    assertEquals(
+        3L, count("MATCH (s:Span) WHERE s.spanId STARTS WITH 'replayed' RETURN count(s);"));
+    assertFalse(Files.exists(path));
+  }
+
+  private Message<List<SpanData>> records(final List<SpanData> spans) {
+    return Message.of(
+        spans,
+        () -> {
+          acks.incrementAndGet();
+          return CompletableFuture.completedFuture(null);
+        });
+  }
+
+  private Long count(final String query) {
+    return session.queryForObject(Long.class, query, Map.of());
+  }
+
+  private static SpanData span(final String spanId) {
+    return TestSpans.span("walTrace", spanId).build();
+  }
+}
@@ -0,0 +1,133 @@
+package net.explorviz.persistence;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.util.List;
+import net.explorviz.persistence.avro.SpanData;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.util.TestSpans;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.SessionFactory;
+
+@QuarkusTest
+class TraceSummaryTest {
+
+  private static final String DYNAMIC_PATH = "/v3/landscapes/mytokenvalue/dynamic";
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  @BeforeEach
+  void init() {
+    sessionFactory.openSession().purgeDatabase();
+    functionResolutionCache.invalidateAll();
+  }
+
+  @Test
+  void testSummariesAreMaintainedAcrossBatches() {
+    // The grandchild arrives before its parent, which arrives along with the root
+    spanDataConsumer.consumeBatch(List.of(span("grandchild", "child", "callee", 30, 40)));
+
+    given()
+        .queryParam("summary", true)
+        .when()
+        .get(DYNAMIC_PATH)
+        .then()
+        .statusCode(200)
+        .body("[0].spanCount", equalTo(1))
+        .body("[0].depth", equalTo(2))
+        .body("[0].rootFunctionId", nullValue());
+
+    spanDataConsumer.consumeBatch(
+        List.of(span("root", "", "caller", 10, 100), span("child", "root", "callee", 20, 50)));
+
+    given()
+        .queryParam("summary", true)
+        .when()
+        .get(DYNAMIC_PATH)
+        .then()
+        .statusCode(200)
+        .body("", hasSize(1))
+        .body("[0].traceId", equalTo("summaryTrace"))
+        .body("[0].spanCount", equalTo(3))
+        .body("[0].depth", equalTo(3))
+        .body("[0].duration", equalTo(90))
+        .body("[0].rootFunctionId", notNullValue())
+        .body("[0].spanList", nullValue());
+  }
+
+  @Test
+  void testSummariesExtendStoredDepthAcrossBatches() {
+    spanDataConsumer.consumeBatch(List.of(span("root", "", "caller", 10, 100)));
+    spanDataConsumer.consumeBatch(List.of(span("child", "root", "callee", 20, 50)));
+    // Redelivered spans are not counted again
+    spanDataConsumer.consumeBatch(
+        List.of(
+            span("child", "root", "callee", 20, 50),
+            span("grandchild", "child", "callee", 30, 40)));
+
+    given()
+        .queryParam("summary", true)
+        .when()
+        .get(DYNAMIC_PATH)
+        .then()
+        .statusCode(200)
+        .body("", hasSize(1))
+        .body("[0].spanCount", equalTo(3))
+        .body("[0].depth", equalTo(3))
+        .body("[0].duration", equalTo(90))
+        .body("[0].rootFunctionId", notNullValue());
+
+    // Traces are selected by the overlap of their time range
+    given()
+        .queryParam("summary", true)
+        .queryParam("from", 101)
+        .when()
+        .get(DYNAMIC_PATH)
+        .then()
+        .statusCode(200)
+        .body("", hasSize(0));
+  }
+
+  @Test
+  void testSingleTraceIncludesAllSpans() {
+    spanDataConsumer.consumeBatch(
+        List.of(span("root", "", "caller", 10, 100), span("child", "root", "callee", 20, 50)));
+
+    given()
+        .when()
+        .get(DYNAMIC_PATH + "/summaryTrace")
+        .then()
+        .statusCode(200)
+        .body("traceId", equalTo("summaryTrace"))
+        .body("spanList", hasSize(2));
+
+    given().when().get(DYNAMIC_PATH + "/unknownTrace").then().statusCode(404);
+  }
+
+  private static SpanData span(
+      final String spanId,
+      final String parentId,
+      final String functionName,
+      final long startTime,
+      final long endTime) {
+    return TestSpans.span("summaryTrace", spanId)
+        .setParentId(parentId)
+        .setFunctionName(functionName)
+        .setFilePath("net/explorviz/" + functionName + ".java")
+        .setStartTime(startTime)
+        .setEndTime(endTime)
+        .build();
+  }
+}
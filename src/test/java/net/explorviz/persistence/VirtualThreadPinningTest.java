@@ -0,0 +1,80 @@
+package net.explorviz.persistence;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.quarkus.grpc.GrpcClient;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.junit5.virtual.ShouldNotPin;
+import io.quarkus.test.junit5.virtual.VirtualThreadUnit;
+import jakarta.inject.Inject;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.persistence.cache.FunctionResolutionCache;
+import net.explorviz.persistence.messaging.SpanDataConsumer;
+import net.explorviz.persistence.proto.StateDataRequest;
+import net.explorviz.persistence.proto.StateDataService;
+import net.explorviz.persistence.util.TestSpans;
+import net.explorviz.persistence.util.VirtualThreadsProfile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.ogm.session.Session;
+import org.neo4j.ogm.session.SessionFactory;
+
+/**
+ * Checks that the handlers running on virtual threads do not pin their carrier thread while
+ * waiting for the database, e.g. due to blocking inside synchronized blocks of the Neo4j driver.
+ * Requires Java 21 or newer.
+ */
+@QuarkusTest
+@TestProfile(VirtualThreadsProfile.class)
+@VirtualThreadUnit
+@ShouldNotPin
+class VirtualThreadPinningTest {
+
+  private static final long GRPC_AWAIT_SECONDS = 5;
+
+  @GrpcClient StateDataService stateDataService;
+
+  @Inject FunctionResolutionCache functionResolutionCache;
+
+  @Inject SessionFactory sessionFactory;
+
+  @Inject SpanDataConsumer spanDataConsumer;
+
+  private Session session;
+
+  @BeforeEach
+  void init() {
+    session = sessionFactory.openSession();
+    session.purgeDatabase();
+    functionResolutionCache.invalidateAll();
+  }
+
+  @Test
+  void testPersistSpansDoesNotPin() {
+    spanDataConsumer.consumeBatch(List.of(TestSpans.span("myTrace", "mySpan").build()));
+
+    assertEquals(
+        1L, session.queryForObject(Long.class, "MATCH (s:Span) RETURN count(s);", Map.of()));
+  }
+
+  @Test
+  void testGrpcAndRestHandlersDoNotPin() {
+    stateDataService
+        .getStateData(
+            StateDataRequest.newBuilder()
+                .setLandscapeToken("mytokenvalue")
+                .setRepositoryName("myrepo")
+                .setBranchName("main")
+                .putAllApplicationPaths(Map.of("testApp", ""))
+                .build())
+        .await()
+        .atMost(Duration.ofSeconds(GRPC_AWAIT_SECONDS));
+
+    given().when().get("/v3/landscapes/mytokenvalue/timestamps").then().statusCode(200);
+    given().when().get("/v3/landscapes/mytokenvalue/structure/runtime").then().statusCode(200);
+  }
+}
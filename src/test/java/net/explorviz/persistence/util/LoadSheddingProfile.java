@@ -0,0 +1,15 @@
+package net.explorviz.persistence.util;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+import java.util.Map;
+
+/** Sheds load while the consumer lags behind, adjusting the sampling ratio with each update. */
+public class LoadSheddingProfile implements QuarkusTestProfile {
+
+  @Override
+  public Map<String, String> getConfigOverrides() {
+    return Map.of(
+        "explorviz.spans.shedding.enabled", "true",
+        "explorviz.spans.shedding.adjust-interval", "0ms");
+  }
+}
@@ -0,0 +1,32 @@
+package net.explorviz.persistence.util;
+
+import net.explorviz.persistence.avro.SpanData;
+
+/** Builds spans for tests, such that each test only sets the fields it depends on. */
+public final class TestSpans {
+
+  public static final String LANDSCAPE_TOKEN = "mytokenvalue";
+
+  public static final String APPLICATION_NAME = "myApp";
+
+  private TestSpans() {}
+
+  /**
+   * Returns a builder for a root span of the landscape {@value #LANDSCAPE_TOKEN}, which represents
+   * the function myFunction of the file net/explorviz/MyClass.java in the application {@value
+   * #APPLICATION_NAME} and lasts from nanosecond 1 to 2.
+   */
+  public static SpanData.Builder span(final String traceId, final String spanId) {
+    return SpanData.newBuilder()
+        .setLandscapeTokenId(LANDSCAPE_TOKEN)
+        .setTraceId(traceId)
+        .setSpanId(spanId)
+        .setParentId("")
+        .setApplicationName(APPLICATION_NAME)
+        .setFunctionName("myFunction")
+        .setFilePath("net/explorviz/MyClass.java")
+        .setStartTime(1)
+        .setEndTime(2)
+        .setLanguage("");
+  }
+}
@@ -0,0 +1,13 @@
+package net.explorviz.persistence.util;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+import java.util.Map;
+
+/** Buffers consumed spans per trace before persisting them, as in production. */
+public class TraceAssemblyProfile implements QuarkusTestProfile {
+
+  @Override
+  public Map<String, String> getConfigOverrides() {
+    return Map.of("explorviz.spans.assembly.enabled", "true");
+  }
+}
@@ -0,0 +1,13 @@
+package net.explorviz.persistence.util;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+import java.util.Map;
+
+/** Runs the annotated REST resources, gRPC services and span consumers on virtual threads. */
+public class VirtualThreadsProfile implements QuarkusTestProfile {
+
+  @Override
+  public Map<String, String> getConfigOverrides() {
+    return Map.of("quarkus.virtual-threads.enabled", "true");
+  }
+}